@@ -0,0 +1,76 @@
+/*
+ * BigIntCombiner.java
+ *
+ * Combines BigInteger results with an arithmetic operation.
+ */
+
+package edu.tcnj.TGrid;
+
+import edu.tcnj.TGrid.Util.ArithmeticOperation;
+import java.io.Serializable;
+import java.math.BigInteger;
+
+/**
+ * Combines BigInteger results in a ReductionStage with BigIntOperationTasks,
+ * going by their sizes in bits.  Only addition and multiplication can be
+ * used, since the others are not associative.
+ *
+ * @see edu.tcnj.TGrid.BigIntOperationTask
+ */
+public class BigIntCombiner implements Combiner {
+    /**
+     * The operation the results are combined with
+     */
+    private final ArithmeticOperation operation;
+
+    /**
+     * The number of execution slots each combining task takes
+     */
+    private final int cores;
+
+    /**
+     * Creates a combiner for an operation, whose tasks run on one core.
+     *
+     * @param operation The operation, ADD or MULTIPLY
+     * @throws IllegalArgumentException if the operation is not associative
+     */
+    public BigIntCombiner(ArithmeticOperation operation) {
+        this(operation, 1);
+    }
+
+    /**
+     * Creates a combiner for an operation, whose tasks take the given number
+     * of execution slots and combine the results on that many threads.
+     *
+     * @param operation The operation, ADD or MULTIPLY
+     * @param cores     The number of execution slots each task takes
+     * @throws IllegalArgumentException if the operation is not associative
+     */
+    public BigIntCombiner(ArithmeticOperation operation, int cores) {
+        if (operation != ArithmeticOperation.ADD && operation != ArithmeticOperation.MULTIPLY) {
+            throw new IllegalArgumentException(operation + " is not associative");
+        }
+
+        this.operation = operation;
+        this.cores = cores;
+    }
+
+    /**
+     * Creates a task that applies the operation to the results it is given.
+     *
+     * @return The task
+     */
+    public Task createCombineTask() {
+        return new BigIntOperationTask(operation, cores);
+    }
+
+    /**
+     * Returns the size of a result in bits.
+     *
+     * @param result The result, a BigInteger
+     * @return Its size in bits
+     */
+    public double sizeOf(Serializable result) {
+        return ((BigInteger)result).bitLength();
+    }
+}
@@ -6,9 +6,11 @@ import edu.tcnj.TGrid.States.TaskState;
 
 import java.io.Serializable;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
 import java.math.BigInteger;
 import edu.tcnj.TGrid.Util.ArithmeticOperation;
+import edu.tcnj.TGrid.Util.ProductTree;
 
 /**
  * The BigIntOperationTask class performs an arithmetic operation on a set of
@@ -16,7 +18,7 @@ import edu.tcnj.TGrid.Util.ArithmeticOperation;
  * 
  * @author Stephen Sigwart
  */
-public class BigIntOperationTask extends Task
+public class BigIntOperationTask extends Task implements DependentTask
 {
 	/**
 	 * Represents the results of running this thread, as a human-readable string.
@@ -26,25 +28,43 @@ public class BigIntOperationTask extends Task
 	/**
 	 * List of numbers to apply the operation to
 	 */
-	private LinkedList<BigInteger> operands = new LinkedList<BigInteger>();
+	private ArrayList<BigInteger> operands = new ArrayList<BigInteger>();
 	
 	/**
 	 * Operation to apply to operands
 	 */
 	private ArithmeticOperation operator;
 	
+	/**
+	 * The cost estimate, or 0 if it has not been worked out since the operands
+	 * last changed
+	 */
+	private transient double costEstimate;
+	
 	/**
 	 * Represents the internal thread used to run the Task.
 	 */
 	private RunThread runThread; 
 	
 	/**
-	 * Creates a new BigIntOperationTask instance.
+	 * Creates a new BigIntOperationTask instance, which works on one thread.
 	 * @param op Operation to perform	 	 
 	 */
 	public BigIntOperationTask(ArithmeticOperation op)
+	{
+		this(op, 1);
+	}
+	
+	/**
+	 * Creates a new BigIntOperationTask instance, which works out products and
+	 * sums on a thread per execution slot it occupies.
+	 * @param op Operation to perform
+	 * @param cores Number of execution slots to occupy, and threads to run
+	 */
+	public BigIntOperationTask(ArithmeticOperation op, int cores)
 	{
 		operator = op;
+		taskRequirements.setCores(cores);
 	}
 	
 	/**
@@ -54,6 +74,118 @@ public class BigIntOperationTask extends Task
 	public void addOperand(BigInteger operand)
 	{
 		operands.add(operand);
+		costEstimate = 0;
+	}
+	
+	/**
+	 * Adds the result of a task this one depends on as an operand
+	 * @param input The task's result, a BigInteger
+	 */
+	public void addInput(Serializable input)
+	{
+		addOperand((BigInteger)input);
+	}
+	
+	/**
+	 * Returns an estimate of how much work the operation is, in multiplications
+	 * of 32 bit words, going by the sizes of the operands.  Products and sums
+	 * combine the two smallest operands at a time, so each step costs as much
+	 * as an operation between them; the other operations combine the operands
+	 * one at a time into a running result.  The estimate is worked out once,
+	 * since the server asks for it many times.
+	 * 
+	 * @return The estimated cost
+	 */
+	@Override
+	public double getCostEstimate()
+	{
+		if (costEstimate == 0)
+			costEstimate = estimateCost();
+		
+		return costEstimate;
+	}
+	
+	/**
+	 * Works out the cost estimate from the sizes of the operands.
+	 * 
+	 * @return The estimated cost
+	 */
+	private double estimateCost()
+	{
+		if (operator == ArithmeticOperation.MULTIPLY || operator == ArithmeticOperation.ADD)
+		{
+			PriorityQueue<Long> smallest = new PriorityQueue<Long>();
+			for (BigInteger operand : operands)
+				smallest.add((long)(operand.bitLength() / 32 + 1));
+			
+			double cost = 0;
+			while (smallest.size() > 1)
+			{
+				long aWords = smallest.poll();
+				long bWords = smallest.poll();
+				if (operator == ArithmeticOperation.MULTIPLY)
+				{
+					cost += multiplicationCost(aWords, bWords);
+					smallest.add(aWords + bWords);
+				}
+				else
+				{
+					cost += Math.max(aWords, bWords);
+					smallest.add(Math.max(aWords, bWords) + 1);
+				}
+			}
+			
+			return cost;
+		}
+		
+		double cost = 0;
+		long resultWords = 0;
+		for (BigInteger operand : operands)
+		{
+			long words = operand.bitLength() / 32 + 1;
+			
+			// The first operand starts the running result
+			if (resultWords == 0)
+			{
+				resultWords = words;
+				continue;
+			}
+			
+			if (operator == ArithmeticOperation.DIVIDE)
+			{
+				// About as much as multiplying the quotient by the divisor
+				resultWords = Math.max(1, resultWords - words + 1);
+				cost += multiplicationCost(resultWords, words);
+			}
+			else
+			{
+				resultWords = Math.max(resultWords, words);
+				cost += resultWords;
+			}
+		}
+		
+		return cost;
+	}
+	
+	/**
+	 * Returns roughly how many multiplications of 32 bit words multiplying two
+	 * numbers takes.  Numbers of up to 80 words are multiplied the schoolbook way;
+	 * larger ones are split into pieces the size of the smaller number and each
+	 * piece multiplied by Karatsuba's method, as BigInteger does.
+	 * 
+	 * @param aWords The size of one number in words
+	 * @param bWords The size of the other number in words
+	 * @return The estimated number of word multiplications
+	 */
+	public static double multiplicationCost(long aWords, long bWords)
+	{
+		long small = Math.min(aWords, bWords);
+		long large = Math.max(aWords, bWords);
+		
+		if (small < 80)
+			return (double)small * large;
+		
+		return (double)large / small * Math.pow(small, Math.log(3) / Math.log(2));
 	}
 	
 	/**
@@ -120,42 +252,38 @@ public class BigIntOperationTask extends Task
 	{
 		public void run()
 		{
+			// Products and sums are worked out as balanced trees, on a thread per
+			// execution slot the task occupies.  The last multiplication, which is
+			// the only one when there are two operands, is split between them.
+			int threads = taskRequirements.getCores();
+			
 			// Check which operation to perform
-			BigInteger head;
 			switch (operator)
 			{
 				case ADD:
-				  results = new BigInteger("0");
-				  for (BigInteger tmp : operands)
-				  	results = results.add(tmp);
+				  results = ProductTree.sum(operands, threads);
 			  	break;
 			  case SUBTRACT:
 			  	if (operands.isEmpty())
 			  		results = new BigInteger("0");
 			  	else
 			  	{
-					  head = operands.poll();
-					  results = new BigInteger(head.toString());
-					  for (BigInteger tmp : operands)
-					  	results = results.subtract(tmp);
-					  operands.add(0, head);
+					  results = operands.get(0);
+					  for (int i = 1; i < operands.size(); i++)
+					  	results = results.subtract(operands.get(i));
 					}
 			  	break;
 			  case MULTIPLY:
-				  results = new BigInteger("1");
-				  for (BigInteger tmp : operands)
-				  	results = results.multiply(tmp);
+				  results = ProductTree.multiply(operands, threads);
 			  	break;
 			  case DIVIDE:
 			  	if (operands.isEmpty())
 			  		results = new BigInteger("0");
 			  	else
 			  	{
-					  head = operands.poll();
-						results = new BigInteger(head.toString());
-					  for (BigInteger tmp : operands)
-					  	results = results.divide(tmp);
-					  operands.add(0, head);
+					  results = operands.get(0);
+					  for (int i = 1; i < operands.size(); i++)
+					  	results = results.divide(operands.get(i));
 					}
 			  	break;
 			}
@@ -0,0 +1,39 @@
+/*
+ * Combiner.java
+ *
+ * Creates the tasks that combine results in a ReductionStage.
+ */
+
+package edu.tcnj.TGrid;
+
+import java.io.Serializable;
+
+/**
+ * The Combiner interface supplies the tasks a ReductionStage uses to combine
+ * results, two at a time, and tells how large a result is, so that results of
+ * similar size can be combined together.  The operation the tasks perform
+ * must be associative, since the stage combines results in whatever grouping
+ * keeps the tree balanced; it does keep them in their order of size, not the
+ * order they were added in, so the operation should also be commutative.
+ *
+ * @see edu.tcnj.TGrid.ReductionStage
+ * @see edu.tcnj.TGrid.BigIntCombiner
+ */
+public interface Combiner {
+    /**
+     * Creates a task that combines the results it is given as a
+     * DependentTask.
+     *
+     * @return The task
+     */
+    Task createCombineTask();
+
+    /**
+     * Returns how large a result is, in whatever units suit the results, such
+     * as bits.
+     *
+     * @param result The result
+     * @return The size of the result
+     */
+    double sizeOf(Serializable result);
+}
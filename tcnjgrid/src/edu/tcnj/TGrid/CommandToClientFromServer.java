@@ -12,71 +12,71 @@ package edu.tcnj.TGrid;
  * 
  * @author Dan
  */
-public enum CommandToClientFromServer {
+public enum CommandToClientFromServer implements WireCommand {
     
     /**
      * Indicates that the server wishes for the client to send authorization information.
      */
-    AUTHORIZATION_REQUEST,
+    AUTHORIZATION_REQUEST(0x01, PayloadType.NONE),
     
     /**
      * Indicates that the client sent incorrect authorization information.
      */
-    AUTHORIZATION_FAILED,
+    AUTHORIZATION_FAILED(0x02, PayloadType.NONE),
     
     /**
      * Indicates that the client sent correct authorization information.
      */
-    AUTHORIZATION_SUCCEEDED,
+    AUTHORIZATION_SUCCEEDED(0x03, PayloadType.NONE),
     
     /**
-     * Indicates that the server is about to send the port number for the client
+     * Carries the port number for the client
      * command connection.  Not used because of firewall issues.		  
      */
-    CLIENT_COMMAND_PORT,
+    CLIENT_COMMAND_PORT(0x04, PayloadType.INT),
     
     /**
      * Indicates that the server has setup the client connection.		  
      */
-    CLIENT_CONNECTION_ESTABLISHED,
+    CLIENT_CONNECTION_ESTABLISHED(0x05, PayloadType.NONE),
     
     /**
-     * Indicates that the server is about to send the client its ID number.
+     * Carries the client's ID number.
      */
-    SENDING_RESOURCE_ID,
+    SENDING_RESOURCE_ID(0x06, PayloadType.INT),
     
     /**
-     * Indicates that the server is about to send a new task.
+     * Carries a new task for the client to run.
      */
-    SENDING_NEW_TASK,
+    SENDING_NEW_TASK(0x07, PayloadType.OBJECT),
     
     /**
      * Indicates that the server wants the client to monitor the CPU and report
      * back whether it thinks it is idle or not.     
      */
-    MONITOR_CPU,
+    MONITOR_CPU(0x08, PayloadType.NONE),
     
     /**
      * Indicates that the server completed sending a new task.
      */
-    TASK_SENT,
+    TASK_SENT(0x09, PayloadType.NONE),
     
     /**
      * Indicates that the client should immediatly cease execution of its current task.
      */
-    CANCEL_TASK,
+    CANCEL_TASK(0x0A, PayloadType.NONE),
     
     /**
      * Indicates that the server had received the client's new state.
      */
-    STATE_ACKNOWLEDGED,
+    STATE_ACKNOWLEDGED(0x0B, PayloadType.NONE),
     
     /**
      * Indicates that the server wishes for the client to shut down.
      * The behavior of the shut down action is dependent on the client's
      * individual configuration.
      */
-    SHUTDOWN_REQUEST,
+    SHUTDOWN_REQUEST(0x0C, PayloadType.NONE),
     
     /**
      * Indicates that the server wishes for the client to close its connection
@@ -85,38 +85,120 @@ public enum CommandToClientFromServer {
      * Not implemented for the time being, as TCNJ lab computers cannot await
      * connections due to security restrictions in effect.
      */
-    DISCONNECTION_REQUEST,
+    DISCONNECTION_REQUEST(0x0D, PayloadType.NONE),
     
     /**
      * Indicates that the last command the client sent to the server was invalid,
      * and thus ignored.
      */
-    INVALID_COMMAND,
+    INVALID_COMMAND(0x0E, PayloadType.NONE),
     
     /**
      *  Indicates that the server wishes to recieve a response from the client,
      *  to indicate its presence
      */
-    PING,
+    PING(0x0F, PayloadType.NONE),
     
     /**
      * Indicates that the server received the client's request for acknowledgement
      */
-    PING_ACKNOWLEDGED,
+    PING_ACKNOWLEDGED(0x10, PayloadType.NONE),
     
     /**
      * Indicates that the server has encountered a general error preventing it
      * from continuing.
      */
-    GENERAL_SERVER_ERROR,
+    GENERAL_SERVER_ERROR(0x11, PayloadType.NONE),
     
     /**
-     * Indicates that the server is going to transfer a file
+     * Indicates that the server is going to transfer the files of a task, and
+     * carries a description of every one of them.  The client answers with
+     * TRANSFER_FILES_NEEDED.
      */
-    TRANSFER,
+    TRANSFER_MANIFEST(0x12, PayloadType.FILE_MANIFEST),
     
     /**
      * Indicates that the client should send back it's idle statistics
      */
-    SEND_IDLE_STATS
+    SEND_IDLE_STATS(0x13, PayloadType.NONE),
+    
+    /**
+     * Carries the next block of the file being transferred, as raw bytes.  The
+     * server sends these straight from the file with
+     * <code>ConnectionToRemoteHost.sendFileRegion</code>.
+     */
+    TRANSFER_DATA(0x14, PayloadType.RAW),
+    
+    /**
+     * Carries the MD5 checksum of the file just transferred, which also marks
+     * the end of its contents.
+     */
+    TRANSFER_CHECKSUM(0x15, PayloadType.BYTES),
+    
+    /**
+     * Carries a task for the client to run as soon as it has finished the ones
+     * it already has, or straight away if it has none.
+     */
+    QUEUE_TASK(0x16, PayloadType.OBJECT),
+    
+    /**
+     * Asks the client to drop the queued task with the given ID.  If it has
+     * already started the task, or is running it in an extra slot, it cancels
+     * it instead.
+     */
+    CANCEL_QUEUED_TASK(0x17, PayloadType.INT),
+    
+    /**
+     * Carries a task for the client to run straight away in one of its extra
+     * execution slots, alongside its current task.  The client answers with
+     * SLOT_TASK_ENDED once the task ends.
+     */
+    RUN_TASK_IN_SLOT(0x18, PayloadType.OBJECT),
+    
+    /**
+     * Carries a TaskSplit asking the client to give up the work of a task split
+     * off from one it is running or has queued.  The client answers with
+     * TASK_SPLIT.
+     */
+    SPLIT_TASK(0x19, PayloadType.OBJECT);
+    
+    /**
+     * The byte that identifies this command on the wire.
+     */
+    private final int opcode;
+    
+    /**
+     * The type of payload that travels with this command.
+     */
+    private final PayloadType payloadType;
+    
+    /**
+     * Associates a command with its opcode and payload type.
+     */
+    private CommandToClientFromServer(int opcode, PayloadType payloadType) {
+        this.opcode = opcode;
+        this.payloadType = payloadType;
+    }
+    
+    /**
+     * Returns the byte that identifies this command on the wire.
+     */
+    public int getOpcode() {
+        return opcode;
+    }
+    
+    /**
+     * Returns the type of payload that travels with this command.
+     */
+    public PayloadType getPayloadType() {
+        return payloadType;
+    }
+    
+    /**
+     * Returns whether sending this command ends a task.  Only a new, queued or
+     * slot task does.
+     */
+    public boolean isTaskBoundary() {
+        return this == SENDING_NEW_TASK || this == QUEUE_TASK || this == RUN_TASK_IN_SLOT;
+    }
 }
@@ -14,87 +14,153 @@ package edu.tcnj.TGrid;
  * 
  * @author Dan
  */
-public enum CommandToServerFromClient {
+public enum CommandToServerFromClient implements WireCommand {
     
     /**
-     * Indicates that the client is about to send a username.
+     * Carries the username used to authenticate.
      */
-    USERNAME,
+    USERNAME(0x41, PayloadType.STRING),
     
     /**
-     * Indicates that the client is about to send a password.
+     * Carries the password used to authenticate.
      */
-    PASSWORD,
+    PASSWORD(0x42, PayloadType.STRING),
     
     /**
-     * Indicates that the client is about to send the client key and password
+     * Carries the client key for the server's connecting client map.
      */
-    CLIENT_KEY,
+    CLIENT_KEY(0x43, PayloadType.INT),
     
     /**
-     * Indicates that the client's state changed, and that it is about to send its current state.
+     * Carries the client's password for the server's connecting client map.
      */
-    STATE_CHANGED,
+    CLIENT_PASSWORD(0x44, PayloadType.INT),
+    
+    /**
+     * Indicates that the client's state changed, and carries the new state.
+     */
+    STATE_CHANGED(0x45, PayloadType.RESOURCE_STATE),
     
     /**
      * Indicates that the client wishes to recieve a response from the server,
      * to indicate its presence
      */
-    PING,
+    PING(0x46, PayloadType.NONE),
     
     /**
      * Indicates that the client received the server's request for acknowledgement
      */
-    PING_ACKNOWLEDGED,
+    PING_ACKNOWLEDGED(0x47, PayloadType.NONE),
     
     /**
-     * Indicates that a task has completed, and the results are about to be sent.
+     * Indicates that a task has completed, and carries its results.
      */
-    SENDING_TASK_RESULTS,
+    SENDING_TASK_RESULTS(0x48, PayloadType.OBJECT),
     
     /**
      * Indicates that the last command sent was invalid.
      */
-    INVALID_COMMAND,
+    INVALID_COMMAND(0x49, PayloadType.NONE),
     
     /**
      * Indicates that the client encountered a miscellaneous error.
      */
-    GENERAL_ERROR,
+    GENERAL_ERROR(0x4A, PayloadType.NONE),
     
     /**
      * Indicates that the client wishes to disconnect from the server.
      */
-    GOING_OFFLINE,
+    GOING_OFFLINE(0x4B, PayloadType.NONE),
     
     /**
      * Indicates that the server has no command in particular to handle.
      */
-    NONE,
+    NONE(0x4C, PayloadType.NONE),
     
     /**
-     * Indicates that the client has a file already and does not want it transferred
+     * Answers a transfer manifest with a bitmap of the files the client does not
+     * already have (bit <code>i % 8</code> of byte <code>i / 8</code> is set if
+     * file i should be sent).
      */
-    TRANSFER_FILE_NOT_MODIFIED,
+    TRANSFER_FILES_NEEDED(0x4D, PayloadType.BYTES),
     
     /**
-     * Indicates that the client want to actually start the file transfer
+     * Carries the client's specifications (operating system, megabytes of RAM,
+     * number of CPUs and any others it was given), as a map from name to value.
      */
-    TRANSFER_FILE_ACK,
+    SENDING_SPECS(0x4E, PayloadType.OBJECT),
     
     /**
      * Indicates that the client has some idle statistics to remort back to the
      * server.     
      */
-    IDLE_STATS_AVAILABLE,
+    IDLE_STATS_AVAILABLE(0x4F, PayloadType.NONE),
+    
+    /**
+     * Carries a time at which the client was idle.
+     */
+    SENDING_IDLE_TIME(0x50, PayloadType.TIME),
+    
+    /**
+     * Carries a time at which the client was not idle.
+     */
+    SENDING_NONIDLE_TIME(0x51, PayloadType.TIME),
+    
+    /**
+     * Confirms that the queued task with the given ID was dropped before it
+     * started.
+     */
+    QUEUED_TASK_CANCELLED(0x52, PayloadType.INT),
+    
+    /**
+     * Carries the TaskOutcome of a task that ran in one of the client's extra
+     * execution slots.
+     */
+    SLOT_TASK_ENDED(0x53, PayloadType.OBJECT),
+    
+    /**
+     * Answers SPLIT_TASK with a TaskSplit carrying the split-off task as the
+     * client yielded to it, or none if the client kept all the work.
+     */
+    TASK_SPLIT(0x54, PayloadType.OBJECT);
+    
+    /**
+     * The byte that identifies this command on the wire.
+     */
+    private final int opcode;
+    
+    /**
+     * The type of payload that travels with this command.
+     */
+    private final PayloadType payloadType;
+    
+    /**
+     * Associates a command with its opcode and payload type.
+     */
+    private CommandToServerFromClient(int opcode, PayloadType payloadType) {
+        this.opcode = opcode;
+        this.payloadType = payloadType;
+    }
+    
+    /**
+     * Returns the byte that identifies this command on the wire.
+     */
+    public int getOpcode() {
+        return opcode;
+    }
     
     /**
-     * Indicates that an idle time is about to be sent from the client.
+     * Returns the type of payload that travels with this command.
      */
-    SENDING_IDLE_TIME,
+    public PayloadType getPayloadType() {
+        return payloadType;
+    }
     
     /**
-     * Indicates that a nonidle time is about to be sent from the client.
+     * Returns whether sending this command ends a task.  Only a task's results
+     * or outcome do.
      */
-    SENDING_NONIDLE_TIME
+    public boolean isTaskBoundary() {
+        return this == SENDING_TASK_RESULTS || this == SLOT_TASK_ENDED;
+    }
 }
@@ -0,0 +1,344 @@
+/*
+ * ConnectionSelectorPool.java
+ *
+ * Represents the small, fixed set of I/O threads that service every
+ * ConnectionToRemoteHost in this process.
+ */
+
+package edu.tcnj.TGrid;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The ConnectionSelectorPool multiplexes every registered ConnectionToRemoteHost
+ * over a fixed number of <code>Selector</code> threads, instead of parking one
+ * blocking receive thread per connection.
+ *
+ * Received messages are not delivered on the I/O threads themselves.  Each
+ * connection hands its frames to a bounded set of shared dispatch threads, which
+ * deliver them to the connection's listeners one at a time and in order, so a
+ * listener that blocks only delays its own connection (and, while it blocks,
+ * ties up one dispatch thread).
+ *
+ * I/O threads are started when the first connection is registered on them and
+ * exit once they have nothing left to service, so (as before) a process stays
+ * alive exactly as long as it has open connections.  Dispatch threads are
+ * likewise started as needed and exit once they have been idle for a while.
+ */
+public class ConnectionSelectorPool {
+
+    /**
+     * How long an idle dispatch thread waits for more work before exiting, in
+     * milliseconds.
+     */
+    private static final long DISPATCH_IDLE_TIME = 60000;
+
+    /**
+     * The pool shared by every connection in this process.
+     */
+    private static ConnectionSelectorPool defaultPool = null;
+
+    /**
+     * The slots, each of which owns one selector and (while it has connections)
+     * one I/O thread.
+     */
+    private final SelectorSlot[] slots;
+
+    /**
+     * Used to spread new connections evenly across the slots.
+     */
+    private final AtomicInteger nextSlot = new AtomicInteger(0);
+
+    /**
+     * Listener notifications waiting for a dispatch thread.  Also guards the
+     * dispatch thread counts.
+     */
+    private final LinkedList<Runnable> dispatchQueue = new LinkedList<Runnable>();
+
+    /**
+     * The most dispatch threads that may run at once.
+     */
+    private final int maxDispatchThreads;
+
+    /**
+     * The number of dispatch threads running.  Guarded by dispatchQueue.
+     */
+    private int dispatchThreads = 0;
+
+    /**
+     * The number of dispatch threads waiting for work.  Guarded by
+     * dispatchQueue.
+     */
+    private int idleDispatchThreads = 0;
+
+    /**
+     * Used to number dispatch threads.
+     */
+    private final AtomicInteger dispatchThreadCount = new AtomicInteger(0);
+
+    /**
+     * Creates a new pool with the specified number of I/O and dispatch threads.
+     *
+     * @param numberOfThreads         The number of selector threads to use.
+     * @param numberOfDispatchThreads The most threads to deliver received
+     *                                messages on at once.
+     * @throws IOException if a selector cannot be opened
+     */
+    public ConnectionSelectorPool(int numberOfThreads, int numberOfDispatchThreads) throws IOException {
+        if(numberOfThreads < 1) {
+            numberOfThreads = 1;
+        }
+
+        slots = new SelectorSlot[numberOfThreads];
+        for(int i = 0; i < numberOfThreads; i++) {
+            slots[i] = new SelectorSlot(i, Selector.open());
+        }
+
+        maxDispatchThreads = Math.max(1, numberOfDispatchThreads);
+    }
+
+    /**
+     * Returns the pool shared by every connection in this process, creating it
+     * if necessary.  The number of I/O threads is half the number of available
+     * processors, between 1 and 4; at most twice the number of available
+     * processors, and at least 4, dispatch threads run at once.
+     *
+     * @return The default ConnectionSelectorPool
+     * @throws IOException if the pool could not be created
+     */
+    public static synchronized ConnectionSelectorPool getDefault() throws IOException {
+        if(defaultPool == null) {
+            int processors = Runtime.getRuntime().availableProcessors();
+            int numberOfThreads = Math.max(1, Math.min(4, processors / 2));
+            defaultPool = new ConnectionSelectorPool(numberOfThreads, Math.max(4, 2 * processors));
+        }
+
+        return defaultPool;
+    }
+
+    /**
+     * Registers a connected channel with one of the selector threads.  From this
+     * point on, the pool will read from the channel and finish any partial writes
+     * on behalf of the connection.
+     *
+     * @param connection The connection that owns the channel
+     * @param channel    The channel to service.  It must already be connected.
+     * @throws IOException if the channel could not be made non-blocking
+     */
+    void register(ConnectionToRemoteHost connection, SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+
+        SelectorSlot slot = slots[(nextSlot.getAndIncrement() & Integer.MAX_VALUE) % slots.length];
+        slot.register(connection, channel);
+    }
+
+    /**
+     * Schedules a connection's received messages to be delivered on a dispatch
+     * thread, starting one if more tasks are waiting than there are idle
+     * threads to take them, and fewer than the maximum are running.  Otherwise
+     * the task waits for the next thread to become free.
+     *
+     * @param task The task that delivers the messages
+     */
+    void dispatch(Runnable task) {
+        synchronized(dispatchQueue) {
+            dispatchQueue.add(task);
+
+            if(idleDispatchThreads > 0) {
+                dispatchQueue.notify();
+            }
+
+            // An idle thread counts as idle until it has taken a task, so there
+            // are only enough of them if there are as many as tasks waiting
+            if(dispatchQueue.size() > idleDispatchThreads && dispatchThreads < maxDispatchThreads) {
+                dispatchThreads++;
+
+                Thread dispatchThread = new DispatchThread();
+                dispatchThread.start();
+            }
+        }
+    }
+
+    /**
+     * Thread that runs queued dispatch tasks, and exits once it has had nothing
+     * to run for DISPATCH_IDLE_TIME.
+     */
+    protected class DispatchThread extends Thread {
+        public DispatchThread() {
+            super();
+
+            this.setName("Remote host dispatch thread " + dispatchThreadCount.incrementAndGet());
+        }
+
+        @Override
+        public void run() {
+            while(true) {
+                Runnable task;
+
+                synchronized(dispatchQueue) {
+                    long idleUntil = System.currentTimeMillis() + DISPATCH_IDLE_TIME;
+                    while(dispatchQueue.isEmpty()) {
+                        long idleTime = idleUntil - System.currentTimeMillis();
+                        if(idleTime <= 0) {
+                            dispatchThreads--;
+                            return;
+                        }
+
+                        idleDispatchThreads++;
+                        try {
+                            dispatchQueue.wait(idleTime);
+                        } catch (InterruptedException ex) {
+                            //keep waiting until idle for long enough
+                        } finally {
+                            idleDispatchThreads--;
+                        }
+                    }
+
+                    task = dispatchQueue.removeFirst();
+                }
+
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(ConnectionSelectorPool.class.getName()).log(Level.SEVERE, "Error delivering received messages.", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * A selector, the connections waiting to be registered with it, and the thread
+     * currently servicing it.
+     */
+    private static class SelectorSlot {
+        /**
+         * Identifies this slot in thread names.
+         */
+        private final int slotNumber;
+
+        /**
+         * The selector all of this slot's connections are registered with.
+         */
+        private final Selector selector;
+
+        /**
+         * Connections waiting to be registered by the I/O thread.  (Registration
+         * has to happen on the selecting thread, or it may block until the next
+         * select() returns.)
+         */
+        private final ConcurrentLinkedQueue<PendingRegistration> pendingRegistrations = new ConcurrentLinkedQueue<PendingRegistration>();
+
+        /**
+         * Whether an I/O thread is currently servicing this slot.  Guarded by
+         * <code>this</code>.
+         */
+        private boolean running = false;
+
+        public SelectorSlot(int slotNumber, Selector selector) {
+            this.slotNumber = slotNumber;
+            this.selector = selector;
+        }
+
+        /**
+         * Queues a connection for registration, starting the I/O thread if it is
+         * not already running.
+         */
+        public synchronized void register(ConnectionToRemoteHost connection, SocketChannel channel) {
+            pendingRegistrations.add(new PendingRegistration(connection, channel));
+
+            if(!running) {
+                running = true;
+
+                Thread ioThread = new IOThread();
+                ioThread.start();
+            } else {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Registers all queued connections.  Returns false, marking the slot as not
+         * running, if there is nothing left for the I/O thread to service.
+         */
+        private synchronized boolean registerPendingConnections() {
+            PendingRegistration registration;
+            while((registration = pendingRegistrations.poll()) != null) {
+                try {
+                    SelectionKey key = registration.channel.register(selector, SelectionKey.OP_READ, registration.connection);
+                    registration.connection.registered(key);
+                } catch (ClosedChannelException ex) {
+                    Logger.getLogger(ConnectionSelectorPool.class.getName()).log(Level.FINER, "Channel closed before it could be registered.", ex);
+                }
+            }
+
+            if(selector.keys().isEmpty()) {
+                running = false;
+            }
+
+            return running;
+        }
+
+        /**
+         * Thread responsible for reading from, and finishing writes to, every
+         * connection registered with this slot.
+         */
+        protected class IOThread extends Thread {
+            public IOThread() {
+                super();
+
+                this.setName("Remote host I/O thread " + slotNumber);
+            }
+
+            @Override
+            public void run() {
+                while(registerPendingConnections()) {
+                    try {
+                        selector.select();
+                    } catch (IOException ex) {
+                        Logger.getLogger(ConnectionSelectorPool.class.getName()).log(Level.WARNING, "Error selecting ready connections.", ex);
+                        continue;
+                    }
+
+                    Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                    while(selectedKeys.hasNext()) {
+                        SelectionKey key = selectedKeys.next();
+                        selectedKeys.remove();
+
+                        ConnectionToRemoteHost connection = (ConnectionToRemoteHost)key.attachment();
+
+                        if(key.isValid() && key.isWritable()) {
+                            connection.handleWritable();
+                        }
+
+                        if(key.isValid() && key.isReadable()) {
+                            connection.handleReadable();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A connection waiting to be registered with a selector.
+     */
+    private static class PendingRegistration {
+        private final ConnectionToRemoteHost connection;
+        private final SocketChannel channel;
+
+        public PendingRegistration(ConnectionToRemoteHost connection, SocketChannel channel) {
+            this.connection = connection;
+            this.channel = channel;
+        }
+    }
+}
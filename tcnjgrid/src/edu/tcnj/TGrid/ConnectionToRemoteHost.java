@@ -25,12 +25,35 @@ import java.net.ServerSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.ObjectInput;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.IOException;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,7 +62,22 @@ import java.util.logging.Logger;
  * to a remote host.  Messages can be sent via simple method calls, and received 
  * messages are distributed by triggering events.
  * 
+ * Connections do not own a thread.  Once connected, the socket is serviced by the
+ * shared <code>ConnectionSelectorPool</code>, and each message travels as a frame:
+ * a four byte length, a one byte opcode, and the command's payload (see
+ * <code>WireProtocol</code>).  Commands and their payloads are encoded inline;
+ * only tasks and results go through Java serialization.  The object streams
+ * used for those are discarded according to an <code>ObjectStreamResetPolicy</code>,
+ * so their handle tables stay bounded however long the connection lasts.
+ * 
+ * Sending only encodes a message and queues it; the pool's I/O thread is the
+ * only writer, and drains the queue in batches.  <code>send</code> waits for
+ * the message to be written, while <code>sendAsync</code> returns a future.
+ * Either waits if the queue is above its high watermark.
+ * 
  * @author Dan
+ * @see edu.tcnj.TGrid.ConnectionSelectorPool
+ * @see edu.tcnj.TGrid.WireProtocol
  */
 public class ConnectionToRemoteHost {
     
@@ -49,15 +87,50 @@ public class ConnectionToRemoteHost {
      */
     protected static final int DEFAULT_CONNECTION_TIMEOUT = 10000;
     
+    /**
+     * The initial size of the buffer received frames are assembled in, in bytes.
+     * The buffer grows as needed to hold larger frames, and shrinks back to this
+     * size once they have been received.
+     */
+    protected static final int INITIAL_READ_BUFFER_SIZE = 16384;
+    
+    /**
+     * The largest frame that will be accepted from the remote host, in bytes.
+     * Anything larger is treated as a communication error.
+     */
+    protected static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    
+    /**
+     * The default number of queued bytes above which senders are made to wait.
+     */
+    public static final int DEFAULT_HIGH_WATERMARK = 4 * 1024 * 1024;
+    
+    /**
+     * The default number of queued bytes the queue has to drain to before
+     * waiting senders may continue.
+     */
+    public static final int DEFAULT_LOW_WATERMARK = 1024 * 1024;
+    
+    /**
+     * The largest number of queued frames handed to the channel in one write.
+     */
+    protected static final int MAX_FRAMES_PER_WRITE = 64;
+    
     /**
      * The current state of this ConnectionToResource
      */
-    private ConnectionToRemoteHostState currentState = ConnectionToRemoteHostState.NOT_CONNECTED;
+    private volatile ConnectionToRemoteHostState currentState = ConnectionToRemoteHostState.NOT_CONNECTED;
+    
+    /**
+     * The pool of I/O threads servicing this connection's channel.
+     */
+    private ConnectionSelectorPool selectorPool = null;
     
     /**
-     * The thread responsible for sending text to the remote host.
+     * This connection's registration with the selector pool.  Null until the
+     * pool's I/O thread has registered the channel.  Guarded by pendingWrites.
      */
-    private ReceiveThread receiveThread = null;
+    private SelectionKey selectionKey = null;
     
     /**
      * The address of the remote host.
@@ -70,27 +143,134 @@ public class ConnectionToRemoteHost {
     private int port;
     
     /**
-     * The connection to the remote host as a Socket.
+     * The connection to the remote host as a SocketChannel.
+     */
+    private SocketChannel connection = null;
+    
+    /**
+     * Holds the bytes of a message until it is framed.
+     */
+    private ByteArrayOutputStream outgoingBytes = null;
+    
+    /**
+     * Responsible for encoding opcodes and inline payloads.
+     */
+    private DataOutputStream toRemoteHostData = null;
+    
+    /**
+     * Responsible for serializing object payloads sent to the remote host.  The
+     * stream is kept until the reset policy discards it, so class descriptions
+     * and repeated objects are only sent once in between.  Created when the
+     * first object payload after a reset is sent.
+     */
+    private volatile CountingObjectOutputStream toRemoteHost = null;
+    
+    /**
+     * Decides when toRemoteHost is discarded.
+     */
+    private volatile ObjectStreamResetPolicy resetPolicy = ObjectStreamResetPolicy.DEFAULT;
+    
+    /**
+     * The number of objects sent since toRemoteHost was last reset.  Guarded by this.
+     */
+    private int objectsSinceReset = 0;
+    
+    /**
+     * The number of bytes of objects sent since toRemoteHost was last reset.
+     * Guarded by this.
+     */
+    private long objectBytesSinceReset = 0;
+    
+    /**
+     * Whether the frame being encoded carries an object.  Guarded by this.
+     */
+    private boolean objectWritten = false;
+    
+    /**
+     * Hands the object streams to payload types that need them.
+     */
+    private final PayloadType.ObjectStreams objectStreams = new ConnectionObjectStreams();
+    
+    /**
+     * Feeds the contents of each received frame to the input streams.
+     */
+    private FrameInputStream incomingBytes = null;
+    
+    /**
+     * Responsible for decoding opcodes and inline payloads.
+     */
+    private DataInputStream fromRemoteHostData = null;
+    
+    /**
+     * Responsible for deserializing object payloads received from the remote host.
+     * Created when the first object payload (which carries the stream header)
+     * after a reset arrives.
+     */
+    private volatile CountingObjectInputStream fromRemoteHost = null;
+    
+    /**
+     * Whether the remote host's HELLO frame has been received.  Only accessed by
+     * the DispatchTask.
+     */
+    private boolean helloReceived = false;
+    
+    /**
+     * The buffer frames are read into by the I/O thread.
+     */
+    private ByteBuffer readBuffer = null;
+    
+    /**
+     * Complete frames that have been read but not yet delivered to listeners.
+     * An IOException in this queue marks the point at which the connection failed.
+     */
+    private ConcurrentLinkedQueue<Object> receivedFrames = new ConcurrentLinkedQueue<Object>();
+    
+    /**
+     * Whether a DispatchTask is currently scheduled to deliver receivedFrames.
+     */
+    private AtomicBoolean dispatchScheduled = new AtomicBoolean(false);
+    
+    /**
+     * Delivers received frames to listeners on the selector pool's dispatch
+     * executor.
+     */
+    private DispatchTask dispatchTask = new DispatchTask();
+    
+    /**
+     * Frames waiting to be written to the channel, oldest first.  Only the
+     * selector pool's I/O thread writes to the channel; it drains as many
+     * frames as it can each time the channel becomes writable.
      */
-    private Socket connection = new Socket();
+    private LinkedList<PendingWrite> pendingWrites = new LinkedList<PendingWrite>();
     
     /**
-     * Responsible for sending serialized objects to the remote host by 
-     * writing to the connection's input stream.
+     * The number of bytes in pendingWrites that have not been written yet.
+     * Guarded by pendingWrites.
      */
-    private ObjectOutputStream toRemoteHost = null;
+    private long queuedBytes = 0;
     
     /**
-     * Responsible for receiving messages in the form of serialized objects
-     * from the remote host by reading from the connection's input stream.
+     * Whether senders have to wait for pendingWrites to drain, because queuedBytes
+     * went over the high watermark and has not yet fallen to the low watermark.
+     * Guarded by pendingWrites.
      */
-    private ObjectInputStream fromRemoteHost = null;
+    private boolean writesBlocked = false;
     
     /**
-     * Determines whether or not the sending and receiving threads should 
-     * continue to run.  This is necessary so they know when to quit.
+     * The error that stopped frames from being written, if any.  Senders fail
+     * immediately once it is set.  Guarded by pendingWrites.
      */
-    private volatile boolean receiveEnabled = false;
+    private IOException writeError = null;
+    
+    /**
+     * The number of queued bytes above which senders have to wait.
+     */
+    private volatile int highWatermark = DEFAULT_HIGH_WATERMARK;
+    
+    /**
+     * The number of queued bytes below which waiting senders may continue.
+     */
+    private volatile int lowWatermark = DEFAULT_LOW_WATERMARK;
     
     /**
      * Indicates whether the client key is going to be passed in from the 
@@ -170,7 +350,7 @@ public class ConnectionToRemoteHost {
     }
     
     /**
-     * Connects to the remote host, opening the socket, and starting up the send and receive threads.
+     * Connects to the remote host, opening the socket, and registering it with the selector pool.
      * 
      * @throws edu.tcnj.TGrid.Exceptions.ConnectionToRemoteHostException 
      */
@@ -191,31 +371,28 @@ public class ConnectionToRemoteHost {
 	              {
 	              }
 	              
-	              // Create new socket
-	            	connection = new Socket();
 	            }
             
             	//System.out.println("Connection attempt #" + (i+1));
 	            setState(ConnectionToRemoteHostState.CONNECTING);
 	
 	            try {//attempt to connect to the remote host, using the address specified in the constructor
-	                connection.connect(new InetSocketAddress(addressOfRemoteHost, port), DEFAULT_CONNECTION_TIMEOUT);
-	                
-	                //initialize toClient and fromClient as inputs and outputs for this socket.
-	                toRemoteHost = new ObjectOutputStream(this.connection.getOutputStream());
-	                fromRemoteHost = new ObjectInputStream(this.connection.getInputStream());
-	
-	                //initialize and start the thread responsible for receiving data
-	                receiveThread = new ReceiveThread();
+	                connection = SocketChannel.open();
+	                connection.socket().connect(new InetSocketAddress(addressOfRemoteHost, port), DEFAULT_CONNECTION_TIMEOUT);
 	                
-	                receiveEnabled = true;
-	                
-	                receiveThread.start();
+	                //initialize the streams and hand the channel to the selector pool
+	                openStreams();
 	
 	                setState(ConnectionToRemoteHostState.CONNECTED);
+	                
+	                selectorPool.register(this, connection);
 	            } catch (IOException ex) {
 	                Logger.getLogger(ConnectionToRemoteHost.class.getName()).log(Level.WARNING, "Error initiating connection with remote host.", ex);
 	                System.out.println(ex);
+	                
+	                closeQuietly();
+	                if (currentState == ConnectionToRemoteHostState.CONNECTED)
+	                	setState(ConnectionToRemoteHostState.CONNECTING);
 	            }
             }
             
@@ -232,7 +409,8 @@ public class ConnectionToRemoteHost {
     
     /**
      * Waits for the remote host to connect.  When it does, the socket is opened,
-     * and the send and receive threads are started.
+     * and registered with the selector pool.  The server socket must have been
+     * created through a <code>ServerSocketChannel</code>.
      * 
      * Note that if this instance has an associated address, only connections from that
      * address are permitted.  However, if no address is associated, whoever connects first 
@@ -248,41 +426,33 @@ public class ConnectionToRemoteHost {
             setState(ConnectionToRemoteHostState.WAITING_FOR_CONNECTION);
 
             try {
-                //sockets don't default to a "closed" state, so this is necessary to ensure that the 
-                //loop below works as advertised.
-                if (connection != null)
-                	connection.close();
+                /* Blocks until a connection comes in. */
+                Socket socket = serverSocket.accept();
                 
-                /* Continues waiting until a legitimate connection is made */
-                while(connection.isClosed())
-								{
-										/* Blocks until a connection comes in. */
-                    connection = serverSocket.accept();
-                    
-//                    if(!connection.getInetAddress().equals(addressOfRemoteHost.getAddress())) {
-//                        Logger.getLogger(ConnectionToRemoteHost.class.getName()).log(Level.INFO, "An incorrect host at " + connection.getRemoteSocketAddress().toString() + " tried to establish a connection.");
-//                        connection.close();
-//                    }
+//                if(!socket.getInetAddress().equals(addressOfRemoteHost.getAddress())) {
+//                    Logger.getLogger(ConnectionToRemoteHost.class.getName()).log(Level.INFO, "An incorrect host at " + socket.getRemoteSocketAddress().toString() + " tried to establish a connection.");
+//                    socket.close();
+//                }
+                
+                //only sockets accepted through a ServerSocketChannel can be handed to the selector pool
+                connection = socket.getChannel();
+                if(connection == null) {
+                    socket.close();
+                    throw new IOException("Server socket is not backed by a ServerSocketChannel");
                 }
                                 
-                //initialize toClient and fromClient as inputs and outputs for this socket.
-                toRemoteHost = new ObjectOutputStream(this.connection.getOutputStream());
-                fromRemoteHost = new ObjectInputStream(this.connection.getInputStream());
-
-                //initialize and start the thread responsible for receiving data
-                receiveThread = new ReceiveThread();
-                
-                receiveEnabled = true;
-                
-                receiveThread.start();
+                //initialize the streams and hand the channel to the selector pool
+                openStreams();
                 
                 if(addressOfRemoteHost == null)
 								{
-                    addressOfRemoteHost = connection.getInetAddress();
-                    port = connection.getPort();
+                    addressOfRemoteHost = socket.getInetAddress();
+                    port = socket.getPort();
                 }
                 
                 setState(ConnectionToRemoteHostState.CONNECTED);
+                
+                selectorPool.register(this, connection);
             } catch (IOException ex) {
                 //generally, if an IOexception is thown while disconnecting, it means the cancel... method was called
                 if(currentState != ConnectionToRemoteHostState.DISCONNECTING) {
@@ -330,8 +500,8 @@ public class ConnectionToRemoteHost {
     }
     
     /**
-     * Disconnects from the remote host, closing the socket, and shutting down the send 
-     * and receive threads.
+     * Disconnects from the remote host, closing the socket, and removing it from
+     * the selector pool.
      * 
      * Synchronized to ensure that disconnect can't be called while other things
      * are transpiring.
@@ -343,40 +513,31 @@ public class ConnectionToRemoteHost {
             try {
                 setState(ConnectionToRemoteHostState.DISCONNECTING);
 
-                receiveEnabled = false;
-
-                /* First, stop the receive thread. */
-
-                if(receiveThread != null) {
-                    //first, interrupt the thread, in case it's sleeping
-                    receiveThread.interrupt();
+                /* First, stop the selector pool from servicing the channel. */
+                SelectionKey key;
+                synchronized(pendingWrites) {
+                    key = selectionKey;
+                    selectionKey = null;
 
-                    //wait for the receive thread to finish up.
-                    receiveThread.join(DEFAULT_CONNECTION_TIMEOUT);
+                    failPendingWrites(new IOException("Connection to remote host closed"));
                 }
 
-                /* Close the toClient and fromClient streams. */
-                if(fromRemoteHost != null) {
-                    fromRemoteHost.close();
+                if(key != null) {
+                    key.cancel();
+                    key.selector().wakeup();
                 }
 
-                if(toRemoteHost != null) {
-                    toRemoteHost.close();
+                /* Close the channel. */
+                if(connection != null) {
+                    connection.close();
                 }
 
-                connection.close();
-
                 setState(ConnectionToRemoteHostState.NOT_CONNECTED);
             } catch (IOException ex) {
                 Logger.getLogger(ConnectionToRemoteHost.class.getName()).log(Level.WARNING, "Error closing connection to remote host", ex);
 
                 setState(ConnectionToRemoteHostState.ERROR_CONNECTING);
                 throw new ConnectionToRemoteHostException("Error closing connection to remote host");
-            } catch (InterruptedException ex) {
-                Logger.getLogger(ConnectionToRemoteHost.class.getName()).log(Level.WARNING, "Disconnection interrupted.");
-
-                setState(ConnectionToRemoteHostState.ERROR_CONNECTING);
-                throw new ConnectionToRemoteHostException("Disconnection interrupted");
             }
         } else {
             throw new ConnectionToRemoteHostException("Cannot disconnect if already disconnected");
@@ -384,25 +545,149 @@ public class ConnectionToRemoteHost {
     }
     
     /**
-     * Sends an object in serialized form to the remote host.
+     * Sends a command that has no payload to the remote host, and waits until it
+     * has been written.
      * 
-     * Synchronized to ensure that multiple threads cannot send messages
-     * simultaneously.
-     *
-     * @param messageToSend The message to send to the connected client.
+     * @param command The command to send.
+     * 
+     * @throws edu.tcnj.TGrid.Exceptions.ConnectionToRemoteHostException if sending
+     *         the message fails
+     */
+    public void send(WireCommand command) throws ConnectionToRemoteHostException {
+        send(command, null);
+    }
+    
+    /**
+     * Sends a command, together with its payload, to the remote host, and waits
+     * until it has been written.
+     * 
+     * @param command The command to send.
+     * @param payload The payload to send with it.  Must be of the command's
+     *                payload type.
+     * 
+     * @throws edu.tcnj.TGrid.Exceptions.ConnectionToRemoteHostException if sending
+     *         the message fails
+     */
+    public void send(WireCommand command, Object payload) throws ConnectionToRemoteHostException {
+        if(!command.getPayloadType().accepts(payload)) {
+            throw new MessageNotSentException("Invalid payload for " + command);
+        }
+        
+        awaitWrite(sendFrame(command.getOpcode(), command.getPayloadType(), payload, command.isTaskBoundary()));
+    }
+    
+    /**
+     * Queues a command that has no payload to be sent to the remote host, without
+     * waiting for it to be written.
+     * 
+     * @param command The command to send.
+     * @return A future that completes once the message has been written, or
+     *         fails with the IOException that stopped it
+     * 
+     * @throws edu.tcnj.TGrid.Exceptions.ConnectionToRemoteHostException if the
+     *         message could not be queued
+     */
+    public Future<Void> sendAsync(WireCommand command) throws ConnectionToRemoteHostException {
+        return sendAsync(command, null);
+    }
+    
+    /**
+     * Queues a command, together with its payload, to be sent to the remote
+     * host, without waiting for it to be written.  Messages are written in the
+     * order they are queued.
+     * 
+     * This only waits if more than the high watermark is already queued, in
+     * which case it waits until the queue has drained to the low watermark.
+     * 
+     * @param command The command to send.
+     * @param payload The payload to send with it.  Must be of the command's
+     *                payload type.
+     * @return A future that completes once the message has been written, or
+     *         fails with the IOException that stopped it
+     * 
+     * @throws edu.tcnj.TGrid.Exceptions.ConnectionToRemoteHostException if the
+     *         message could not be queued
+     */
+    public Future<Void> sendAsync(WireCommand command, Object payload) throws ConnectionToRemoteHostException {
+        if(!command.getPayloadType().accepts(payload)) {
+            throw new MessageNotSentException("Invalid payload for " + command);
+        }
+        
+        return sendFrame(command.getOpcode(), command.getPayloadType(), payload, command.isTaskBoundary());
+    }
+    
+    /**
+     * Sends an object in serialized form to the remote host, without a command.
+     * 
+     * @param objectToSend The object to send to the connected client.
      * 
      * @throws edu.tcnj.TGrid.Exceptions.ConnectionToRemoteHostException if sending
      *         the message fails
      */
-    public synchronized void send(Serializable objectToSend) throws ConnectionToRemoteHostException {
+    public void sendObject(Serializable objectToSend) throws ConnectionToRemoteHostException {
+        awaitWrite(sendFrame(WireProtocol.OPCODE_OBJECT, PayloadType.OBJECT, objectToSend, false));
+    }
+    
+    /**
+     * Queues part of a file to be sent to the remote host as the payload of a
+     * command, without waiting for it to be written.  The bytes are copied from
+     * the file to the socket by <code>FileChannel.transferTo</code>, so they
+     * never pass through the Java heap.  The command's payload type must be RAW,
+     * and the file must stay open until the returned future completes.
+     * 
+     * @param command  The command to send.
+     * @param file     The file to send part of
+     * @param position The offset in the file of the first byte to send
+     * @param count    The number of bytes to send
+     * @return A future that completes once the bytes have been written, or
+     *         fails with the IOException that stopped them
+     * 
+     * @throws edu.tcnj.TGrid.Exceptions.ConnectionToRemoteHostException if the
+     *         message could not be queued
+     */
+    public Future<Void> sendFileRegion(WireCommand command, FileChannel file, long position, long count) throws ConnectionToRemoteHostException {
+        if(command.getPayloadType() != PayloadType.RAW) {
+            throw new MessageNotSentException("Cannot send a file region with " + command);
+        }
+        
+        if(count < 0 || count >= MAX_FRAME_LENGTH) {
+            throw new MessageNotSentException("Invalid file region length " + count);
+        }
+        
+        if(currentState != ConnectionToRemoteHostState.CONNECTED) {
+            throw new MessageNotSentException("Cannot send message while disconnected");
+        }
+        
+        try {
+            awaitWritesUnblocked();
+        } catch(IOException ex) {
+            setState(ConnectionToRemoteHostState.COMMUNICATION_ERROR);
+            
+            throw new MessageNotSentException("Error writing to remote host");
+        }
+        
+        return queueFileRegion(command.getOpcode(), file, position, (int)count);
+    }
+    
+    /**
+     * Queues the header of a file region frame, followed by the region itself.
+     * See sendFileRegion.
+     */
+    private synchronized PendingWrite queueFileRegion(int opcode, FileChannel file, long position, int count) throws ConnectionToRemoteHostException {
         if(currentState == ConnectionToRemoteHostState.CONNECTED) {
             try {
-                //System.out.println("Sending " + objectToSend);
-                toRemoteHost.writeObject(objectToSend);
-                toRemoteHost.flush();
+                ByteBuffer header = ByteBuffer.allocate(5);
+                header.putInt(1 + count);
+                header.put((byte)opcode);
+                header.flip();
+                
+                PendingWrite write = new FileRegionWrite(header, file, position, count);
+                queueWrite(write);
+                
+                return write;
             } catch(IOException ex) {
                 Logger.getLogger(ConnectionToRemoteHost.class.getName()).log(Level.WARNING, "Error writing to socket.", ex);
-
+                
                 setState(ConnectionToRemoteHostState.COMMUNICATION_ERROR);
 
                 throw new MessageNotSentException("Error writing to remote host");
@@ -413,112 +698,335 @@ public class ConnectionToRemoteHost {
     }
     
     /**
-     * Add the specified event listener to the list of registered listeners, thus
-     * allowing it to be notified of ResourceEvents.
-     *
-     * @param listenerToAdd The listener to remove from the list of registered listeners.
+     * Waits for a queued frame to be written.
+     * 
+     * @param write The frame to wait for
+     * @throws edu.tcnj.TGrid.Exceptions.MessageNotSentException if the frame
+     *         could not be written
      */
-    public void addRemoteHostEventListener(ConnectionToRemoteHostEventListener listenerToAdd) {
-        synchronized(registeredListeners) {
-            registeredListeners.add(listenerToAdd);
+    private void awaitWrite(PendingWrite write) throws MessageNotSentException {
+        try {
+            write.awaitCompletion();
+        } catch(IOException ex) {
+            Logger.getLogger(ConnectionToRemoteHost.class.getName()).log(Level.WARNING, "Error writing to socket.", ex);
+            
+            setState(ConnectionToRemoteHostState.COMMUNICATION_ERROR);
+            
+            throw new MessageNotSentException("Error writing to remote host");
         }
     }
     
     /**
-     * Remove the specified event listener from the list of registered listeners, thus
-     * no longer allowing it to be notified of ResourceEvents.
+     * Encodes a single frame and queues it to be written to the remote host.
      * 
-     * @param listenerToRemove The listener to remove from the list of registered listeners.
+     * Synchronized to ensure that multiple threads cannot encode messages
+     * simultaneously.  The lock is only held while encoding; writing happens
+     * on the selector pool's I/O thread.
+     *
+     * @param opcode       The opcode to send
+     * @param payloadType  How to encode the payload
+     * @param payload      The payload to send
+     * @param taskBoundary Whether this message ends a task
+     * @return The queued frame
+     * 
+     * @throws edu.tcnj.TGrid.Exceptions.ConnectionToRemoteHostException if the
+     *         message could not be queued
      */
-    public void removeRemoteHostEventListener(ConnectionToRemoteHostEventListener listenerToRemove) {
-        synchronized(registeredListeners) {
-            registeredListeners.remove(listenerToRemove);
+    private PendingWrite sendFrame(int opcode, PayloadType payloadType, Object payload, boolean taskBoundary) throws ConnectionToRemoteHostException {
+        if(currentState != ConnectionToRemoteHostState.CONNECTED) {
+            throw new MessageNotSentException("Cannot send message while disconnected");
+        }
+        
+        try {
+            awaitWritesUnblocked();
+        } catch(IOException ex) {
+            setState(ConnectionToRemoteHostState.COMMUNICATION_ERROR);
+            
+            throw new MessageNotSentException("Error writing to remote host");
         }
+        
+        return encodeFrame(opcode, payloadType, payload, taskBoundary);
     }
     
     /**
-     * Add the specified event listener to the list of client key listeners.
-     *
-     * @param listenerToAdd The listener to remove from the list of listeners.
+     * Encodes a single frame and queues it.  See sendFrame.
      */
-    public void addClientKeyReceivedEventListener(ClientKeyReceivedEventListener listenerToAdd)
-		{
-      synchronized(clientKeyListeners)
-      {
-      	clientKeyListeners.add(listenerToAdd);
-      }
+    private synchronized PendingWrite encodeFrame(int opcode, PayloadType payloadType, Object payload, boolean taskBoundary) throws ConnectionToRemoteHostException {
+        if(currentState == ConnectionToRemoteHostState.CONNECTED) {
+            try {
+                //System.out.println("Sending " + opcode + " " + payload);
+                toRemoteHostData.writeByte(opcode);
+                
+                boolean resetObjectStream = false;
+                
+                objectWritten = false;
+                payloadType.write(payload, toRemoteHostData, objectStreams);
+                
+                if(objectWritten) {
+                    objectsSinceReset++;
+                    objectBytesSinceReset += outgoingBytes.size();
+                    resetObjectStream = resetPolicy.shouldReset(objectsSinceReset, objectBytesSinceReset, taskBoundary);
+                }
+                
+                PendingWrite write = new PendingWrite(takeFrame());
+                queueWrite(write);
+                
+                if(resetObjectStream) {
+                    resetObjectStream();
+                }
+                
+                return write;
+            } catch(IOException ex) {
+                Logger.getLogger(ConnectionToRemoteHost.class.getName()).log(Level.WARNING, "Error writing to socket.", ex);
+                
+                outgoingBytes.reset();
+                setState(ConnectionToRemoteHostState.COMMUNICATION_ERROR);
+
+                throw new MessageNotSentException("Error writing to remote host");
+            }
+        } else {
+            throw new MessageNotSentException("Cannot send message while disconnected");
+        }
     }
     
     /**
-     * Remove the specified event listener from the list of client key listeners.
+     * Discards toRemoteHost, releasing every object it still references, and
+     * tells the remote host to do the same.  Must be called while holding the
+     * lock on this.
      * 
-     * @param listenerToRemove The listener to remove from the list of registered listeners.
+     * @throws java.io.IOException if the RESET frame could not be queued
      */
-    public void removeClientKeyReceivedEventListener(ClientKeyReceivedEventListener listenerToRemove)
-    {
-    	synchronized(clientKeyListeners)
-      {
-				clientKeyListeners.remove(listenerToRemove);
-			}
+    private void resetObjectStream() throws IOException {
+        Logger.getLogger(ConnectionToRemoteHost.class.getName()).log(Level.FINE, "Resetting object stream to " + getHostAddress() + " after " + objectsSinceReset + " objects (" + objectBytesSinceReset + " bytes, " + toRemoteHost.getHandleCount() + " handles).");
+        
+        toRemoteHost = null;
+        objectsSinceReset = 0;
+        objectBytesSinceReset = 0;
+        
+        toRemoteHostData.writeByte(WireProtocol.OPCODE_RESET);
+        
+        queueWrite(new PendingWrite(takeFrame()));
     }
     
     /**
-     * Returns the current state of the ConnectionToRemoteHost
-     * @return currentState the current state of the resource
+     * Sets the limits that keep a slow remote host from making the queue of
+     * unwritten messages grow without bound.  Once more than highWatermark bytes
+     * are queued, senders wait until the queue has drained to lowWatermark.
+     * 
+     * @param lowWatermark  The number of queued bytes at which senders resume
+     * @param highWatermark The number of queued bytes at which senders wait
      */
-    public ConnectionToRemoteHostState getState() {
-        return currentState;
+    public void setWriteBufferWatermarks(int lowWatermark, int highWatermark) {
+        if(lowWatermark < 0 || highWatermark < lowWatermark) {
+            throw new IllegalArgumentException("Watermarks must satisfy 0 <= low <= high");
+        }
+        
+        synchronized(pendingWrites) {
+            this.lowWatermark = lowWatermark;
+            this.highWatermark = highWatermark;
+            
+            updateWritesBlocked();
+        }
     }
     
     /**
-     * Returns whether or not this instance is connected to a remote host.
-     * @return true if a connection has been established, false otherwise
+     * Returns the number of queued bytes at which senders resume.
+     * 
+     * @return The low watermark
      */
-    public boolean isConnected() {
-        return currentState == ConnectionToRemoteHostState.CONNECTED;
+    public int getLowWatermark() {
+        return lowWatermark;
     }
     
     /**
-     * Returns the host name of the remote host
+     * Returns the number of queued bytes at which senders wait.
      * 
-     * @return hostName the host name of the remote host
+     * @return The high watermark
      */
-    public String getHostName() {
-        if(addressOfRemoteHost != null) {
-            return addressOfRemoteHost.getHostName();
-        } else {
-            return null;
-        }
+    public int getHighWatermark() {
+        return highWatermark;
     }
     
     /**
-     * Returns a string representation of the remote host's IP address
+     * Returns the number of bytes queued to be sent that have not yet been
+     * written to the channel.
      * 
-     * @return hostAddress a string representation of the remote host's IP address
+     * @return The number of queued bytes
      */
-    public String getHostAddress() {
-        if(addressOfRemoteHost != null) {
-            return addressOfRemoteHost.getHostAddress();
-        } else {
-            return null;
+    public long getQueuedBytes() {
+        synchronized(pendingWrites) {
+            return queuedBytes;
         }
     }
     
     /**
-     * Returns whether or not this ConnectionToRemoteHost has an address associated with it
-     * @return currentState the current state of the resource
+     * Returns whether a message can be queued without waiting for the queue to
+     * drain.
+     * 
+     * @return false if senders are currently held back by the high watermark
      */
-    public boolean hasRemoteAddress() {
-        return (addressOfRemoteHost != null);
+    public boolean isWritable() {
+        synchronized(pendingWrites) {
+            return !writesBlocked;
+        }
     }
     
     /**
-     * Changes this object's state, and notifies all registered listeners of the change.
+     * Changes when this connection resets its object streams.  Takes effect with
+     * the next object sent.
      * 
-     * @param newState the new state to set the ConnectionToRemoteHost's state
+     * @param resetPolicy The new policy
      */
-    protected void setState(ConnectionToRemoteHostState newState) {
-        if(currentState != newState) {
+    public void setResetPolicy(ObjectStreamResetPolicy resetPolicy) {
+        if(resetPolicy == null) {
+            throw new IllegalArgumentException("Reset policy cannot be null");
+        }
+        
+        this.resetPolicy = resetPolicy;
+    }
+    
+    /**
+     * Returns the policy that decides when this connection resets its object streams.
+     * 
+     * @return The current reset policy
+     */
+    public ObjectStreamResetPolicy getResetPolicy() {
+        return resetPolicy;
+    }
+    
+    /**
+     * Returns the number of handles (objects and class descriptions) that the
+     * outgoing object stream currently holds on to.  This drops back to zero
+     * every time the stream is reset.
+     * 
+     * @return The size of the outgoing handle table
+     */
+    public int getOutgoingHandleCount() {
+        CountingObjectOutputStream stream = toRemoteHost;
+        
+        return (stream == null) ? 0 : stream.getHandleCount();
+    }
+    
+    /**
+     * Returns the number of handles (objects and class descriptions) that the
+     * incoming object stream currently holds on to.  This drops back to zero
+     * every time the remote host resets its stream.
+     * 
+     * @return The size of the incoming handle table
+     */
+    public int getIncomingHandleCount() {
+        CountingObjectInputStream stream = fromRemoteHost;
+        
+        return (stream == null) ? 0 : stream.getHandleCount();
+    }
+    
+    /**
+     * Add the specified event listener to the list of registered listeners, thus
+     * allowing it to be notified of ResourceEvents.
+     *
+     * @param listenerToAdd The listener to remove from the list of registered listeners.
+     */
+    public void addRemoteHostEventListener(ConnectionToRemoteHostEventListener listenerToAdd) {
+        synchronized(registeredListeners) {
+            registeredListeners.add(listenerToAdd);
+        }
+    }
+    
+    /**
+     * Remove the specified event listener from the list of registered listeners, thus
+     * no longer allowing it to be notified of ResourceEvents.
+     * 
+     * @param listenerToRemove The listener to remove from the list of registered listeners.
+     */
+    public void removeRemoteHostEventListener(ConnectionToRemoteHostEventListener listenerToRemove) {
+        synchronized(registeredListeners) {
+            registeredListeners.remove(listenerToRemove);
+        }
+    }
+    
+    /**
+     * Add the specified event listener to the list of client key listeners.
+     *
+     * @param listenerToAdd The listener to remove from the list of listeners.
+     */
+    public void addClientKeyReceivedEventListener(ClientKeyReceivedEventListener listenerToAdd)
+		{
+      synchronized(clientKeyListeners)
+      {
+      	clientKeyListeners.add(listenerToAdd);
+      }
+    }
+    
+    /**
+     * Remove the specified event listener from the list of client key listeners.
+     * 
+     * @param listenerToRemove The listener to remove from the list of registered listeners.
+     */
+    public void removeClientKeyReceivedEventListener(ClientKeyReceivedEventListener listenerToRemove)
+    {
+    	synchronized(clientKeyListeners)
+      {
+				clientKeyListeners.remove(listenerToRemove);
+			}
+    }
+    
+    /**
+     * Returns the current state of the ConnectionToRemoteHost
+     * @return currentState the current state of the resource
+     */
+    public ConnectionToRemoteHostState getState() {
+        return currentState;
+    }
+    
+    /**
+     * Returns whether or not this instance is connected to a remote host.
+     * @return true if a connection has been established, false otherwise
+     */
+    public boolean isConnected() {
+        return currentState == ConnectionToRemoteHostState.CONNECTED;
+    }
+    
+    /**
+     * Returns the host name of the remote host
+     * 
+     * @return hostName the host name of the remote host
+     */
+    public String getHostName() {
+        if(addressOfRemoteHost != null) {
+            return addressOfRemoteHost.getHostName();
+        } else {
+            return null;
+        }
+    }
+    
+    /**
+     * Returns a string representation of the remote host's IP address
+     * 
+     * @return hostAddress a string representation of the remote host's IP address
+     */
+    public String getHostAddress() {
+        if(addressOfRemoteHost != null) {
+            return addressOfRemoteHost.getHostAddress();
+        } else {
+            return null;
+        }
+    }
+    
+    /**
+     * Returns whether or not this ConnectionToRemoteHost has an address associated with it
+     * @return currentState the current state of the resource
+     */
+    public boolean hasRemoteAddress() {
+        return (addressOfRemoteHost != null);
+    }
+    
+    /**
+     * Changes this object's state, and notifies all registered listeners of the change.
+     * 
+     * @param newState the new state to set the ConnectionToRemoteHost's state
+     */
+    protected void setState(ConnectionToRemoteHostState newState) {
+        if(currentState != newState) {
             currentState = newState;
             fireStateChanged();
         }
@@ -541,9 +1049,19 @@ public class ConnectionToRemoteHost {
      * @param message the message that was received
      */
     protected void fireMessageReceived(Object message) {
+        fireMessageReceived(null, message);
+    }
+    
+    /**
+     * Notify all registered listeners of a received command.
+     * 
+     * @param command the command that was received
+     * @param payload the payload that arrived with it
+     */
+    protected void fireMessageReceived(WireCommand command, Object payload) {
         synchronized(registeredListeners) {
             for (ConnectionToRemoteHostEventListener listener : registeredListeners) {
-                listener.messageReceivedFromRemoteHost(new ConnectionToRemoteHostEvent(this, currentState, message));
+                listener.messageReceivedFromRemoteHost(new ConnectionToRemoteHostEvent(this, currentState, command, payload));
             }
         }
     }
@@ -561,45 +1079,781 @@ public class ConnectionToRemoteHost {
     }
     
     /**
-     * Thread responsible for receiving data from the remote host.
-     */ 
-    protected class ReceiveThread extends Thread {
-        Object objectReceived;
+     * Prepares the streams and buffers for a freshly connected channel, and looks
+     * up the selector pool that will service it.
+     * 
+     * @throws java.io.IOException if the streams could not be created
+     */
+    private void openStreams() throws IOException {
+        connection.socket().setTcpNoDelay(true);
+        
+        selectorPool = ConnectionSelectorPool.getDefault();
         
-        public ReceiveThread() {
-            super();
+        outgoingBytes = new ByteArrayOutputStream();
+        toRemoteHostData = new DataOutputStream(outgoingBytes);
+        toRemoteHost = null;
+        objectsSinceReset = 0;
+        objectBytesSinceReset = 0;
+        
+        incomingBytes = new FrameInputStream();
+        fromRemoteHostData = new DataInputStream(incomingBytes);
+        fromRemoteHost = null;
+        helloReceived = false;
+        
+        readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+        receivedFrames.clear();
+        synchronized(pendingWrites) {
+            selectionKey = null;
+            pendingWrites.clear();
+            queuedBytes = 0;
+            writesBlocked = false;
+            writeError = null;
+        }
+        
+        //the HELLO frame goes out before anything else
+        toRemoteHostData.writeByte(WireProtocol.OPCODE_HELLO);
+        toRemoteHostData.writeShort(WireProtocol.MAGIC);
+        toRemoteHostData.writeByte(WireProtocol.PROTOCOL_VERSION);
+        queueWrite(new PendingWrite(takeFrame()));
+    }
+    
+    /**
+     * Closes the channel after a failed connection attempt, ignoring any errors.
+     */
+    private void closeQuietly() {
+        if(connection != null) {
+            try {
+                connection.close();
+            } catch (IOException ex) {
+                Logger.getLogger(ConnectionToRemoteHost.class.getName()).log(Level.FINER, "Error closing channel.", ex);
+            }
+        }
+    }
+    
+    /**
+     * Removes everything written to outgoingBytes since the last call, and
+     * returns it as a frame ready to be written to the channel.
+     * 
+     * @return A buffer holding the frame length followed by the frame contents
+     */
+    private ByteBuffer takeFrame() {
+        int length = outgoingBytes.size();
+        
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length);
+        frame.put(outgoingBytes.toByteArray());
+        frame.flip();
+        
+        outgoingBytes.reset();
+        
+        return frame;
+    }
+    
+    /**
+     * Adds a frame to the queue of frames for the I/O thread to write.  Frames
+     * are always written in the order they are queued.  The I/O thread is only
+     * woken when the queue was empty; frames queued while it is busy go out with
+     * the next write.
+     * 
+     * @param write The frame to write
+     * @throws java.io.IOException if the connection has already failed
+     */
+    private void queueWrite(PendingWrite write) throws IOException {
+        synchronized(pendingWrites) {
+            if(writeError != null) {
+                throw writeError;
+            }
+            
+            boolean wasEmpty = pendingWrites.isEmpty();
+            
+            pendingWrites.add(write);
+            queuedBytes += write.remaining();
+            updateWritesBlocked();
+            
+            if(wasEmpty && selectionKey != null) {
+                try {
+                    selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    selectionKey.selector().wakeup();
+                } catch (CancelledKeyException ex) {
+                    throw new IOException("Connection to remote host closed");
+                }
+            }
+        }
+    }
+    
+    /**
+     * Waits while senders are held back by the high watermark.
+     * 
+     * @throws java.io.IOException if the connection fails while waiting
+     */
+    private void awaitWritesUnblocked() throws IOException {
+        synchronized(pendingWrites) {
+            boolean interrupted = false;
+            
+            while(writesBlocked && writeError == null) {
+                try {
+                    pendingWrites.wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
             
-            this.setName("Remote host receive thread " + this.getId());
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            
+            if(writeError != null) {
+                throw writeError;
+            }
+        }
+    }
+    
+    /**
+     * Applies the watermarks to queuedBytes, waking any waiting senders once the
+     * queue has drained far enough.  Must be called while holding the
+     * pendingWrites lock.
+     */
+    private void updateWritesBlocked() {
+        if(queuedBytes > highWatermark) {
+            writesBlocked = true;
+        } else if(writesBlocked && queuedBytes <= lowWatermark) {
+            writesBlocked = false;
+            pendingWrites.notifyAll();
+        }
+    }
+    
+    /**
+     * Fails every frame still waiting to be written, along with any later
+     * attempt to send.  Must be called while holding the pendingWrites lock.
+     * 
+     * @param ex The error to report to the senders
+     */
+    private void failPendingWrites(IOException ex) {
+        for(PendingWrite write : pendingWrites) {
+            write.complete(ex);
         }
         
-        /**
-         * While the sendReceiveEnabled is true, continue checking for new data received
-         */ 
-        @Override
+        pendingWrites.clear();
+        queuedBytes = 0;
+        writesBlocked = false;
+        writeError = ex;
+        pendingWrites.notifyAll();
+    }
+    
+    /**
+     * Called by the selector pool once the channel has been registered.
+     * 
+     * @param key The channel's registration with the selector
+     */
+    void registered(SelectionKey key) {
+        synchronized(pendingWrites) {
+            selectionKey = key;
+            
+            if(!pendingWrites.isEmpty()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+    
+    /**
+     * Called by the selector pool's I/O thread when the channel can accept more
+     * data.  Writes queued frames, handing up to MAX_FRAMES_PER_WRITE of them to
+     * the channel at once so that small messages share packets.  File regions
+     * are written on their own.
+     */
+    void handleWritable() {
+        try {
+            synchronized(pendingWrites) {
+                while(!pendingWrites.isEmpty()) {
+                    PendingWrite lastAttempted = pendingWrites.getFirst();
+                    
+                    if(lastAttempted instanceof FileRegionWrite) {
+                        queuedBytes -= lastAttempted.writeTo(connection);
+                    } else {
+                        ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+                        
+                        for(PendingWrite write : pendingWrites) {
+                            if(write instanceof FileRegionWrite || buffers.size() == MAX_FRAMES_PER_WRITE) {
+                                break;
+                            }
+                            
+                            buffers.add(write.buffer);
+                            lastAttempted = write;
+                        }
+                        
+                        queuedBytes -= connection.write(buffers.toArray(new ByteBuffer[buffers.size()]));
+                    }
+                    
+                    updateWritesBlocked();
+                    
+                    while(!pendingWrites.isEmpty() && pendingWrites.getFirst().isWritten()) {
+                        pendingWrites.removeFirst().complete(null);
+                    }
+                    
+                    if(!lastAttempted.isWritten()) {
+                        //the channel is full; wait until it is writable again
+                        return;
+                    }
+                }
+                
+                if(selectionKey != null) {
+                    selectionKey.interestOps(SelectionKey.OP_READ);
+                }
+            }
+        } catch (CancelledKeyException ex) {
+            //the connection was closed while writing; disconnect() already failed the queued frames
+        } catch (IOException ex) {
+            communicationFailed(ex);
+        }
+    }
+    
+    /**
+     * Called by the selector pool's I/O thread when the channel has data waiting.
+     * Splits whatever has arrived into frames, and schedules them for delivery.
+     */
+    void handleReadable() {
+        try {
+            if(connection.read(readBuffer) < 0) {
+                throw new EOFException("Remote host closed the connection");
+            }
+            
+            readBuffer.flip();
+            
+            while(readBuffer.remaining() >= 4) {
+                int length = readBuffer.getInt(readBuffer.position());
+                
+                if(length < 0 || length > MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                
+                if(readBuffer.remaining() < 4 + length) {
+                    break;
+                }
+                
+                byte[] frame = new byte[length];
+                readBuffer.position(readBuffer.position() + 4);
+                readBuffer.get(frame);
+                
+                receivedFrames.add(frame);
+            }
+            
+            //make room for the rest of a frame that does not fit in the buffer, or
+            //go back to a small buffer once the large frames have been consumed
+            int needed = (readBuffer.remaining() >= 4) ? 4 + readBuffer.getInt(readBuffer.position()) : readBuffer.remaining();
+            if(needed > readBuffer.capacity()) {
+                ByteBuffer largerBuffer = ByteBuffer.allocate(needed);
+                largerBuffer.put(readBuffer);
+                readBuffer = largerBuffer;
+            } else if(readBuffer.capacity() > INITIAL_READ_BUFFER_SIZE && needed <= INITIAL_READ_BUFFER_SIZE) {
+                ByteBuffer smallerBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+                smallerBuffer.put(readBuffer);
+                readBuffer = smallerBuffer;
+            } else {
+                readBuffer.compact();
+            }
+            
+            scheduleDispatch();
+        } catch (CancelledKeyException ex) {
+            //the connection was closed while reading
+        } catch (IOException ex) {
+            communicationFailed(ex);
+        }
+    }
+    
+    /**
+     * Stops servicing the channel after a read or write error, and closes it.
+     * The selector is woken so that it lets go of the cancelled key, and its
+     * I/O thread can exit if this was the last connection it serviced.  The
+     * error is reported once every frame received before it has been delivered.
+     * 
+     * @param ex The error that occurred
+     */
+    private void communicationFailed(IOException ex) {
+        synchronized(pendingWrites) {
+            if(selectionKey != null) {
+                selectionKey.cancel();
+                selectionKey.selector().wakeup();
+                selectionKey = null;
+            }
+            
+            failPendingWrites(ex);
+        }
+        
+        try {
+            connection.close();
+        } catch (IOException closeEx) {
+            Logger.getLogger(ConnectionToRemoteHost.class.getName()).log(Level.FINER, "Error closing connection after a communication error.", closeEx);
+        }
+        
+        receivedFrames.add(ex);
+        scheduleDispatch();
+    }
+    
+    /**
+     * Makes sure a DispatchTask is scheduled to deliver receivedFrames.
+     */
+    private void scheduleDispatch() {
+        if(!receivedFrames.isEmpty() && dispatchScheduled.compareAndSet(false, true)) {
+            selectorPool.dispatch(dispatchTask);
+        }
+    }
+    
+    /**
+     * Delivers received frames to the registered listeners.  At most one
+     * DispatchTask runs for a connection at any time, so messages are delivered
+     * one at a time and in the order they were received.
+     */
+    protected class DispatchTask implements Runnable {
         public void run() {
-            while(receiveEnabled && currentState == ConnectionToRemoteHostState.CONNECTED) {
-                try {
-                    objectReceived = fromRemoteHost.readObject();
+            do {
+                Object frame;
+                while((frame = receivedFrames.poll()) != null) {
+                    deliver(frame);
+                }
+                
+                dispatchScheduled.set(false);
+            } while(!receivedFrames.isEmpty() && dispatchScheduled.compareAndSet(false, true));
+        }
+        
+        /**
+         * Decodes a single frame, and notifies the listeners of its contents.
+         */
+        private void deliver(Object frame) {
+            if(currentState != ConnectionToRemoteHostState.CONNECTED) {
+                return;
+            }
+            
+            try {
+                if(frame instanceof IOException) {
+                    throw (IOException)frame;
+                }
+                
+                incomingBytes.setFrame((byte[])frame);
+                
+                int opcode = fromRemoteHostData.readUnsignedByte();
+                
+                // The first frame must identify the remote host's protocol version
+                if(!helloReceived) {
+                    if(opcode != WireProtocol.OPCODE_HELLO || fromRemoteHostData.readUnsignedShort() != WireProtocol.MAGIC) {
+                        throw new IOException("Remote host does not speak the TGrid protocol");
+                    }
                     
-                    // Check if it is the client key
-                    if (getClientKey && clientKey == -1)
-                    {
-                    	clientKey = (Integer)objectReceived;
-                    	
-                    	// Notify listeners that the client key was received.
-                    	fireClientKeyReceived();
+                    int version = fromRemoteHostData.readUnsignedByte();
+                    if(version != WireProtocol.PROTOCOL_VERSION) {
+                        throw new IOException("Remote host speaks protocol version " + version + ", expected " + WireProtocol.PROTOCOL_VERSION);
+                    }
+                    
+                    helloReceived = true;
+                    return;
+                }
+                
+                // The remote host discarded its object stream; do the same
+                if(opcode == WireProtocol.OPCODE_RESET) {
+                    fromRemoteHost = null;
+                    return;
+                }
+                
+                // Look up the command, and decode its payload
+                WireCommand command = null;
+                Object payload;
+                if(opcode == WireProtocol.OPCODE_OBJECT) {
+                    payload = PayloadType.OBJECT.read(fromRemoteHostData, objectStreams);
+                } else {
+                    command = WireProtocol.getCommand(opcode);
+                    if(command == null) {
+                        Logger.getLogger(ConnectionToRemoteHost.class.getName()).log(Level.WARNING, "Ignoring unknown opcode " + opcode);
+                        return;
                     }
-										// Otherwise, notify event listeners 
-                    else
-                    	fireMessageReceived(objectReceived);
-                } catch (ClassNotFoundException ex) {
-                    Logger.getLogger(ConnectionToRemoteHost.class.getName()).log(Level.WARNING, null, ex);
-                } catch (IOException ex) {
-                    Logger.getLogger(ConnectionToRemoteHost.class.getName()).log(Level.WARNING, "Error reading from socket.", ex);
                     
-                    setState(ConnectionToRemoteHostState.COMMUNICATION_ERROR);
+                    payload = command.getPayloadType().read(fromRemoteHostData, objectStreams);
+                }
+                
+                // Check if it is the client key
+                if(getClientKey && clientKey == -1) {
+                    if(command != CommandToServerFromClient.CLIENT_KEY) {
+                        throw new IOException("Expected the client key, received " + (command == null ? "an object" : command.toString()));
+                    }
+                    
+                    clientKey = (Integer)payload;
+                    
+                    // Notify listeners that the client key was received.
+                    fireClientKeyReceived();
+                } else {
+                    // Otherwise, notify event listeners
+                    fireMessageReceived(command, payload);
+                }
+            } catch (ClassNotFoundException ex) {
+                Logger.getLogger(ConnectionToRemoteHost.class.getName()).log(Level.WARNING, null, ex);
+            } catch (IOException ex) {
+                Logger.getLogger(ConnectionToRemoteHost.class.getName()).log(Level.WARNING, "Error reading from socket.", ex);
+                
+                setState(ConnectionToRemoteHostState.COMMUNICATION_ERROR);
+            }
+        }
+    }
+    
+    /**
+     * Hands out toRemoteHost and fromRemoteHost, creating them if this is the
+     * first object payload since they were last reset.  The output stream is
+     * only asked for while encoding a frame (holding the lock on the
+     * connection), and the input stream only by the DispatchTask.
+     */
+    private class ConnectionObjectStreams implements PayloadType.ObjectStreams {
+        public ObjectOutput getObjectOutput() throws IOException {
+            if(toRemoteHost == null) {
+                toRemoteHost = new CountingObjectOutputStream(outgoingBytes);
+            }
+            
+            objectWritten = true;
+            
+            return toRemoteHost;
+        }
+        
+        public ObjectInput getObjectInput() throws IOException {
+            if(fromRemoteHost == null) {
+                fromRemoteHost = new CountingObjectInputStream(incomingBytes);
+            }
+            
+            return fromRemoteHost;
+        }
+    }
+    
+    /**
+     * A frame waiting to be written to the channel.  Doubles as the future
+     * returned by sendAsync.
+     */
+    protected static class PendingWrite implements Future<Void> {
+        /**
+         * The frame, positioned at the first byte not yet written.
+         */
+        private final ByteBuffer buffer;
+        
+        /**
+         * Whether the frame has been written or abandoned.
+         */
+        private boolean completed = false;
+        
+        /**
+         * The error that stopped the frame from being written, if any.
+         */
+        private IOException error = null;
+        
+        public PendingWrite(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+        
+        /**
+         * Returns the number of bytes of this frame not yet written.
+         */
+        public long remaining() {
+            return buffer.remaining();
+        }
+        
+        /**
+         * Returns whether every byte of this frame has been written.
+         */
+        public boolean isWritten() {
+            return !buffer.hasRemaining();
+        }
+        
+        /**
+         * Writes as much of this frame as the channel will take.
+         * 
+         * @param channel The channel to write to
+         * @return The number of bytes written
+         * @throws java.io.IOException if the channel could not be written to
+         */
+        public long writeTo(SocketChannel channel) throws IOException {
+            return channel.write(buffer);
+        }
+        
+        /**
+         * Marks the frame as finished, waking the sender.
+         * 
+         * @param error The error that occurred, or null if the frame was written
+         */
+        public synchronized void complete(IOException error) {
+            if(!completed) {
+                this.error = error;
+                completed = true;
+                notifyAll();
+            }
+        }
+        
+        /**
+         * Waits until the frame has been written.  Interrupts do not abandon the
+         * write (a partial frame would corrupt the stream), but the interrupt
+         * status is preserved.
+         * 
+         * @throws java.io.IOException if the frame could not be written
+         */
+        public synchronized void awaitCompletion() throws IOException {
+            boolean interrupted = false;
+            
+            while(!completed) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            
+            if(error != null) {
+                throw error;
+            }
+        }
+        
+        /**
+         * Frames cannot be cancelled once queued, since the remote host expects
+         * every queued message.
+         * 
+         * @return false
+         */
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+        
+        public boolean isCancelled() {
+            return false;
+        }
+        
+        public synchronized boolean isDone() {
+            return completed;
+        }
+        
+        public synchronized Void get() throws InterruptedException, ExecutionException {
+            while(!completed) {
+                wait();
+            }
+            
+            if(error != null) {
+                throw new ExecutionException(error);
+            }
+            
+            return null;
+        }
+        
+        public synchronized Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            
+            while(!completed) {
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0) {
+                    throw new TimeoutException();
                 }
+                
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            
+            if(error != null) {
+                throw new ExecutionException(error);
+            }
+            
+            return null;
+        }
+    }
+    
+    /**
+     * A frame whose payload is copied straight from a file to the channel.  The
+     * buffer holds the frame's length and opcode.
+     */
+    protected static class FileRegionWrite extends PendingWrite {
+        /**
+         * The file the payload is read from.
+         */
+        private final FileChannel file;
+        
+        /**
+         * The offset in the file of the next byte to write.
+         */
+        private long position;
+        
+        /**
+         * The number of bytes of the file still to be written.
+         */
+        private long count;
+        
+        public FileRegionWrite(ByteBuffer header, FileChannel file, long position, long count) {
+            super(header);
+            
+            this.file = file;
+            this.position = position;
+            this.count = count;
+        }
+        
+        @Override
+        public long remaining() {
+            return super.remaining() + count;
+        }
+        
+        @Override
+        public boolean isWritten() {
+            return super.isWritten() && count == 0;
+        }
+        
+        @Override
+        public long writeTo(SocketChannel channel) throws IOException {
+            long written = super.writeTo(channel);
+            
+            if(super.isWritten() && count > 0) {
+                long transferred = file.transferTo(position, count, channel);
+                
+                //transferTo returns 0 both when the socket is full and at the end of the file
+                if(transferred == 0 && position >= file.size()) {
+                    throw new EOFException("File ended before the region being sent");
+                }
+                
+                position += transferred;
+                count -= transferred;
+                written += transferred;
+            }
+            
+            return written;
+        }
+    }
+    
+    /**
+     * An ObjectOutputStream that keeps track of how many handles it has assigned.
+     * Every object written for the first time, and every class description,
+     * takes a handle.
+     */
+    protected static class CountingObjectOutputStream extends ObjectOutputStream {
+        /**
+         * The number of handles assigned so far.
+         */
+        private volatile int handleCount = 0;
+        
+        public CountingObjectOutputStream(OutputStream out) throws IOException {
+            super(out);
+            
+            enableReplaceObject(true);
+        }
+        
+        /**
+         * Called once for every object that is not already in the handle table.
+         */
+        @Override
+        protected Object replaceObject(Object obj) {
+            handleCount++;
+            
+            return obj;
+        }
+        
+        /**
+         * Called once for every class description written.
+         */
+        @Override
+        protected void annotateClass(Class<?> cl) {
+            handleCount++;
+        }
+        
+        @Override
+        protected void annotateProxyClass(Class<?> cl) {
+            handleCount++;
+        }
+        
+        /**
+         * Returns the number of handles assigned so far.
+         */
+        public int getHandleCount() {
+            return handleCount;
+        }
+    }
+    
+    /**
+     * An ObjectInputStream that keeps track of how many handles it has assigned.
+     */
+    protected static class CountingObjectInputStream extends ObjectInputStream {
+        /**
+         * The number of handles assigned so far.
+         */
+        private volatile int handleCount = 0;
+        
+        public CountingObjectInputStream(InputStream in) throws IOException {
+            super(in);
+            
+            enableResolveObject(true);
+        }
+        
+        /**
+         * Called once for every object read that was not a back reference.
+         */
+        @Override
+        protected Object resolveObject(Object obj) {
+            handleCount++;
+            
+            return obj;
+        }
+        
+        /**
+         * Called once for every class description read.
+         */
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            handleCount++;
+            
+            return super.resolveClass(desc);
+        }
+        
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+            handleCount++;
+            
+            return super.resolveProxyClass(interfaces);
+        }
+        
+        /**
+         * Returns the number of handles assigned so far.
+         */
+        public int getHandleCount() {
+            return handleCount;
+        }
+    }
+    
+    /**
+     * Presents the contents of one received frame at a time to fromRemoteHost.
+     */
+    protected static class FrameInputStream extends InputStream {
+        private byte[] frame = new byte[0];
+        private int position = 0;
+        
+        /**
+         * Replaces the current contents with those of a new frame.
+         */
+        public void setFrame(byte[] frame) {
+            this.frame = frame;
+            this.position = 0;
+        }
+        
+        @Override
+        public int read() {
+            if(position >= frame.length) {
+                return -1;
+            }
+            
+            return frame[position++] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if(position >= frame.length) {
+                return -1;
             }
+            
+            int count = Math.min(len, frame.length - position);
+            System.arraycopy(frame, position, b, off, count);
+            position += count;
+            
+            return count;
         }
-    } 
+        
+        @Override
+        public int available() {
+            return frame.length - position;
+        }
+    }
 }
@@ -0,0 +1,770 @@
+/*
+ * DagJob.java
+ *
+ * A Job whose tasks depend on the results of other tasks.
+ */
+
+package edu.tcnj.TGrid;
+
+import edu.tcnj.TGrid.Events.JobEvent;
+import edu.tcnj.TGrid.Events.JobEventListener;
+import edu.tcnj.TGrid.States.JobState;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+
+/**
+ * The DagJob class is the basis of Jobs made of stages, such as computing
+ * parts of a result and then combining them.  Each task may depend on other
+ * tasks of the Job, which together form a directed acyclic graph.  A task is
+ * handed out only once every task it depends on has completed, and if it is a
+ * DependentTask, it is first given their results.  The stages of a Job thus
+ * overlap: a task of a later stage starts as soon as its own inputs are done,
+ * rather than once the whole of the earlier stage is.
+ *
+ * Of the tasks that are ready, the one heading the costliest chain of tasks
+ * still to run after it, its critical path, is handed out first, since the Job
+ * cannot finish sooner than that chain.  Where costs are not known yet, the
+ * longest chain goes first.
+ *
+ * Subclasses add their tasks with addTask(), usually in makeReady(), but also
+ * later, such as when a task completes.  The results of tasks that no other
+ * task depends on are kept for the subclass to collect with getResult(); the
+ * results of other tasks are let go once every task depending on them has
+ * been handed them.
+ *
+ * Where results are combined with an associative operation, a ReductionStage
+ * added with addReduction() creates the tasks that combine them, pairing
+ * results of similar size as they arrive.
+ *
+ * @see edu.tcnj.TGrid.DependentTask
+ * @see edu.tcnj.TGrid.ReductionStage
+ */
+public abstract class DagJob implements Job {
+    /**
+     * Orders ready tasks by the cost of their critical paths, then by their
+     * lengths, then by their own costs, largest first, and otherwise oldest
+     * first.
+     */
+    private static final Comparator<Node> CRITICAL_PATH_FIRST = new Comparator<Node>() {
+        public int compare(Node a, Node b) {
+            if (a.pathCost != b.pathCost) {
+                return (a.pathCost > b.pathCost) ? -1 : 1;
+            }
+            if (a.pathLength != b.pathLength) {
+                return (a.pathLength > b.pathLength) ? -1 : 1;
+            }
+            if (a.cost != b.cost) {
+                return (a.cost > b.cost) ? -1 : 1;
+            }
+            return (a.taskID < b.taskID) ? -1 : ((a.taskID > b.taskID) ? 1 : 0);
+        }
+    };
+
+    /**
+     * Guards the graph and counts.  Not the Job itself, since the Job's state
+     * is changed, and its listeners told, without holding it.
+     */
+    private final Object taskLock = new Object();
+
+    /**
+     * Held while a task is stored, so that tasks are stored one at a time
+     */
+    private final Object storeLock = new Object();
+
+    /**
+     * The tasks of the Job that have not finished, or whose results are still
+     * kept, by task ID.  Guarded by taskLock.
+     */
+    private HashMap<Integer, Node> nodes = new HashMap<Integer, Node>();
+
+    /**
+     * Tasks whose inputs have all completed, critical path first.  Guarded by
+     * taskLock.
+     */
+    private PriorityQueue<Node> readyNodes = new PriorityQueue<Node>(11, CRITICAL_PATH_FIRST);
+
+    /**
+     * The reduction stages that combine the results of tasks, by task ID.
+     * Guarded by taskLock.
+     */
+    private HashMap<Integer, ReductionStage> reducedTasks = new HashMap<Integer, ReductionStage>();
+
+    /**
+     * The number of tasks added.  Guarded by taskLock.
+     */
+    private int tasksAdded = 0;
+
+    /**
+     * The number of tasks that have completed.  Guarded by taskLock.
+     */
+    private int tasksCompleted = 0;
+
+    /**
+     * The number of tasks that have neither completed nor been given up on.
+     * Guarded by taskLock.
+     */
+    private int tasksUnfinished = 0;
+
+    /**
+     * The number of tasks handed out and not stored back yet.  Guarded by taskLock.
+     */
+    private int tasksInFlight = 0;
+
+    /**
+     * Tasks that failed, and those that could not run because a task they
+     * depend on failed.  Guarded by taskLock.
+     */
+    private LinkedList<Task> failedTasks = new LinkedList<Task>();
+
+    /**
+     * Represents the current state of this Job.
+     */
+    private volatile JobState currentState = JobState.NEW;
+
+    /**
+     * Stores a list of every event listener that is registered to receive event
+     * notifications from this class.
+     */
+    private HashSet<JobEventListener> registeredListeners = new HashSet<JobEventListener>();
+
+    /**
+     * Takes in the results of a completed task.  Called after its result has
+     * been passed on to the tasks depending on it.  Does nothing by default.
+     *
+     * @param task The completed task
+     */
+    protected void taskCompleted(Task task) {
+    }
+
+    /**
+     * Deals with a task that ran into trouble or was found problematic.  By
+     * default the task is given up on, along with every task depending on it,
+     * and they are kept with the other failed tasks.  Override this function
+     * to run such tasks again with retryTask() instead.
+     *
+     * @param task The failed task
+     */
+    protected void taskFailed(Task task) {
+        synchronized(taskLock) {
+            Node node = nodes.get(task.getTaskID());
+            if (node != null && node.state == NodeState.FAILED) {
+                giveUp(node);
+            }
+        }
+    }
+
+    /**
+     * Returns an estimate of how much work a task is, used to find the
+     * critical paths.  The estimate of a task that depends on others is asked
+     * for again once it has been given their results.  By default it is the
+     * task's own estimate.
+     *
+     * @param task The task
+     * @return The estimated cost
+     */
+    protected double estimateCost(Task task) {
+        return task.getCostEstimate();
+    }
+
+    /**
+     * Adds a task to the Job, to be handed out once the given tasks have
+     * completed.  If the task is a DependentTask, it is given their results in
+     * the order given.  The tasks it depends on must have been added before,
+     * and, if they have completed, must still have their results kept.
+     *
+     * @param task   The task
+     * @param inputs The tasks it depends on
+     * @throws IllegalArgumentException if one of the inputs is not a task of
+     *         this Job whose result is still to come or kept
+     */
+    protected void addTask(Task task, Task... inputs) {
+        synchronized(taskLock) {
+            Node node = new Node(task);
+            for (Task input : inputs) {
+                Node inputNode = nodes.get(input.getTaskID());
+                if (inputNode == null) {
+                    throw new IllegalArgumentException(input + " is not a task of this Job whose result is to come or kept");
+                }
+                node.inputs.add(inputNode);
+            }
+
+            for (Node inputNode : node.inputs) {
+                if (inputNode.state != NodeState.COMPLETED) {
+                    node.inputsLeft++;
+                }
+                inputNode.dependents.add(node);
+                inputNode.dependentsLeft++;
+            }
+
+            register(node);
+            if (node.inputsLeft == 0) {
+                release(node);
+            } else {
+                node.cost = estimateCost(task);
+                updatePath(node);
+            }
+        }
+    }
+
+    /**
+     * Adds a stage that combines the results of tasks added to the Job through
+     * it.
+     *
+     * @param combiner Creates the tasks that combine results
+     * @return The stage
+     */
+    protected ReductionStage addReduction(Combiner combiner) {
+        return new ReductionStage(this, combiner);
+    }
+
+    /**
+     * Adds a task whose result a reduction stage combines.
+     *
+     * @param stage  The stage
+     * @param task   The task
+     * @param inputs The tasks it depends on
+     */
+    void addReducedTask(ReductionStage stage, Task task, Task... inputs) {
+        synchronized(taskLock) {
+            reducedTasks.put(task.getTaskID(), stage);
+            try {
+                addTask(task, inputs);
+            } catch (IllegalArgumentException ex) {
+                reducedTasks.remove(task.getTaskID());
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Adds a task that does part of the work of another, unfinished task, such
+     * as one split off from it.  The new task depends on nothing, and every
+     * task depending on the other one depends on it too, taking its result
+     * right after the other's.  If a reduction stage combines the other's
+     * result, it combines the new task's as well.
+     *
+     * @param task    The task
+     * @param sibling The task whose work it shares
+     * @throws IllegalArgumentException if the sibling is not an unfinished task
+     *         of this Job
+     */
+    protected void addTaskAlongside(Task task, Task sibling) {
+        synchronized(taskLock) {
+            Node siblingNode = nodes.get(sibling.getTaskID());
+            if (siblingNode == null || siblingNode.state == NodeState.COMPLETED) {
+                throw new IllegalArgumentException(sibling + " is not an unfinished task of this Job");
+            }
+
+            Node node = new Node(task);
+            for (Node dependent : siblingNode.dependents) {
+                dependent.inputs.add(dependent.inputs.indexOf(siblingNode) + 1, node);
+                dependent.inputsLeft++;
+                node.dependents.add(dependent);
+                node.dependentsLeft++;
+            }
+
+            ReductionStage stage = reducedTasks.get(siblingNode.taskID);
+            if (stage != null) {
+                reducedTasks.put(node.taskID, stage);
+                stage.taskAdded();
+            }
+
+            register(node);
+            release(node);
+        }
+    }
+
+    /**
+     * Puts a task that has failed back, to be handed out again.
+     *
+     * @param task The task
+     */
+    protected void retryTask(Task task) {
+        synchronized(taskLock) {
+            Node node = nodes.get(task.getTaskID());
+            if (node != null && node.state == NodeState.FAILED) {
+                node.state = NodeState.READY;
+                readyNodes.add(node);
+            }
+        }
+    }
+
+    /**
+     * Returns the result of a completed task that is still kept: one that no
+     * task depends on, or one whose dependents have not all been handed out.
+     *
+     * @param task The task
+     * @return The task's result, or null if it is not kept
+     */
+    protected Serializable getResult(Task task) {
+        synchronized(taskLock) {
+            Node node = nodes.get(task.getTaskID());
+            return (node != null && node.state == NodeState.COMPLETED) ? node.result : null;
+        }
+    }
+
+    /**
+     * Returns the tasks that failed, and those that could not run because a
+     * task they depend on failed.
+     *
+     * @return A copy of the list of failed tasks
+     */
+    protected LinkedList<Task> getFailedTasks() {
+        synchronized(taskLock) {
+            return new LinkedList<Task>(failedTasks);
+        }
+    }
+
+    /**
+     * Does what is necessary to make the Job ready to run, after which
+     * the Job is marked READY.  Subclasses add their tasks first.
+     */
+    public void makeReady() {
+        setState(JobState.READY);
+    }
+
+    /**
+     * Returns the next Task to be performed as part of this Job: the ready
+     * task with the costliest critical path.
+     *
+     * @return A Task object representing the next task needed to be run, or
+     *         null if there is none.
+     */
+    public Task getNextReadyTask() {
+        Task task;
+
+        synchronized(taskLock) {
+            Node node = readyNodes.poll();
+            if (node == null) {
+                return null;
+            }
+
+            node.state = NodeState.RUNNING;
+            tasksInFlight++;
+            task = node.task;
+        }
+
+        setState(JobState.RUNNING);
+        return task;
+    }
+
+    /**
+     * Returns whether or not there are any tasks remaining as part of this Job.
+     *
+     * @return true if there is at least one more Task ready,
+     *         false otherwise
+     */
+    public boolean hasNextTask() {
+        synchronized(taskLock) {
+            return !readyNodes.isEmpty();
+        }
+    }
+
+    /**
+     * Stores the specified Task.
+     *
+     * A completed task's result is passed on to the tasks depending on it,
+     * which are handed out once they have all their inputs, and the task is
+     * handed to taskCompleted().  Failed tasks are handed to taskFailed(), and
+     * ones that were cancelled or handed back are run again.  A task that is
+     * not out, such as a copy stored a second time, is ignored.  The Job
+     * completes once every task has completed or been given up on.
+     */
+    public void storeTask(Task taskToStore) {
+        boolean finished;
+
+        synchronized(storeLock) {
+            boolean completed = false;
+            boolean failed = false;
+            ReductionStage stage = null;
+
+            synchronized(taskLock) {
+                Node node = nodes.get(taskToStore.getTaskID());
+                if (node == null || node.state != NodeState.RUNNING) {
+                    return;
+                }
+
+                tasksInFlight--;
+                node.task = taskToStore;
+                switch(taskToStore.getState()) {
+                    case COMPLETED:
+                        complete(node);
+                        completed = true;
+                        stage = reducedTasks.remove(node.taskID);
+                        break;
+                    case TROUBLED:
+                    case PROBLEMATIC:
+                        node.state = NodeState.FAILED;
+                        failed = true;
+                        break;
+                    case READY: //the Monitor hands back tasks that were cancelled as READY
+                    case TERMINATED:
+                        node.state = NodeState.READY;
+                        readyNodes.add(node);
+                        break;
+                }
+            }
+
+            if (completed) {
+                taskCompleted(taskToStore);
+                if (stage != null) {
+                    stage.taskCompleted(taskToStore, taskToStore.getResults());
+                }
+            } else if (failed) {
+                taskFailed(taskToStore);
+            }
+
+            synchronized(taskLock) {
+                finished = (tasksUnfinished == 0);
+            }
+        }
+
+        if (finished) {
+            setState(JobState.COMPLETED);
+        }
+    }
+
+    /**
+     * Returns the number of Tasks featured as part of the Job, which grows if
+     * the Job adds tasks as it runs.
+     *
+     * @return the total number of Tasks added to this Job.
+     */
+    public int getInitialNumberOfTasks() {
+        synchronized(taskLock) {
+            return tasksAdded;
+        }
+    }
+
+    /**
+     * Returns the number of Tasks remaining in this Job.  (That is, those that
+     * have not yet been retrieved with the getNextTask() method, whether ready
+     * or waiting for their inputs.)
+     *
+     * @return the number of Tasks remaining in this Job.
+     */
+    public int getRemainingNumberOfTasks() {
+        synchronized(taskLock) {
+            return tasksUnfinished - tasksInFlight;
+        }
+    }
+
+    /**
+     * Returns the number of Tasks in this Job that have completed sucessfully.
+     *
+     * @return the number of Tasks completed.
+     */
+    public int getNumberOfTasksCompleted() {
+        synchronized(taskLock) {
+            return tasksCompleted;
+        }
+    }
+
+    /**
+     * Adds a new task to the graph.  Must be called holding taskLock.
+     */
+    private void register(Node node) {
+        nodes.put(node.taskID, node);
+        tasksAdded++;
+        tasksUnfinished++;
+    }
+
+    /**
+     * Hands a task whose inputs have all completed their results, lets go of
+     * the results no other task is waiting for, and makes the task ready.
+     * Must be called holding taskLock.
+     */
+    private void release(Node node) {
+        for (Node input : node.inputs) {
+            if (node.task instanceof DependentTask) {
+                ((DependentTask)node.task).addInput(input.result);
+            }
+            passedOn(input);
+        }
+        node.inputs.clear();
+
+        // Its cost may only be known now that it has its inputs
+        node.cost = estimateCost(node.task);
+        node.state = NodeState.READY;
+        updatePath(node);
+        readyNodes.add(node);
+    }
+
+    /**
+     * Marks a task as completed, keeping its result, and releases the tasks
+     * for which it was the last input.  Must be called holding taskLock.
+     */
+    private void complete(Node node) {
+        node.state = NodeState.COMPLETED;
+        node.result = node.task.getResults();
+        node.task = null;
+        tasksCompleted++;
+        tasksUnfinished--;
+
+        // Every task depending on it may have been given up on already
+        if (!node.dependents.isEmpty() && node.dependentsLeft == 0) {
+            node.result = null;
+            nodes.remove(node.taskID);
+            return;
+        }
+
+        for (Node dependent : node.dependents) {
+            if (dependent.state == NodeState.WAITING && --dependent.inputsLeft == 0) {
+                release(dependent);
+            }
+        }
+    }
+
+    /**
+     * Notes that a task's result has been handed to one of the tasks
+     * depending on it, letting it go after the last.  Must be called holding
+     * taskLock.
+     */
+    private void passedOn(Node node) {
+        if (--node.dependentsLeft == 0 && node.state == NodeState.COMPLETED) {
+            node.result = null;
+            nodes.remove(node.taskID);
+        }
+    }
+
+    /**
+     * Gives up on a failed task, and on every task depending on it, since
+     * they can never have all their inputs.  Must be called holding taskLock.
+     */
+    private void giveUp(Node failed) {
+        LinkedList<Node> toGiveUp = new LinkedList<Node>();
+        toGiveUp.add(failed);
+
+        while (!toGiveUp.isEmpty()) {
+            Node node = toGiveUp.poll();
+            if (!nodes.containsKey(node.taskID) || (node != failed && node.state != NodeState.WAITING)) {
+                continue;
+            }
+
+            node.state = NodeState.FAILED;
+            nodes.remove(node.taskID);
+            reducedTasks.remove(node.taskID);
+            failedTasks.add(node.task);
+            tasksUnfinished--;
+
+            // Its other inputs need not keep their results for it
+            for (Node input : node.inputs) {
+                passedOn(input);
+            }
+            node.inputs.clear();
+            toGiveUp.addAll(node.dependents);
+        }
+    }
+
+    /**
+     * Works out the critical path of a task again after it, or one of the
+     * tasks depending on it, has changed, and then those of the tasks it
+     * depends on.  Ready tasks are put back in order.  Must be called holding
+     * taskLock.
+     */
+    private void updatePath(Node start) {
+        LinkedList<Node> toUpdate = new LinkedList<Node>();
+        toUpdate.add(start);
+
+        while (!toUpdate.isEmpty()) {
+            Node node = toUpdate.poll();
+            if (node.state == NodeState.COMPLETED || node.state == NodeState.FAILED) {
+                continue;
+            }
+
+            double pathCost = 0;
+            int pathLength = 0;
+            for (Node dependent : node.dependents) {
+                pathCost = Math.max(pathCost, dependent.pathCost);
+                pathLength = Math.max(pathLength, dependent.pathLength);
+            }
+            pathCost += node.cost;
+            pathLength++;
+
+            if (pathCost == node.pathCost && pathLength == node.pathLength) {
+                continue;
+            }
+
+            boolean queued = (node.state == NodeState.READY) && readyNodes.remove(node);
+            node.pathCost = pathCost;
+            node.pathLength = pathLength;
+            if (queued) {
+                readyNodes.add(node);
+            }
+            toUpdate.addAll(node.inputs);
+        }
+    }
+
+    /**
+     * Returns the current state of this Job
+     *
+     * @return The current state of the Job instance
+     */
+    public JobState getState() {
+        return currentState;
+    }
+
+    /**
+     * Change this Job's state, sending event notifications if necessary.
+     *
+     * @param The new state to set the job to.
+     */
+    protected void setState(JobState newState) {
+        synchronized(registeredListeners) {
+            if(currentState == newState) {
+                return;
+            }
+            currentState = newState;
+        }
+        fireStateChanged();
+    }
+
+    /**
+     * Notify all registered listeners of state changes.
+     */
+    protected void fireStateChanged() {
+        synchronized(registeredListeners) {
+            for (JobEventListener listener : registeredListeners) {
+                listener.JobStateChanged(new JobEvent(this));
+            }
+        }
+    }
+
+    /**
+     * Notify all registered listeners that the given tasks should be cancelled.
+     *
+     * @param taskIDs An array of all task IDs that should be cancelled.
+     */
+    protected void cancelSpecifiedTasks(int[] taskIDs) {
+        synchronized(registeredListeners) {
+            for (JobEventListener listener : registeredListeners) {
+                listener.TasksCancelled(new JobEvent(this), taskIDs);
+            }
+        }
+    }
+
+    /**
+     * Notify all registered listeners that all tasks should be cancelled.
+     */
+    protected void cancelAllTasks() {
+        synchronized(registeredListeners) {
+            for (JobEventListener listener : registeredListeners) {
+                listener.AllTasksCancelled(new JobEvent(this));
+            }
+        }
+    }
+
+    /**
+     * Add the specified event listener to the list of registered listeners, thus
+     * allowing it to be notified of JobEvents.
+     *
+     * @param listenerToAdd The listener to remove from the list of registered listeners.
+     */
+    public void addJobEventListener(JobEventListener listenerToAdd) {
+        synchronized(registeredListeners) {
+            registeredListeners.add(listenerToAdd);
+        }
+    }
+
+    /**
+     * Remove the specified event listener from the list of registered listeners, thus
+     * no longer allowing it to be notified of JobEvents.
+     *
+     * @param listenerToRemove The listener to remove from the list of registered listeners.
+     */
+    public void removeJobEventListener(JobEventListener listenerToRemove) {
+        synchronized(registeredListeners) {
+            registeredListeners.remove(listenerToRemove);
+        }
+    }
+
+    /**
+     * Where a task of the Job is in its run
+     */
+    private enum NodeState {
+        /** Waiting for the tasks it depends on to complete */
+        WAITING,
+        /** Ready to be handed out */
+        READY,
+        /** Handed out and not stored back yet */
+        RUNNING,
+        /** Completed, with its result kept until it is passed on */
+        COMPLETED,
+        /** Failed, or cannot run because a task it depends on failed */
+        FAILED
+    }
+
+    /**
+     * A task of the Job, with the tasks it depends on and that depend on it.
+     */
+    private static class Node {
+        /**
+         * The task's ID
+         */
+        final int taskID;
+
+        /**
+         * The task, or null once it has completed
+         */
+        Task task;
+
+        /**
+         * Where the task is in its run
+         */
+        NodeState state = NodeState.WAITING;
+
+        /**
+         * The tasks it depends on, until it has been given their results
+         */
+        ArrayList<Node> inputs = new ArrayList<Node>();
+
+        /**
+         * The tasks depending on it
+         */
+        ArrayList<Node> dependents = new ArrayList<Node>();
+
+        /**
+         * The number of tasks it depends on that have not completed
+         */
+        int inputsLeft = 0;
+
+        /**
+         * The number of tasks depending on it that have not been given its result
+         */
+        int dependentsLeft = 0;
+
+        /**
+         * The task's result, once it has completed
+         */
+        Serializable result;
+
+        /**
+         * The estimated cost of the task
+         */
+        double cost = 0;
+
+        /**
+         * The estimated cost of the task and the costliest chain of tasks
+         * depending on it
+         */
+        double pathCost = -1;
+
+        /**
+         * The number of tasks in the longest chain starting with it
+         */
+        int pathLength = 0;
+
+        /**
+         * Creates the node for a task.
+         */
+        Node(Task task) {
+            this.taskID = task.getTaskID();
+            this.task = task;
+        }
+    }
+}
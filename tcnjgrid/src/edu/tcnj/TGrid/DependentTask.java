@@ -0,0 +1,27 @@
+/*
+ * DependentTask.java
+ *
+ * A Task that takes the results of other Tasks as its input.
+ */
+
+package edu.tcnj.TGrid;
+
+import java.io.Serializable;
+
+/**
+ * The DependentTask interface is implemented by Tasks that work on the results
+ * of other Tasks of a DagJob.  Before such a task is handed out, the Job gives
+ * it the result of each task it depends on, in the order its inputs were
+ * given.  Tasks of a DagJob that do not implement it may still depend on other
+ * tasks, but only wait for them to complete.
+ *
+ * @see edu.tcnj.TGrid.DagJob
+ */
+public interface DependentTask {
+    /**
+     * Takes in the result of one of the tasks this task depends on.
+     *
+     * @param input The result of the task
+     */
+    void addInput(Serializable input);
+}
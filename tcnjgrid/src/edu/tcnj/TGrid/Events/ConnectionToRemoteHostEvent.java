@@ -11,6 +11,7 @@ package edu.tcnj.TGrid.Events;
 
 import edu.tcnj.TGrid.ConnectionToRemoteHost;
 import edu.tcnj.TGrid.States.ConnectionToRemoteHostState;
+import edu.tcnj.TGrid.WireCommand;
 
 /**
  * A ConnectionToResourceEvent is triggered by the ConnectionToResource
@@ -21,6 +22,7 @@ import edu.tcnj.TGrid.States.ConnectionToRemoteHostState;
  */
 public class ConnectionToRemoteHostEvent extends java.util.EventObject {
     private Object message;
+    private WireCommand command;
     private ConnectionToRemoteHostState state;
     
     /**
@@ -59,6 +61,22 @@ public class ConnectionToRemoteHostEvent extends java.util.EventObject {
         this.message = message;
     }
     
+    /**
+     * Creates a new ResourceEvent instance for a received command.
+     * 
+     * @param source The object on which the ConnectionToResourceEvent initially occurred.
+     * @param state The state of the calling ConnectionToResource
+     * @param command The command that was received.
+     * @param message The payload that arrived with the command, if any.
+     */
+    public ConnectionToRemoteHostEvent(ConnectionToRemoteHost source, ConnectionToRemoteHostState state, WireCommand command, Object message) {
+        super((Object)source);
+        
+        this.state = state;
+        this.command = command;
+        this.message = message;
+    }
+    
     /**
      * Returns the ConnectionToResource's state specified in the constructor
      */
@@ -67,7 +85,15 @@ public class ConnectionToRemoteHostEvent extends java.util.EventObject {
     }
     
     /**
-     * Returns the object specified in the constructor
+     * Returns the command specified in the constructor, or null if the message
+     * was sent without one.
+     */
+    public WireCommand getCommand() {
+        return this.command;
+    }
+    
+    /**
+     * Returns the object specified in the constructor (for commands, the payload)
      */
     public Object getObject() {
         return this.message;
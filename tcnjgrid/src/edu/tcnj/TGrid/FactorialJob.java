@@ -5,14 +5,8 @@
 
 package edu.tcnj.TGrid;
 
-import edu.tcnj.TGrid.Events.JobEvent;
-import edu.tcnj.TGrid.Events.JobEventListener;
-import edu.tcnj.TGrid.States.JobState;
-import java.util.HashSet;
-import java.util.Random;
-import java.util.concurrent.LinkedBlockingQueue;
-
 import java.math.BigInteger;
+import java.io.Serializable;
 import edu.tcnj.TGrid.Util.ArithmeticOperation;
 
 /**
@@ -20,57 +14,39 @@ import edu.tcnj.TGrid.Util.ArithmeticOperation;
  * 
  * @author Stephen
  */
-public class FactorialJob implements Job
+public class FactorialJob extends DagJob implements SplittableJob
 {
 	/**
-	 * Stores a list of all internal Tasks that still need to be sent to clients.
+	 * Multiplies the products of the parts of the range together
 	 */
-	private LinkedBlockingQueue<Task> newTasks = new LinkedBlockingQueue<Task>();
+	private ReductionStage product;
 	
 	/**
-	 * Stores a list of all internal Tasks have have completed successfully.
+	 * Number to determine factorial for
 	 */
-	private LinkedBlockingQueue<Task> finishedTasks = new LinkedBlockingQueue<Task>();
+	private int num;
 	
 	/**
-	 * Represents the original number of tasks in the file.
-	 * 
-	 * Used in determining whether or not all tasks have completed or not.
+	 * Number of tasks the range is broken into
 	 */
-	private int initialNumberOfTasks = 0;
+	private int numTasks;
 	
 	/**
-	 * Number of assigned tasks at the present moment.
+	 * Approximate number of integers each task multiplies
 	 */
-	private int assignedTasks = 0;
+	private int gap;
 	
 	/**
-	 * Number of completed tasks at the present moment.
+	 * Number of execution slots, and so threads, each task runs on
 	 */
-	private int numFinishedTasks = 0;
-	
-	/**
-	 * Minimum number of task results to combine.
-	 */
-	private int minCombineResults = 2;
-	
-	/**
-	 * Represents the current state of this Job.
-	 */
-	private JobState currentState = JobState.NEW;
-	
-	/**
-	 * Stores a list of every event listener that is registered to receive event
-	 * notifications from this class.
-	 */
-	private HashSet<JobEventListener> registeredListeners = new HashSet<JobEventListener>();
+	private int cores;
 	
 	/**
 	 * Creates the default factorial job
 	 */
 	public FactorialJob()
 	{
-		setupTasks(1000, 30);
+		setupTasks(1000, 30, 1);
 	}
 	
 	/**
@@ -81,7 +57,7 @@ public class FactorialJob implements Job
 	 */
 	public FactorialJob(int num)
 	{
-		setupTasks(num, 30);
+		setupTasks(num, 30, 1);
 	}
 	
 	/**
@@ -93,157 +69,96 @@ public class FactorialJob implements Job
 	 */
 	public FactorialJob(int num, int numTasks)
 	{
-		setupTasks(num, numTasks);
+		setupTasks(num, numTasks, 1);
 	}
 	
 	/**
 	 * Creates a factorial job for the given factorial breaking up the job into 
-	 * the specified number of tasks.
+	 * the specified number of tasks, each of which takes the given number of
+	 * execution slots on a client and multiplies its part on that many threads.
 	 * 
 	 * @param num Number to determine factorial for
 	 * @param numTasks Number of tasks to break it into
+	 * @param cores Number of execution slots each task takes
 	 */
-	private void setupTasks(int num, int numTasks)
+	public FactorialJob(int num, int numTasks, int cores)
+	{
+		setupTasks(num, numTasks, cores);
+	}
+	
+	/**
+	 * Works out how the range is broken into tasks.  The tasks themselves are
+	 * created when the Job is made ready.
+	 * 
+	 * @param num Number to determine factorial for
+	 * @param numTasks Number of tasks to break it into
+	 * @param cores Number of execution slots each task takes
+	 */
+	private void setupTasks(int num, int numTasks, int cores)
 	{
 		// Make sure the values are valid
 		if (num < 1)
 			num = 1;
 		if (numTasks > num)
 			numTasks = num;
-		
-		// Setup minimum number of task results to combine
-		minCombineResults = numTasks / (""+num).length();
+		if (numTasks < 1)
+			numTasks = 1;
+		if (cores < 1)
+			cores = 1;
 		
 		// Determine approximate gap size per task
-		int i = 0, gap = 0;
-		if (numTasks > 1)
-		{
-			gap = num / numTasks;
-		  for (i = 0; i < numTasks - 1; i++)
-		  {
-		  	newTasks.add(new FactorialTask(i*gap+1, ((i+1)*gap)));
-		  	//System.out.println("Gap: " + (i*gap+1) + " - " + ((i+1)*gap));
-		  }
-		}
-	  // Add last task
-	  newTasks.add(new FactorialTask(i*gap+1, num));
-	  //System.out.println("Gap: " + (i*gap+1) + " - " + num);
-	    
-	  initialNumberOfTasks = newTasks.size();
-	  assignedTasks = 0;
+		this.num = num;
+		this.numTasks = numTasks;
+		this.cores = cores;
+		gap = (numTasks > 1) ? num / numTasks : 0;
 	}
 	
 	/**
-	 * Does what is necessary to make the Job ready to run, after which 
-	 * the Job is marked READY.
+	 * Creates the tasks for the parts of the range, and the stage that
+	 * multiplies their products together.  Products of a similar size are
+	 * multiplied as soon as they are done, while the other parts are still
+	 * running, so the products are combined in a balanced tree rather than in
+	 * one large multiplication at the end.
 	 */
 	public void makeReady()
 	{
-		setState(JobState.READY);
-	}
-	
-	/**
-	 * Returns the initial number of Tasks featured as part of the Job.
-	 * 
-	 * @return the total number of Tasks that this Job started with.
-	 */
-	public int getInitialNumberOfTasks()
-	{
-		return initialNumberOfTasks;
-	}
-    
-	/**
-	 * Returns the next Task to be performed as part of this Job.  Note that
-	 * this method generally won't work if the Job isn't ready.
-	 * 
-	 * @return A Task object representing the next task needed to be run.
-	 */
-	public Task getNextReadyTask()
-	{
-		setState(JobState.RUNNING);
-	  assignedTasks++;
-	  return newTasks.poll();
-	}
-	
-	/**
-	 * Returns whether or not there are any tasks remaining as part of this Job.
-	 * 
-	 * @return true if there is at least one more Task ready,
-	 *         false otherwise
-	 */
-	public boolean hasNextTask()
-	{
-	  return !newTasks.isEmpty();
-	}
-	
-	/**
-	 * Stores the specified Task.
-	 * 
-	 * Intended to store either a) Tasks that have completed sucessfully,
-	 * b) those that have encountered errors and cannot run, or 
-	 * c) Tasks that failed to run, and must be delegated again
-	 */
-	public void storeTask(Task taskToStore)
-	{
-	  switch(taskToStore.getState())
+		product = addReduction(new BigIntCombiner(ArithmeticOperation.MULTIPLY, cores));
+		
+		// The higher parts of the range take longest, so they go first
+		for (int i = numTasks - 1; i >= 0; i--)
 		{
-	    case COMPLETED: //if the task is completed, add it to the completed tasks list
-	      finishedTasks.add(taskToStore);
-	      assignedTasks--;
-	      numFinishedTasks++;
-	      break;
-	    case TROUBLED:
-	    case PROBLEMATIC:
-	    case TERMINATED:
-	    	assignedTasks--;
-	    case READY:
-	      newTasks.add(taskToStore);
-	      break;
-	  }
-	  
-	  // Combine finished tasks into new task
-	  synchronized(finishedTasks)
-	  {
-	  	// Check that there are tasks
-		  if (finishedTasks.size() > 1)
-		  {
-				// Combine if there are no more tasks or there are the minimum number of tasks to combine
-				if (
-					(assignedTasks == 0 && newTasks.size() == 0) ||
-					finishedTasks.size() >= minCombineResults
-				)
-				{
-			  	BigIntOperationTask combineTask = new BigIntOperationTask(ArithmeticOperation.MULTIPLY);
-			  	while (!finishedTasks.isEmpty())
-			  		combineTask.addOperand((BigInteger)(finishedTasks.poll().getResults()));
-			  	newTasks.add(combineTask);
-			  }
-		  }
+			// The last part takes whatever the gaps leave over
+			if (i == numTasks - 1)
+				product.addTask(new FactorialTask(i*gap+1, num, cores));
+			else
+				product.addTask(new FactorialTask(i*gap+1, ((i+1)*gap), cores));
 		}
-	  
-	  if(assignedTasks == 0 && newTasks.size() == 0)
-	  	setState(JobState.COMPLETED);
+		product.close();
+		
+		super.makeReady();
 	}
 	
 	/**
-	 * Returns the number of Tasks remaining in this Job.  (That is, those that
-	 * have not yet been retrieved with the getNextTask() method.)
+	 * Adds a task split off from one that has been handed out.  Its product is
+	 * multiplied in along with the others.
 	 * 
-	 * @return the number of Tasks remaining in this Job.
+	 * @param task     The task it was split from
+	 * @param splitOff The split-off task
 	 */
-	public int getRemainingNumberOfTasks()
+	public void addSplitTask(Task task, Task splitOff)
 	{
-		return newTasks.size();
+		addTaskAlongside(splitOff, task);
 	}
 	
 	/**
-	 * Returns the number of Tasks in this Job that have completed sucessfully.
+	 * Runs a task that failed again, since every part of the product is needed.
 	 * 
-	 * @return the number of Tasks remaining in this Job.
+	 * @param task The failed task
 	 */
-	public int getNumberOfTasksCompleted()
+	@Override
+	protected void taskFailed(Task task)
 	{
-		return numFinishedTasks;
+		retryTask(task);
 	}
 	
 	/**
@@ -253,105 +168,10 @@ public class FactorialJob implements Job
 	public String getResults()
 	{
 		BigInteger rtn = new BigInteger("1");
-		if(!finishedTasks.isEmpty())
-		{
-		/*
-		  for(FactorialTask task : finishedTasks)
-		  	rtn = rtn.multiply((BigInteger)task.getResults());
-		  */
-		  rtn = (BigInteger)finishedTasks.peek().getResults();
-		}
+		Serializable result = (product != null) ? product.getResult() : null;
+		if (result != null)
+			rtn = (BigInteger)result;
 		
 		return rtn.toString();
 	}
-	
-	/**
-	 * Returns the current state of this Job
-	 * 
-	 * @return The current state of the Job instance
-	 */
-	public JobState getState()
-	{
-		return currentState;
-	}
-	
-	/**
-	 * Change this Job's state, sending event notifications if necessary.
-	 *
-	 * @param The new state to set the job to.
-	 */
-	protected void setState(JobState newState)
-	{
-		if(currentState != newState)
-		{
-		  currentState = newState;
-		  fireStateChanged();
-		}
-	}
-	
-	/**
-	 * Notify all registered listeners of state changes.
-	 */
-	protected void fireStateChanged()
-	{
-		synchronized(registeredListeners)
-		{
-			for (JobEventListener listener : registeredListeners)
-				listener.JobStateChanged(new JobEvent(this));
-		}
-	}
-	
-	/**
-	 * Notify all registered listeners that the given tasks should be cancelled.
-	 * 
-	 * @param taskIDs An array of all task IDs that should be cancelled.
-	 */
-	protected void cancelSpecifiedTasks(int[] taskIDs)
-	{
-		synchronized(registeredListeners)
-		{
-			for (JobEventListener listener : registeredListeners)
-				listener.TasksCancelled(new JobEvent(this), taskIDs);
-		}
-	}
-	
-	/**
-	 * Notify all registered listeners that all tasks should be cancelled.
-	 */
-	protected void cancelAllTasks()
-	{
-		synchronized(registeredListeners)
-		{
-			for (JobEventListener listener : registeredListeners)
-				listener.AllTasksCancelled(new JobEvent(this));
-		}
-	}
-	
-	/**
-	 * Add the specified event listener to the list of registered listeners, thus
-	 * allowing it to be notified of JobEvents.
-	 *
-	 * @param listenerToAdd The listener to remove from the list of registered listeners.
-	 */
-	public void addJobEventListener(JobEventListener listenerToAdd)
-	{
-	  synchronized(registeredListeners)
-		{
-	  	registeredListeners.add(listenerToAdd);
-	  }
-	}
-	
-	/**
-	 * Remove the specified event listener from the list of registered listeners, thus
-	 * no longer allowing it to be notifiedJobEvents.
-	 * 
-	 * @param listenerToRemove The listener to remove from the list of registered listeners.
-	 */
-	public void removeJobEventListener(JobEventListener listenerToRemove)
-	{
-	  synchronized(registeredListeners)
-		{
-	  	registeredListeners.remove(listenerToRemove);
-	  }
-	}
 }
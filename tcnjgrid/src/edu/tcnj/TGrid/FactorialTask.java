@@ -3,11 +3,14 @@ package edu.tcnj.TGrid;
 import edu.tcnj.TGrid.Events.TaskEvent;
 import edu.tcnj.TGrid.Events.TaskEventListener;
 import edu.tcnj.TGrid.States.TaskState;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Random;
 import java.io.Serializable;
+import java.util.concurrent.locks.ReentrantLock;
 
 import java.math.BigInteger;
+import edu.tcnj.TGrid.Util.ProductTree;
 
 /**
  * The FactorialTask class represents an extremely basic Task, that does absolutely
@@ -15,37 +18,88 @@ import java.math.BigInteger;
  * 
  * @author Stephen
  */
-public class FactorialTask extends Task
+public class FactorialTask extends Task implements SplittableTask
 {
+	/**
+	 * The fewest numbers a task split off from another may multiply
+	 */
+	public static final int MIN_SPLIT_RANGE = 16;
+	
+	/**
+	 * The fewest numbers a block of the range claimed at a time may have
+	 */
+	private static final int MIN_BLOCK = 4096;
+	
+	/**
+	 * How many blocks each thread claims, roughly, of what is left of the range
+	 * at any time.  Blocks shrink as the range runs out, so the threads finish
+	 * together, and a split can still take half of what is left.
+	 */
+	private static final int BLOCKS_PER_THREAD = 4;
+	
 	/**
 	 * Represents the results of running this thread, as a human-readable string.
 	 */
 	private BigInteger results;
 	
 	/**
-	 * Integer to start multiplication at
+	 * Integer to start multiplication at.  Guarded by progressLock.
 	 */
 	private int lowNum;
 	
 	/**
-	 * Integer to stop multiplication at
+	 * Integer to stop multiplication at.  Guarded by progressLock, since a split
+	 * lowers it while the task runs.
 	 */
 	private int highNum;
 	
+	/**
+	 * The next integer to multiply in while the task runs.  Guarded by
+	 * progressLock.
+	 */
+	private int nextNum;
+	
+	/**
+	 * Guards the range and the progress through it.  Not the task itself, which
+	 * is held while its listeners are told it has completed.
+	 */
+	private final ReentrantLock progressLock = new ReentrantLock();
+	
 	/**
 	 * Represents the internal thread used to run the Task.
 	 */
 	private RunThread runThread; 
 	
 	/**
-	 * Creates a new FactorialTask instance.
+	 * Set when the task is forced to quit, so that the threads multiplying the
+	 * range stop claiming blocks of it
+	 */
+	private transient volatile boolean quitting = false;
+	
+	/**
+	 * Creates a new FactorialTask instance, which multiplies on one thread.
 	 * @param low Integer to start multiplication at
 	 * @param high Integer to stop multiplication at	 	 
 	 */
 	public FactorialTask(int low, int high)
 	{
-		// Add a memory requirement
+		this(low, high, 1);
+	}
+	
+	/**
+	 * Creates a new FactorialTask instance, which multiplies on a thread per
+	 * execution slot it occupies.
+	 * @param low Integer to start multiplication at
+	 * @param high Integer to stop multiplication at
+	 * @param cores Number of execution slots to occupy, and threads to run
+	 */
+	public FactorialTask(int low, int high, int cores)
+	{
+		// Add a memory requirement, and set the memory aside on the client so
+		// that no more tasks are packed into its slots than it has memory for
 		taskRequirements.addRequirement(new MemoryChecker(512));
+		taskRequirements.setMemory(512);
+		taskRequirements.setCores(cores);
 	
 		if (low < high)
 		{
@@ -57,6 +111,103 @@ public class FactorialTask extends Task
 			lowNum = high;
 			highNum = low;
 		}
+		nextNum = lowNum;
+	}
+	
+	/**
+	 * Returns an estimate of how much work the task is, in multiplications of
+	 * 32 bit words.  The range is multiplied out as a tree of products, each
+	 * level of which costs about as much as multiplying the two halves of the
+	 * final product, so tasks higher up the range cost more than lower ones of
+	 * the same length.
+	 * 
+	 * @return The estimated cost
+	 */
+	@Override
+	public double getCostEstimate()
+	{
+		int low, high;
+		progressLock.lock();
+		try
+		{
+			low = lowNum;
+			high = highNum;
+		}
+		finally
+		{
+			progressLock.unlock();
+		}
+		
+		// The product grows by about log2 of the middle of the range per number
+		double count = (double)high - low + 1;
+		double bitsPerNumber = Math.log((low + (double)high) / 2 + 1) / Math.log(2);
+		double halfWords = count * bitsPerNumber / 32 / 2 + 1;
+		double levels = Math.log(count + 1) / Math.log(2);
+		
+		return levels * BigIntOperationTask.multiplicationCost((long)halfWords, (long)halfWords) + count;
+	}
+	
+	/**
+	 * Returns a new task for the upper half of this task's range, without
+	 * changing this task.  Each half starts its product afresh, so the two take
+	 * about as long as each other.
+	 * 
+	 * @return The split-off task, or null if the range is too short to split
+	 */
+	public Task createSplit()
+	{
+		progressLock.lock();
+		try
+		{
+			if (highNum - lowNum + 1 < 2 * MIN_SPLIT_RANGE)
+				return null;
+			
+			FactorialTask splitOff = new FactorialTask(lowNum + (highNum - lowNum + 1) / 2, highNum, taskRequirements.getCores());
+			splitOff.priority = priority;
+			splitOff.timeout = timeout;
+			return splitOff;
+		}
+		finally
+		{
+			progressLock.unlock();
+		}
+	}
+	
+	/**
+	 * Leaves the numbers of a split-off task out of this task's range.  If this
+	 * task is running, the split-off task is first moved up to start halfway
+	 * through the numbers not yet multiplied in.
+	 * 
+	 * @param splitOff A task created by createSplit() for a copy of this task
+	 * @return true if this task no longer multiplies in the split-off task's
+	 *         numbers; false if too few are left to split off
+	 */
+	public boolean yieldTo(Task splitOff)
+	{
+		if (!(splitOff instanceof FactorialTask))
+			return false;
+		FactorialTask other = (FactorialTask)splitOff;
+		
+		progressLock.lock();
+		try
+		{
+			// It must cover the top of this task's range
+			if (other.highNum != highNum || other.lowNum <= lowNum)
+				return false;
+			
+			int split = Math.max(other.lowNum, nextNum + (highNum - nextNum + 1) / 2);
+			if (highNum - split + 1 < MIN_SPLIT_RANGE)
+				return false;
+			
+			other.lowNum = split;
+			other.nextNum = split;
+			highNum = split - 1;
+			return true;
+		}
+		finally
+		{
+			progressLock.unlock();
+		}
 	}
 	
 	/**
@@ -64,6 +215,7 @@ public class FactorialTask extends Task
 	 */
 	public void runTask()
 	{
+	  quitting = false;
 	  setState(TaskState.RUNNING);
 	  
 	  runThread = new RunThread();
@@ -79,6 +231,7 @@ public class FactorialTask extends Task
 		{
 	    try
 			{
+	      quitting = true;
 	      runThread.interrupt();
 				runThread.join();
 	
@@ -119,18 +272,116 @@ public class FactorialTask extends Task
 		return "FactorialTask #" + id;
 	}
     
+	/**
+	 * Claims the next block of the range to multiply out, under progressLock.
+	 * 
+	 * @param threads The number of threads claiming blocks
+	 * @return The first and last numbers of the block, or null if the range
+	 *         has all been claimed
+	 */
+	private long[] claimBlock(int threads)
+	{
+		progressLock.lock();
+		try
+		{
+			// The end of the range moves if the task is split while it runs
+			if (quitting || nextNum > highNum)
+				return null;
+			
+			long left = (long)highNum - nextNum + 1;
+			long size = Math.min(left, Math.max(MIN_BLOCK, left / ((long)BLOCKS_PER_THREAD * threads)));
+			long[] block = {nextNum, nextNum + size - 1};
+			nextNum = (int)(nextNum + size);
+			return block;
+		}
+		finally
+		{
+			progressLock.unlock();
+		}
+	}
+	
+	/**
+	 * Multiplies out the range, spreading its blocks over a thread per
+	 * execution slot the task occupies, so that a client packing tasks into its
+	 * slots runs no more threads than it has slots, and multiplies the products
+	 * of the blocks together.
+	 */
 	protected class RunThread extends Thread
 	{
 		public void run()
 		{
-		  BigInteger tmp = new BigInteger(""+lowNum);
-		  BigInteger max = new BigInteger(""+highNum);
-		  results = new BigInteger("1");
-		  for (; !max.subtract(tmp).add(BigInteger.ONE).equals(BigInteger.ZERO); tmp = tmp.add(BigInteger.ONE))
-		  	results = results.multiply(tmp);
-		  
-		  setState(TaskState.COMPLETED);
-  	}
+			int threads = taskRequirements.getCores();
+			ArrayList<BigInteger> products = new ArrayList<BigInteger>();
+			BlockThread[] blockThreads = new BlockThread[threads];
+			for (int i = 0; i < threads; i++)
+			{
+				blockThreads[i] = new BlockThread(threads, products);
+				blockThreads[i].start();
+			}
+			
+			try
+			{
+				for (BlockThread blockThread : blockThreads)
+					blockThread.join();
+			}
+			catch (InterruptedException ex)
+			{
+				// Forced to quit; the threads stop after the blocks they are on
+				quitting = true;
+				for (BlockThread blockThread : blockThreads)
+					blockThread.interrupt();
+				return;
+			}
+			
+			if (quitting)
+				return;
+			
+			results = ProductTree.multiply(products, threads);
+			
+			setState(TaskState.COMPLETED);
+		}
+	}
+	
+	/**
+	 * Multiplies out blocks of the range until it has all been claimed.
+	 */
+	protected class BlockThread extends Thread
+	{
+		/**
+		 * The number of threads claiming blocks
+		 */
+		private int threads;
+		
+		/**
+		 * The products of the blocks multiplied out.  Guarded by itself.
+		 */
+		private ArrayList<BigInteger> products;
+		
+		/**
+		 * Creates a thread that adds the products of the blocks it multiplies
+		 * out to a list.
+		 * 
+		 * @param threads  The number of threads claiming blocks
+		 * @param products The list
+		 */
+		public BlockThread(int threads, ArrayList<BigInteger> products)
+		{
+			this.threads = threads;
+			this.products = products;
+		}
+		
+		public void run()
+		{
+			long[] block;
+			while ((block = claimBlock(threads)) != null)
+			{
+				BigInteger product = ProductTree.product(block[0], block[1]);
+				synchronized(products)
+				{
+					products.add(product);
+				}
+			}
+		}
 	}
 	
 	public int getTaskID()
@@ -39,6 +39,12 @@ public class FileTransferInfoToClient implements Serializable
 	 */
 	private boolean isExecutable = false;
 	
+	/**
+	 * MD5 checksum of the file's contents, which identifies it in the client's
+	 * file cache
+	 */
+	private byte[] digest;
+	
 	/**
 	 * Creates a new FileTransferTask instance.
 	 * 
@@ -46,15 +52,17 @@ public class FileTransferInfoToClient implements Serializable
 	 * @param filesize Number of bytes in the file
 	 * @param remoteDirectory Directory in which to place the file
 	 * @param lastModified Last modified timestamp of the file
-	 * @param isExecutable Is the file an executable	 	 	 
+	 * @param isExecutable Is the file an executable
+	 * @param digest MD5 checksum of the file's contents
 	 */
-	public FileTransferInfoToClient(String remoteFilename, long filesize, TransferFileRemoteDirectory remoteDirectory, long lastModified, boolean isExecutable)
+	public FileTransferInfoToClient(String remoteFilename, long filesize, TransferFileRemoteDirectory remoteDirectory, long lastModified, boolean isExecutable, byte[] digest)
 	{
 		this.remoteFilename = remoteFilename;
 		this.filesize = filesize;
 		this.remoteDirectory = remoteDirectory;
 		this.lastModified = lastModified;
 		this.isExecutable = isExecutable;
+		this.digest = digest;
 	}
 	
 	/**
@@ -106,4 +114,14 @@ public class FileTransferInfoToClient implements Serializable
 	{
 	  return isExecutable;
 	}
+	
+	/**
+	 * Returns the MD5 checksum of the file's contents
+	 * 
+	 * @return Checksum of the file
+	 */
+	public byte[] getDigest()
+	{
+	  return digest;
+	}
 }
@@ -30,10 +30,16 @@ import edu.tcnj.TGrid.FileTransferInfoToClient;
 
 import edu.tcnj.TGrid.Events.TaskEventListener;
 import edu.tcnj.TGrid.Task;
+import edu.tcnj.TGrid.TaskOutcome;
+import edu.tcnj.TGrid.TaskSplit;
+import edu.tcnj.TGrid.SplittableTask;
 import java.net.InetAddress;
 
 import java.util.HashSet;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.TreeMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.Calendar;
 import java.util.logging.Level;
@@ -43,6 +49,9 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.FilePermission;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -81,6 +90,19 @@ public class ClientSideResource implements ConnectionToRemoteHostEventListener,
      * Amount of time, in minutes, between CPU monitorings
      */
     protected static final int CPU_MONITOR_SLEEP = 1;
+    /**
+     * The default amount of disk space the file cache may use, in bytes
+     */
+    protected static final long DEFAULT_FILE_CACHE_QUOTA = 1024L * 1024 * 1024;
+    /**
+     * The directory transferred files are cached in, by checksum
+     */
+    protected static final String FILE_CACHE_DIR = "cache";
+    /**
+     * The memory, in megabytes, each execution slot needs when the number of
+     * slots is worked out from the memory available
+     */
+    protected static final int DEFAULT_SLOT_MEMORY = 64;
     /**
      * The unique identification number of this Resource
      */
@@ -109,6 +131,11 @@ public class ClientSideResource implements ConnectionToRemoteHostEventListener,
      */
     protected String freeDisk;
     protected String cpusAvailable = Integer.toString(Runtime.getRuntime().availableProcessors());
+    /**
+     * Specifications reported to the server besides the operating system, RAM
+     * and CPUs, such as installed software, by name
+     */
+    private TreeMap<String, Object> customSpecs = new TreeMap<String, Object>();
     /**
      * A reliability and performance score for this Resource, calculated 
      * based on several factors.  Used primarily for comparisons.
@@ -136,24 +163,14 @@ public class ClientSideResource implements ConnectionToRemoteHostEventListener,
      */
     private int clientPswd;
     /**
-     * Holds any argument that a commands may have 
+     * Holds the details of the file transfer in progress, if any
      */
     private HashMap<String, Object> currentCommandArgs;
     /**
-     * Used to determine how to react to received messages.
-     * 
-     * If awaitingCommand is true, the message will be interpereted as a command.
-     * Otherwise, the message will be interpereted as text.
-     */
-    private volatile boolean awaitingCommand = true;
-    /**
-     * Stores the current command being performed, if any.
-     * Used to determine how to react to received text messages. (non-commands)
-     * 
-     * If awaitingCommand is false, any message received will need to be associated with
-     * whatever command preceeded it. 
+     * Holds a copy of every file transferred, so that files with the same
+     * contents are only transferred once
      */
-    private CommandToClientFromServer currentCommand;
+    private FileCache fileCache = new FileCache(new File(FILE_CACHE_DIR), DEFAULT_FILE_CACHE_QUOTA);
     /**
      * The current state of this Resource
      */
@@ -190,6 +207,22 @@ public class ClientSideResource implements ConnectionToRemoteHostEventListener,
      * The Task currently assigned to this resource
      */
     private Task currentTask;
+    /**
+     * Tasks the server has queued to start as soon as the current one ends, in
+     * the order they are to be started.  Guarded by connectionToServer, like
+     * the task changes.
+     */
+    private LinkedList<Task> queuedTasks = new LinkedList<Task>();
+    /**
+     * Tasks running in the extra execution slots, alongside the current task,
+     * by ID.  Guarded by connectionToServer.
+     */
+    private HashMap<Integer, Task> slotTasks = new HashMap<Integer, Task>();
+    /**
+     * The number of execution slots advertised to the server, or 0 to work it
+     * out from the processors and memory available
+     */
+    private int slots = 0;
     /**
      * Represents a polymorphic handle to whichever one of the internal threads happens to be executing.
      * 
@@ -197,6 +230,20 @@ public class ClientSideResource implements ConnectionToRemoteHostEventListener,
      * ever be running at a given time.
      */
     private Thread internalThread;
+    /**
+     * Whether the server has accepted the client command connection.  This can
+     * happen before or after authorization succeeds.
+     */
+    private volatile boolean commandConnectionEstablished = false;
+    /**
+     * When the current connection attempt began, from <code>System.nanoTime()</code>
+     */
+    private long connectionStartTime = 0;
+    /**
+     * How long it took from requesting the connection to becoming READY, in
+     * milliseconds, or -1 if the resource has not become ready yet
+     */
+    private volatile long connectionLatency = -1;
 
     /**
      * Creates a new instance of Resource, with the specified server address.
@@ -250,6 +297,65 @@ public class ClientSideResource implements ConnectionToRemoteHostEventListener,
                 "CPUs Available: " + cpusAvailable;
     }
 
+    /**
+     * Returns the specifications the server matches task requirements against:
+     * "OS", "RAM" (the megabytes the virtual machine may use), "CPU" (the number
+     * of processors), "SLOTS" (the number of execution slots) and any custom
+     * ones.
+     *
+     * @return The specifications, by name
+     */
+    public TreeMap<String, Object> getReportedSpecs() {
+        TreeMap<String, Object> specs = new TreeMap<String, Object>(customSpecs);
+
+        specs.put("OS", nameOS);
+        specs.put("RAM", (int) (Runtime.getRuntime().maxMemory() / (1024 * 1024)));
+        specs.put("CPU", Runtime.getRuntime().availableProcessors());
+        specs.put("SLOTS", getSlots());
+
+        return specs;
+    }
+
+    /**
+     * Adds a specification to report to the server, for tasks whose requirements
+     * need more than the operating system, RAM and CPUs.  Must be called before
+     * connecting.
+     *
+     * @param name  The name of the specification
+     * @param value Its value
+     */
+    public void setSpec(String name, Serializable value) {
+        customSpecs.put(name, value);
+    }
+
+    /**
+     * Sets the number of execution slots advertised to the server, which may
+     * run that many single slot tasks at once.  Must be called before
+     * connecting.
+     *
+     * @param slots The number of slots, or 0 to work it out from the
+     *              processors and memory available
+     */
+    public void setSlots(int slots) {
+        this.slots = Math.max(0, slots);
+    }
+
+    /**
+     * Returns the number of execution slots advertised to the server.  Unless
+     * set, this is one per processor, but no more than the memory available
+     * allows at DEFAULT_SLOT_MEMORY megabytes each.
+     *
+     * @return The number of slots, at least 1
+     */
+    public int getSlots() {
+        if (slots > 0) {
+            return slots;
+        }
+
+        long memory = Runtime.getRuntime().maxMemory() / (1024 * 1024);
+        return (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), memory / DEFAULT_SLOT_MEMORY));
+    }
+
     /*
      * Determines the resource score for this client to be returned to
      * the server. This is just guesswork as to what is useful overall
@@ -309,23 +415,35 @@ public class ClientSideResource implements ConnectionToRemoteHostEventListener,
         }
 
         if (currentState == ResourceState.NOT_CONNECTED) {
-            setState(ResourceState.CONNECTING);
+            connectionStartTime = System.nanoTime();
+            connectionLatency = -1;
+            commandConnectionEstablished = false;
 
-            awaitingCommand = true;
+            setState(ResourceState.CONNECTING);
 
             try {
                 connectionToServer.connectToRemoteHost();
+
+                //begin authorization procedure.  the credentials are sent straight
+                //away rather than waiting for the server to ask for them
+                setState(ResourceState.AUTHORIZING);
+                sendCredentials();
             } catch (ConnectionToRemoteHostException ex) {
                 setState(ResourceState.ERROR_CONNECTING);
-                awaitingCommand = false;
 
                 throw new ResourceException(ex.getMessage());
             }
 
-            //begin authorization procedure
-            internalThread = new ConnectThread();
-            internalThread.start();
+            //open the client command connection at the same time; the server
+            //holds on to it until authorization has succeeded
+            try {
+                commandConnectionToServer.connectToRemoteHost();
 
+                // Send client key
+                commandConnectionToServer.send(CommandToServerFromClient.CLIENT_KEY, clientKey);
+            } catch (ConnectionToRemoteHostException ex) {
+                setState(ResourceState.TROUBLED);
+            }
         } else {
             throw new ResourceException("Cannot start connection from current state (" + currentState.toString() + ")");
         }
@@ -407,8 +525,7 @@ public class ClientSideResource implements ConnectionToRemoteHostEventListener,
                         //there are problems that arise when the program's state message
                         //conflicts with the authorization reqests
                         //TODO: make this less hackly
-                        connectionToServer.send(CommandToServerFromClient.STATE_CHANGED);
-                        connectionToServer.send(newState);
+                        connectionToServer.send(CommandToServerFromClient.STATE_CHANGED, newState);
                     }
                 }
 
@@ -457,432 +574,624 @@ public class ClientSideResource implements ConnectionToRemoteHostEventListener,
     /**
      * Reacts to received messages properly.
      * 
+     * Every command arrives together with its payload, so the command alone
+     * determines how the message is handled.
+     * 
      * @param e The event raised.
      */
     public void messageReceivedFromRemoteHost(ConnectionToRemoteHostEvent e) {
-        Object message = e.getObject();
-        //System.out.println("Received message \"" + message + "\" from server.");
+        Object payload = e.getObject();
 
         try {
-            //Check if the message should be interpereted as a command or as a text message
-            if (awaitingCommand) {
-                System.out.println("Received command \"" + message + "\" from server.");
-                //if we're awaiting a command, first convert the message into a CommandToClientFromServer
-                try {
-                    CommandToClientFromServer command = (CommandToClientFromServer) message;
+            System.out.println("Received command \"" + e.getCommand() + "\" from server.");
 
-                    //first process commands that can occur from any state
-                    switch (command) {
-                        case PING: //in the event of a PING, simply send the response
-                            connectionToServer.send(CommandToServerFromClient.PING_ACKNOWLEDGED);
-                            break;
-                        case PING_ACKNOWLEDGED: //in the event of a PING acknowledgement, interrupt the thread, in case it's waiting
-                            if (shouldPerformKeepAlive == true) {
-                                internalThread.interrupt();
+            if (!(e.getCommand() instanceof CommandToClientFromServer)) {
+                connectionToServer.send(CommandToServerFromClient.INVALID_COMMAND);
+                return;
+            }
+
+            CommandToClientFromServer command = (CommandToClientFromServer) e.getCommand();
+
+            //first process commands that can occur from any state
+            switch (command) {
+                case PING: //in the event of a PING, simply send the response
+                    connectionToServer.send(CommandToServerFromClient.PING_ACKNOWLEDGED);
+                    break;
+                case PING_ACKNOWLEDGED: //in the event of a PING acknowledgement, interrupt the thread, in case it's waiting
+                    if (shouldPerformKeepAlive == true) {
+                        internalThread.interrupt();
+                    }
+                    break;
+                case INVALID_COMMAND:
+                    Logger.getLogger(ClientSideResource.class.getName()).log(Level.INFO, "Invalid command error.");
+                    break;
+                case QUEUE_TASK: //queued tasks can arrive while running a task or just after it ends
+                    queueTask((Task) payload);
+                    break;
+                case CANCEL_QUEUED_TASK:
+                    cancelQueuedTask((Integer) payload);
+                    break;
+                case RUN_TASK_IN_SLOT: //slot tasks run alongside whatever the resource is doing
+                    runTaskInSlot((Task) payload);
+                    break;
+                case SPLIT_TASK: //the task to split may be current, queued or in a slot
+                    splitTask((TaskSplit) payload);
+                    break;
+                default: //if it's not a "universal" message, react according to the current state
+                    //Different states expect different responses, so react accordingly
+                    switch (currentState) {
+                        case AUTHORIZING:
+                            //these are the commands we wait for when authorizing
+                            switch (command) {
+                                case AUTHORIZATION_REQUEST:
+                                    //the credentials were already sent, but the server wants them again
+                                    sendCredentials();
+                                    break;
+                                case SENDING_RESOURCE_ID:
+                                    resourceID = (Integer) payload;
+                                    break;
+                                case CLIENT_CONNECTION_ESTABLISHED:
+                                    //the command connection can be accepted before authorization succeeds
+                                    commandConnectionEstablished = true;
+                                    break;
+                                case AUTHORIZATION_SUCCEEDED:
+                                    setState(ResourceState.AUTHORIZATION_SUCCESS);
+                                    setState(ResourceState.AWAITING_CLIENT_COMMAND_CONNECTION);
+
+                                    if (commandConnectionEstablished) {
+                                        becomeReady();
+                                    }
+
+                                    break;
+                                case AUTHORIZATION_FAILED:
+                                    setState(ResourceState.AUTHORIZATION_FAILURE);
+
+                                    try {
+                                        commandConnectionToServer.disconnect();
+                                    } catch (ConnectionToRemoteHostException ex) {
+                                        Logger.getLogger(ClientSideResource.class.getName()).log(Level.FINER, "Error closing client command connection.", ex);
+                                    }
+
+                                    break;
+                                default:
+                                    connectionToServer.send(CommandToServerFromClient.INVALID_COMMAND);
                             }
+
                             break;
-                        case INVALID_COMMAND:
-                            awaitingCommand = true;
-                            currentCommand = null;
-                            Logger.getLogger(ClientSideResource.class.getName()).log(Level.INFO, "Invalid command error.");
+                        case AWAITING_CLIENT_COMMAND_CONNECTION:
+                            // Determine if the connection was established
+                            if (command == CommandToClientFromServer.CLIENT_CONNECTION_ESTABLISHED) {
+                                commandConnectionEstablished = true;
+                                becomeReady();
+                            } else {
+                                setState(ResourceState.TROUBLED);
+                            }
                             break;
-                        default: //if it's not a "universal" message, react according to the current state
-                            //Different states expect different responses, so react accordingly
-                            switch (currentState) {
-                                case AUTHORIZING:
-                                    //there are the two possible commands we wait for when authorizing
-                                    switch (command) {
-                                        case AUTHORIZATION_REQUEST:
-                                            // Send client info (Must be before username and password since authentication state ends after username and password)
-                                            connectionToServer.send(CommandToServerFromClient.CLIENT_KEY);
-                                            connectionToServer.send(clientKey);
-                                            connectionToServer.send(clientPswd);
-
-                                            //send the authorization info
-                                            connectionToServer.send(CommandToServerFromClient.USERNAME);
-                                            connectionToServer.send(username);
-
-                                            connectionToServer.send(CommandToServerFromClient.PASSWORD);
-                                            connectionToServer.send(password);
-
-                                            awaitingCommand = true;
-                                            break;
-                                        case SENDING_RESOURCE_ID:
-                                            currentCommand = CommandToClientFromServer.SENDING_RESOURCE_ID;
-                                            awaitingCommand = false;
-
-                                            break;
-                                        case AUTHORIZATION_SUCCEEDED:
-                                            setState(ResourceState.AUTHORIZATION_SUCCESS);
-                                            setState(ResourceState.AWAITING_CLIENT_COMMAND_CONNECTION);
-
-                                            try {
-                                                commandConnectionToServer.connectToRemoteHost();
-
-                                                // Send client key
-                                                commandConnectionToServer.send(clientKey);
-                                            } catch (ConnectionToRemoteHostException ex) {
-                                                setState(ResourceState.TROUBLED);
-                                                awaitingCommand = false;
-                                            }
+                        case READY:
+                            switch (command) {
+                                case SENDING_NEW_TASK:
+                                    if (currentTask == null) {
+                                        startTask((Task) payload);
+                                    } else {
+                                        //if there's already a task here...
 
-                                            awaitingCommand = false;
+                                        //TODO: replace this with a "Task queue" of sorts
+                                        connectionToServer.send(CommandToServerFromClient.INVALID_COMMAND);
+                                    }
 
-                                            break;
-                                        case AUTHORIZATION_FAILED:
-                                            setState(ResourceState.AUTHORIZATION_FAILURE);
+                                    break;
+                                case TRANSFER_MANIFEST:
+                                    beginFileTransfer((FileTransferInfoToClient[]) payload);
 
-                                            awaitingCommand = true;
-                                            internalThread.interrupt();
+                                    break;
+                                case TRANSFER_DATA:
+                                    receiveFileContents((byte[]) payload);
 
-                                            break;
-                                        default:
-                                            connectionToServer.send(CommandToServerFromClient.INVALID_COMMAND);
-                                    }
+                                    break;
+                                case TRANSFER_CHECKSUM:
+                                    finishFileTransfer((byte[]) payload);
 
                                     break;
-                                case READY:
-                                    switch (command) {
-                                        case SENDING_NEW_TASK:
-                                            if (currentTask == null) {
-                                                awaitingCommand = false; //the Task itself is expected next
-                                                currentCommand = command;
-                                            } else {
-                                                //if there's already a task here...
-
-                                                //TODO: replace this with a "Task queue" of sorts
-                                                connectionToServer.send(CommandToServerFromClient.INVALID_COMMAND);
+                                case SEND_IDLE_STATS:
+
+                                    // Change state
+                                    setState(ResourceState.SENDING_IDLE_STATS);
+
+                                    // Synchronize
+                                    synchronized (idleTimes) {
+                                        synchronized (nonidleTimes) {
+                                            // Send idle times
+                                            Calendar time = null;
+                                            while ((time = idleTimes.poll()) != null) {
+                                                connectionToServer.send(CommandToServerFromClient.SENDING_IDLE_TIME, time);
                                             }
 
-                                            break;
-                                        case TRANSFER:
-                                            currentCommandArgs = new HashMap<String, Object>();
-                                            awaitingCommand = false; // File meta data and contents expected next
-                                            currentCommand = command;
-
-                                            break;
-                                        case SEND_IDLE_STATS:
-
-                                            // Change state
-                                            setState(ResourceState.SENDING_IDLE_STATS);
-
-                                            // Synchronize
-                                            synchronized (idleTimes) {
-                                                synchronized (nonidleTimes) {
-                                                    // Send idle times
-                                                    Calendar time = null;
-                                                    while ((time = idleTimes.poll()) != null) {
-                                                        connectionToServer.send(CommandToServerFromClient.SENDING_IDLE_TIME);
-                                                        connectionToServer.send(time);
-                                                    }
-
-                                                    // Send nonidle times
-                                                    while ((time = nonidleTimes.poll()) != null) {
-                                                        connectionToServer.send(CommandToServerFromClient.SENDING_NONIDLE_TIME);
-                                                        connectionToServer.send(time);
-                                                    }
-                                                }
+                                            // Send nonidle times
+                                            while ((time = nonidleTimes.poll()) != null) {
+                                                connectionToServer.send(CommandToServerFromClient.SENDING_NONIDLE_TIME, time);
                                             }
+                                        }
+                                    }
 
-                                            // Indicate that resource is ready now
-                                            setState(ResourceState.READY);
-                                            awaitingCommand = true;
-                                            currentCommand = null;
+                                    // Indicate that resource is ready now
+                                    setState(ResourceState.READY);
 
-                                            break;
-                                        default:
-                                            connectionToServer.send(CommandToServerFromClient.INVALID_COMMAND);
-                                    }
                                     break;
-                                case RUNNING_TASK:
-                                    switch (command) {
-                                        case CANCEL_TASK:
-                                            if (currentTask != null) {
-                                                currentTask.forceQuit();
-                                            }
+                                default:
+                                    connectionToServer.send(CommandToServerFromClient.INVALID_COMMAND);
+                            }
+                            break;
+                        case RUNNING_TASK:
+                            switch (command) {
+                                case CANCEL_TASK:
+                                    if (currentTask != null) {
+                                        currentTask.forceQuit();
                                     }
-                                    break;
-
                             }
+                            break;
+
+                    }
+            }
+
+        } catch (ConnectionToRemoteHostException connectionToRemoteHostException) {
+            Logger.getLogger(ClientSideResource.class.getName()).log(Level.WARNING, "Error sending message to resource #" + resourceID, connectionToRemoteHostException);
+            setState(ResourceState.TROUBLED);
+        }
+
+    }
+
+    /**
+     * Makes a task the current task and runs it.
+     * 
+     * @param task The task to run
+     */
+    private void startTask(Task task) {
+        currentTask = task;
+
+        // Set this as the client resource for the task
+        currentTask.setParentResource(this);
+
+        setState(ResourceState.TASK_ASSIGNED);
+
+        currentTask.addTaskEventListener(this);
+        currentTask.runTask();
+    }
+
+    /**
+     * Starts the next queued task, if there is one; otherwise the resource
+     * becomes ready.  Must be called holding connectionToServer.
+     */
+    private void startNextTask() {
+        Task nextTask = queuedTasks.poll();
+
+        if (nextTask != null) {
+            startTask(nextTask);
+        } else {
+            currentTask = null;
+            setState(ResourceState.READY);
+        }
+    }
+
+    /**
+     * Queues a task sent by the server to start once the current one ends.  If
+     * the resource became ready before the task arrived, it is started now.
+     * 
+     * @param task The queued task
+     */
+    private void queueTask(Task task) {
+        synchronized (connectionToServer) {
+            if (currentTask == null && currentState == ResourceState.READY) {
+                startTask(task);
+            } else {
+                queuedTasks.add(task);
+            }
+        }
+    }
+
+    /**
+     * Runs a task in one of the extra execution slots, alongside the current
+     * task.  The server only sends as many as there are free slots, so it is
+     * started straight away.
+     * 
+     * @param task The task to run
+     */
+    private void runTaskInSlot(Task task) {
+        synchronized (connectionToServer) {
+            slotTasks.put(task.getTaskID(), task);
+        }
+
+        task.setParentResource(this);
+        task.addTaskEventListener(this);
+        task.runTask();
+    }
+
+    /**
+     * Reports how a task running in an extra slot ended, once it has.
+     * 
+     * @param task The task
+     */
+    private void slotTaskStateChanged(Task task) throws ConnectionToRemoteHostException {
+        switch (task.getState()) {
+            case COMPLETED:
+            case TERMINATED:
+            case TROUBLED:
+                synchronized (connectionToServer) {
+                    if (slotTasks.remove(task.getTaskID()) == null) {
+                        return;
                     }
-                } catch (ClassCastException ex) {
-                    connectionToServer.send(CommandToServerFromClient.INVALID_COMMAND);
+
+                    //unregister first, as for the current task
+                    task.removeTaskEventListener(this);
+
+                    connectionToServer.send(CommandToServerFromClient.SLOT_TASK_ENDED, new TaskOutcome(task));
+                }
+                break;
+        }
+    }
+
+    /**
+     * Returns whether a task is running in one of the extra slots.
+     */
+    private boolean isSlotTask(Task task) {
+        synchronized (connectionToServer) {
+            return slotTasks.get(task.getTaskID()) == task;
+        }
+    }
+
+    /**
+     * Drops a queued task, telling the server once it is gone.  If the task has
+     * already been started, or is running in an extra slot, it is cancelled
+     * instead.
+     * 
+     * @param taskID The ID of the task to drop
+     */
+    private void cancelQueuedTask(int taskID) throws ConnectionToRemoteHostException {
+        Task startedTask = null;
+
+        synchronized (connectionToServer) {
+            for (Iterator<Task> i = queuedTasks.iterator(); i.hasNext();) {
+                if (i.next().getTaskID() == taskID) {
+                    i.remove();
+                    connectionToServer.send(CommandToServerFromClient.QUEUED_TASK_CANCELLED, taskID);
+                    return;
                 }
+            }
+
+            if (currentTask != null && currentTask.getTaskID() == taskID) {
+                startedTask = currentTask;
             } else {
-                switch (currentState) {
-                    case AUTHORIZING:
-                        switch (currentCommand) {
-                            case SENDING_RESOURCE_ID:
-                                resourceID = (Integer) message;
+                startedTask = slotTasks.get(taskID);
+            }
+        }
 
-                                break;
-                        }
-                        awaitingCommand = true;
-                        currentCommand = null;
-                        break;
-                    case AWAITING_CLIENT_COMMAND_CONNECTION:
-                        /*
-                        // Get port number
-                        try
-                        {
-                        int tmpPort = (Integer)message;
-
-                        // Create SSH tunnel
-                        String [] command = new String[4];
-                        command[0] = "./createSshTunnel.sh";						// Command to run
-                        command[1] = connectionToServer.getHostName();	// Hostname of server
-                        command[2] = ""+tmpPort;// Port number on server
-                        command[3] = "56789";	// Get port number to use for SSH tunnel
-
-                        // Run the command
-                        Process p = Runtime.getRuntime().exec(command);
-
-                        // Open socket
-                        commandConnectionToServer.setPort(56789);
-                        commandConnectionToServer.connectToRemoteHost();
-                        setState(ResourceState.READY);
-                        }
-                        catch (Exception ex)
-                        {
-                        setState(ResourceState.TROUBLED);
-                        }
-                         */
-
-                        // Determine if the connection was established
-                        if (message == CommandToClientFromServer.CLIENT_CONNECTION_ESTABLISHED) {
-                            // Start CPU monitor thread
-                            CpuMonitorThread cpuThread = new CpuMonitorThread();
-                            cpuThread.setDaemon(true);	// Indicate that the thread should die when all other threads die.
-                            cpuThread.start();
-
-                            // Indicate that client is ready and waiting for a command
-                            awaitingCommand = true;
-                            currentCommand = null;
-                            setState(ResourceState.READY);
-                        } else {
-                            setState(ResourceState.TROUBLED);
-                        }
+        // Not while holding the lock, which the task needs in order to end
+        if (startedTask != null) {
+            startedTask.forceQuit();
+        }
+    }
+
+    /**
+     * Gives up the work of a task split off from one this resource is running,
+     * has queued, or is running in an extra slot, if the task can spare it, and
+     * tells the server how much was given up.  The answer is sent before the
+     * task can send its results, so the server knows which work they cover.
+     * 
+     * @param split The task to split and the split-off task
+     */
+    private void splitTask(TaskSplit split) throws ConnectionToRemoteHostException {
+        synchronized (connectionToServer) {
+            Task task = null;
+
+            if (currentTask != null && currentTask.getTaskID() == split.getTaskID()) {
+                task = currentTask;
+            } else if (slotTasks.containsKey(split.getTaskID())) {
+                task = slotTasks.get(split.getTaskID());
+            } else {
+                for (Task queuedTask : queuedTasks) {
+                    if (queuedTask.getTaskID() == split.getTaskID()) {
+                        task = queuedTask;
                         break;
-                    case READY:
-                        switch (currentCommand) {
-                            case SENDING_NEW_TASK:
-                                try {
-                                    currentTask = (Task) message;
+                    }
+                }
+            }
 
-                                    // Set this as the client resource for the task
-                                    currentTask.setParentResource(this);
+            Task splitOff = split.getSplitOff();
+            if (!(task instanceof SplittableTask) || !((SplittableTask) task).yieldTo(splitOff)) {
+                splitOff = null;
+            }
 
-                                    setState(ResourceState.TASK_ASSIGNED);
+            connectionToServer.send(CommandToServerFromClient.TASK_SPLIT, new TaskSplit(split.getTaskID(), splitOff));
+        }
+    }
 
-                                    currentTask.addTaskEventListener(this);
-                                    currentTask.runTask();
-                                } catch (ClassCastException ex) {
-                                    connectionToServer.send(CommandToServerFromClient.INVALID_COMMAND);
-                                }
-                                awaitingCommand = true;
-                                currentCommand = null;
-                                break;
-                            case TRANSFER:
-                                if (!currentCommandArgs.containsKey("file")) {
-                                    // Cast message
-                                    FileTransferInfoToClient transferInfo = (FileTransferInfoToClient) message;
-
-                                    // Store file transfer info
-                                    currentCommandArgs.put("transferInfo", transferInfo);
-
-                                    // Open file
-                                    try {
-                                        // Check that the filename does not contain the directory separator
-                                        String filename = transferInfo.getRemoteFilename();
-                                        File file = null;
-                                        if (filename.indexOf(File.separatorChar) == -1) {
-                                            // Add directory to filename
-                                            filename = getDirectoryPath(transferInfo.getRemoteDirectory()) + filename;
-
-                                            // Open the file and look at last modified date
-                                            file = new File(filename);
-                                            // Create parent dirs if needed
-                                            if (file.getParentFile() != null) {
-                                                file.getParentFile().mkdirs();
-                                            }
-                                            file.createNewFile();
-                                            long lastModified = file.lastModified();
-
-                                            // Set new file permissions if the file should be executable
-                                            if (transferInfo.isExecutable()) {
-                                                // TODO: Try to get this to work on non-Linux platforms
-                                                //new FilePermission(file.getPath(), "read,write,execute");
-                                                String[] command = {"chmod", "755", file.getPath()};
-                                                Process p = Runtime.getRuntime().exec(command);
-                                            }
+    /**
+     * Prepares the files described by a TRANSFER_MANIFEST command.  Files whose
+     * contents are already in the file cache are copied into place right away;
+     * the server is told to send the rest, all in one reply.
+     * 
+     * @param manifest Description of every file to be transferred
+     */
+    private void beginFileTransfer(FileTransferInfoToClient[] manifest) throws ConnectionToRemoteHostException {
+        LinkedList<FileTransferInfoToClient> pendingFiles = new LinkedList<FileTransferInfoToClient>();
+        byte[] filesNeeded = new byte[(manifest.length + 7) / 8];
 
-                                            // Check if the file is not empty
-                                            if (transferInfo.getFilesize() == 0) {
-                                                Logger.getLogger(ClientSideResource.class.getName()).log(Level.WARNING, "Error saving file to resource #" + resourceID + ": File empty.");
-                                                setState(ResourceState.TASK_TERMINATED);
-
-                                                // For now, we'll just set the state back to READY, and pretend nothing happened
-                                                currentTask = null;
-                                                setState(ResourceState.READY);
-
-                                                // Wait for new command
-                                                awaitingCommand = true;
-                                                currentCommand = null;
-                                            } // Check existing modified date and set file last modified date
-                                            else if (lastModified == transferInfo.getLastModified()) {
-                                                // Indicate that we are waiting for a new command
-                                                awaitingCommand = true;
-                                                currentCommand = null;
-                                                currentState = ResourceState.READY;
-
-                                                // Tell server not to send file
-                                                connectionToServer.send(CommandToServerFromClient.TRANSFER_FILE_NOT_MODIFIED);
-                                            } else {
-                                                try {
-                                                    // Create FileOutputStream
-                                                    FileOutputStream fileOutputStream = new FileOutputStream(file);
-                                                    currentCommandArgs.put("fileOutputStream", fileOutputStream);
-                                                } catch (IOException ioe) {
-                                                    Logger.getLogger(ClientSideResource.class.getName()).log(Level.WARNING, "Error saving file to resource #" + resourceID, ioe);
-                                                    setState(ResourceState.TASK_TERMINATED);
-
-                                                    // For now, we'll just set the state back to READY, and pretend nothing happened
-                                                    currentTask = null;
-                                                    setState(ResourceState.READY);
-
-                                                    // Wait for new command
-                                                    awaitingCommand = true;
-                                                    currentCommand = null;
-                                                }
-
-                                                // Store last modified date
-                                                currentCommandArgs.put("lastModified", transferInfo.getLastModified());
-
-                                                // Store filesize
-                                                currentCommandArgs.put("untransferredBytes", transferInfo.getFilesize());
-
-                                                try {
-                                                    // Store checksum
-                                                    currentCommandArgs.put("md5", MessageDigest.getInstance("md5"));
-                                                } catch (NoSuchAlgorithmException checksumE) {
-                                                }
-
-                                                // Send back acknowledgement to start transfer
-                                                connectionToServer.send(CommandToServerFromClient.TRANSFER_FILE_ACK);
-                                            }
-                                        } else {
-                                            Logger.getLogger(ClientSideResource.class.getName()).log(Level.INFO, "Error saving file to resource #" + resourceID);
-                                            setState(ResourceState.TASK_TERMINATED);
+        try {
+            for (int i = 0; i < manifest.length; i++) {
+                FileTransferInfoToClient transferInfo = manifest[i];
+
+                // Check that the filename does not contain the directory separator
+                File file = getTransferTarget(transferInfo);
+                if (file == null) {
+                    Logger.getLogger(ClientSideResource.class.getName()).log(Level.INFO, "Error saving file to resource #" + resourceID);
+                    abortFileTransfer();
+                    return;
+                }
 
-                                            // For now, we'll just set the state back to READY, and pretend nothing happened
-                                            currentTask = null;
-                                            setState(ResourceState.READY);
+                // Create parent dirs if needed
+                if (file.getParentFile() != null) {
+                    file.getParentFile().mkdirs();
+                }
+                file.createNewFile();
+
+                // Set new file permissions if the file should be executable
+                if (transferInfo.isExecutable()) {
+                    // TODO: Try to get this to work on non-Linux platforms
+                    //new FilePermission(file.getPath(), "read,write,execute");
+                    String[] command = {"chmod", "755", file.getPath()};
+                    Process p = Runtime.getRuntime().exec(command);
+                }
 
-                                            // Wait for new command
-                                            awaitingCommand = true;
-                                            currentCommand = null;
-                                        }
+                // Check if the file is not empty
+                if (transferInfo.getFilesize() == 0) {
+                    Logger.getLogger(ClientSideResource.class.getName()).log(Level.WARNING, "Error saving file to resource #" + resourceID + ": File empty.");
+                    abortFileTransfer();
+                    return;
+                } // Check whether the cache already has a file with the same contents
+                else if (fileCache.copyTo(transferInfo.getDigest(), file)) {
+                    file.setLastModified(transferInfo.getLastModified());
+                } else {
+                    filesNeeded[i / 8] |= 1 << (i % 8);
+                    pendingFiles.add(transferInfo);
+                }
+            }
+        } catch (IOException ioe) {
+            Logger.getLogger(ClientSideResource.class.getName()).log(Level.WARNING, "Error saving file to resource #" + resourceID, ioe);
+            setState(ResourceState.TROUBLED);
+            return;
+        }
 
-                                        currentCommandArgs.put("file", file);
-                                    } catch (IOException ioe) {
-                                        Logger.getLogger(ClientSideResource.class.getName()).log(Level.WARNING, "Error saving file to resource #" + resourceID, ioe);
-                                        setState(ResourceState.TROUBLED);
-                                    }
-                                } else {
-                                    // Get contents
-                                    byte[] contents = (byte[]) message;
-
-                                    // Get number of untransferred bytes
-                                    long untransferredFileBytes = (long) ((Long) currentCommandArgs.get("untransferredBytes"));
-
-                                    // Get message digest
-                                    MessageDigest md5 = (MessageDigest) currentCommandArgs.get("md5");
-
-                                    // Check if this is the checksum (Sent after last bytes of file)
-                                    if (untransferredFileBytes == 0) {
-                                        // Check that the checksum matchs
-                                        byte[] digest = md5.digest();
-                                        boolean valid = true;
-                                        for (int i = 0; valid && i < digest.length; i++) {
-                                            valid = (i < contents.length && digest[i] == contents[i]);
-                                        }
+        // Get ready for the first file, before the server can start sending it
+        currentCommandArgs = new HashMap<String, Object>();
+        currentCommandArgs.put("pendingFiles", pendingFiles);
+        beginNextFile();
 
-                                        // Check if it is valid
-                                        if (!valid) {
-                                            Logger.getLogger(ClientSideResource.class.getName()).log(Level.WARNING, "File checksum invaild for resource #" + resourceID);
-                                            setState(ResourceState.TASK_TERMINATED);
+        // Tell the server which files to send
+        connectionToServer.send(CommandToServerFromClient.TRANSFER_FILES_NEEDED, filesNeeded);
+    }
 
-                                            // For now, we'll just set the state back to READY, and pretend nothing happened
-                                            currentTask = null;
-                                            setState(ResourceState.READY);
-                                        }
+    /**
+     * Opens the next file the server is going to send, if any.
+     */
+    @SuppressWarnings("unchecked")
+    private void beginNextFile() {
+        LinkedList<FileTransferInfoToClient> pendingFiles = (LinkedList<FileTransferInfoToClient>) currentCommandArgs.get("pendingFiles");
+        if (pendingFiles.isEmpty()) {
+            currentCommandArgs = null;
+            return;
+        }
 
-                                        // Wait for new command
-                                        awaitingCommand = true;
-                                        currentCommand = null;
-                                    } else {
-                                        // Subtract bytes transferred
-                                        int contentLength = (untransferredFileBytes < contents.length) ? (int) untransferredFileBytes : contents.length;
-                                        untransferredFileBytes -= contentLength;
-                                        currentCommandArgs.put("untransferredBytes", untransferredFileBytes);
+        FileTransferInfoToClient transferInfo = pendingFiles.removeFirst();
+        File file = getTransferTarget(transferInfo);
 
-                                        System.out.println("# Bytes Left: " + untransferredFileBytes);
+        try {
+            // Create the channel the contents are written to
+            FileChannel fileChannel = new FileOutputStream(file).getChannel();
+            currentCommandArgs.put("fileChannel", fileChannel);
+        } catch (IOException ioe) {
+            Logger.getLogger(ClientSideResource.class.getName()).log(Level.WARNING, "Error saving file to resource #" + resourceID, ioe);
+            abortFileTransfer();
+            return;
+        }
 
-                                        // Get file writer
-                                        FileOutputStream fileOutputStream = (FileOutputStream) currentCommandArgs.get("fileOutputStream");
+        // Store file transfer info
+        currentCommandArgs.put("transferInfo", transferInfo);
+        currentCommandArgs.put("file", file);
 
-                                        try {
-                                            // Write to file
-                                            fileOutputStream.write(contents, 0, contentLength);
+        // Store last modified date
+        currentCommandArgs.put("lastModified", transferInfo.getLastModified());
 
-                                            // Update message digest
-                                            md5.update(contents, 0, contentLength);
-                                        } catch (IOException ioe) {
-                                            Logger.getLogger(ClientSideResource.class.getName()).log(Level.WARNING, "Error saving file to resource #" + resourceID, ioe);
-                                            setState(ResourceState.TROUBLED);
-                                        }
+        // Store filesize
+        currentCommandArgs.put("untransferredBytes", transferInfo.getFilesize());
 
-                                        // If there are no more bytes left, wait for next command
-                                        if (untransferredFileBytes <= 0) {
-                                            try {
-                                                // Close file
-                                                fileOutputStream.close();
+        try {
+            // Store checksum
+            currentCommandArgs.put("md5", MessageDigest.getInstance("md5"));
+        } catch (NoSuchAlgorithmException checksumE) {
+        }
+    }
 
-                                                // Get file object
-                                                File file = (File) currentCommandArgs.get("file");
+    /**
+     * Gives up on the task whose files are being transferred.
+     */
+    private void abortFileTransfer() {
+        currentCommandArgs = null;
 
-                                                // Get file transfer information
-                                                FileTransferInfoToClient transferInfo = (FileTransferInfoToClient) currentCommandArgs.get("transferInfo");
+        setState(ResourceState.TASK_TERMINATED);
 
-                                                // Set new modified date
-                                                file.setLastModified((long) ((Long) currentCommandArgs.get("lastModified")));
-                                            } catch (IOException ioe) {
-                                                Logger.getLogger(ClientSideResource.class.getName()).log(Level.WARNING, "Error saving file to resource #" + resourceID, ioe);
-                                                setState(ResourceState.TROUBLED);
-                                            }
-                                        }
-                                    }
-                                }
+        // For now, we'll just set the state back to READY, and pretend nothing happened
+        currentTask = null;
+        setState(ResourceState.READY);
+    }
 
-                                break;
-                            default:
-                                awaitingCommand = true;
-                                currentCommand = null;
-                                break;
-                        }
-                        break;
-                    default:
-                        awaitingCommand = true;
-                        currentCommand = null;
-                        break;
-                }
+    /**
+     * Returns where a transferred file should be saved.
+     * 
+     * @param transferInfo Description of the file
+     * @return The file to save to, or null if the filename is not allowed
+     */
+    private File getTransferTarget(FileTransferInfoToClient transferInfo) {
+        String filename = transferInfo.getRemoteFilename();
+        if (filename.indexOf(File.separatorChar) != -1) {
+            return null;
+        }
+
+        // Add directory to filename
+        return new File(getDirectoryPath(transferInfo.getRemoteDirectory()) + filename);
+    }
+
+    /**
+     * Writes the next block of the file being transferred.
+     * 
+     * @param contents The block received from the server
+     */
+    private void receiveFileContents(byte[] contents) {
+        // Check that a transfer was accepted
+        if (currentCommandArgs == null || !currentCommandArgs.containsKey("fileChannel")) {
+            return;
+        }
+
+        // Get number of untransferred bytes
+        long untransferredFileBytes = (long) ((Long) currentCommandArgs.get("untransferredBytes"));
+
+        // Get message digest
+        MessageDigest md5 = (MessageDigest) currentCommandArgs.get("md5");
+
+        // Subtract bytes transferred
+        int contentLength = (untransferredFileBytes < contents.length) ? (int) untransferredFileBytes : contents.length;
+        untransferredFileBytes -= contentLength;
+        currentCommandArgs.put("untransferredBytes", untransferredFileBytes);
+
+        System.out.println("# Bytes Left: " + untransferredFileBytes);
+
+        // Get file writer
+        FileChannel fileChannel = (FileChannel) currentCommandArgs.get("fileChannel");
+
+        try {
+            // Write to file
+            ByteBuffer buffer = ByteBuffer.wrap(contents, 0, contentLength);
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer);
             }
 
-        } catch (ConnectionToRemoteHostException connectionToRemoteHostException) {
-            Logger.getLogger(ClientSideResource.class.getName()).log(Level.WARNING, "Error sending message to resource #" + resourceID, connectionToRemoteHostException);
+            // Update message digest
+            md5.update(contents, 0, contentLength);
+        } catch (IOException ioe) {
+            Logger.getLogger(ClientSideResource.class.getName()).log(Level.WARNING, "Error saving file to resource #" + resourceID, ioe);
             setState(ResourceState.TROUBLED);
         }
 
+        // If there are no more bytes left, close the file
+        if (untransferredFileBytes <= 0) {
+            try {
+                // Close file
+                fileChannel.close();
+
+                // Get file object
+                File file = (File) currentCommandArgs.get("file");
+
+                // Set new modified date
+                file.setLastModified((long) ((Long) currentCommandArgs.get("lastModified")));
+            } catch (IOException ioe) {
+                Logger.getLogger(ClientSideResource.class.getName()).log(Level.WARNING, "Error saving file to resource #" + resourceID, ioe);
+                setState(ResourceState.TROUBLED);
+            }
+        }
+    }
+
+    /**
+     * Checks the transferred file against the checksum sent by the server.
+     * 
+     * @param checksum The MD5 checksum of the file, as computed by the server
+     */
+    private void finishFileTransfer(byte[] checksum) {
+        // Check that a transfer was accepted
+        if (currentCommandArgs == null || !currentCommandArgs.containsKey("md5")) {
+            return;
+        }
+
+        // Check that the checksum matchs
+        MessageDigest md5 = (MessageDigest) currentCommandArgs.get("md5");
+        byte[] digest = md5.digest();
+        boolean valid = (((Long) currentCommandArgs.get("untransferredBytes")) == 0);
+        for (int i = 0; valid && i < digest.length; i++) {
+            valid = (i < checksum.length && digest[i] == checksum[i]);
+        }
+
+        // Check if it is valid
+        if (!valid) {
+            Logger.getLogger(ClientSideResource.class.getName()).log(Level.WARNING, "File checksum invaild for resource #" + resourceID);
+            abortFileTransfer();
+            return;
+        }
+
+        // Keep a copy, so that the same contents are never transferred again
+        try {
+            fileCache.store(digest, (File) currentCommandArgs.get("file"));
+        } catch (IOException ioe) {
+            Logger.getLogger(ClientSideResource.class.getName()).log(Level.WARNING, "Error adding file to the cache", ioe);
+        }
+
+        // The next file's contents follow straight away
+        beginNextFile();
+    }
+
+    /**
+     * Sends the credentials the server authorizes this client with.  The client
+     * key and password must come before the username and password, since the
+     * server stops authorizing once it has both of those.
+     */
+    private void sendCredentials() throws ConnectionToRemoteHostException {
+        connectionToServer.sendAsync(CommandToServerFromClient.CLIENT_KEY, clientKey);
+        connectionToServer.sendAsync(CommandToServerFromClient.CLIENT_PASSWORD, clientPswd);
+        connectionToServer.sendAsync(CommandToServerFromClient.SENDING_SPECS, getReportedSpecs());
+        connectionToServer.sendAsync(CommandToServerFromClient.USERNAME, username);
+        connectionToServer.send(CommandToServerFromClient.PASSWORD, password);
+    }
+
+    /**
+     * Finishes connecting, once authorization has succeeded and the client
+     * command connection has been established.
+     */
+    private void becomeReady() {
+        // Start CPU monitor thread
+        CpuMonitorThread cpuThread = new CpuMonitorThread();
+        cpuThread.setDaemon(true);	// Indicate that the thread should die when all other threads die.
+        cpuThread.start();
+
+        connectionLatency = (System.nanoTime() - connectionStartTime) / 1000000;
+        Logger.getLogger(ClientSideResource.class.getName()).log(Level.INFO, "Ready " + connectionLatency + " ms after requesting the connection.");
+
+        // Indicate that client is ready and waiting for a command
+        setState(ResourceState.READY);
+    }
+
+    /**
+     * Returns how long it took from requesting the connection to becoming ready.
+     *
+     * @return The time taken in milliseconds, or -1 if the resource has not
+     *         become ready since the connection was requested
+     */
+    public long getConnectionLatency() {
+        return connectionLatency;
+    }
+
+    /**
+     * Sets the amount of disk space the cache of transferred files may use.
+     * Least recently used files are removed to stay within it.
+     *
+     * @param quota The quota, in bytes
+     */
+    public void setFileCacheQuota(long quota) {
+        fileCache.setQuota(quota);
+    }
+
+    /**
+     * Returns the amount of disk space the cache of transferred files may use.
+     *
+     * @return The quota, in bytes
+     */
+    public long getFileCacheQuota() {
+        return fileCache.getQuota();
     }
 
     /**
@@ -918,6 +1227,11 @@ public class ClientSideResource implements ConnectionToRemoteHostEventListener,
         Task source = (Task) e.getSource();
 
         try {
+            if (isSlotTask(source)) {
+                slotTaskStateChanged(source);
+                return;
+            }
+
             switch (e.getState()) {
                 case RUNNING:
                     setState(ResourceState.RUNNING_TASK);
@@ -930,15 +1244,13 @@ public class ClientSideResource implements ConnectionToRemoteHostEventListener,
                         //this is important so that this ClientSideResource doesn't try to get serialized along with the task
                         source.removeTaskEventListener(this);
 
-                        connectionToServer.send(CommandToServerFromClient.SENDING_TASK_RESULTS);
-                        connectionToServer.send(currentTask.getResults());
-
-                        //TODO: perhaps make this a bit more graceful
-                        currentTask = null;
+                        connectionToServer.send(CommandToServerFromClient.SENDING_TASK_RESULTS, currentTask.getResults());
 
                         //TODO: TASK_COMPLETED should probably be a message, not a state.
                         setState(ResourceState.TASK_COMPLETED);
-                        setState(ResourceState.READY);
+
+                        //go straight on to the next task, if the server has queued one
+                        startNextTask();
                     }
                     break;
                 case TERMINATED:
@@ -952,9 +1264,8 @@ public class ClientSideResource implements ConnectionToRemoteHostEventListener,
                         //TODO: perhaps make this a bit more graceful
                         //currentTask = null;
 
-                        //for now, we'll just set the state back to READY, and pretend nothing happened
-                        currentTask = null;
-                        setState(ResourceState.READY);
+                        //for now, we'll just move on as if nothing happened
+                        startNextTask();
                     }
                     break;
                 case TROUBLED:
@@ -967,9 +1278,8 @@ public class ClientSideResource implements ConnectionToRemoteHostEventListener,
                         //TODO: perhaps make this a bit more graceful
                         //currentTask = null;
 
-                        //for now, we'll just set the state back to READY, and pretend nothing happened
-                        currentTask = null;
-                        setState(ResourceState.READY);
+                        //for now, we'll just move on as if nothing happened
+                        startNextTask();
                     }
                     break;
             }
@@ -980,44 +1290,6 @@ public class ClientSideResource implements ConnectionToRemoteHostEventListener,
         }
     }
 
-    /**
-     * Thread responsible for handling connections to the remote host.
-     */
-    protected class ConnectThread extends Thread {
-
-        int numberOfAttempts;
-
-        public ConnectThread() {
-            super();
-
-            this.setName("Resource #" + resourceID + " connection thread");
-        }
-
-        /**
-         * Thread responsible for handling initial connection to, and negotiation with, the resource itself
-         */
-        @Override
-        public void run() {
-            //if a connection is initiated, proceed.  otherwise, the thread has nothing left to do.
-            if (connectionToServer.getState() == ConnectionToRemoteHostState.CONNECTED) {
-                setState(ResourceState.AUTHORIZING);
-
-                /* continue putting the thread to sleep until we're no longer "authorizing" */
-                do {
-                    //now put this thread to sleep; we will trigger its interrupt if anything noteworthy occurs
-                    try {
-                        sleep(DEFAULT_WAIT_TIME);
-                    } catch (InterruptedException ex) {
-                    }
-
-                } while (currentState == ResourceState.AUTHORIZING);
-
-            } else {
-                setState(ResourceState.ERROR_CONNECTING);
-            }
-        }
-    }
-
     /**
      * Thread to periodically check idle status of host.
      */
@@ -0,0 +1,250 @@
+/*
+ * FileCache.java
+ *
+ * Keeps copies of the files the server has sent, named by their contents, so
+ * that a file is only downloaded once however many tasks, jobs or names it is
+ * used under.
+ */
+
+package edu.tcnj.TGrid.GridClient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.channels.FileChannel;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A content-addressed store of transferred files.  Each file is kept in the
+ * cache directory under the hexadecimal form of its MD5 checksum.  When the
+ * total size of the cache goes over its quota, the least recently used files
+ * are deleted.
+ *
+ * The order of use survives restarts, since a file's last modified time is
+ * updated whenever it is used.
+ */
+public class FileCache {
+
+    /**
+     * The suffix of files that are still being copied into the cache.
+     */
+    protected static final String PARTIAL_SUFFIX = ".part";
+
+    /**
+     * The directory the cached files are kept in.
+     */
+    private File directory;
+
+    /**
+     * The largest number of bytes the cache may hold.
+     */
+    private long quota;
+
+    /**
+     * The total size of the cached files, in bytes.
+     */
+    private long size = 0;
+
+    /**
+     * The size of every cached file, by checksum, from least to most recently used.
+     */
+    private LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    /**
+     * Creates a file cache, picking up whatever an earlier run left in the directory.
+     *
+     * @param directory The directory to keep the cached files in
+     * @param quota     The largest number of bytes the cache may hold
+     */
+    public FileCache(File directory, long quota) {
+        this.directory = directory;
+        this.quota = quota;
+
+        directory.mkdirs();
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            // Oldest first, so that the map starts out in order of use
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    long difference = a.lastModified() - b.lastModified();
+                    return (difference < 0) ? -1 : ((difference > 0) ? 1 : 0);
+                }
+            });
+
+            for (File file : files) {
+                if (file.getName().endsWith(PARTIAL_SUFFIX)) {
+                    file.delete();
+                } else if (file.isFile()) {
+                    entries.put(file.getName(), file.length());
+                    size += file.length();
+                }
+            }
+        }
+
+        evict();
+    }
+
+    /**
+     * Copies a file out of the cache, if it is there.
+     *
+     * @param digest The MD5 checksum of the file wanted
+     * @param target Where to copy the file to
+     * @return true if the file was in the cache and has been copied
+     * @throws java.io.IOException if the file could not be copied
+     */
+    public synchronized boolean copyTo(byte[] digest, File target) throws IOException {
+        String name = toHex(digest);
+
+        if (entries.get(name) == null) {
+            return false;
+        }
+
+        File cachedFile = new File(directory, name);
+        if (!cachedFile.isFile()) {
+            // Deleted behind our back
+            size -= entries.remove(name);
+            return false;
+        }
+
+        copy(cachedFile, target);
+        cachedFile.setLastModified(System.currentTimeMillis());
+
+        return true;
+    }
+
+    /**
+     * Adds a copy of a file to the cache, making room for it by evicting the
+     * least recently used files.  Files larger than the quota are not cached.
+     *
+     * @param digest The MD5 checksum of the file
+     * @param source The file to add
+     * @throws java.io.IOException if the file could not be copied
+     */
+    public synchronized void store(byte[] digest, File source) throws IOException {
+        String name = toHex(digest);
+        long length = source.length();
+
+        if (entries.get(name) != null || length > quota) {
+            return;
+        }
+
+        File partialFile = new File(directory, name + PARTIAL_SUFFIX);
+        copy(source, partialFile);
+
+        File cachedFile = new File(directory, name);
+        if (!partialFile.renameTo(cachedFile)) {
+            partialFile.delete();
+
+            // Another client sharing the directory may have added it first
+            if (!cachedFile.isFile()) {
+                throw new IOException("Could not add " + name + " to the file cache");
+            }
+        }
+
+        entries.put(name, length);
+        size += length;
+
+        evict();
+    }
+
+    /**
+     * Changes the largest number of bytes the cache may hold, evicting files if
+     * it now holds too much.
+     *
+     * @param quota The new quota, in bytes
+     */
+    public synchronized void setQuota(long quota) {
+        this.quota = quota;
+
+        evict();
+    }
+
+    /**
+     * Returns the largest number of bytes the cache may hold.
+     *
+     * @return The quota, in bytes
+     */
+    public synchronized long getQuota() {
+        return quota;
+    }
+
+    /**
+     * Returns the total size of the cached files.
+     *
+     * @return The size of the cache, in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Deletes least recently used files until the cache fits in its quota.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> leastRecentlyUsed = entries.entrySet().iterator();
+
+        while (size > quota && leastRecentlyUsed.hasNext()) {
+            Map.Entry<String, Long> entry = leastRecentlyUsed.next();
+
+            File cachedFile = new File(directory, entry.getKey());
+            if (cachedFile.exists() && !cachedFile.delete()) {
+                Logger.getLogger(FileCache.class.getName()).log(Level.WARNING, "Could not evict " + cachedFile + " from the file cache");
+                continue;
+            }
+
+            size -= entry.getValue();
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    /**
+     * Copies the contents of one file to another, replacing its contents.
+     */
+    private static void copy(File source, File target) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                FileChannel sourceChannel = in.getChannel();
+                FileChannel targetChannel = out.getChannel();
+
+                long length = sourceChannel.size();
+                long position = 0;
+                while (position < length) {
+                    position += sourceChannel.transferTo(position, length - position, targetChannel);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the name a file with the specified checksum is cached under.
+     *
+     * @param digest The checksum
+     * @return The checksum in hexadecimal
+     */
+    public static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return hex.toString();
+    }
+}
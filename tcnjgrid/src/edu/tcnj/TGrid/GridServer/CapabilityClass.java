@@ -0,0 +1,130 @@
+/*
+ * CapabilityClass.java
+ *
+ * Groups resources whose specifications are the same for the purpose of
+ * matching them against task requirements.
+ */
+
+package edu.tcnj.TGrid.GridServer;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The specifications of a resource, as seen by task requirements.  Resources
+ * with equal capability classes meet exactly the same requirements, so
+ * requirements only have to be checked once per class rather than once per
+ * resource.
+ *
+ * To keep the number of classes small, the RAM specification is rounded down
+ * to a multiple of RAM_BUCKET_SIZE megabytes.  Every other specification is
+ * used as reported.
+ */
+public final class CapabilityClass {
+
+    /**
+     * The name of the specification holding the RAM available, in megabytes.
+     */
+    public static final String RAM = "RAM";
+
+    /**
+     * The name of the specification holding the number of execution slots.
+     */
+    public static final String SLOTS = "SLOTS";
+
+    /**
+     * The size, in megabytes, of the steps the RAM specification is rounded to.
+     */
+    public static final int RAM_BUCKET_SIZE = 256;
+
+    /**
+     * The class of resources that did not report any specifications.
+     */
+    public static final CapabilityClass UNKNOWN = new CapabilityClass(new TreeMap<String, Object>());
+
+    /**
+     * The specifications, after rounding
+     */
+    private final TreeMap<String, Object> specs;
+
+    /**
+     * Cached hash code
+     */
+    private final int hashCode;
+
+    private CapabilityClass(TreeMap<String, Object> specs) {
+        this.specs = specs;
+        this.hashCode = specs.hashCode();
+    }
+
+    /**
+     * Returns the capability class of a resource with the specified specifications.
+     *
+     * @param reportedSpecs The specifications the resource reported, or null
+     * @return The resource's capability class
+     */
+    public static CapabilityClass of(Map<String, Object> reportedSpecs) {
+        if (reportedSpecs == null || reportedSpecs.isEmpty()) {
+            return UNKNOWN;
+        }
+
+        TreeMap<String, Object> specs = new TreeMap<String, Object>(reportedSpecs);
+
+        Object ram = specs.get(RAM);
+        if (ram instanceof Number) {
+            int megabytes = ((Number) ram).intValue();
+            if (megabytes >= RAM_BUCKET_SIZE) {
+                megabytes -= megabytes % RAM_BUCKET_SIZE;
+            }
+            specs.put(RAM, megabytes);
+        }
+
+        return new CapabilityClass(specs);
+    }
+
+    /**
+     * Returns the specifications of this class, in the form requirements are
+     * checked against.  The map is a copy, so checkers cannot change the class.
+     *
+     * @return The specifications
+     */
+    public TreeMap<String, Object> getSpecs() {
+        return new TreeMap<String, Object>(specs);
+    }
+
+    /**
+     * Returns the number of execution slots of resources in this class.
+     *
+     * @return The number of slots; 1 if the resources did not report it
+     */
+    public int getSlots() {
+        Object slots = specs.get(SLOTS);
+        return (slots instanceof Number) ? Math.max(1, ((Number) slots).intValue()) : 1;
+    }
+
+    /**
+     * Returns the memory of resources in this class, as rounded.
+     *
+     * @return The memory in megabytes; Integer.MAX_VALUE if the resources did
+     *         not report it
+     */
+    public int getMemory() {
+        Object ram = specs.get(RAM);
+        return (ram instanceof Number) ? ((Number) ram).intValue() : Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof CapabilityClass && specs.equals(((CapabilityClass) other).specs);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return specs.toString();
+    }
+}
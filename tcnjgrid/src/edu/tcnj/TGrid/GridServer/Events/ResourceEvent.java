@@ -12,6 +12,7 @@ package edu.tcnj.TGrid.GridServer.Events;
 import edu.tcnj.TGrid.GridServer.ServerSideResource;
 import edu.tcnj.TGrid.States.ResourceState;
 import edu.tcnj.TGrid.Task;
+import edu.tcnj.TGrid.TaskSplit;
 
 /**
  * A ResourceEvent is triggered by the Resource
@@ -23,6 +24,8 @@ import edu.tcnj.TGrid.Task;
 public class ResourceEvent extends java.util.EventObject {
     private String message = null;
     private ResourceState state = null;
+    private Task task = null;
+    private TaskSplit split = null;
     
     /**
      * Creates a new ResourceEvent instance.
@@ -59,10 +62,48 @@ public class ResourceEvent extends java.util.EventObject {
         this.message = message;
     }
     
+    /**
+     * Creates a new ResourceEvent instance concerning a task.
+     * 
+     * @param source The object on which the ResourceEvent initially occurred.
+     * @param task The task the event concerns
+     */
+    public ResourceEvent(ServerSideResource source, Task task) {
+        super((Object)source);
+        
+        this.task = task;
+    }
+    
+    /**
+     * Creates a new ResourceEvent instance concerning the split of a task.
+     * 
+     * @param source The object on which the ResourceEvent initially occurred.
+     * @param split The client's answer to a request to split one of its tasks
+     */
+    public ResourceEvent(ServerSideResource source, TaskSplit split) {
+        super((Object)source);
+        
+        this.split = split;
+    }
+    
     /**
      * Returns the Resource's state specified in the constructor
      */
     public ResourceState getState() {
         return this.state;
     }
+    
+    /**
+     * Returns the task specified in the constructor, if any
+     */
+    public Task getTask() {
+        return this.task;
+    }
+    
+    /**
+     * Returns the task split specified in the constructor, if any
+     */
+    public TaskSplit getSplit() {
+        return this.split;
+    }
 }
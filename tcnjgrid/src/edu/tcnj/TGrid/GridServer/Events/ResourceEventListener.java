@@ -22,7 +22,7 @@ public interface ResourceEventListener extends java.util.EventListener {
     
     /**
      * Triggered when the Resource failed to complete a task in the given
-     * timeout.
+     * timeout.  The event gives the task if it is running in an extra slot.
      */
     public void resourceTaskTimedOut(ResourceEvent e);
     
@@ -31,4 +31,23 @@ public interface ResourceEventListener extends java.util.EventListener {
      * resources		  
      */
     public void resourceNoLongerReady(ResourceEvent e);
+    
+    /**
+     * Triggered when a task queued on the Resource has been taken back before
+     * it started.  The task is given by the event.
+     */
+    public void resourceTaskRecalled(ResourceEvent e);
+    
+    /**
+     * Triggered when a task running in one of the Resource's extra execution
+     * slots has ended.  The task is given by the event, in the state it ended
+     * in.
+     */
+    public void resourceSlotTaskEnded(ResourceEvent e);
+    
+    /**
+     * Triggered when the Resource has answered a request to split one of its
+     * tasks.  The answer is given by the event's TaskSplit.
+     */
+    public void resourceTaskSplit(ResourceEvent e);
 }
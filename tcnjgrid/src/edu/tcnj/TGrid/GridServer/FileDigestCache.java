@@ -0,0 +1,125 @@
+/*
+ * FileDigestCache.java
+ *
+ * Remembers the checksums of files sent to clients, so that sending the same
+ * file to many clients only reads it once to compute the checksum.
+ */
+
+package edu.tcnj.TGrid.GridServer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.HashMap;
+
+/**
+ * Computes and caches the MD5 checksums of local files.  A cached checksum is
+ * used for as long as the file's size and last modified time stay the same.
+ *
+ * File contents are sent to clients straight from the file, so the server no
+ * longer sees the bytes it sends; the checksum has to be computed separately,
+ * and caching it keeps that to once per version of a file.
+ */
+public class FileDigestCache {
+
+    /**
+     * The size of the buffer files are read into while computing checksums.
+     */
+    protected static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The checksums computed so far, by absolute path.
+     */
+    private static final HashMap<String, CachedDigest> digests = new HashMap<String, CachedDigest>();
+
+    /**
+     * No instances; the cache is shared by every ServerSideResource.
+     */
+    private FileDigestCache() {
+    }
+
+    /**
+     * Returns the MD5 checksum of a file, computing it if the file has changed
+     * since it was last asked for.
+     *
+     * @param file The file to compute the checksum of
+     * @return The checksum of the file's contents
+     * @throws java.io.IOException if the file could not be read
+     * @throws java.security.NoSuchAlgorithmException if MD5 is not available
+     */
+    public static byte[] getDigest(File file) throws IOException, NoSuchAlgorithmException {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+
+        synchronized(digests) {
+            CachedDigest cached = digests.get(path);
+
+            if(cached != null && cached.length == length && cached.lastModified == lastModified) {
+                return cached.digest.clone();
+            }
+        }
+
+        byte[] digest = computeDigest(file);
+
+        synchronized(digests) {
+            digests.put(path, new CachedDigest(length, lastModified, digest));
+        }
+
+        return digest.clone();
+    }
+
+    /**
+     * Forgets every cached checksum.
+     */
+    public static void clear() {
+        synchronized(digests) {
+            digests.clear();
+        }
+    }
+
+    /**
+     * Reads a file from start to end, computing its MD5 checksum.
+     */
+    private static byte[] computeDigest(File file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest md5 = MessageDigest.getInstance("md5");
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+            while(channel.read(buffer) != -1) {
+                buffer.flip();
+                md5.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            in.close();
+        }
+
+        return md5.digest();
+    }
+
+    /**
+     * A checksum, along with the version of the file it was computed for.
+     */
+    private static class CachedDigest {
+        private final long length;
+        private final long lastModified;
+        private final byte[] digest;
+
+        public CachedDigest(long length, long lastModified, byte[] digest) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * HashedWheelTimer.java
+ *
+ * Runs actions after a delay, for any number of pending deadlines, on a
+ * single thread.
+ */
+
+package edu.tcnj.TGrid.GridServer;
+
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs actions once their delay has passed, such as timing out tasks.  Every
+ * pending deadline is kept in a "hashed wheel": a ring of buckets, one per
+ * tick, that a single thread steps around once per tick, running whatever is
+ * due in the bucket it reaches.  Deadlines further away than one turn of the
+ * wheel wait in their bucket for the number of turns left.
+ *
+ * Scheduling and cancelling an action take constant time however many are
+ * pending, and no thread is needed per deadline.  In exchange, actions run up
+ * to one tick late, and all run on the timer thread, so they must be short.
+ *
+ * The server shares one timer, returned by getServerTimer().
+ */
+public class HashedWheelTimer {
+
+    /**
+     * The default time between ticks, in milliseconds.
+     */
+    public static final long DEFAULT_TICK_DURATION = 100;
+
+    /**
+     * The default number of buckets in the wheel, which covers about 51
+     * seconds per turn with the default tick duration.
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * The timer shared by the server, created when first needed.
+     */
+    private static HashedWheelTimer serverTimer = null;
+
+    /**
+     * The time between ticks, in nanoseconds
+     */
+    private final long tickDuration;
+
+    /**
+     * The buckets; each is the sentinel of a circular list of timeouts.
+     * Guarded by this timer.
+     */
+    private final Timeout[] wheel;
+
+    /**
+     * The size of the wheel less one, to find a tick's bucket.
+     */
+    private final int mask;
+
+    /**
+     * The number of the next tick to be run.  Guarded by this timer.
+     */
+    private long nextTick = 0;
+
+    /**
+     * When the timer started, from <code>System.nanoTime()</code>
+     */
+    private final long startTime;
+
+    /**
+     * The thread that steps around the wheel
+     */
+    private final Thread workerThread;
+
+    /**
+     * Creates a timer with the default tick duration and wheel size.
+     */
+    public HashedWheelTimer() {
+        this(DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Creates a timer and starts its thread.
+     *
+     * @param tickDuration The time between ticks, in milliseconds.  Actions
+     *                     run up to this late.
+     * @param wheelSize    The number of buckets; rounded up to a power of two
+     */
+    public HashedWheelTimer(long tickDuration, int wheelSize) {
+        if (tickDuration <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("The tick duration and wheel size must be positive");
+        }
+
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+
+        this.tickDuration = tickDuration * 1000000;
+        this.wheel = new Timeout[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Timeout(null);
+        }
+
+        startTime = System.nanoTime();
+
+        workerThread = new WorkerThread();
+        workerThread.start();
+    }
+
+    /**
+     * Returns the timer shared by the server, for task timeouts and any other
+     * deadline.
+     *
+     * @return The timer
+     */
+    public static synchronized HashedWheelTimer getServerTimer() {
+        if (serverTimer == null) {
+            serverTimer = new HashedWheelTimer();
+        }
+
+        return serverTimer;
+    }
+
+    /**
+     * Schedules an action to run once a delay has passed.
+     *
+     * @param action The action; it runs on the timer thread, so must be short
+     * @param delay  The delay, in milliseconds
+     * @return A handle that cancels the action
+     */
+    public Timeout schedule(Runnable action, long delay) {
+        Timeout timeout = new Timeout(action);
+        long deadline = System.nanoTime() + Math.max(0, delay) * 1000000 - startTime;
+
+        synchronized (this) {
+            // The tick on or after the deadline, but never one already run
+            long tick = Math.max(nextTick, (deadline + tickDuration - 1) / tickDuration);
+
+            timeout.remainingRounds = (tick - nextTick) / wheel.length;
+            timeout.linkBefore(wheel[(int) (tick & mask)]);
+        }
+
+        return timeout;
+    }
+
+    /**
+     * Stops the timer thread.  Actions still pending never run.
+     */
+    public void stop() {
+        workerThread.interrupt();
+    }
+
+    /**
+     * Takes the timeouts that are due at a tick out of their bucket, and counts
+     * down the rest.  Must be called holding the timer.
+     */
+    private void expire(long tick, ArrayList<Timeout> expired) {
+        Timeout bucket = wheel[(int) (tick & mask)];
+
+        Timeout timeout = bucket.next;
+        while (timeout != bucket) {
+            Timeout next = timeout.next;
+
+            if (timeout.remainingRounds <= 0) {
+                timeout.unlink();
+                timeout.expired = true;
+                expired.add(timeout);
+            } else {
+                timeout.remainingRounds--;
+            }
+
+            timeout = next;
+        }
+    }
+
+    /**
+     * A pending action, which can be cancelled until it has run.
+     */
+    public final class Timeout {
+
+        /**
+         * The action to run, or null for the sentinel of a bucket
+         */
+        private final Runnable action;
+
+        /**
+         * The number of turns of the wheel left before the action is due
+         */
+        private long remainingRounds;
+
+        /**
+         * The neighbours in the bucket, or null if not in one
+         */
+        private Timeout previous;
+
+        private Timeout next;
+
+        /**
+         * Whether the action has been taken out of the wheel to be run
+         */
+        private boolean expired = false;
+
+        /**
+         * Whether the action was cancelled before it ran
+         */
+        private boolean cancelled = false;
+
+        private Timeout(Runnable action) {
+            this.action = action;
+
+            previous = this;
+            next = this;
+        }
+
+        /**
+         * Cancels the action, unless it has already run or is about to.
+         *
+         * @return true if the action will not run
+         */
+        public boolean cancel() {
+            synchronized (HashedWheelTimer.this) {
+                if (expired || cancelled) {
+                    return cancelled;
+                }
+
+                cancelled = true;
+                unlink();
+
+                return true;
+            }
+        }
+
+        /**
+         * Returns whether the action has run, or is about to.
+         *
+         * @return true once the deadline has passed without the action being cancelled
+         */
+        public boolean isExpired() {
+            synchronized (HashedWheelTimer.this) {
+                return expired;
+            }
+        }
+
+        /**
+         * Returns whether the action was cancelled before it ran.
+         *
+         * @return true if cancel() succeeded
+         */
+        public boolean isCancelled() {
+            synchronized (HashedWheelTimer.this) {
+                return cancelled;
+            }
+        }
+
+        /**
+         * Adds the timeout to the end of a bucket.
+         */
+        private void linkBefore(Timeout bucket) {
+            previous = bucket.previous;
+            next = bucket;
+            bucket.previous.next = this;
+            bucket.previous = this;
+        }
+
+        /**
+         * Takes the timeout out of its bucket.
+         */
+        private void unlink() {
+            if (previous != null) {
+                previous.next = next;
+                next.previous = previous;
+                previous = null;
+                next = null;
+            }
+        }
+    }
+
+    /**
+     * Steps around the wheel, running the actions that are due.
+     */
+    protected class WorkerThread extends Thread {
+
+        public WorkerThread() {
+            super("Server timer");
+
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            ArrayList<Timeout> expired = new ArrayList<Timeout>();
+
+            while (true) {
+                long tick;
+                synchronized (HashedWheelTimer.this) {
+                    tick = nextTick;
+                }
+
+                // Wait for the tick to come round
+                long delay = startTime + tick * tickDuration - System.nanoTime();
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+
+                synchronized (HashedWheelTimer.this) {
+                    expire(tick, expired);
+                    nextTick = tick + 1;
+                }
+
+                // Not holding the timer, so actions can schedule and cancel others
+                for (Timeout timeout : expired) {
+                    try {
+                        timeout.action.run();
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(HashedWheelTimer.class.getName()).log(Level.WARNING, "Error running timed action.", ex);
+                    }
+                }
+                expired.clear();
+            }
+        }
+    }
+}
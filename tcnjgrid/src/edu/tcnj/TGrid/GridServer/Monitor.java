@@ -8,6 +8,7 @@ package edu.tcnj.TGrid.GridServer;
 import edu.tcnj.TGrid.Events.JobEvent;
 import edu.tcnj.TGrid.Events.JobEventListener;
 import edu.tcnj.TGrid.Exceptions.ResourceException;
+import edu.tcnj.TGrid.Exceptions.ConnectionToRemoteHostException;
 import edu.tcnj.TGrid.GridServer.Events.ResourceDiscoveryEvent;
 import edu.tcnj.TGrid.GridServer.Events.ResourceDiscoveryEventListener;
 import edu.tcnj.TGrid.GridServer.Events.ClientCommandConnectionAcceptedEvent;
@@ -17,16 +18,26 @@ import edu.tcnj.TGrid.GridServer.Events.ResourceEventListener;
 import edu.tcnj.TGrid.GridServer.Exceptions.ResourceDiscoveryException;
 import edu.tcnj.TGrid.Job;
 import edu.tcnj.TGrid.Task;
+import edu.tcnj.TGrid.TaskBundle;
+import edu.tcnj.TGrid.TaskSplit;
+import edu.tcnj.TGrid.SplittableJob;
+import edu.tcnj.TGrid.SplittableTask;
+import edu.tcnj.TGrid.FileTransferTask;
 import edu.tcnj.TGrid.States.JobState;
 import edu.tcnj.TGrid.ConnectionToRemoteHost;
 
 import edu.tcnj.TGrid.States.ResourceState;
 import edu.tcnj.TGrid.States.TaskState;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
 import java.util.LinkedList;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -65,9 +76,92 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 	private volatile Map<Integer, ServerSideResource> resources = Collections.synchronizedMap(new HashMap<Integer, ServerSideResource>());
 	
   	/**
-	 * List of resources that are ready for a task
+	 * Resources that are ready for a task, indexed by capability class
 	 */
-	private LinkedBlockingQueue<ServerSideResource> readyResources = new LinkedBlockingQueue<ServerSideResource>();
+	private ReadyResourcePool readyResources = new ReadyResourcePool();
+	
+	/**
+	 * Resources that are running a task and have room to queue another behind it
+	 */
+	private ReadyResourcePool prefetchResources = new ReadyResourcePool();
+	
+	/**
+	 * Resources that are running a task and have a free execution slot for
+	 * another alongside it
+	 */
+	private ReadyResourcePool slotResources = new ReadyResourcePool();
+	
+	/**
+	 * The number of tasks queued on each new resource behind the one it is running
+	 */
+	private volatile int prefetchDepth = ServerSideResource.DEFAULT_PREFETCH_DEPTH;
+	
+	/**
+	 * How long, in milliseconds, a bundle of short tasks should take to run, or 0
+	 * to never bundle tasks
+	 */
+	private volatile long bundleTargetTime = DEFAULT_BUNDLE_TARGET_TIME;
+	
+	/**
+	 * Tasks are given this many times the 99th percentile of how long similar
+	 * tasks have taken before they time out
+	 */
+	private volatile double timeoutSlack = DEFAULT_TIMEOUT_SLACK;
+	
+	/**
+	 * How long tasks of each class have taken, for timing out tasks of Jobs that
+	 * have not completed enough tasks yet.  Guarded by itself.
+	 */
+	private HashMap<String, RunTimeDistribution> taskTypeRunTimes = new HashMap<String, RunTimeDistribution>();
+	
+	/**
+	 * The number of times each task has timed out, by task ID
+	 */
+	private Map<Integer, Integer> timedOutTasks = Collections.synchronizedMap(new HashMap<Integer, Integer>());
+	
+	/**
+	 * Timeouts reported by the server's timer that the scheduler has not
+	 * handled yet.  Handling one can send to a resource, which the timer thread
+	 * shared by every task must never wait on.
+	 */
+	private LinkedBlockingQueue<TimedOutTask> pendingTimeouts = new LinkedBlockingQueue<TimedOutTask>();
+	
+	/**
+	 * Tasks that have been assigned and not completed, by task ID, so that
+	 * straggling ones can be replicated
+	 */
+	private Map<Integer, Task> outstandingTasks = Collections.synchronizedMap(new HashMap<Integer, Task>());
+	
+	/**
+	 * When each outstanding task was last assigned afresh, from
+	 * <code>System.nanoTime()</code>, by task ID
+	 */
+	private Map<Integer, Long> assignmentTimes = Collections.synchronizedMap(new HashMap<Integer, Long>());
+	
+	/**
+	 * The most duplicate work that replicating straggling tasks may cost, as a
+	 * fraction of the time spent running tasks
+	 */
+	private volatile double endgameSpendLimit = DEFAULT_ENDGAME_SPEND_LIMIT;
+	
+	/**
+	 * The tasks split off from tasks that resources have been asked to split, by
+	 * the ID of the task being split, until the resource answers
+	 */
+	private Map<Integer, Task> pendingSplits = Collections.synchronizedMap(new HashMap<Integer, Task>());
+	
+	/**
+	 * The IDs of tasks that timed out while a split of them was pending.  They
+	 * are reassigned once the resource answers, so that the copy sent out
+	 * leaves out any work that was split off.
+	 */
+	private Set<Integer> splitDeferredTasks = Collections.synchronizedSet(new HashSet<Integer>());
+	
+	/**
+	 * The IDs of outstanding tasks that a resource refused to split, which are
+	 * not asked again
+	 */
+	private Set<Integer> unsplittableTasks = Collections.synchronizedSet(new HashSet<Integer>());
 	
 	/**
 	 * Stores all assigned task IDs and maps them to the IDs of resources to which
@@ -79,15 +173,68 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 	
 	/**
 	 * The tasksToReassign queue stores Tasks that should be reassigned. 
-	 * (ie. Due to a timeout)
+	 * (ie. Due to a timeout)  The most urgent task comes first, then the oldest.
+	 */
+	private volatile PriorityBlockingQueue<Task> tasksToReassign = new PriorityBlockingQueue<Task>(11, new Comparator<Task>()
+	{
+		public int compare(Task a, Task b)
+		{
+			if (a.getPriority() != b.getPriority())
+				return (a.getPriority() > b.getPriority()) ? -1 : 1;
+			
+			return (a.getTaskID() < b.getTaskID()) ? -1 : ((a.getTaskID() > b.getTaskID()) ? 1 : 0);
+		}
+	});
+	
+	/**
+	 * When each task was last preempted, by task ID, from <code>System.currentTimeMillis()</code>
+	 */
+	private Map<Integer, Long> preemptedTasks = Collections.synchronizedMap(new HashMap<Integer, Long>());
+	
+	/**
+	 * The IDs of resources whose tasks are being preempted
+	 */
+	private Set<Integer> preemptingResources = Collections.synchronizedSet(new HashSet<Integer>());
+	
+	/**
+	 * Waiting tasks with at least this priority may preempt running tasks with a
+	 * lower priority
+	 */
+	private volatile int preemptionThreshold = DEFAULT_PREEMPTION_THRESHOLD;
+	
+	/**
+	 * How long, in milliseconds, a preempted task is safe from being preempted again
 	 */
-	private volatile LinkedBlockingQueue<Task> tasksToReassign = new LinkedBlockingQueue<Task>();
+	private volatile long preemptionCooldown = DEFAULT_PREEMPTION_COOLDOWN;
 	
 	/**
-	 * The availableJobs queue stores all Jobs that have not yet run.
+	 * The availableJobs queue stores all Jobs that have been added but are not
+	 * ready to run yet.
 	 */
 	private LinkedBlockingQueue<Job> availableJobs = new LinkedBlockingQueue<Job>();
 	
+	/**
+	 * The Jobs that are currently being performed, along with their share of the
+	 * grid.  Tasks are taken from them in weighted deficit round robin order.
+	 */
+	private ArrayList<JobShare> runningJobs = new ArrayList<JobShare>();
+	
+	/**
+	 * The share of every Job that has been added and not finished, by Job
+	 */
+	private Map<Job, JobShare> jobShares = Collections.synchronizedMap(new HashMap<Job, JobShare>());
+	
+	/**
+	 * Maps the IDs of tasks that have been taken from a Job to that Job, so
+	 * that they can be stored back in it.
+	 */
+	private Map<Integer, Job> taskJobs = Collections.synchronizedMap(new HashMap<Integer, Job>());
+	
+	/**
+	 * The number of Jobs that have been added, used to number their results files
+	 */
+	private int jobsAdded = 0;
+	
 	/**
 	 * The finishedJobs queue stores all Jobs that have completed sucessfully.
 	 */
@@ -121,15 +268,79 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 	 */
 	private Map<Integer, Integer> connectingClientRandMap = Collections.synchronizedMap(new HashMap<Integer, Integer>());
 	
+	/**
+	 * Holds client command connections that were accepted before their client
+	 * finished authorizing, by the client's random integer.  Clients open the
+	 * command connection while they are still authorizing.
+	 */
+	private Map<Integer, ConnectionToRemoteHost> pendingCommandConnectionMap = new HashMap<Integer, ConnectionToRemoteHost>();
+	
 	/**
 	 * Random number generator for connecting client map
 	 */
 	private Random randGen = new Random();
 	
 	/**
-	 * Stores the Job that is currently being performed.
+	 * The share of the grid given to a Job added without one
+	 */
+	public static final int DEFAULT_JOB_WEIGHT = 1;
+	
+	/**
+	 * The priority of a Job added without one
+	 */
+	public static final int DEFAULT_JOB_PRIORITY = 0;
+	
+	/**
+	 * The lowest priority that preempts running tasks, unless changed
+	 */
+	public static final int DEFAULT_PREEMPTION_THRESHOLD = 10;
+	
+	/**
+	 * How long, in milliseconds, a preempted task is safe from being preempted
+	 * again, unless changed
+	 */
+	public static final long DEFAULT_PREEMPTION_COOLDOWN = 60000;
+	
+	/**
+	 * How long, in milliseconds, a bundle of short tasks should take to run,
+	 * unless changed
+	 */
+	public static final long DEFAULT_BUNDLE_TARGET_TIME = 250;
+	
+	/**
+	 * The largest number of tasks put in one bundle
+	 */
+	public static final int MAX_BUNDLE_SIZE = 1000;
+	
+	/**
+	 * How many times the 99th percentile of their run time tasks are given
+	 * before they time out, unless changed
+	 */
+	public static final double DEFAULT_TIMEOUT_SLACK = 3;
+	
+	/**
+	 * The number of completed tasks needed before their run times are trusted
+	 * for timeouts
+	 */
+	public static final int MIN_TIMEOUT_SAMPLES = 20;
+	
+	/**
+	 * The shortest timeout, in milliseconds, given to a task from the run times
+	 * of others, to allow for sending it and its results
+	 */
+	public static final int MIN_TASK_TIMEOUT = 1000;
+	
+	/**
+	 * The most duplicate work that replicating straggling tasks may cost, as a
+	 * fraction of the time spent running tasks, unless changed
 	 */
-	private volatile Job currentJob;
+	public static final double DEFAULT_ENDGAME_SPEND_LIMIT = 0.1;
+	
+	/**
+	 * The least work, in milliseconds, a task must be expected to have left for
+	 * it to be worth splitting
+	 */
+	public static final long MIN_SPLIT_TIME = 500;
 	
 	/**
 	 * The local port to listen for incoming connections on.  Passed on to the 
@@ -155,10 +366,99 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 	private boolean exitOnJobResults = false;
 	
 	/**
-	 * Represents an instance of the TaskDelegationThread.  A new one of these threads
-	 * is spawned any time circumstances arise that would require task delegation
+	 * The task scheduler.  A single one runs for as long as the Monitor does, and
+	 * is woken any time circumstances arise that would allow a task to be assigned.
+	 */
+	private final TaskSchedulerThread taskScheduler = new TaskSchedulerThread();
+	
+	/**
+	 * Tasks taken from the current job that no ready resource met the
+	 * requirements of.  They are tried again, before any new tasks, whenever the
+	 * scheduler runs.  Only used by the scheduler.
+	 */
+	private LinkedList<Task> unplacedTasks = new LinkedList<Task>();
+	
+	/**
+	 * Guards the assignment latency statistics
+	 */
+	private final Object assignmentStatisticsLock = new Object();
+	
+	/**
+	 * Number of tasks assigned since the Monitor began
+	 */
+	private long assignmentCount = 0;
+	
+	/**
+	 * Total time, in nanoseconds, between tasks becoming assignable and being
+	 * assigned since the Monitor began
+	 */
+	private long totalAssignmentLatency = 0;
+	
+	/**
+	 * Longest time, in nanoseconds, between a task becoming assignable and being
+	 * assigned since the Monitor began
+	 */
+	private long maxAssignmentLatency = 0;
+	
+	/**
+	 * Guards the endgame statistics
+	 */
+	private final Object endgameStatisticsLock = new Object();
+	
+	/**
+	 * Total time, in nanoseconds, that completed tasks took to run
+	 */
+	private long totalRunTime = 0;
+	
+	/**
+	 * Number of straggling tasks replicated
+	 */
+	private long replicaCount = 0;
+	
+	/**
+	 * Number of replicated tasks whose replica finished first
+	 */
+	private long replicaWinCount = 0;
+	
+	/**
+	 * Total time, in nanoseconds, that replicated tasks ran on two resources at
+	 * once before one finished
+	 */
+	private long replicaSpend = 0;
+	
+	/**
+	 * Total time, in nanoseconds, between replicas finishing and the tasks they
+	 * copied finishing as well
+	 */
+	private long endgameTimeSaved = 0;
+	
+	/**
+	 * When each replica still running was assigned, from
+	 * <code>System.nanoTime()</code>, by task ID
+	 */
+	private HashMap<Integer, Long> replicaStartTimes = new HashMap<Integer, Long>();
+	
+	/**
+	 * The resource each replica still running was assigned to, by task ID
+	 */
+	private HashMap<Integer, Integer> replicaResourceIds = new HashMap<Integer, Integer>();
+	
+	/**
+	 * When each replica that finished first did so, from
+	 * <code>System.nanoTime()</code>, by task ID, until the task it copied
+	 * finishes too
+	 */
+	private HashMap<Integer, Long> replicaWinTimes = new HashMap<Integer, Long>();
+	
+	/**
+	 * Number of tasks split to give idle resources work
 	 */
-	private TaskDelegationThread taskDelegation;
+	private long splitCount = 0;
+	
+	/**
+	 * Number of requests to split a task that resources refused
+	 */
+	private long refusedSplitCount = 0;
 	
 	/**
 	 * Date formatter
@@ -419,6 +719,9 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 	
 	public void begin()
 	{
+		if (!taskScheduler.isAlive())
+			taskScheduler.start();
+		
 		try {
 			resourceDiscoveryAgent = new ResourceDiscoveryAgent(port, username, password);
 			resourceDiscoveryAgent.addResourceDiscoveryEventListener(this);
@@ -435,21 +738,195 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 	
 	public void addJob(Job job)
 	{
-		//First, check if a job is currently running
-		if(currentJob == null)
-		{
-			//if there is indeed no current job, make this new job the current one
-			currentJob = job;
-			currentJob.addJobEventListener(this);
-			
-			//make the new current job ready; once the new current job is ready, it will trigger an event
-			currentJob.makeReady();
-		}
-		else
+		addJob(job, DEFAULT_JOB_WEIGHT, DEFAULT_JOB_PRIORITY);
+	}
+	
+	/**
+	 * Adds a Job to run alongside any that are already running.
+	 *
+	 * @param job    The job to run
+	 * @param weight The job's share of the grid.  A job with twice the weight of
+	 *               another is given twice as many tasks while both have tasks
+	 *               left to run.
+	 */
+	public void addJob(Job job, int weight)
+	{
+		addJob(job, weight, DEFAULT_JOB_PRIORITY);
+	}
+	
+	/**
+	 * Adds a Job to run alongside any that are already running.
+	 *
+	 * Tasks from jobs with a higher priority are always assigned first; the
+	 * weight only shares the grid between jobs of the same priority.  A job with
+	 * a priority of at least the preemption threshold cancels running tasks of
+	 * lower priority when there are no ready resources for its own.
+	 *
+	 * @param job      The job to run
+	 * @param weight   The job's share of the grid.  A job with twice the weight of
+	 *                 another is given twice as many tasks while both have tasks
+	 *                 left to run.
+	 * @param priority The job's priority.  Its tasks take on this priority unless
+	 *                 they have a higher one of their own.
+	 */
+	public void addJob(Job job, int weight, int priority)
+	{
+		if (weight < 1)
+			throw new IllegalArgumentException("Job weight must be at least 1");
+		
+		JobShare share;
+		synchronized(runningJobs)
 		{
-			//if a job IS running, just add the new one to the Queue
-			availableJobs.offer(job);
+			// The first job's results go where they always have
+			++jobsAdded;
+			share = new JobShare(job, weight, priority, (jobsAdded == 1) ? "results.dat" : "results-" + jobsAdded + ".dat");
 		}
+		jobShares.put(job, share);
+		availableJobs.offer(job);
+		
+		job.addJobEventListener(this);
+		
+		//make the new job ready; once it is ready, it will trigger an event
+		job.makeReady();
+	}
+	
+	/**
+	 * Sets the lowest priority at which waiting tasks preempt running tasks of a
+	 * lower priority.
+	 *
+	 * @param threshold The preemption threshold; Integer.MAX_VALUE turns
+	 *                  preemption off
+	 */
+	public void setPreemptionThreshold(int threshold)
+	{
+		preemptionThreshold = threshold;
+	}
+	
+	/**
+	 * Returns the lowest priority at which waiting tasks preempt running ones.
+	 *
+	 * @return The preemption threshold
+	 */
+	public int getPreemptionThreshold()
+	{
+		return preemptionThreshold;
+	}
+	
+	/**
+	 * Sets how long a preempted task is safe from being preempted again, so that
+	 * tasks are not repeatedly started and cancelled.
+	 *
+	 * @param cooldown The time in milliseconds
+	 */
+	public void setPreemptionCooldown(long cooldown)
+	{
+		preemptionCooldown = cooldown;
+	}
+	
+	/**
+	 * Returns how long a preempted task is safe from being preempted again.
+	 *
+	 * @return The time in milliseconds
+	 */
+	public long getPreemptionCooldown()
+	{
+		return preemptionCooldown;
+	}
+	
+	/**
+	 * Sets the number of tasks queued on resources that connect from now on,
+	 * behind the one they are running, so that they can start their next task
+	 * without waiting for the server.  Tasks at or above the preemption
+	 * threshold are never queued.
+	 *
+	 * @param depth The number of tasks; 0 turns queueing off
+	 */
+	public void setPrefetchDepth(int depth)
+	{
+		prefetchDepth = depth;
+	}
+	
+	/**
+	 * Returns the number of tasks queued on new resources behind the one they
+	 * are running.
+	 *
+	 * @return The number of tasks
+	 */
+	public int getPrefetchDepth()
+	{
+		return prefetchDepth;
+	}
+	
+	/**
+	 * Sets how long a bundle of short tasks should take to run.  Tasks that take
+	 * a small fraction of this are sent to resources in bundles of about this
+	 * length, so that the cost of sending, reporting on and timing out each task
+	 * is paid once per bundle.
+	 *
+	 * @param targetTime The time in milliseconds; 0 stops tasks being bundled
+	 */
+	public void setBundleTargetTime(long targetTime)
+	{
+		bundleTargetTime = targetTime;
+	}
+	
+	/**
+	 * Returns how long a bundle of short tasks should take to run.
+	 *
+	 * @return The time in milliseconds, or 0 if tasks are not bundled
+	 */
+	public long getBundleTargetTime()
+	{
+		return bundleTargetTime;
+	}
+	
+	/**
+	 * Sets how much longer than usual tasks may run before they time out.  Once
+	 * enough tasks of a Job, or failing that of the same class, have completed,
+	 * a task's timeout is this many times the 99th percentile of how long they
+	 * took, scaled by how slow its resource is and doubled each time the task
+	 * has already timed out.  Until then, the task's own timeout is used.
+	 *
+	 * @param slack The multiple of the 99th percentile
+	 */
+	public void setTimeoutSlack(double slack)
+	{
+		timeoutSlack = slack;
+	}
+	
+	/**
+	 * Returns how much longer than usual tasks may run before they time out.
+	 *
+	 * @return The multiple of the 99th percentile of their run time
+	 */
+	public double getTimeoutSlack()
+	{
+		return timeoutSlack;
+	}
+	
+	/**
+	 * Sets how much duplicate work the endgame may cost.  Once a Job has handed
+	 * out all of its tasks and fewer of them are still running than there are
+	 * idle resources, its longest running tasks are copied onto the idle
+	 * resources, and whichever copy finishes first is used.  The time the copies
+	 * run alongside each other is kept below this fraction of the time spent
+	 * running tasks.
+	 *
+	 * @param limit The fraction; 0 turns the endgame off
+	 */
+	public void setEndgameSpendLimit(double limit)
+	{
+		endgameSpendLimit = limit;
+	}
+	
+	/**
+	 * Returns how much duplicate work the endgame may cost.
+	 *
+	 * @return The fraction of the time spent running tasks
+	 */
+	public double getEndgameSpendLimit()
+	{
+		return endgameSpendLimit;
 	}
 	
 	public void resourceDiscovered(ResourceDiscoveryEvent e)
@@ -459,6 +936,7 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 		Logger.getLogger(Monitor.class.getName()).log(Level.INFO, "A new resource, \"" + newResource.getHostName() + ",\" connected from " + newResource.getHostAddress() + ".");
 		
 		newResource.addResourceEventListener(this);
+		newResource.setPrefetchDepth(prefetchDepth);
 		newResource.beginAuthorization();
 		
 		// Add to list of resources
@@ -486,6 +964,12 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 				connectingClientMap.remove(clientKey);
 				connectingClientRandMap.remove(clientKey);
 			}
+			else
+			{
+				// The client has not finished authorizing yet; the connection is
+				// set once it has
+				pendingCommandConnectionMap.put(clientKey, con);
+			}
   	}
 	}
 
@@ -493,6 +977,13 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 	{
 		ServerSideResource source = (ServerSideResource)e.getSource();
 		
+		// Only resources running a task have room for queued or slot tasks
+		if (e.getState() != ResourceState.RUNNING_TASK)
+		{
+			prefetchResources.remove(source);
+			slotResources.remove(source);
+		}
+		
 		switch(e.getState())
 		{
 			case READY:
@@ -507,24 +998,19 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 				{
 					// Add the resource to ready resources
 					readyResources.add(source);
+					preemptingResources.remove(source.getResourceID());
 					
 					Logger.getLogger(Monitor.class.getName()).log(Level.INFO, source.getHostName() + "(" + source.getHostAddress() + ") is now ready.");
 			
-					synchronized(taskDelegation)
-					{
-			    	if(taskDelegation == null || !taskDelegation.isAlive())
-			    	{
-			    		taskDelegation = new TaskDelegationThread();
-			    		taskDelegation.start();
-						}
-					}
+					taskScheduler.wake();
 				}
 				break;
 			case AUTHORIZATION_SUCCESS:
 				// Associate the client with its ClientInfo object
+				int clientKey = source.getClientKey();
+				boolean associated = false;
 				synchronized (connectingClientMap)
 				{
-		  		int clientKey = source.getClientKey();
 					int clientPswd = source.getClientPassword();
 					if (connectingClientMap.containsKey(clientKey))
 					{
@@ -537,49 +1023,69 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 							// Remove from password (rand) map
 							connectingClientRandMap.get(clientKey);
 							
+							associated = true;
+						}
+					}
+		  	}
+				
+				// Not nested in the lock above, since clientCommandConnectionAccepted
+				// takes the two locks in the other order
+				if (associated)
+				{
+					synchronized (connectingServerSideResourceMap)
+					{
+						ConnectionToRemoteHost con = pendingCommandConnectionMap.remove(clientKey);
+						if (con != null)
+						{
+							// The command connection arrived first, so set it now
+							source.setClientCommandConnection(con);
+							
+							// Remove client and password maps
+							connectingClientMap.remove(clientKey);
+							connectingClientRandMap.remove(clientKey);
+						}
+						else
+						{
 							// Add ServerSideResource to map
 							connectingServerSideResourceMap.put(clientKey, source);
 						}
 					}
-		  	}
+				}
 				break;
 			case AUTHORIZATION_FAILURE:
 				Logger.getLogger(Monitor.class.getName()).log(Level.INFO, source.getHostName() + "(" + source.getHostAddress() + ") failed authorization.");
-				break;
-			case RUNNING_TASK:
-				Logger.getLogger(Monitor.class.getName()).log(Level.INFO, source.getHostName() + "(" + source.getHostAddress() + ") is now running a task.");
-				break;
-			case TASK_COMPLETED:
-				try
+				
+				// Drop any command connection the client opened
+				synchronized (connectingServerSideResourceMap)
 				{
-					Task completedTask = source.takeCurrentTask();
-			
-					// Remove the resource ids that are assigned to this task
-					LinkedList<Integer> resourceIds = assignedTasks.remove(completedTask.getTaskID());
-					// If there are no resource ids, it means that another 
-					// resource already returned a result for the resource.
-					if (resourceIds != null)
+					ConnectionToRemoteHost con = pendingCommandConnectionMap.remove(source.getClientKey());
+					if (con != null)
 					{
-						// Cancel the task for all of the other resources
-						for(int resourceId : resourceIds)
+						try
 						{
-							// Get resource
-							ServerSideResource resource = resources.get(resourceId);
-							// Check that the resource is not the source and not null
-							if (resource != source && resource != null)
-								resource.cancelTask();
+							con.disconnect();
+						}
+						catch (ConnectionToRemoteHostException ex)
+						{
+							Logger.getLogger(Monitor.class.getName()).log(Level.FINER, "Error closing client command connection.", ex);
 						}
-			
-						// Add the (now complete) task back to the Job
-						currentJob.storeTask(completedTask);
-						
-						// Record stats on client
-						ClientInfo client = source.getClientInfo();
-						if (client != null)
-							client.incrementNumAssignedTasks();
 					}
-					//else
-						//System.out.println(completedTask + " already completed.  Ignoring result.");
+				}
+				break;
+			case RUNNING_TASK:
+				Logger.getLogger(Monitor.class.getName()).log(Level.INFO, source.getHostName() + "(" + source.getHostAddress() + ") is now running a task.");
+				
+				// Queue its next task, and fill its free slots.  Idle resources may
+				// now be given work split off from its task.
+				boolean hasRoom = source.canQueueTask() && prefetchResources.add(source);
+				hasRoom |= source.hasFreeSlot() && slotResources.add(source);
+				if (hasRoom || !readyResources.isEmpty())
+					taskScheduler.wake();
+				break;
+			case TASK_COMPLETED:
+				try
+				{
+					taskCompleted(source, source.takeCurrentTask());
 				}
 				catch(ResourceException ex)
 				{
@@ -594,8 +1100,9 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 					// Check if this task is still assigned.  It might have been 
 					// cancelled if another resource already finished it
 					Task oldTask = source.takeCurrentTask();
-					if (assignedTasks.get(oldTask.getTaskID()) != null)
-						currentJob.storeTask(oldTask);
+					Job job = taskJobs.get(oldTask.getTaskID());
+					if (assignedTasks.get(oldTask.getTaskID()) != null && job != null)
+						storeTask(job, oldTask);
 					
 					// Record stats on client
 					ClientInfo client = source.getClientInfo();
@@ -612,6 +1119,19 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 				break;
 			case TASK_TERMINATED:
 			case TROUBLED:
+				preemptingResources.remove(source.getResourceID());
+				
+				// Tasks queued on a troubled resource will never start, and tasks in
+				// its extra slots will never end
+				if (e.getState() == ResourceState.TROUBLED)
+				{
+					for (Task queuedTask : source.takeQueuedTasks())
+						returnRecalledTask(queuedTask);
+					for (Task slotTask : source.takeSlotTasks())
+						returnRecalledTask(slotTask);
+					taskScheduler.wake();
+				}
+				
 				try
 				{
 					// Add the troubled resource's task back into the job
@@ -620,8 +1140,9 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 			
 					// Check if this task is still assigned.  It might have been 
 					// cancelled if another resource already finished it
-					if (assignedTasks.get(oldTask.getTaskID()) != null)
-			    	currentJob.storeTask(oldTask);
+					Job job = taskJobs.get(oldTask.getTaskID());
+					if (assignedTasks.get(oldTask.getTaskID()) != null && job != null)
+			    	storeTask(job, oldTask);
 			    
 			    // Record stats on client if troubled
 			    if (e.getState() == ResourceState.TROUBLED)
@@ -647,7 +1168,8 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 	
 	/**
 	 * Triggered when the Resource failed to complete a task in the given
-	 * timeout.
+	 * timeout.  Called on the server's timer thread, so the timeout is only
+	 * queued for the scheduler to handle.
 	 */
 	public void resourceTaskTimedOut(ResourceEvent e)
 	{
@@ -655,24 +1177,412 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 		ServerSideResource source = (ServerSideResource)e.getSource();
 		
 		// Get task and make sure it is not null.  I may have finished between the
-		// timeout and now
-		Task task = source.getCurrentTask();
+		// timeout and now.  Tasks in extra slots come with the event.
+		Task task = (e.getTask() != null) ? e.getTask() : source.getCurrentTask();
 		if (task != null)
 		{
-			// Increase the task timeout
+			pendingTimeouts.add(new TimedOutTask(source, task, e.getTask() != null));
+			taskScheduler.wake();
+		}
+	}
+	
+	/**
+	 * Hands every queued timed out task that is still running where it timed
+	 * out to another resource.  Only called by the scheduler.
+	 */
+	private void handleTimeouts()
+	{
+		TimedOutTask timedOut;
+		while ((timedOut = pendingTimeouts.poll()) != null)
+		{
+			ServerSideResource source = timedOut.source;
+			Task task = timedOut.task;
+			
+			// It may have ended since it timed out
+			if (timedOut.inSlot ? !source.hasTask(task.getTaskID()) : source.getCurrentTask() != task)
+				continue;
+			
+			// Increase the task timeout, and back off from the one set from run
+			// times when it is next assigned
 			int timeout = task.increaseTimeout();
+			Integer timeouts = timedOutTasks.get(task.getTaskID());
+			timedOutTasks.put(task.getTaskID(), (timeouts == null) ? 1 : timeouts + 1);
 			//System.out.println("Task timeout increased to " + timeout/1000.0 + " seconds.");
 			
-			// Assign task to another resource
-			tasksToReassign.add(task);
+			// Assign task to another resource, once any split of it is settled
+			synchronized(pendingSplits)
+			{
+				if (pendingSplits.containsKey(task.getTaskID()))
+					splitDeferredTasks.add(task.getTaskID());
+				else
+					tasksToReassign.add(task);
+			}
+			
+			// Tasks queued behind it could wait as long again
+			if (!timedOut.inSlot)
+				source.recallQueuedTasks();
+		}
+	}
+	
+	/**
+	 * Triggered when a task running in one of a Resource's extra execution
+	 * slots has ended.
+	 */
+	public void resourceSlotTaskEnded(ResourceEvent e)
+	{
+		ServerSideResource source = (ServerSideResource)e.getSource();
+		Task task = e.getTask();
+		
+		if (task.getState() == TaskState.COMPLETED)
+			taskCompleted(source, task);
+		else
+		{
+			// Add the incomplete task back into the job, unless another resource
+			// finished it
+			returnRecalledTask(task);
+			
+			ClientInfo client = source.getClientInfo();
+			if (client != null)
+			{
+				client.incrementNumAssignedTasks();
+				if (task.getState() == TaskState.TROUBLED)
+					client.incrementNumFailedTasks();
+			}
+		}
+		
+		// Its slot is free again
+		if (source.hasFreeSlot())
+			slotResources.add(source);
+		taskScheduler.wake();
+	}
+	
+	/**
+	 * Hands a task that a resource completed back to its Job, and cancels it on
+	 * any other resource running it.  The result is ignored if another resource
+	 * completed the task first.
+	 *
+	 * @param source        The resource that completed the task
+	 * @param completedTask The task
+	 */
+	private void taskCompleted(ServerSideResource source, Task completedTask)
+	{
+		// Remove the resource ids that are assigned to this task
+		LinkedList<Integer> resourceIds = assignedTasks.remove(completedTask.getTaskID());
+		recordEndgameOutcome(source, completedTask, resourceIds != null);
+		// If there are no resource ids, it means that another 
+		// resource already returned a result for the resource.
+		if (resourceIds != null)
+		{
+			outstandingTasks.remove(completedTask.getTaskID());
+			assignmentTimes.remove(completedTask.getTaskID());
+			
+			// Cancel the task for all of the other resources
+			for(int resourceId : resourceIds)
+			{
+				// Get resource
+				ServerSideResource resource = resources.get(resourceId);
+				// Check that the resource is not the source and not null
+				if (resource != source && resource != null)
+					resource.cancelTask(completedTask.getTaskID());
+			}
+			
+			// Add the (now complete) task back to the Job
+			Job job = taskJobs.remove(completedTask.getTaskID());
+			preemptedTasks.remove(completedTask.getTaskID());
+			timedOutTasks.remove(completedTask.getTaskID());
+			if (job != null)
+			{
+				// Note how long its tasks take, for sizing bundles and timing them out
+				JobShare share = jobShares.get(job);
+				if (share != null)
+				{
+					share.recordRunTime(source.getLastTaskRunTime(), (completedTask instanceof TaskBundle) ? ((TaskBundle)completedTask).size() : 1);
+					recordRunTime(share, source, completedTask);
+				}
+				
+				storeTask(job, completedTask);
+			}
+			
+			// Record stats on client
+			ClientInfo client = source.getClientInfo();
+			if (client != null)
+				client.incrementNumAssignedTasks();
+		}
+		//else
+			//System.out.println(completedTask + " already completed.  Ignoring result.");
+	}
+	
+	/**
+	 * Updates the endgame statistics for a completed task.  When a task first
+	 * completes, the time any replica of it ran alongside the other copy is
+	 * counted as duplicate work.  When a task whose replica won completes a
+	 * second time, the time between the two is counted as time saved.
+	 *
+	 * @param source        The resource that completed the task
+	 * @param completedTask The task
+	 * @param first         Whether no other resource completed it before
+	 */
+	private void recordEndgameOutcome(ServerSideResource source, Task completedTask, boolean first)
+	{
+		int taskID = completedTask.getTaskID();
+		long now = System.nanoTime();
+		
+		synchronized(endgameStatisticsLock)
+		{
+			if (first)
+			{
+				long runTime = source.getLastTaskRunTime();
+				if (runTime > 0)
+					totalRunTime += runTime;
+				
+				Long replicaStart = replicaStartTimes.remove(taskID);
+				Integer replicaResourceId = replicaResourceIds.remove(taskID);
+				if (replicaStart != null)
+				{
+					replicaSpend += now - replicaStart;
+					
+					if (replicaResourceId == source.getResourceID())
+					{
+						++replicaWinCount;
+						replicaWinTimes.put(taskID, now);
+					}
+				}
+			}
+			else
+			{
+				Long winTime = replicaWinTimes.remove(taskID);
+				if (winTime != null)
+					endgameTimeSaved += now - winTime;
+			}
+		}
+	}
+	
+	/**
+	 * Adds how long a completed task took to the run times of its Job and class,
+	 * and to how slow the resource that ran it is compared to the others.
+	 *
+	 * @param share The share of the task's Job
+	 * @param source The resource that ran the task
+	 * @param completedTask The task
+	 */
+	private void recordRunTime(JobShare share, ServerSideResource source, Task completedTask)
+	{
+		long runTime = source.getLastTaskRunTime();
+		if (runTime < 0 || completedTask instanceof FileTransferTask)
+			return;
+		
+		int tasks = (completedTask instanceof TaskBundle) ? ((TaskBundle)completedTask).size() : 1;
+		long taskRunTime = Math.max(1, runTime / tasks);
+		
+		// Compare it to the usual run time before it counts towards it, per unit
+		// of cost if the task has an estimate, so that resources given the larger
+		// tasks do not look slow.  One slow task only moves the resource's speed
+		// so far.
+		double cost = completedTask.getCostEstimate();
+		double ratio = 0;
+		if (cost > 0)
+		{
+			double usualCostRunTime = share.getCostRunTimes().getMedian();
+			if (usualCostRunTime > 0)
+				ratio = runTime / cost / usualCostRunTime;
+			share.getCostRunTimes().add(Math.max(1, runTime) / cost);
+		}
+		else
+		{
+			double usualRunTime = share.getRunTimes().getMedian();
+			if (usualRunTime > 0)
+				ratio = taskRunTime / usualRunTime;
+		}
+		if (ratio > 0)
+			source.recordRelativeRunTime(Math.max(0.125, Math.min(8, ratio)));
+		
+		share.getRunTimes().add(taskRunTime);
+		
+		String taskType = taskType(completedTask);
+		synchronized(taskTypeRunTimes)
+		{
+			RunTimeDistribution runTimes = taskTypeRunTimes.get(taskType);
+			if (runTimes == null)
+			{
+				runTimes = new RunTimeDistribution();
+				taskTypeRunTimes.put(taskType, runTimes);
+			}
+			runTimes.add(taskRunTime);
+		}
+	}
+	
+	/**
+	 * Sets the timeout of a task about to be assigned to a resource from how long
+	 * similar tasks have taken: those of its Job, or failing that of its class.
+	 * The task keeps its own timeout until enough have completed.  File transfer
+	 * tasks always do, since the time to send their files is not measured.
+	 *
+	 * @param task     The task
+	 * @param resource The resource it is about to be assigned to
+	 */
+	private void adaptTimeout(Task task, ServerSideResource resource)
+	{
+		if (task instanceof FileTransferTask)
+			return;
+		
+		double runTime = 0;
+		Job job = taskJobs.get(task.getTaskID());
+		JobShare share = (job != null) ? jobShares.get(job) : null;
+		if (share != null)
+			runTime = share.estimateRunTime(task, true);
+		
+		if (runTime == 0)
+		{
+			int tasks = (task instanceof TaskBundle) ? ((TaskBundle)task).size() : 1;
+			synchronized(taskTypeRunTimes)
+			{
+				RunTimeDistribution runTimes = taskTypeRunTimes.get(taskType(task));
+				if (runTimes != null)
+					runTime = tasks * runTimes.getTail();
+			}
+		}
+		
+		if (runTime == 0)
+			return;
+		
+		double timeout = runTime / 1000000 * timeoutSlack * resource.getSpeedFactor();
+		
+		// Back off if it has timed out before, in case it is just slow
+		Integer timeouts = timedOutTasks.get(task.getTaskID());
+		if (timeouts != null)
+			timeout *= 1L << Math.min(timeouts, 16);
+		
+		task.setTimeout((int)Math.min(Integer.MAX_VALUE, Math.max(MIN_TASK_TIMEOUT, timeout)));
+	}
+	
+	/**
+	 * Returns the name of a task's class, or of the tasks in it for a bundle.
+	 */
+	private static String taskType(Task task)
+	{
+		if (task instanceof TaskBundle)
+			task = ((TaskBundle)task).getTasks().get(0);
+		
+		return task.getClass().getName();
+	}
+	
+	/**
+	 * Triggered when a Resource has answered a request to split one of its
+	 * tasks.  If it gave up the work of the split-off task, the server's copy of
+	 * the task leaves it out too, and the split-off task joins the task's Job to
+	 * be assigned.
+	 */
+	public void resourceTaskSplit(ResourceEvent e)
+	{
+		TaskSplit split = e.getSplit();
+		int taskID = split.getTaskID();
+		
+		Task requested;
+		boolean reassign;
+		synchronized(pendingSplits)
+		{
+			requested = pendingSplits.remove(taskID);
+			reassign = splitDeferredTasks.remove(taskID);
+		}
+		
+		// The task has been handed back since, if it is not pending
+		if (requested == null)
+			return;
+		
+		Task task = outstandingTasks.get(taskID);
+		Job job = taskJobs.get(taskID);
+		Task splitOff = split.getSplitOff();
+		if (splitOff != null && task != null && job instanceof SplittableJob)
+		{
+			// The client has given the work up, so it must be done by the split-off
+			// task whatever the server's copy makes of it
+			if (!((SplittableTask)task).yieldTo(splitOff))
+				Logger.getLogger(Monitor.class.getName()).log(Level.WARNING, "Task #" + taskID + " kept work that was split off from it.");
 			
-			// Start task delegation if it is not running
-			if(taskDelegation == null || !taskDelegation.isAlive())
+			Logger.getLogger(Monitor.class.getName()).log(Level.FINE, "Split task #" + splitOff.getTaskID() + " off task #" + taskID + ".");
+			((SplittableJob)job).addSplitTask(task, splitOff);
+			synchronized(endgameStatisticsLock)
+			{
+				++splitCount;
+			}
+		}
+		else
+		{
+			unsplittableTasks.add(taskID);
+			synchronized(endgameStatisticsLock)
+			{
+				++refusedSplitCount;
+			}
+		}
+		
+		if (reassign && task != null)
+			tasksToReassign.add(task);
+		
+		taskScheduler.wake();
+	}
+	
+	/**
+	 * Triggered when a task queued on a Resource was taken back before it
+	 * started.
+	 */
+	public void resourceTaskRecalled(ResourceEvent e)
+	{
+		returnRecalledTask(e.getTask());
+		
+		taskScheduler.wake();
+	}
+	
+	/**
+	 * Hands a task that was taken back from a resource before it started back
+	 * to its Job, unless it has been completed elsewhere in the meantime.
+	 *
+	 * @param task The task
+	 */
+	private void returnRecalledTask(Task task)
+	{
+		task.setState(TaskState.READY);
+		
+		// If it lost to a replica, it will not finish to show the time saved
+		synchronized(endgameStatisticsLock)
+		{
+			replicaWinTimes.remove(task.getTaskID());
+		}
+		
+		Job job = taskJobs.get(task.getTaskID());
+		if (assignedTasks.get(task.getTaskID()) != null && job != null)
+			storeTask(job, task);
+	}
+	
+	/**
+	 * Hands a task back to its Job.  The tasks in a bundle are handed back one
+	 * at a time: with their own results and state if the bundle completed,
+	 * otherwise ready to run again.
+	 *
+	 * @param job  The Job the task came from
+	 * @param task The task
+	 */
+	private void storeTask(Job job, Task task)
+	{
+		// A split still pending was asked of a resource that has given the task
+		// up without answering
+		synchronized(pendingSplits)
+		{
+			pendingSplits.remove(task.getTaskID());
+			splitDeferredTasks.remove(task.getTaskID());
+		}
+		unsplittableTasks.remove(task.getTaskID());
+		
+		if (task instanceof TaskBundle)
+		{
+			for (Task bundledTask : ((TaskBundle)task).getTasks())
 			{
-				taskDelegation = new TaskDelegationThread();
-				taskDelegation.start();
+				if (task.getState() != TaskState.COMPLETED)
+					bundledTask.setState(TaskState.READY);
+				job.storeTask(bundledTask);
 			}
 		}
+		else
+			job.storeTask(task);
 	}
 	
 	/**
@@ -696,12 +1606,17 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 		{
 			case READY: //if a Job reports that it is ready, begin initial task delegation
 				System.out.println("Job ready at " + dateFmt.format(Calendar.getInstance().getTime()) + ".");
-				if(taskDelegation == null || !taskDelegation.isAlive())
+				JobShare readyShare = jobShares.get(source);
+				if (readyShare != null && availableJobs.remove(source))
 				{
-					taskDelegation = new TaskDelegationThread();
-					taskDelegation.start();
+					synchronized(runningJobs)
+					{
+						runningJobs.add(readyShare);
+					}
 				}
 				
+				taskScheduler.wake();
+				
 				// Start clients
 				startClients();
 				
@@ -712,11 +1627,24 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 				System.out.println(source.getResults());
 				*/
 				
+				JobShare finishedShare = jobShares.remove(source);
+				if (finishedShare == null)
+					break;
+				
+				boolean jobsLeft;
+				synchronized(runningJobs)
+				{
+					runningJobs.remove(finishedShare);
+					jobsLeft = !runningJobs.isEmpty() || !availableJobs.isEmpty();
+				}
+				finishedJobs.offer(source);
+				
 				// Save results to a file
+				String resultsFile = finishedShare.getResultsFile();
 				try
 				{
 					// Open file
-					PrintWriter fOut = new PrintWriter("results.dat");
+					PrintWriter fOut = new PrintWriter(resultsFile);
 				
 					// Write results
 					fOut.println(source.getResults());
@@ -725,15 +1653,27 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 					fOut.close();
 					
 					// Inform user
-					System.out.println("Job results saved to \"results.dat\" at " + dateFmt.format(Calendar.getInstance().getTime()) + ".");
+					System.out.println("Job results saved to \"" + resultsFile + "\" at " + dateFmt.format(Calendar.getInstance().getTime()) + ".");
+					synchronized(assignmentStatisticsLock)
+					{
+						if (assignmentCount > 0)
+							System.out.println("Assigned " + assignmentCount + " tasks, " + (totalAssignmentLatency / assignmentCount / 1000) + " us on average and at most " + (maxAssignmentLatency / 1000) + " us after they could be.");
+					}
+					synchronized(endgameStatisticsLock)
+					{
+						if (replicaCount > 0)
+							System.out.println("Replicated " + replicaCount + " straggling tasks, " + replicaWinCount + " of which finished first, saving at least " + (endgameTimeSaved / 1000000) + " ms for " + (replicaSpend / 1000000) + " ms of duplicate work.");
+						if (splitCount > 0 || refusedSplitCount > 0)
+							System.out.println("Split " + splitCount + " tasks to give idle resources work; " + refusedSplitCount + " requests to split a task were refused.");
+					}
 					
-					// Exit if desired
-					if (exitOnJobResults)
+					// Exit if desired, once every job has its results
+					if (exitOnJobResults && !jobsLeft)
 						System.exit(0);
 				}
 				catch (IOException ex)
 				{
-					System.out.println("Failed to save job results to \"results.dat\" at " + dateFmt.format(Calendar.getInstance().getTime()) + ".");
+					System.out.println("Failed to save job results to \"" + resultsFile + "\" at " + dateFmt.format(Calendar.getInstance().getTime()) + ".");
 				}
 				break;
 		}
@@ -748,15 +1688,21 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 		@Override
 	  public void run()
 	  {
-	  	// Check that there is a current job
-	  	if (currentJob != null)
+	  	// Count the tasks left in the running jobs
+	  	int remainingTasks = 0;
+	  	synchronized (runningJobs)
+	  	{
+	  		for (JobShare share : runningJobs)
+	  			remainingTasks += share.getJob().getRemainingNumberOfTasks();
+	  	}
+	  	
+	  	// Check that there is a running job
+	  	if (remainingTasks > 0 || !tasksToReassign.isEmpty())
 	  	{
-		  	synchronized (currentJob)
-		  	{
 		  		synchronized (unusedClients)
 		  		{
 						// Decide how many clients are needed
-						int startNum = (int)(1.25 * (currentJob.getRemainingNumberOfTasks()+tasksToReassign.size())) - readyResources.size();
+						int startNum = (int)(1.25 * (remainingTasks+tasksToReassign.size())) - readyResources.size();
 						
 						for (; !unusedClients.isEmpty() && startNum > 0; startNum--)
 						{
@@ -789,7 +1735,6 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 							cst.start();
 						}
 					}
-				}
 			}
 		}
 	}
@@ -876,170 +1821,996 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 	}
 
 	/**
-	 * The TaskDelegationThread internal thread is intended to send 
-	 * any available Tasks to any available resources.  When this is 
-	 * finished, the thread terminates itself.
+	 * Returns the number of tasks assigned since the Monitor began.
+	 *
+	 * @return The number of tasks assigned
 	 */
-	protected class TaskDelegationThread extends Thread
+	public long getAssignmentCount()
 	{
-	  private boolean shouldContinue;
-	  
-	  @Override
-	  public void run()
+		synchronized(assignmentStatisticsLock)
 		{
-	  	shouldContinue = true;
-											
-		  //make sure the current job both exists and is ready to be run
-		  if (currentJob != null && (currentJob.getState() == JobState.READY || currentJob.getState() == JobState.RUNNING))
-			{
-				Task currentTask;
-				synchronized(readyResources)
-				{
-					// Check that there is a task to assign and a resource to assign it to
-					while (
-						// Should we continue?
-						shouldContinue &&
-						// Is there a task?
-						(tasksToReassign.size() > 0 || currentJob.hasNextTask()) &&
-						// Is there a ready resource?
-						readyResources.size() > 0
-					)
-					{
-						// Get a resource
-						ServerSideResource currentResource = readyResources.poll();
-						synchronized(currentResource)
-						{
-							//  Keep track of resource ids for the task
-							LinkedList<Integer> resourceIds = null;
-		
-							// Get the next task
-							currentTask = null;
-							if (tasksToReassign.size() > 0)
-							{
-								// If there are no resource ids, it means that
-								// this task was already completed so should
-								// not be reassigned anymore
-								while (resourceIds == null && tasksToReassign.size() > 0)
-								{
-								  currentTask = tasksToReassign.poll();
-								  resourceIds = assignedTasks.get(currentTask.getTaskID());
-							  }
-							}
-							if (currentTask == null && currentJob.hasNextTask())
-							{
-								currentTask = currentJob.getNextReadyTask();
-								resourceIds = new LinkedList<Integer>();
-							}
-							
-							// Break if there are no tasks
-							if (currentTask == null)
-							{
-								// Add resource back to ready resources list
-								readyResources.add(currentResource);
-								break;
-							}
-							
-							// Check that the resource meets the task requrements
-							if (!currentTask.meetsRequirements(currentResource.getClientInfo()))
-							{
-								System.out.println(currentResource.getHostName() + " does not meet task requirements.");
-								
-								// Add this resource back to ready resources
-								readyResources.add(currentResource);
-							}
-							else
-							{	
-								// Check if we should avoid giving this task to this resource
-								for (int i = readyResources.size(); i > 0 && currentResource.shouldAvoidTask(currentTask.getTaskID()); i--)
-								{
-									//System.out.println("Resource #" + currentResource.getResourceID() + " has a bad history with task #" + currentTask.getTaskID() + ".  Try another resource.");
-									
-									// Add this resource back to ready resources
-									readyResources.add(currentResource);
-									
-									// Get next resource
-									currentResource = readyResources.poll();
-								}
-								
-								// If this resource has had previous trouble with this task, also assign it
-								// to another resource.
-								if (
-									currentResource.shouldAvoidTask(currentTask.getTaskID()) &&
-									// Only reassign if this is not already reassigned
-									resourceIds == null
-								)
-									tasksToReassign.add(currentTask);
-								  
-								// Assign that task to a resource
-								currentResource.assignTask(currentTask);
-								
-								// Make sure resource ids list is not null
-								if (resourceIds == null)
-									resourceIds = new LinkedList<Integer>();
-									
-								// Make a note of it in our task -> resource map
-								resourceIds.add((Integer)currentResource.getResourceID());
-								assignedTasks.put((Integer)currentTask.getTaskID(), resourceIds);
-							}
-						}
-					}
-				}
-		  }
+			return assignmentCount;
 		}
-		
-		/**
-		 * Stops the task delegation process midway, after which the thread should
-		 * terminate.
-		 */
-		public void stopTaskDelegation()
+	}
+	
+	/**
+	 * Returns the average time between a task being able to be assigned, because
+	 * both it and a resource to run it were ready, and it being assigned.
+	 *
+	 * @return The average assignment latency in microseconds, or 0 if no tasks
+	 *         have been assigned yet
+	 */
+	public long getMeanAssignmentLatency()
+	{
+		synchronized(assignmentStatisticsLock)
 		{
-			shouldContinue = false;
-			System.out.println("Task delegation cancelled.");
+			return (assignmentCount == 0) ? 0 : totalAssignmentLatency / assignmentCount / 1000;
 		}
 	}
 	
-  public void TasksCancelled(JobEvent e, int[] taskIDs)
+	/**
+	 * Returns the longest time between a task being able to be assigned and it
+	 * being assigned.
+	 *
+	 * @return The largest assignment latency in microseconds
+	 */
+	public long getMaxAssignmentLatency()
 	{
-	  //if the task delegation thread is running, stop it
-	  if(taskDelegation != null && taskDelegation.isAlive())
-		{
-		  try
-			{
-		  	taskDelegation.stopTaskDelegation();
-		  	taskDelegation.join();
-		  }
-			catch (InterruptedException ex)
-			{
-		  	Logger.getLogger(Monitor.class.getName()).log(Level.WARNING, "Failed to stop task delegation before task cancellation.", ex);
-		  }
-	  }
-
-	  // Traverse through the assigned tasks
-	  for(int taskID : taskIDs)
+		synchronized(assignmentStatisticsLock)
 		{
-		  if(resources.containsKey(taskID))
-		  	resources.get(taskID).cancelTask();
-	  }
-  }
-
-  public void AllTasksCancelled(JobEvent e)
+			return maxAssignmentLatency / 1000;
+		}
+	}
+	
+	/**
+	 * Returns the number of straggling tasks copied onto idle resources.
+	 *
+	 * @return The number of replicas
+	 */
+	public long getReplicaCount()
 	{
-		//if the task delegation thread is running, stop it
-		if(taskDelegation != null && taskDelegation.isAlive())
+		synchronized(endgameStatisticsLock)
 		{
-			try
-			{
-				taskDelegation.stopTaskDelegation();
-				taskDelegation.join();
-			}
-			catch (InterruptedException ex)
-			{
-	  	  Logger.getLogger(Monitor.class.getName()).log(Level.WARNING, "Failed to stop task delegation before task cancellation.", ex);
-			}
+			return replicaCount;
 		}
-		
-		// Traverse through the assigned tasks
-		for(int taskId : assignedTasks.keySet())
+	}
+	
+	/**
+	 * Returns the number of replicated tasks whose replica finished first.
+	 *
+	 * @return The number of replicas that won
+	 */
+	public long getReplicaWinCount()
+	{
+		synchronized(endgameStatisticsLock)
+		{
+			return replicaWinCount;
+		}
+	}
+	
+	/**
+	 * Returns how much work was duplicated by replicas: the time each replica
+	 * ran alongside the task it copied, until one of them finished.
+	 *
+	 * @return The time in milliseconds, including replicas still running
+	 */
+	public long getReplicaSpend()
+	{
+		synchronized(endgameStatisticsLock)
+		{
+			return currentReplicaSpend() / 1000000;
+		}
+	}
+	
+	/**
+	 * Returns how much sooner tasks finished for being replicated: for each
+	 * replica that finished first, the time until the task it copied finished
+	 * as well.  Copies that were cancelled before finishing are not counted, so
+	 * this is a lower bound.
+	 *
+	 * @return The time in milliseconds
+	 */
+	public long getEndgameTimeSaved()
+	{
+		synchronized(endgameStatisticsLock)
+		{
+			return endgameTimeSaved / 1000000;
+		}
+	}
+	
+	/**
+	 * Returns the number of tasks split to give idle resources work.
+	 *
+	 * @return The number of splits
+	 */
+	public long getSplitCount()
+	{
+		synchronized(endgameStatisticsLock)
+		{
+			return splitCount;
+		}
+	}
+	
+	/**
+	 * Returns the duplicate work of replicas, counting those still running up to
+	 * now.  Must be called holding the endgame statistics lock.
+	 *
+	 * @return The time in nanoseconds
+	 */
+	private long currentReplicaSpend()
+	{
+		long spend = replicaSpend;
+		long now = System.nanoTime();
+		for (long start : replicaStartTimes.values())
+			spend += now - start;
+		
+		return spend;
+	}
+	
+	/**
+	 * The TaskSchedulerThread internal thread sends any available Tasks to any
+	 * available resources.  It runs for the life of the Monitor, sleeping until
+	 * it is woken by something that could let a task be assigned: a resource
+	 * becoming ready, a task timing out or a job becoming ready.
+	 *
+	 * Wake-ups are queued rather than flagged, so one that arrives while the
+	 * scheduler is busy is never lost; any that pile up are handled together.
+	 */
+	protected class TaskSchedulerThread extends Thread
+	{
+		/**
+		 * When each wake-up that has not been handled yet arrived, from
+		 * <code>System.nanoTime()</code>
+		 */
+		private LinkedBlockingQueue<Long> wakeUps = new LinkedBlockingQueue<Long>();
+		
+		/**
+		 * Held while tasks are being assigned
+		 */
+		private final Object assignmentLock = new Object();
+		
+		/**
+		 * Set to stop assigning tasks midway
+		 */
+		private volatile boolean cancelled = false;
+		
+		/**
+		 * The position in runningJobs of the job whose turn it is
+		 */
+		private int jobCursor = 0;
+		
+		/**
+		 * Wakes the scheduler when a task that was held back from preemption by
+		 * the cooldown may be preempted again, or null if none is pending
+		 */
+		private HashedWheelTimer.Timeout cooldownWakeUp = null;
+		
+		/**
+		 * Wakes the scheduler when a running task will have run long enough to be
+		 * replicated, or null if none is pending
+		 */
+		private HashedWheelTimer.Timeout endgameWakeUp = null;
+		
+		public TaskSchedulerThread()
+		{
+			super("Task scheduler");
+			
+			setDaemon(true);
+		}
+		
+		/**
+		 * Asks the scheduler to assign whatever tasks it can.
+		 */
+		public void wake()
+		{
+			wakeUps.add(System.nanoTime());
+		}
+		
+		@Override
+		public void run()
+		{
+			ArrayList<Long> pending = new ArrayList<Long>();
+			
+			while (true)
+			{
+				try
+				{
+					pending.add(wakeUps.take());
+				}
+				catch (InterruptedException ex)
+				{
+					return;
+				}
+				wakeUps.drainTo(pending);
+				
+				synchronized(assignmentLock)
+				{
+					try
+					{
+						handleTimeouts();
+						
+						// The earliest wake-up is the one that has waited longest
+						assignTasks(pending.get(0));
+					}
+					catch (RuntimeException ex)
+					{
+						Logger.getLogger(Monitor.class.getName()).log(Level.WARNING, "Error assigning tasks.", ex);
+					}
+				}
+				pending.clear();
+			}
+		}
+		
+		/**
+		 * Assigns tasks until either there are no tasks or no ready resources left.
+		 *
+		 * @param wakeTime When the scheduler was woken, from <code>System.nanoTime()</code>
+		 */
+		private void assignTasks(long wakeTime)
+		{
+			// Forget tasks that could not be placed if their job has finished
+			for (Iterator<Task> i = unplacedTasks.iterator(); i.hasNext(); )
+			{
+				Job job = taskJobs.get(i.next().getTaskID());
+				if (job == null || !jobShares.containsKey(job))
+					i.remove();
+			}
+			
+			// Try the tasks that could not be placed last time once each
+			for (int i = unplacedTasks.size(); i > 0 && !cancelled && hasRoom(); i--)
+			{
+				Task task = unplacedTasks.poll();
+				if (!assignTask(task, new LinkedList<Integer>(), false, wakeTime))
+					unplacedTasks.add(task);
+			}
+			
+			// Tasks to reassign that nothing ready can run, and jobs whose next task
+			// nothing ready can run.  Both wait for another resource.
+			LinkedList<Task> deferredTasks = new LinkedList<Task>();
+			HashSet<JobShare> blockedJobs = new HashSet<JobShare>();
+			
+			while (!cancelled && hasRoom())
+			{
+				// Tasks to reassign go first, unless a job has more urgent ones.  If
+				// there are no resource ids, it means that the task was already
+				// completed so should not be reassigned
+				int jobPriority = highestJobPriority(blockedJobs);
+				Task task = null;
+				LinkedList<Integer> resourceIds = null;
+				while (resourceIds == null && !tasksToReassign.isEmpty() && tasksToReassign.peek().getPriority() >= jobPriority)
+				{
+					task = tasksToReassign.poll();
+					resourceIds = assignedTasks.get(task.getTaskID());
+				}
+				
+				if (resourceIds != null)
+				{
+					if (!assignTask(task, resourceIds, true, wakeTime))
+						deferredTasks.add(task);
+					continue;
+				}
+				
+				// Otherwise take a new task from whichever job's turn it is
+				JobShare share = nextJobShare(blockedJobs);
+				if (share == null)
+					break;
+				
+				// Urgent tasks are never queued, and less urgent jobs wait for them
+				if (share.getPriority() >= preemptionThreshold && readyResources.isEmpty() && slotResources.isEmpty())
+				{
+					share.refund(1);
+					break;
+				}
+				
+				task = share.getJob().getNextReadyTask();
+				if (task == null)
+				{
+					blockedJobs.add(share);
+					continue;
+				}
+				taskJobs.put(task.getTaskID(), share.getJob());
+				
+				// Tasks take on their job's priority, unless theirs is higher
+				if (task.getPriority() < share.getPriority())
+					task.setPriority(share.getPriority());
+				
+				task = bundle(share, task);
+				
+				if (!assignTask(task, new LinkedList<Integer>(), false, wakeTime))
+				{
+					unplacedTasks.add(task);
+					blockedJobs.add(share);
+					share.refund(1);
+				}
+			}
+			
+			tasksToReassign.addAll(deferredTasks);
+			
+			if (!cancelled && !readyResources.isEmpty())
+				splitLargestTasks();
+			
+			if (!cancelled && readyResources.size() > pendingSplits.size())
+				replicateStragglers(wakeTime);
+			
+			if (!cancelled && readyResources.isEmpty())
+				preemptTasks(blockedJobs);
+		}
+		
+		/**
+		 * Copies the straggling tasks of Jobs in their endgame onto idle
+		 * resources.  A Job is in its endgame once it has handed out all of its
+		 * tasks and fewer of them are still running than there are idle
+		 * resources.  Its tasks that have run for longer than its tasks usually
+		 * take are copied, longest running first, as long as the duplicate work
+		 * stays within the endgame spend limit.  Each task is copied once; the
+		 * first copy to finish is used and the other is cancelled.  Tasks with
+		 * enough work left to split are split instead.
+		 *
+		 * @param wakeTime When the scheduler was woken, from <code>System.nanoTime()</code>
+		 */
+		private void replicateStragglers(long wakeTime)
+		{
+			if (endgameSpendLimit <= 0)
+				return;
+			
+			ArrayList<Task> tasks;
+			synchronized(outstandingTasks)
+			{
+				tasks = new ArrayList<Task>(outstandingTasks.values());
+			}
+			
+			// Find the tasks running on a single resource of Jobs with none left
+			// to hand out
+			HashMap<JobShare, ArrayList<Task>> stragglers = new HashMap<JobShare, ArrayList<Task>>();
+			for (Task task : tasks)
+			{
+				Job job = taskJobs.get(task.getTaskID());
+				JobShare share = (job != null) ? jobShares.get(job) : null;
+				if (share == null)
+				{
+					// Its Job has finished without it
+					outstandingTasks.remove(task.getTaskID());
+					assignmentTimes.remove(task.getTaskID());
+					continue;
+				}
+				if (share.hasTasks())
+					continue;
+				
+				// A copy sent while it is being split would do the split-off work
+				// too, and a task with work to spare is better split than copied
+				if (pendingSplits.containsKey(task.getTaskID()) || worthSplitting(task, share, System.nanoTime()))
+					continue;
+				
+				LinkedList<Integer> resourceIds = assignedTasks.get(task.getTaskID());
+				ServerSideResource resource = (resourceIds != null && resourceIds.size() == 1) ? resources.get(resourceIds.getFirst()) : null;
+				if (resource == null || !resource.hasTask(task.getTaskID()))
+					continue;
+				
+				ArrayList<Task> jobTasks = stragglers.get(share);
+				if (jobTasks == null)
+				{
+					jobTasks = new ArrayList<Task>();
+					stragglers.put(share, jobTasks);
+				}
+				jobTasks.add(task);
+			}
+			
+			long now = System.nanoTime();
+			long nextCheck = Long.MAX_VALUE;
+			for (Map.Entry<JobShare, ArrayList<Task>> entry : stragglers.entrySet())
+			{
+				ArrayList<Task> jobTasks = entry.getValue();
+				if (jobTasks.size() >= readyResources.size())
+					continue;
+				
+				// Longest running first
+				Collections.sort(jobTasks, new Comparator<Task>()
+				{
+					public int compare(Task a, Task b)
+					{
+						long difference = assignmentTime(a) - assignmentTime(b);
+						return (difference < 0) ? -1 : ((difference > 0) ? 1 : 0);
+					}
+				});
+				
+				JobShare share = entry.getKey();
+				for (Task task : jobTasks)
+				{
+					// Resources waiting for split-off tasks are not free to run replicas
+					if (cancelled || readyResources.size() <= pendingSplits.size() || !withinEndgameSpendLimit())
+						return;
+					
+					// Tasks that have not run for as long as usual are not straggling yet
+					long straggleTime = assignmentTime(task) + (long)share.estimateRunTime(task, false);
+					if (straggleTime > now)
+					{
+						nextCheck = Math.min(nextCheck, straggleTime);
+						continue;
+					}
+					
+					LinkedList<Integer> resourceIds = assignedTasks.get(task.getTaskID());
+					if (resourceIds != null)
+						replicate(task, resourceIds, wakeTime);
+				}
+			}
+			
+			// Look again once the next task has run long enough to be copied
+			if (nextCheck != Long.MAX_VALUE && (endgameWakeUp == null || endgameWakeUp.isExpired()))
+			{
+				endgameWakeUp = HashedWheelTimer.getServerTimer().schedule(new Runnable()
+				{
+					public void run()
+					{
+						wake();
+					}
+				}, (nextCheck - now) / 1000000 + 1);
+			}
+		}
+		
+		/**
+		 * Splits the largest tasks that resources are running or have queued, so
+		 * that idle resources can share their work.  Only tasks of Jobs with none
+		 * left to hand out are split, since otherwise the idle resources would
+		 * have been given those, and only tasks running on a single resource that
+		 * are expected to have at least the minimum split time of work left.
+		 * One task is split for each idle resource that no pending split will
+		 * give work to.  Each split-off task joins its Job, to be assigned like
+		 * any other, once the resource running the task agrees to the split.
+		 */
+		private void splitLargestTasks()
+		{
+			int wanted = readyResources.size() - pendingSplits.size();
+			if (wanted <= 0)
+				return;
+			
+			ArrayList<Task> tasks;
+			synchronized(outstandingTasks)
+			{
+				tasks = new ArrayList<Task>(outstandingTasks.values());
+			}
+			
+			// Largest first, by their costs now, since answers to earlier splits
+			// can shrink them while they are sorted
+			final HashMap<Task, Double> costs = new HashMap<Task, Double>();
+			for (Task task : tasks)
+				costs.put(task, task.getCostEstimate());
+			Collections.sort(tasks, new Comparator<Task>()
+			{
+				public int compare(Task a, Task b)
+				{
+					int byCost = Double.compare(costs.get(b), costs.get(a));
+					return (byCost != 0) ? byCost : ((a.getTaskID() < b.getTaskID()) ? -1 : ((a.getTaskID() > b.getTaskID()) ? 1 : 0));
+				}
+			});
+			
+			long now = System.nanoTime();
+			for (Task task : tasks)
+			{
+				if (cancelled || wanted <= 0)
+					return;
+				
+				if (pendingSplits.containsKey(task.getTaskID()))
+					continue;
+				
+				Job job = taskJobs.get(task.getTaskID());
+				JobShare share = (job != null) ? jobShares.get(job) : null;
+				if (share == null || share.hasTasks() || !worthSplitting(task, share, now))
+					continue;
+				
+				// A task copied onto another resource would do the split-off work there
+				LinkedList<Integer> resourceIds = assignedTasks.get(task.getTaskID());
+				ServerSideResource resource = (resourceIds != null && resourceIds.size() == 1) ? resources.get(resourceIds.getFirst()) : null;
+				if (resource == null)
+					continue;
+				
+				Task splitOff = ((SplittableTask)task).createSplit();
+				if (splitOff == null)
+				{
+					unsplittableTasks.add(task.getTaskID());
+					continue;
+				}
+				
+				pendingSplits.put(task.getTaskID(), splitOff);
+				if (resource.splitTask(task, splitOff))
+					wanted--;
+				else
+					pendingSplits.remove(task.getTaskID());
+			}
+		}
+		
+		/**
+		 * Returns whether a task could be split, and is expected to have enough
+		 * work left for it to be worth it.  Tasks of Jobs with no run times yet
+		 * are judged by their size alone.
+		 *
+		 * @param task  The task
+		 * @param share The share of the task's Job
+		 * @param now   The time, from <code>System.nanoTime()</code>
+		 */
+		private boolean worthSplitting(Task task, JobShare share, long now)
+		{
+			if (!(task instanceof SplittableTask) || !(share.getJob() instanceof SplittableJob) || unsplittableTasks.contains(task.getTaskID()))
+				return false;
+			
+			double runTime = share.estimateRunTime(task, false);
+			return runTime <= 0 || assignmentTime(task) + runTime - now >= MIN_SPLIT_TIME * 1000000;
+		}
+		
+		/**
+		 * Copies a task onto a ready resource, alongside the resource already
+		 * running it.
+		 *
+		 * @param task        The task
+		 * @param resourceIds The ids of the resources the task is already assigned to
+		 * @param wakeTime    When the scheduler was woken, from <code>System.nanoTime()</code>
+		 * @return true if the task was copied, false if no ready resource could take it
+		 */
+		private boolean replicate(Task task, LinkedList<Integer> resourceIds, long wakeTime)
+		{
+			double cost = task.getCostEstimate();
+			
+			ServerSideResource resource;
+			while ((resource = takeResourceFor(task, cost)) != null)
+			{
+				synchronized(resource)
+				{
+					// It may have stopped being ready
+					adaptTimeout(task, resource);
+					if (!resource.assignTask(task))
+						continue;
+				}
+				
+				Logger.getLogger(Monitor.class.getName()).log(Level.FINE, "Replicating straggling task #" + task.getTaskID() + " on resource #" + resource.getResourceID() + ".");
+				
+				recordAssignment(task, resource, resourceIds, Math.max(wakeTime, resource.getReadyTime()));
+				synchronized(endgameStatisticsLock)
+				{
+					++replicaCount;
+					replicaStartTimes.put(task.getTaskID(), System.nanoTime());
+					replicaResourceIds.put(task.getTaskID(), resource.getResourceID());
+				}
+				return true;
+			}
+			
+			return false;
+		}
+		
+		/**
+		 * Returns whether more duplicate work may be spent on replicas.
+		 */
+		private boolean withinEndgameSpendLimit()
+		{
+			synchronized(endgameStatisticsLock)
+			{
+				return currentReplicaSpend() <= endgameSpendLimit * totalRunTime;
+			}
+		}
+		
+		/**
+		 * Returns when a task was last assigned afresh, from <code>System.nanoTime()</code>.
+		 */
+		private long assignmentTime(Task task)
+		{
+			Long time = assignmentTimes.get(task.getTaskID());
+			return (time != null) ? time : System.nanoTime();
+		}
+		
+		/**
+		 * Bundles more of a job's tasks with one just taken from it, if the job's
+		 * tasks are short enough for the cost of sending each one to matter.  The
+		 * bundle is sized to run for about the bundle target time, going by how
+		 * long the job's tasks have taken so far, but small enough to leave every
+		 * resource at least two bundles of the job's remaining tasks.  A bundle
+		 * counts as a single task for fair sharing, since it takes about as long
+		 * to run as an ordinary one.
+		 *
+		 * @param share The job's share
+		 * @param task  The task taken from the job
+		 * @return The bundle, or the task itself if it is not worth bundling
+		 */
+		private Task bundle(JobShare share, Task task)
+		{
+			long meanRunTime = share.getMeanRunTime();
+			if (bundleTargetTime <= 0 || meanRunTime <= 0 || task instanceof FileTransferTask)
+				return task;
+			
+			Job job = share.getJob();
+			long size = Math.min(bundleTargetTime * 1000000 / meanRunTime, MAX_BUNDLE_SIZE);
+			size = Math.min(size, job.getRemainingNumberOfTasks() / (2 * Math.max(1, resources.size())));
+			
+			ArrayList<Task> tasks = new ArrayList<Task>();
+			tasks.add(task);
+			int timeout = task.getTimeout();
+			
+			while (tasks.size() < size)
+			{
+				Task nextTask = job.getNextReadyTask();
+				if (nextTask == null)
+					break;
+				
+				if (nextTask.getPriority() < share.getPriority())
+					nextTask.setPriority(share.getPriority());
+				
+				// A task that cannot share the bundle is placed on its own
+				if (nextTask instanceof FileTransferTask || !nextTask.getRequirements().equals(task.getRequirements()))
+				{
+					taskJobs.put(nextTask.getTaskID(), job);
+					unplacedTasks.add(nextTask);
+					break;
+				}
+				
+				tasks.add(nextTask);
+				timeout = Math.max(timeout, nextTask.getTimeout());
+			}
+			
+			if (tasks.size() == 1)
+				return task;
+			
+			// Allow for the bundle taking twice as long as expected, on top of the
+			// longest timeout of its tasks
+			long expectedRunTime = tasks.size() * meanRunTime / 1000000;
+			TaskBundle taskBundle = new TaskBundle(tasks, (int)Math.min(Integer.MAX_VALUE, timeout + 2 * expectedRunTime));
+			
+			taskJobs.remove(task.getTaskID());
+			taskJobs.put(taskBundle.getTaskID(), job);
+			
+			return taskBundle;
+		}
+		
+		/**
+		 * Returns whether any resource can take a task, either because it is
+		 * ready or because it has a free slot or room to queue one.
+		 */
+		private boolean hasRoom()
+		{
+			return !readyResources.isEmpty() || !slotResources.isEmpty() || !prefetchResources.isEmpty();
+		}
+		
+		/**
+		 * Returns the highest priority of the jobs that have a task to run.
+		 *
+		 * @param blockedJobs Jobs to pass over
+		 * @return The priority, or Integer.MIN_VALUE if no job has a task to run
+		 */
+		private int highestJobPriority(Set<JobShare> blockedJobs)
+		{
+			int priority = Integer.MIN_VALUE;
+			
+			synchronized(runningJobs)
+			{
+				for (JobShare share : runningJobs)
+				{
+					if (share.getPriority() > priority && !blockedJobs.contains(share) && share.hasTasks())
+						priority = share.getPriority();
+				}
+			}
+			
+			return priority;
+		}
+		
+		/**
+		 * Cancels running tasks to make room for waiting tasks whose priority is at
+		 * least the preemption threshold.  The lowest priority tasks are cancelled
+		 * first, and of those the most recently started, so the least work is lost.
+		 * Tasks that were preempted within the cooldown, and tasks running on more
+		 * than one resource, are left alone.
+		 *
+		 * The cancelled tasks go back to their jobs, and the resources are given the
+		 * urgent tasks when they report that they are ready again.
+		 *
+		 * @param blockedJobs Jobs whose tasks no resource can run
+		 */
+		private void preemptTasks(Set<JobShare> blockedJobs)
+		{
+			int threshold = preemptionThreshold;
+			
+			// Count the urgent tasks that are waiting, and find the lowest priority
+			// among them; only tasks below it may be preempted
+			int urgentTasks = 0;
+			int urgentPriority = Integer.MAX_VALUE;
+			synchronized(runningJobs)
+			{
+				for (JobShare share : runningJobs)
+				{
+					if (share.getPriority() >= threshold && !blockedJobs.contains(share) && share.hasTasks())
+					{
+						urgentTasks += share.getJob().getRemainingNumberOfTasks();
+						urgentPriority = Math.min(urgentPriority, share.getPriority());
+					}
+				}
+			}
+			for (Task task : tasksToReassign)
+			{
+				if (task.getPriority() >= threshold)
+				{
+					++urgentTasks;
+					urgentPriority = Math.min(urgentPriority, task.getPriority());
+				}
+			}
+			
+			// Resources already being preempted will take some of them
+			urgentTasks -= preemptingResources.size();
+			if (urgentTasks <= 0)
+				return;
+			
+			ArrayList<ServerSideResource> candidates = new ArrayList<ServerSideResource>();
+			long now = System.currentTimeMillis();
+			long cooldownEnd = Long.MAX_VALUE;
+			synchronized(resources)
+			{
+				for (ServerSideResource resource : resources.values())
+				{
+					Task task = resource.getCurrentTask();
+					if (task == null || resource.getState() != ResourceState.RUNNING_TASK || task.getPriority() >= urgentPriority)
+						continue;
+					
+					LinkedList<Integer> resourceIds = assignedTasks.get(task.getTaskID());
+					Long lastPreempted = preemptedTasks.get(task.getTaskID());
+					if (
+						resourceIds == null || resourceIds.size() != 1 ||
+						preemptingResources.contains(resource.getResourceID())
+					)
+						continue;
+					
+					if (lastPreempted != null && now - lastPreempted < preemptionCooldown)
+					{
+						cooldownEnd = Math.min(cooldownEnd, lastPreempted + preemptionCooldown);
+						continue;
+					}
+					
+					candidates.add(resource);
+				}
+			}
+			
+			Collections.sort(candidates, new Comparator<ServerSideResource>()
+			{
+				public int compare(ServerSideResource a, ServerSideResource b)
+				{
+					int aPriority = a.getCurrentTask().getPriority();
+					int bPriority = b.getCurrentTask().getPriority();
+					if (aPriority != bPriority)
+						return (aPriority < bPriority) ? -1 : 1;
+					
+					// Most recently ready, and so most recently started, first
+					long difference = b.getReadyTime() - a.getReadyTime();
+					return (difference < 0) ? -1 : ((difference > 0) ? 1 : 0);
+				}
+			});
+			
+			for (int i = 0; i < candidates.size() && i < urgentTasks && !cancelled; i++)
+			{
+				ServerSideResource resource = candidates.get(i);
+				Task task = resource.getCurrentTask();
+				if (task == null)
+					continue;
+				
+				Logger.getLogger(Monitor.class.getName()).log(Level.INFO, "Preempting task #" + task.getTaskID() + " on resource #" + resource.getResourceID() + " for more urgent work.");
+				
+				preemptedTasks.put(task.getTaskID(), now);
+				preemptingResources.add(resource.getResourceID());
+				resource.preemptTask();
+			}
+			
+			// Nothing else may wake the scheduler while the urgent tasks wait, so
+			// look again once the cooldown is over
+			if (candidates.size() < urgentTasks && cooldownEnd != Long.MAX_VALUE && (cooldownWakeUp == null || cooldownWakeUp.isExpired()))
+			{
+				cooldownWakeUp = HashedWheelTimer.getServerTimer().schedule(new Runnable()
+				{
+					public void run()
+					{
+						wake();
+					}
+				}, cooldownEnd - now);
+			}
+		}
+		
+		/**
+		 * Picks the job to take the next task from, by weighted deficit round robin
+		 * among the jobs with the highest priority.  Each job is given its weight in tasks when its turn comes round, and keeps
+		 * its turn until it has used them up or runs out of tasks.
+		 *
+		 * @param blockedJobs Jobs to pass over
+		 * @return The job's share, or null if no job has a task to run
+		 */
+		private JobShare nextJobShare(Set<JobShare> blockedJobs)
+		{
+			// Only jobs with the highest priority get a turn
+			int priority = highestJobPriority(blockedJobs);
+			
+			synchronized(runningJobs)
+			{
+				// Two rounds are enough: one to finish the current turn, one to find
+				// any job with a task
+				for (int i = 2 * runningJobs.size(); i > 0; i--)
+				{
+					if (jobCursor >= runningJobs.size())
+						jobCursor = 0;
+					
+					JobShare share = runningJobs.get(jobCursor);
+					if (share.getPriority() < priority)
+					{
+						// Waits for more urgent jobs to run out of tasks
+					}
+					else if (!blockedJobs.contains(share) && share.hasTasks())
+					{
+						if (share.charge(1))
+							return share;
+					}
+					else
+						share.forfeit();
+					
+					++jobCursor;
+				}
+			}
+			
+			return null;
+		}
+		
+		/**
+		 * Assigns a task to the best ready resource that meets its requirements.
+		 * If none is ready, the task is packed into the free execution slots of a
+		 * busy resource, or failing that queued behind the running task of one,
+		 * which starts it the moment it finishes.  Urgent tasks are never queued;
+		 * they wait for a ready resource or free slot, or preempt a running task.
+		 *
+		 * @param task        The task to assign
+		 * @param resourceIds The ids of the resources the task is already assigned to
+		 * @param reassigning Whether the task is already running elsewhere
+		 * @param wakeTime    When the scheduler was woken, from <code>System.nanoTime()</code>
+		 * @return true if the task was assigned, false if no resource could take it
+		 */
+		private boolean assignTask(Task task, LinkedList<Integer> resourceIds, boolean reassigning, long wakeTime)
+		{
+			// Some estimates take a while to work out, so this is the only one
+			double cost = task.getCostEstimate();
+			
+			ServerSideResource resource;
+			while ((resource = takeResourceFor(task, cost)) != null)
+			{
+				synchronized(resource)
+				{
+					// If this resource has had previous trouble with this task, also assign it
+					// to another resource.
+					if (resource.shouldAvoidTask(task.getTaskID()) && !reassigning)
+						tasksToReassign.add(task);
+					
+					// Assign that task to the resource; it may have stopped being ready
+					adaptTimeout(task, resource);
+					if (!resource.assignTask(task))
+						continue;
+				}
+				
+				recordAssignment(task, resource, resourceIds, Math.max(wakeTime, resource.getReadyTime()));
+				return true;
+			}
+			
+			while ((resource = slotResources.takeBestFit(task)) != null)
+			{
+				if (resource.shouldAvoidTask(task.getTaskID()) && !reassigning)
+					tasksToReassign.add(task);
+				
+				// It may have stopped running its task
+				adaptTimeout(task, resource);
+				boolean assigned = resource.runTaskInSlot(task);
+				
+				// Keep offering it while it has free slots
+				if (resource.hasFreeSlot())
+					slotResources.add(resource);
+				
+				if (!assigned)
+					continue;
+				
+				recordAssignment(task, resource, resourceIds, wakeTime);
+				return true;
+			}
+			
+			if (task.getPriority() >= preemptionThreshold)
+				return false;
+			
+			while ((resource = prefetchResources.take(task, cost)) != null)
+			{
+				if (resource.shouldAvoidTask(task.getTaskID()) && !reassigning)
+					tasksToReassign.add(task);
+				
+				// It may have stopped running its task
+				adaptTimeout(task, resource);
+				if (!resource.queueTask(task))
+					continue;
+				
+				// Keep offering it while it has room for more
+				if (resource.canQueueTask())
+					prefetchResources.add(resource);
+				
+				recordAssignment(task, resource, resourceIds, wakeTime);
+				return true;
+			}
+			
+			return false;
+		}
+		
+		/**
+		 * Makes a note of a task's assignment in the task -> resource map and the
+		 * assignment latency statistics.
+		 *
+		 * @param task        The task assigned
+		 * @param resource    The resource it was assigned to
+		 * @param resourceIds The ids of the resources the task is already assigned to
+		 * @param since       When the task could first have been assigned, from
+		 *                    <code>System.nanoTime()</code>
+		 */
+		private void recordAssignment(Task task, ServerSideResource resource, LinkedList<Integer> resourceIds, long since)
+		{
+			resourceIds.add((Integer)resource.getResourceID());
+			assignedTasks.put((Integer)task.getTaskID(), resourceIds);
+			
+			// Straggling is measured from when the task was last assigned afresh
+			outstandingTasks.put(task.getTaskID(), task);
+			if (resourceIds.size() == 1 || !assignmentTimes.containsKey(task.getTaskID()))
+				assignmentTimes.put(task.getTaskID(), System.nanoTime());
+			
+			long latency = System.nanoTime() - since;
+			synchronized(assignmentStatisticsLock)
+			{
+				++assignmentCount;
+				totalAssignmentLatency += latency;
+				maxAssignmentLatency = Math.max(maxAssignmentLatency, latency);
+			}
+		}
+		
+		/**
+		 * Takes a ready resource that meets a task's requirements, preferring ones
+		 * that have not had trouble with it and are less loaded.
+		 *
+		 * @param task The task to find a resource for
+		 * @param cost The task's cost estimate
+		 * @return The resource, or null if no ready resource meets the requirements
+		 */
+		private ServerSideResource takeResourceFor(Task task, double cost)
+		{
+			ServerSideResource resource = readyResources.take(task, cost);
+			
+			if (resource == null)
+				Logger.getLogger(Monitor.class.getName()).log(Level.FINE, "No ready resource meets the requirements of task " + task.getTaskID() + ".");
+			
+			return resource;
+		}
+		
+		/**
+		 * Stops the task assignment in progress, if any, and waits for it to finish.
+		 * The scheduler carries on when it is next woken.
+		 */
+		public void cancelAssignment()
+		{
+			cancelled = true;
+			synchronized(assignmentLock)
+			{
+				cancelled = false;
+			}
+			System.out.println("Task delegation cancelled.");
+		}
+	}
+	
+  public void TasksCancelled(JobEvent e, int[] taskIDs)
+	{
+	  //stop any task assignment in progress
+	  taskScheduler.cancelAssignment();
+
+	  // Traverse through the assigned tasks
+	  for(int taskID : taskIDs)
+		{
+		  if(resources.containsKey(taskID))
+		  	resources.get(taskID).cancelTask();
+	  }
+  }
+
+  public void AllTasksCancelled(JobEvent e)
+	{
+		//stop any task assignment in progress
+		taskScheduler.cancelAssignment();
+		
+		// Traverse through the assigned tasks
+		for(int taskId : assignedTasks.keySet())
 		{
 			// Get the resource ids assigned for this task
 			LinkedList<Integer> resourceIds = assignedTasks.get(taskId);
@@ -1052,4 +2823,288 @@ public class Monitor implements ResourceDiscoveryEventListener, ClientCommandCon
 			}
 		}
   }
+	
+	/**
+	 * A task that timed out, waiting for the scheduler to reassign it
+	 */
+	protected static class TimedOutTask
+	{
+		/**
+		 * The resource the task timed out on
+		 */
+		private final ServerSideResource source;
+		
+		/**
+		 * The task
+		 */
+		private final Task task;
+		
+		/**
+		 * Whether the task was running in one of the resource's extra slots,
+		 * rather than being its current task
+		 */
+		private final boolean inSlot;
+		
+		/**
+		 * Creates a timed out task.
+		 *
+		 * @param source The resource the task timed out on
+		 * @param task   The task
+		 * @param inSlot Whether the task was running in an extra slot
+		 */
+		public TimedOutTask(ServerSideResource source, Task task, boolean inSlot)
+		{
+			this.source = source;
+			this.task = task;
+			this.inSlot = inSlot;
+		}
+	}
+	
+	/**
+	 * A running Job's share of the grid, and how much of it the Job has left in
+	 * the current round of the weighted deficit round robin.
+	 */
+	protected static class JobShare
+	{
+		/**
+		 * The Job
+		 */
+		private final Job job;
+		
+		/**
+		 * The number of tasks the Job is given each round
+		 */
+		private final int weight;
+		
+		/**
+		 * The priority of the Job's tasks
+		 */
+		private final int priority;
+		
+		/**
+		 * The file the Job's results are saved to
+		 */
+		private final String resultsFile;
+		
+		/**
+		 * The number of tasks the Job may still take this turn
+		 */
+		private long deficit = 0;
+		
+		/**
+		 * Whether it is currently the Job's turn
+		 */
+		private boolean hasTurn = false;
+		
+		/**
+		 * A moving average of how long the Job's tasks take to run, in
+		 * nanoseconds, or 0 if none has completed yet
+		 */
+		private long meanRunTime = 0;
+		
+		/**
+		 * How long the Job's tasks take to run, for timing them out
+		 */
+		private final RunTimeDistribution runTimes = new RunTimeDistribution();
+		
+		/**
+		 * How long the Job's tasks take to run per unit of their cost estimates,
+		 * for those that have one
+		 */
+		private final RunTimeDistribution costRunTimes = new RunTimeDistribution();
+		
+		public JobShare(Job job, int weight, int priority, String resultsFile)
+		{
+			this.job = job;
+			this.weight = weight;
+			this.priority = priority;
+			this.resultsFile = resultsFile;
+		}
+		
+		public Job getJob()
+		{
+			return job;
+		}
+		
+		public int getWeight()
+		{
+			return weight;
+		}
+		
+		public int getPriority()
+		{
+			return priority;
+		}
+		
+		public String getResultsFile()
+		{
+			return resultsFile;
+		}
+		
+		/**
+		 * Returns whether the Job is running and has a task ready.
+		 */
+		public boolean hasTasks()
+		{
+			JobState state = job.getState();
+			return (state == JobState.READY || state == JobState.RUNNING) && job.hasNextTask();
+		}
+		
+		/**
+		 * Takes tasks from the Job's share, starting its turn if it does not have it.
+		 *
+		 * @param cost The number of tasks taken
+		 * @return true if the Job had enough left, false if its turn is over
+		 */
+		public boolean charge(long cost)
+		{
+			if (!hasTurn)
+			{
+				deficit += weight;
+				hasTurn = true;
+			}
+			
+			if (deficit >= cost)
+			{
+				deficit -= cost;
+				return true;
+			}
+			
+			hasTurn = false;
+			return false;
+		}
+		
+		/**
+		 * Gives back tasks that were charged for but not run.
+		 *
+		 * @param cost The number of tasks to give back
+		 */
+		public void refund(long cost)
+		{
+			deficit += cost;
+		}
+		
+		/**
+		 * Takes note of how long some of the Job's tasks took to run.
+		 *
+		 * @param runTime How long they took together, in nanoseconds
+		 * @param tasks   The number of tasks
+		 */
+		public synchronized void recordRunTime(long runTime, int tasks)
+		{
+			if (runTime < 0 || tasks <= 0)
+				return;
+			
+			// Recent tasks count for a quarter
+			long taskRunTime = Math.max(1, runTime / tasks);
+			meanRunTime = (meanRunTime == 0) ? taskRunTime : (3 * meanRunTime + taskRunTime) / 4;
+		}
+		
+		/**
+		 * Returns how long the Job's tasks take to run, on average.
+		 *
+		 * @return The time in nanoseconds, or 0 if no task has completed yet
+		 */
+		public synchronized long getMeanRunTime()
+		{
+			return meanRunTime;
+		}
+		
+		/**
+		 * Returns how long the Job's tasks take to run.
+		 *
+		 * @return The distribution of their run times
+		 */
+		public RunTimeDistribution getRunTimes()
+		{
+			return runTimes;
+		}
+		
+		/**
+		 * Returns how long the Job's tasks take to run per unit of their cost
+		 * estimates.
+		 *
+		 * @return The distribution of their run times per unit of cost
+		 */
+		public RunTimeDistribution getCostRunTimes()
+		{
+			return costRunTimes;
+		}
+		
+		/**
+		 * Returns how long one of the Job's tasks should take: from the run times
+		 * per unit of cost if it has a cost estimate, otherwise from the run times
+		 * of the Job's tasks.
+		 *
+		 * @param task The task
+		 * @param tail Whether to give the 99th percentile, rather than the median
+		 * @return The time in nanoseconds, or 0 if too few tasks have completed
+		 */
+		public double estimateRunTime(Task task, boolean tail)
+		{
+			double cost = task.getCostEstimate();
+			if (cost > 0)
+			{
+				double costRunTime = tail ? costRunTimes.getTail() : costRunTimes.getMedian();
+				if (costRunTime > 0)
+					return cost * costRunTime;
+			}
+			
+			int tasks = (task instanceof TaskBundle) ? ((TaskBundle)task).size() : 1;
+			return tasks * (tail ? runTimes.getTail() : runTimes.getMedian());
+		}
+		
+		/**
+		 * Ends the Job's turn and discards what is left of its share, since it has
+		 * nothing to run.
+		 */
+		public void forfeit()
+		{
+			deficit = 0;
+			hasTurn = false;
+		}
+	}
+	
+	/**
+	 * Streaming estimates of the median and 99th percentile of how long some
+	 * tasks take to run.  Neither is given until MIN_TIMEOUT_SAMPLES tasks have
+	 * been seen.
+	 */
+	protected static class RunTimeDistribution
+	{
+		private final QuantileEstimator median = new QuantileEstimator(0.5);
+		
+		private final QuantileEstimator tail = new QuantileEstimator(0.99);
+		
+		/**
+		 * Adds how long a task took.
+		 *
+		 * @param runTime The time, in nanoseconds or nanoseconds per unit of cost
+		 */
+		public synchronized void add(double runTime)
+		{
+			median.add(runTime);
+			tail.add(runTime);
+		}
+		
+		/**
+		 * Returns the median run time.
+		 *
+		 * @return The time, or 0 if too few tasks have been seen
+		 */
+		public synchronized double getMedian()
+		{
+			return (median.getCount() < MIN_TIMEOUT_SAMPLES) ? 0 : Math.max(Double.MIN_VALUE, median.getQuantile());
+		}
+		
+		/**
+		 * Returns the 99th percentile of the run time.
+		 *
+		 * @return The time, or 0 if too few tasks have been seen
+		 */
+		public synchronized double getTail()
+		{
+			return (tail.getCount() < MIN_TIMEOUT_SAMPLES) ? 0 : Math.max(Double.MIN_VALUE, tail.getQuantile());
+		}
+	}
 }
@@ -0,0 +1,182 @@
+/*
+ * QuantileEstimator.java
+ *
+ * Estimates a quantile of a stream of values without keeping them.
+ */
+
+package edu.tcnj.TGrid.GridServer;
+
+import java.util.Arrays;
+
+/**
+ * Estimates a quantile, such as the 99th percentile, of a stream of values
+ * using the P-squared algorithm of Jain and Chlamtac.  Only five markers are
+ * kept, whose heights are nudged towards the quantile and its neighbours as
+ * each value arrives, so adding a value takes constant time and space however
+ * many there are.
+ *
+ * The estimate is exact until five values have been added.  The estimator is
+ * not thread safe.
+ */
+public class QuantileEstimator {
+
+    /**
+     * The quantile estimated, between 0 and 1
+     */
+    private final double quantile;
+
+    /**
+     * The heights of the markers: the minimum, the quantile's neighbours and
+     * the maximum
+     */
+    private final double[] heights = new double[5];
+
+    /**
+     * The actual positions of the markers, counting from 1
+     */
+    private final long[] positions = new long[5];
+
+    /**
+     * The desired positions of the markers
+     */
+    private final double[] desiredPositions = new double[5];
+
+    /**
+     * How much each desired position moves when a value is added
+     */
+    private final double[] increments = new double[5];
+
+    /**
+     * The number of values added
+     */
+    private long count = 0;
+
+    /**
+     * Creates an estimator for a quantile.
+     *
+     * @param quantile The quantile, between 0 and 1; 0.99 is the 99th percentile
+     */
+    public QuantileEstimator(double quantile) {
+        if (quantile <= 0 || quantile >= 1) {
+            throw new IllegalArgumentException("The quantile must be between 0 and 1");
+        }
+
+        this.quantile = quantile;
+
+        increments[0] = 0;
+        increments[1] = quantile / 2;
+        increments[2] = quantile;
+        increments[3] = (1 + quantile) / 2;
+        increments[4] = 1;
+
+        for (int i = 0; i < 5; i++) {
+            positions[i] = i + 1;
+            desiredPositions[i] = 1 + 4 * increments[i];
+        }
+    }
+
+    /**
+     * Adds a value.
+     *
+     * @param value The value
+     */
+    public void add(double value) {
+        // The first five values become the markers
+        if (count < 5) {
+            heights[(int) count++] = value;
+            if (count == 5) {
+                Arrays.sort(heights);
+            }
+            return;
+        }
+        count++;
+
+        // Find the cell the value falls in, stretching the ends to hold it
+        int cell;
+        if (value < heights[0]) {
+            heights[0] = value;
+            cell = 0;
+        } else if (value >= heights[4]) {
+            heights[4] = Math.max(heights[4], value);
+            cell = 3;
+        } else {
+            cell = 0;
+            while (value >= heights[cell + 1]) {
+                cell++;
+            }
+        }
+
+        for (int i = cell + 1; i < 5; i++) {
+            positions[i]++;
+        }
+        for (int i = 0; i < 5; i++) {
+            desiredPositions[i] += increments[i];
+        }
+
+        // Move the middle markers that are off their desired positions by one
+        for (int i = 1; i < 4; i++) {
+            double offset = desiredPositions[i] - positions[i];
+
+            if ((offset >= 1 && positions[i + 1] - positions[i] > 1) || (offset <= -1 && positions[i - 1] - positions[i] < -1)) {
+                int step = (offset > 0) ? 1 : -1;
+
+                double height = parabolic(i, step);
+                if (height <= heights[i - 1] || height >= heights[i + 1]) {
+                    height = linear(i, step);
+                }
+
+                heights[i] = height;
+                positions[i] += step;
+            }
+        }
+    }
+
+    /**
+     * Returns the estimate of the quantile.
+     *
+     * @return The estimate, or 0 if no value has been added
+     */
+    public double getQuantile() {
+        if (count == 0) {
+            return 0;
+        }
+
+        if (count < 5) {
+            double[] values = new double[(int) count];
+            System.arraycopy(heights, 0, values, 0, values.length);
+            Arrays.sort(values);
+            return values[(int) Math.min(count - 1, Math.round(quantile * (count - 1)))];
+        }
+
+        return heights[2];
+    }
+
+    /**
+     * Returns the number of values added.
+     *
+     * @return The number of values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the height of a marker moved a step, from the parabola through it
+     * and its neighbours.
+     */
+    private double parabolic(int i, int step) {
+        double below = positions[i] - positions[i - 1];
+        double above = positions[i + 1] - positions[i];
+        double span = positions[i + 1] - positions[i - 1];
+
+        return heights[i] + step / span * ((below + step) * (heights[i + 1] - heights[i]) / above + (above - step) * (heights[i] - heights[i - 1]) / below);
+    }
+
+    /**
+     * Returns the height of a marker moved a step, from the line to the
+     * neighbour it moves towards.
+     */
+    private double linear(int i, int step) {
+        return heights[i] + step * (heights[i + step] - heights[i]) / (positions[i + step] - positions[i]);
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * ReadyResourcePool.java
+ *
+ * The resources that are ready for a task, indexed so that one that meets a
+ * task's requirements can be found without trying every resource.
+ */
+
+package edu.tcnj.TGrid.GridServer;
+
+import edu.tcnj.TGrid.Task;
+import edu.tcnj.TGrid.TaskRequirements;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Holds the resources that are ready for a task, grouped by capability class.
+ * The Monitor also keeps these for busy resources that have a free execution
+ * slot, or room to queue another task.
+ *
+ * Finding a resource for a task checks the task's requirements against each
+ * capability class, not each resource, and remembers the answers, so that
+ * tasks with the same requirements cost a lookup per class.  There are
+ * usually only a handful of classes however many resources there are.
+ *
+ * Out of the resources that meet the requirements, two are picked at random
+ * and the less loaded one is taken ("power of two choices"), which spreads
+ * work nearly as well as finding the least loaded resource without having to
+ * look at them all.  Resources that have had trouble with a task are only
+ * taken if nothing else can run it.
+ *
+ * Tasks with a cost estimate are instead given one of the fastest resources
+ * that meet their requirements.  Jobs hand out their most costly tasks first,
+ * so the largest tasks go to the fastest resources.  Each bucket keeps its
+ * resources by speed class, as measured when they were added, so the two
+ * choices are made among the fastest without looking at the slower ones.
+ */
+public class ReadyResourcePool {
+
+    /**
+     * The largest number of distinct task requirements whose matches are remembered.
+     */
+    protected static final int MAX_COMPILED_REQUIREMENTS = 256;
+
+    /**
+     * The ready resources, by capability class.  Buckets are never empty.
+     */
+    private HashMap<CapabilityClass, Bucket> buckets = new HashMap<CapabilityClass, Bucket>();
+
+    /**
+     * Where each ready resource was filed.
+     */
+    private HashMap<ServerSideResource, Filing> filings = new HashMap<ServerSideResource, Filing>();
+
+    /**
+     * Which capability classes meet each set of task requirements seen recently.
+     */
+    private LinkedHashMap<TaskRequirements, HashMap<CapabilityClass, Boolean>> compiledRequirements = new LinkedHashMap<TaskRequirements, HashMap<CapabilityClass, Boolean>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TaskRequirements, HashMap<CapabilityClass, Boolean>> eldest) {
+            return size() > MAX_COMPILED_REQUIREMENTS;
+        }
+    };
+
+    /**
+     * Picks the two choices.
+     */
+    private Random random = new Random();
+
+    /**
+     * Adds a resource to the pool.
+     *
+     * @param resource The ready resource
+     * @return false if the resource was already in the pool
+     */
+    public synchronized boolean add(ServerSideResource resource) {
+        if (filings.containsKey(resource)) {
+            return false;
+        }
+
+        CapabilityClass capabilities = resource.getCapabilities();
+        long speedClass = speedClass(resource);
+
+        Bucket bucket = buckets.get(capabilities);
+        if (bucket == null) {
+            bucket = new Bucket();
+            buckets.put(capabilities, bucket);
+        }
+        ArrayList<ServerSideResource> tier = bucket.tiers.get(speedClass);
+        if (tier == null) {
+            tier = new ArrayList<ServerSideResource>();
+            bucket.tiers.put(speedClass, tier);
+        }
+        filings.put(resource, new Filing(capabilities, speedClass, tier.size()));
+        tier.add(resource);
+        bucket.size++;
+
+        return true;
+    }
+
+    /**
+     * Removes a resource from the pool.
+     *
+     * @param resource The resource that is no longer ready
+     * @return false if the resource was not in the pool
+     */
+    public synchronized boolean remove(ServerSideResource resource) {
+        Filing filing = filings.remove(resource);
+        if (filing == null) {
+            return false;
+        }
+
+        // Move the last resource in the tier into the gap
+        Bucket bucket = buckets.get(filing.capabilities);
+        ArrayList<ServerSideResource> tier = bucket.tiers.get(filing.speedClass);
+        ServerSideResource last = tier.remove(tier.size() - 1);
+        if (last != resource) {
+            tier.set(filing.position, last);
+            filings.get(last).position = filing.position;
+        }
+
+        if (tier.isEmpty()) {
+            bucket.tiers.remove(filing.speedClass);
+        }
+        if (--bucket.size == 0) {
+            buckets.remove(filing.capabilities);
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the number of ready resources.
+     *
+     * @return The number of resources in the pool
+     */
+    public synchronized int size() {
+        return filings.size();
+    }
+
+    /**
+     * Returns whether there are no ready resources.
+     *
+     * @return true if the pool is empty
+     */
+    public synchronized boolean isEmpty() {
+        return filings.isEmpty();
+    }
+
+    /**
+     * Takes a resource that meets a task's requirements out of the pool.
+     *
+     * @param task The task to find a resource for
+     * @param cost The task's cost estimate, worked out once by the caller
+     * @return The resource, or null if no ready resource meets the requirements
+     */
+    public synchronized ServerSideResource take(Task task, double cost) {
+        // Gather the buckets whose class meets the requirements
+        ArrayList<Bucket> matches = new ArrayList<Bucket>(buckets.size());
+        long fastest = Long.MAX_VALUE;
+
+        HashMap<CapabilityClass, Boolean> compiled = compile(task.getRequirements());
+        for (Map.Entry<CapabilityClass, Bucket> bucket : buckets.entrySet()) {
+            if (meets(task, compiled, bucket.getKey())) {
+                matches.add(bucket.getValue());
+                fastest = Math.min(fastest, bucket.getValue().tiers.firstKey());
+            }
+        }
+
+        if (matches.isEmpty()) {
+            return null;
+        }
+
+        // The two choices are made among the fastest resources for tasks with a
+        // cost estimate, and among them all otherwise
+        ArrayList<ArrayList<ServerSideResource>> choices = new ArrayList<ArrayList<ServerSideResource>>();
+        int candidates = 0;
+        for (Bucket bucket : matches) {
+            if (cost > 0) {
+                ArrayList<ServerSideResource> tier = bucket.tiers.get(fastest);
+                if (tier != null) {
+                    choices.add(tier);
+                    candidates += tier.size();
+                }
+            } else {
+                choices.addAll(bucket.tiers.values());
+                candidates += bucket.size;
+            }
+        }
+
+        // Power of two choices
+        ServerSideResource first = pick(choices, random.nextInt(candidates));
+        ServerSideResource second = (candidates > 1) ? pick(choices, random.nextInt(candidates)) : first;
+        ServerSideResource chosen = better(task, first, second) ? first : second;
+
+        // Only settle for a resource that has had trouble with the task if every
+        // candidate has; otherwise take any that has not, or for tasks with a
+        // cost estimate the fastest that has not
+        if (chosen.shouldAvoidTask(task.getTaskID())) {
+            ServerSideResource untroubled = null;
+            long untroubledSpeed = Long.MAX_VALUE;
+            for (Bucket bucket : matches) {
+                for (Map.Entry<Long, ArrayList<ServerSideResource>> tier : bucket.tiers.entrySet()) {
+                    if (tier.getKey() >= untroubledSpeed || (untroubled != null && cost <= 0)) {
+                        break;
+                    }
+
+                    for (ServerSideResource resource : tier.getValue()) {
+                        if (!resource.shouldAvoidTask(task.getTaskID())) {
+                            untroubled = resource;
+                            untroubledSpeed = tier.getKey();
+                            break;
+                        }
+                    }
+                }
+            }
+
+            if (untroubled != null) {
+                chosen = untroubled;
+            }
+        }
+
+        remove(chosen);
+        return chosen;
+    }
+
+    /**
+     * Takes the resource whose free execution slots a task fits into most
+     * tightly ("best fit"), for packing tasks into the free slots of busy
+     * resources.  Resources that have had trouble with the task are only taken
+     * if nothing else can run it.  Every resource that meets the requirements
+     * is looked at, so this is only meant for pools of resources with free
+     * slots, which have few in them.
+     *
+     * @param task The task to find a slot for
+     * @return The resource, or null if no resource in the pool has room for the task
+     */
+    public synchronized ServerSideResource takeBestFit(Task task) {
+        ServerSideResource chosen = null;
+        boolean chosenAvoids = false;
+        int chosenFreeSlots = Integer.MAX_VALUE;
+
+        HashMap<CapabilityClass, Boolean> compiled = compile(task.getRequirements());
+        for (Map.Entry<CapabilityClass, Bucket> bucket : buckets.entrySet()) {
+            if (!meets(task, compiled, bucket.getKey())) {
+                continue;
+            }
+
+            for (ArrayList<ServerSideResource> tier : bucket.getValue().tiers.values()) {
+                for (ServerSideResource resource : tier) {
+                    if (!resource.canRunInSlot(task)) {
+                        continue;
+                    }
+
+                    boolean avoids = resource.shouldAvoidTask(task.getTaskID());
+                    int freeSlots = resource.getFreeSlots();
+                    if (chosen == null || (chosenAvoids && !avoids) || (chosenAvoids == avoids && freeSlots < chosenFreeSlots)) {
+                        chosen = resource;
+                        chosenAvoids = avoids;
+                        chosenFreeSlots = freeSlots;
+                    }
+                }
+            }
+        }
+
+        if (chosen != null) {
+            remove(chosen);
+        }
+        return chosen;
+    }
+
+    /**
+     * Returns whether resources of a capability class meet a task's
+     * requirements, remembering the answer in the compiled requirements.
+     */
+    private static boolean meets(Task task, HashMap<CapabilityClass, Boolean> compiled, CapabilityClass capabilities) {
+        Boolean meets = compiled.get(capabilities);
+        if (meets == null) {
+            meets = task.getRequirements().meetsRequirements(capabilities.getSpecs());
+            compiled.put(capabilities, meets);
+        }
+
+        return meets;
+    }
+
+    /**
+     * Returns the compiled form of a set of requirements: which capability
+     * classes are known to meet them.
+     */
+    private HashMap<CapabilityClass, Boolean> compile(TaskRequirements requirements) {
+        HashMap<CapabilityClass, Boolean> compiled = compiledRequirements.get(requirements);
+        if (compiled == null) {
+            compiled = new HashMap<CapabilityClass, Boolean>();
+            compiledRequirements.put(requirements, compiled);
+        }
+
+        return compiled;
+    }
+
+    /**
+     * Returns the resource at a position in the concatenation of some tiers.
+     */
+    private static ServerSideResource pick(ArrayList<ArrayList<ServerSideResource>> tiers, int index) {
+        for (ArrayList<ServerSideResource> tier : tiers) {
+            if (index < tier.size()) {
+                return tier.get(index);
+            }
+            index -= tier.size();
+        }
+
+        throw new IndexOutOfBoundsException();
+    }
+
+    /**
+     * Returns whether one resource is a better choice for a task than another:
+     * it has not had trouble with the task, is less loaded or has been ready
+     * for longer.
+     */
+    private static boolean better(Task task, ServerSideResource a, ServerSideResource b) {
+        boolean aAvoids = a.shouldAvoidTask(task.getTaskID());
+        if (aAvoids != b.shouldAvoidTask(task.getTaskID())) {
+            return !aAvoids;
+        }
+
+        if (a.getLoad() != b.getLoad()) {
+            return a.getLoad() < b.getLoad();
+        }
+
+        return a.getReadyTime() - b.getReadyTime() <= 0;
+    }
+
+    /**
+     * Returns a resource's speed factor rounded to a power of 1.25; lower is
+     * faster.
+     */
+    private static long speedClass(ServerSideResource resource) {
+        return Math.round(Math.log(resource.getSpeedFactor()) / Math.log(1.25));
+    }
+
+    /**
+     * The ready resources of one capability class, by speed class, fastest
+     * first.  Speed classes within a quarter of each other count as the same,
+     * so that noise in the measurements does not outweigh load.  Tiers are
+     * never empty.
+     */
+    private static class Bucket {
+        /**
+         * The resources of each speed class
+         */
+        final TreeMap<Long, ArrayList<ServerSideResource>> tiers = new TreeMap<Long, ArrayList<ServerSideResource>>();
+
+        /**
+         * The number of resources in every tier
+         */
+        int size = 0;
+    }
+
+    /**
+     * Where a ready resource was filed
+     */
+    private static class Filing {
+        /**
+         * The capability class of its bucket
+         */
+        final CapabilityClass capabilities;
+
+        /**
+         * The speed class of its tier
+         */
+        final long speedClass;
+
+        /**
+         * Its position in the tier
+         */
+        int position;
+
+        Filing(CapabilityClass capabilities, long speedClass, int position) {
+            this.capabilities = capabilities;
+            this.speedClass = speedClass;
+            this.position = position;
+        }
+    }
+}
@@ -23,6 +23,8 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.InetSocketAddress;
 
+import java.nio.channels.ServerSocketChannel;
+
 import java.io.IOException;
 
 import java.util.HashSet;
@@ -127,9 +129,11 @@ public class ResourceDiscoveryAgent
         
         try
         {
-	        // Start server socket
-	        serverSocket = new ServerSocket(port);
-	        clientCommandsServerSocket = new ServerSocket(port+1);
+	        // Start server sockets (channel-backed, so accepted connections can be serviced by the selector pool)
+	        serverSocket = ServerSocketChannel.open().socket();
+	        serverSocket.bind(new InetSocketAddress(port));
+	        clientCommandsServerSocket = ServerSocketChannel.open().socket();
+	        clientCommandsServerSocket.bind(new InetSocketAddress(port+1));
 	      }
 	      catch (IOException ex)
 	      {
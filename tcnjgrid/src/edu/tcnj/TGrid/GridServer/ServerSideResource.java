@@ -21,6 +21,9 @@ import edu.tcnj.TGrid.CommandToClientFromServer;
 
 import edu.tcnj.TGrid.States.TaskState;
 import edu.tcnj.TGrid.Task;
+import edu.tcnj.TGrid.TaskOutcome;
+import edu.tcnj.TGrid.TaskSplit;
+import edu.tcnj.TGrid.TaskRequirements;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 
@@ -30,8 +33,13 @@ import edu.tcnj.TGrid.FileTransferTask;
 import edu.tcnj.TGrid.TransferFileRemoteDirectory;
 import edu.tcnj.TGrid.FileTransferInfoToClient;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -41,7 +49,7 @@ import java.io.Serializable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.security.MessageDigest;
+import java.nio.channels.FileChannel;
 import java.security.NoSuchAlgorithmException;
 
 /**
@@ -71,6 +79,15 @@ public class ServerSideResource implements ConnectionToRemoteHostEventListener {
      * the server reacts
      */
     protected static final int DEFAULT_KEEPALIVE_TIMEOUT = 15000;
+    /**
+     * The number of bytes of a file sent in each TRANSFER_DATA message.
+     */
+    protected static final int FILE_TRANSFER_BLOCK_SIZE = 256 * 1024;
+    /**
+     * The default number of tasks kept queued on the client behind the one it
+     * is running.
+     */
+    public static final int DEFAULT_PREFETCH_DEPTH = 1;
     /**
      * The unique identification number of this Resource
      */
@@ -123,17 +140,54 @@ public class ServerSideResource implements ConnectionToRemoteHostEventListener {
      */
     private volatile int clientPswd = 0;
     /**
-     * Flags to indicate a variety of things
+     * Lock that is notified when the client has provided its credentials
+     */
+    private final Object credentialsLock = new Object();
+    /**
+     * When the connection from the client was accepted, from <code>System.nanoTime()</code>
+     */
+    private long connectedTime = 0;
+    /**
+     * How long it took from accepting the connection to the client becoming
+     * READY, in milliseconds, or -1 if it has not become ready yet
+     */
+    private volatile long connectionLatency = -1;
+    /**
+     * When the resource last became READY, from <code>System.nanoTime()</code>
+     */
+    private volatile long readyTime = 0;
+    /**
+     * When the client reported starting the current task, from <code>System.nanoTime()</code>
+     */
+    private volatile long taskStartTime = 0;
+    /**
+     * How long the last completed task took, from the client starting it to its
+     * results arriving, in nanoseconds, or -1 if no task has completed yet
      */
-    private volatile int flags = 0;
+    private volatile long lastTaskRunTime = -1;
     /**
-     * Flag to indicate that a file to be transferred was not modified
+     * How long the client takes to run tasks compared to the grid as a whole, as
+     * a moving average; above 1 it is slower.  Guarded by this resource.
      */
-    private static final int FILE_TRANSFER_NOT_MODIFIED = 0x00000001;
+    private double speedFactor = 1;
     /**
-     * Flag to indicate that a file can be transferred now
+     * Whether the current task is being cancelled to make room for a more urgent one
      */
-    private static final int FILE_TRANSFER_ACK = 0x00000002;
+    private volatile boolean preemptingTask = false;
+    /**
+     * The capability class of the client, from the specifications it sent while
+     * authorizing
+     */
+    private volatile CapabilityClass capabilities = CapabilityClass.UNKNOWN;
+    /**
+     * The bitmap of files the client needs from the last manifest sent, or null
+     * if it has not answered yet.  Guarded by fileTransferLock.
+     */
+    private byte[] filesNeeded = null;
+    /**
+     * Notified when the client answers a manifest
+     */
+    private final Object fileTransferLock = new Object();
     /**
      * Indicates if the client has idle stats to report on.
      */
@@ -141,25 +195,41 @@ public class ServerSideResource implements ConnectionToRemoteHostEventListener {
     /**
      * The Task currently assigned to this resource
      */
-    private Task currentTask;
+    private volatile Task currentTask;
     /**
-     * Used to determine how to react to received messages.
-     *
-     * If awaitingCommand is true, the message will be interpereted as a command.
-     * Otherwise, the message will be interpereted as text.
-     *
-     * For example, after receiving the USERNAME command, awaitingCommand would be set to false,
-     * as the next expected message is supposed to be a block of text, not a command.
+     * Tasks sent to the client to start as soon as it finishes the current one,
+     * in the order it will start them.  Guarded by itself.
      */
-    private volatile boolean awaitingCommand = true;
+    private LinkedList<Task> queuedTasks = new LinkedList<Task>();
     /**
-     * Stores the current command being performed, if any.
-     * Used to determine how to react to received text messages. (non-commands)
-     *
-     * If awaitingCommand is false, any message received will need to be associated with
-     * whatever command preceeded it.
+     * IDs of queued tasks the client has been asked to drop.  Guarded by queuedTasks.
+     */
+    private HashSet<Integer> recalledTaskIds = new HashSet<Integer>();
+    /**
+     * Whether the client said it was ready while tasks were still queued for it.
+     * It starts them when they arrive, so it is only ready once they are all
+     * dropped.  Guarded by queuedTasks.
+     */
+    private boolean readyDeferred = false;
+    /**
+     * The number of tasks that may be queued on the client behind the one it is running
+     */
+    private volatile int prefetchDepth = DEFAULT_PREFETCH_DEPTH;
+    /**
+     * Tasks running in the client's extra execution slots, alongside the
+     * current task, by ID.  Guarded by itself.
+     */
+    private HashMap<Integer, Task> slotTasks = new HashMap<Integer, Task>();
+    /**
+     * The timeout of each task running in an extra slot, by task ID.
+     * Guarded by slotTasks.
      */
-    private CommandToServerFromClient currentCommand = CommandToServerFromClient.NONE;
+    private HashMap<Integer, HashedWheelTimer.Timeout> slotTimeouts = new HashMap<Integer, HashedWheelTimer.Timeout>();
+    /**
+     * When each task running in an extra slot was sent, from
+     * <code>System.nanoTime()</code>, by task ID.  Guarded by slotTasks.
+     */
+    private HashMap<Integer, Long> slotStartTimes = new HashMap<Integer, Long>();
     /**
      * The current state of this Resource
      */
@@ -197,9 +267,9 @@ public class ServerSideResource implements ConnectionToRemoteHostEventListener {
      */
     private Thread internalThread;
     /**
-     * Thread to check if a task completes in the given timeout.
+     * Times out the current task if it does not complete in its timeout.
      */
-    private TaskTimeoutThread TaskTimeoutThread;
+    private volatile HashedWheelTimer.Timeout taskTimeout;
     /**
      * List of task ids that the resource should try to avoid
      */
@@ -261,6 +331,7 @@ public class ServerSideResource implements ConnectionToRemoteHostEventListener {
 
             try {
                 connectionToResource.waitForConnectionFromRemoteHost(serverSocket);
+                connectedTime = System.nanoTime();
             } catch (ConnectionToRemoteHostException ex) {
                 setState(ResourceState.ERROR_CONNECTING);
                 throw new ResourceException(ex.getMessage());
@@ -307,6 +378,7 @@ public class ServerSideResource implements ConnectionToRemoteHostEventListener {
 
             try {
                 connectionToResource.connectToRemoteHost();
+                connectedTime = System.nanoTime();
             } catch (ConnectionToRemoteHostException ex) {
                 setState(ResourceState.ERROR_CONNECTING);
                 throw new ResourceException(ex.getMessage());
@@ -383,22 +455,330 @@ public class ServerSideResource implements ConnectionToRemoteHostEventListener {
             internalThread.join();
              */
             currentTask = taskToAssign;
+            preemptingTask = false;
 
             setState(ResourceState.TASK_ASSIGNED);
 
+            // Start the timeout before the task is sent, since a short task
+            // can end before the send thread would get to it
+            taskTimeout = HashedWheelTimer.getServerTimer().schedule(new TaskTimeout(currentTask, false), currentTask.getTimeout());
+
             internalThread = new TaskSendThread();
             internalThread.start();
 
-            // Start timeout thread
-            TaskTimeoutThread = new TaskTimeoutThread();
-            TaskTimeoutThread.start();
-
             return true;
         } else {
             return false;
         }
     }
 
+    /**
+     * Queues a task for the client to start as soon as it has finished the ones
+     * it already has, so that it does not sit idle while the server picks its
+     * next task.  Only resources that are running a task have room for queued
+     * tasks (see canQueueTask()).  Tasks with files are never queued, since
+     * their files are transferred before they are sent.
+     *
+     * Queued tasks are not timed until they start; if the task ahead of them
+     * times out they are recalled, so they wait no longer than its timeout.
+     *
+     * @param taskToQueue The task to queue
+     * @return true if the task is queued, false if there is no room for it
+     */
+    public boolean queueTask(Task taskToQueue) {
+        if (taskToQueue instanceof FileTransferTask) {
+            return false;
+        }
+
+        synchronized (queuedTasks) {
+            if (!canQueueTask()) {
+                return false;
+            }
+
+            queuedTasks.add(taskToQueue);
+
+            // Sent while holding the lock, so that tasks go out in the order they are queued
+            try {
+                connectionToResource.sendAsync(CommandToClientFromServer.QUEUE_TASK, taskToQueue);
+            } catch (ConnectionToRemoteHostException ex) {
+                Logger.getLogger(ServerSideResource.class.getName()).log(Level.WARNING, "Error sending message to resource #" + resourceID, ex);
+                queuedTasks.removeLast();
+                setState(ResourceState.TROUBLED);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns whether another task can be queued on this resource: it is
+     * running a task without files that is not being preempted, and has fewer
+     * than its prefetch depth of tasks queued.
+     *
+     * @return true if queueTask() would accept a task
+     */
+    public boolean canQueueTask() {
+        Task task = currentTask;
+
+        synchronized (queuedTasks) {
+            return currentState == ResourceState.RUNNING_TASK && task != null && !(task instanceof FileTransferTask)
+                    && !preemptingTask && queuedTasks.size() < prefetchDepth;
+        }
+    }
+
+    /**
+     * Runs a task in one of the client's extra execution slots, alongside the
+     * task it is running.  Tasks are packed into the slots by their
+     * requirements: the slots they occupy, and the memory they use, must add
+     * up to no more than the client has (see canRunInSlot()).  The current
+     * task always has a slot of its own, so a client with one slot never runs
+     * a task in an extra one.
+     *
+     * The task is handed back to the listeners through resourceSlotTaskEnded()
+     * once the client reports how it ended.
+     *
+     * @param task The task to run
+     * @return true if the task was sent, false if there is no room for it
+     */
+    public boolean runTaskInSlot(Task task) {
+        synchronized (slotTasks) {
+            if (!canRunInSlot(task)) {
+                return false;
+            }
+
+            slotTasks.put(task.getTaskID(), task);
+            slotStartTimes.put(task.getTaskID(), System.nanoTime());
+
+            slotTimeouts.put(task.getTaskID(), HashedWheelTimer.getServerTimer().schedule(new TaskTimeout(task, true), task.getTimeout()));
+
+            try {
+                connectionToResource.sendAsync(CommandToClientFromServer.RUN_TASK_IN_SLOT, task);
+            } catch (ConnectionToRemoteHostException ex) {
+                Logger.getLogger(ServerSideResource.class.getName()).log(Level.WARNING, "Error sending message to resource #" + resourceID, ex);
+                slotTasks.remove(task.getTaskID());
+                slotStartTimes.remove(task.getTaskID());
+                slotTimeouts.remove(task.getTaskID()).cancel();
+                setState(ResourceState.TROUBLED);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns whether a task fits in the client's free execution slots: the
+     * client is running a task without files that is not being preempted, and
+     * has enough slots and memory left over for the task.  Tasks with files
+     * never run in extra slots, since their files are transferred before they
+     * are sent, and neither do tasks the client already has.
+     *
+     * @param task The task
+     * @return true if runTaskInSlot() would accept the task
+     */
+    public boolean canRunInSlot(Task task) {
+        if (task instanceof FileTransferTask || !hasFreeSlot() || hasTask(task.getTaskID())) {
+            return false;
+        }
+
+        TaskRequirements requirements = task.getRequirements();
+        synchronized (slotTasks) {
+            return requirements.getCores() <= getFreeSlots() && requirements.getMemory() <= getFreeMemory();
+        }
+    }
+
+    /**
+     * Returns whether the client has a task, as its current task, queued or in
+     * an extra slot.
+     *
+     * @param taskID The ID of the task
+     * @return true if the client has the task
+     */
+    public boolean hasTask(int taskID) {
+        Task task = currentTask;
+        if (task != null && task.getTaskID() == taskID) {
+            return true;
+        }
+
+        synchronized (queuedTasks) {
+            for (Task queuedTask : queuedTasks) {
+                if (queuedTask.getTaskID() == taskID) {
+                    return true;
+                }
+            }
+        }
+
+        synchronized (slotTasks) {
+            return slotTasks.containsKey(taskID);
+        }
+    }
+
+    /**
+     * Returns whether the client has a free execution slot for tasks that fit
+     * in one.
+     *
+     * @return true if a task needing one slot and no memory could run in it
+     */
+    public boolean hasFreeSlot() {
+        Task task = currentTask;
+
+        return currentState == ResourceState.RUNNING_TASK && task != null && !(task instanceof FileTransferTask)
+                && !preemptingTask && getFreeSlots() > 0;
+    }
+
+    /**
+     * Returns the number of the client's execution slots that are not occupied
+     * by its current task or by tasks running in extra slots.
+     *
+     * @return The number of free slots
+     */
+    public int getFreeSlots() {
+        Task task = currentTask;
+        int used = (task == null) ? 1 : task.getRequirements().getCores();
+
+        synchronized (slotTasks) {
+            for (Task slotTask : slotTasks.values()) {
+                used += slotTask.getRequirements().getCores();
+            }
+        }
+
+        return Math.max(0, capabilities.getSlots() - used);
+    }
+
+    /**
+     * Returns the memory on the client not used by its current task or by tasks
+     * running in extra slots.
+     */
+    private long getFreeMemory() {
+        Task task = currentTask;
+        long used = (task == null) ? 0 : task.getRequirements().getMemory();
+
+        synchronized (slotTasks) {
+            for (Task slotTask : slotTasks.values()) {
+                used += slotTask.getRequirements().getMemory();
+            }
+        }
+
+        return capabilities.getMemory() - used;
+    }
+
+    /**
+     * Removes and returns every task running in an extra slot, without telling
+     * the client.  For use once the client is gone.
+     *
+     * @return The tasks that were running
+     */
+    public LinkedList<Task> takeSlotTasks() {
+        synchronized (slotTasks) {
+            LinkedList<Task> tasks = new LinkedList<Task>(slotTasks.values());
+
+            for (HashedWheelTimer.Timeout timeout : slotTimeouts.values()) {
+                timeout.cancel();
+            }
+            slotTasks.clear();
+            slotTimeouts.clear();
+            slotStartTimes.clear();
+
+            return tasks;
+        }
+    }
+
+    /**
+     * Asks the client to drop every queued task.  Each is handed back to the
+     * listeners through resourceTaskRecalled() once the client confirms it; any
+     * the client has already started are cancelled instead.
+     */
+    public void recallQueuedTasks() {
+        synchronized (queuedTasks) {
+            // A copy, since a failed send clears the queue
+            for (Task task : new ArrayList<Task>(queuedTasks)) {
+                recallQueuedTask(task.getTaskID());
+            }
+        }
+    }
+
+    /**
+     * Asks the client to drop a queued task, unless it has already been asked.
+     * Must be called holding queuedTasks.
+     */
+    private void recallQueuedTask(int taskID) {
+        if (recalledTaskIds.add(taskID)) {
+            try {
+                connectionToResource.sendAsync(CommandToClientFromServer.CANCEL_QUEUED_TASK, taskID);
+            } catch (ConnectionToRemoteHostException ex) {
+                Logger.getLogger(ServerSideResource.class.getName()).log(Level.WARNING, "Error sending message to resource #" + resourceID, ex);
+                setState(ResourceState.TROUBLED);
+            }
+        }
+    }
+
+    /**
+     * Asks the client to give up the work of a task split off from one of its
+     * tasks.  The client's answer is handed to the listeners through
+     * resourceTaskSplit().
+     *
+     * @param task     The task to split, which the client is running or has queued
+     * @param splitOff The task split off from it
+     * @return true if the request was sent; false if the client does not have
+     *         the task, or may not have been sent its current task yet
+     */
+    public boolean splitTask(Task task, Task splitOff) {
+        // The current task is sent by its own thread, so the request could get there first
+        if (task == currentTask && currentState != ResourceState.RUNNING_TASK) {
+            return false;
+        }
+        if (!hasTask(task.getTaskID())) {
+            return false;
+        }
+
+        try {
+            connectionToResource.sendAsync(CommandToClientFromServer.SPLIT_TASK, new TaskSplit(task.getTaskID(), splitOff));
+            return true;
+        } catch (ConnectionToRemoteHostException ex) {
+            Logger.getLogger(ServerSideResource.class.getName()).log(Level.WARNING, "Error sending message to resource #" + resourceID, ex);
+            setState(ResourceState.TROUBLED);
+            return false;
+        }
+    }
+
+    /**
+     * Removes and returns every queued task, without telling the client.  For
+     * use once the client is gone.
+     *
+     * @return The tasks that were queued
+     */
+    public LinkedList<Task> takeQueuedTasks() {
+        synchronized (queuedTasks) {
+            LinkedList<Task> tasks = new LinkedList<Task>(queuedTasks);
+
+            queuedTasks.clear();
+            recalledTaskIds.clear();
+
+            return tasks;
+        }
+    }
+
+    /**
+     * Sets the number of tasks that may be queued on the client behind the one
+     * it is running.  0 turns queueing off.
+     *
+     * @param prefetchDepth The number of tasks
+     */
+    public void setPrefetchDepth(int prefetchDepth) {
+        this.prefetchDepth = prefetchDepth;
+    }
+
+    /**
+     * Returns the number of tasks that may be queued on the client behind the
+     * one it is running.
+     *
+     * @return The number of tasks
+     */
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
     /**
      * Communicates with the client to get the idle statistics.
      */
@@ -454,6 +834,63 @@ public class ServerSideResource implements ConnectionToRemoteHostEventListener {
         }
     }
 
+    /**
+     * Cancels a task on this resource.  A queued task is recalled, and a task
+     * running in an extra slot is cancelled; the current task is cancelled as
+     * by cancelTask().
+     *
+     * @param taskID The ID of the task to cancel
+     */
+    public void cancelTask(int taskID) {
+        synchronized (slotTasks) {
+            if (slotTasks.containsKey(taskID)) {
+                try {
+                    connectionToResource.sendAsync(CommandToClientFromServer.CANCEL_QUEUED_TASK, taskID);
+                } catch (ConnectionToRemoteHostException ex) {
+                    Logger.getLogger(ServerSideResource.class.getName()).log(Level.WARNING, "Error sending message to resource #" + resourceID, ex);
+                    setState(ResourceState.TROUBLED);
+                }
+                return;
+            }
+        }
+
+        synchronized (queuedTasks) {
+            for (Task task : queuedTasks) {
+                if (task.getTaskID() == taskID) {
+                    recallQueuedTask(taskID);
+                    return;
+                }
+            }
+        }
+
+        Task task = currentTask;
+        if (task != null && task.getTaskID() == taskID) {
+            cancelTask();
+        }
+    }
+
+    /**
+     * Cancels the running task to make room for a more urgent one.  Unlike a task
+     * that is cancelled after running into trouble, the resource is not told to
+     * avoid the task in future.  Queued tasks are recalled first, so that the
+     * client becomes ready rather than starting one of them.
+     */
+    public void preemptTask() {
+        if (currentTask != null && currentState == ResourceState.RUNNING_TASK) {
+            preemptingTask = true;
+
+            recallQueuedTasks();
+
+            // Send the termination request to the client
+            try {
+                connectionToResource.send(CommandToClientFromServer.CANCEL_TASK);
+            } catch (ConnectionToRemoteHostException ex) {
+                Logger.getLogger(ServerSideResource.class.getName()).log(Level.WARNING, "Error sending message to resource #" + resourceID, ex);
+                setState(ResourceState.TROUBLED);
+            }
+        }
+    }
+
     /**
      * Returns the currently assigned task and disassocates it from this Resource.
      *
@@ -466,14 +903,10 @@ public class ServerSideResource implements ConnectionToRemoteHostEventListener {
                 Task returnValue = currentTask;
                 currentTask = null;
 
-                // Wait for timeout thread
-                if (TaskTimeoutThread.isAlive()) {
-                    try {
-                        TaskTimeoutThread.interrupt();
-                        TaskTimeoutThread.join();
-                        TaskTimeoutThread = null;
-                    } catch (InterruptedException e) {
-                    }
+                // Stop timing it
+                if (taskTimeout != null) {
+                    taskTimeout.cancel();
+                    taskTimeout = null;
                 }
 
                 return returnValue;
@@ -574,6 +1007,85 @@ public class ServerSideResource implements ConnectionToRemoteHostEventListener {
         }
     }
 
+    /**
+     * Returns how long it took from connecting to the client becoming ready.
+     *
+     * @return The time taken in milliseconds, or -1 if the resource has not
+     *         become ready yet
+     */
+    public long getConnectionLatency() {
+        return connectionLatency;
+    }
+
+    /**
+     * Returns the capability class of the client, which decides which task
+     * requirements it meets.
+     *
+     * @return The capability class, or CapabilityClass.UNKNOWN if the client has
+     *         not sent its specifications
+     */
+    public CapabilityClass getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * Returns how busy the resource is, for choosing between resources.
+     *
+     * @return The number of tasks assigned to the resource, including queued
+     *         ones and ones running in extra slots
+     */
+    public int getLoad() {
+        int load;
+        synchronized (queuedTasks) {
+            load = ((currentTask == null) ? 0 : 1) + queuedTasks.size();
+        }
+        synchronized (slotTasks) {
+            return load + slotTasks.size();
+        }
+    }
+
+    /**
+     * Returns when the resource last became ready for a task.
+     *
+     * @return The time, from <code>System.nanoTime()</code>
+     */
+    public long getReadyTime() {
+        return readyTime;
+    }
+
+    /**
+     * Returns how long the last completed task took to run, from the client
+     * starting it to its results arriving.
+     *
+     * @return The time in nanoseconds, or -1 if no task has completed yet
+     */
+    public long getLastTaskRunTime() {
+        return lastTaskRunTime;
+    }
+
+    /**
+     * Takes note of how long the client took to run a task compared to how long
+     * such tasks usually take.
+     *
+     * @param ratio The client's run time divided by the usual run time
+     */
+    public synchronized void recordRelativeRunTime(double ratio) {
+        if (ratio > 0 && !Double.isInfinite(ratio)) {
+            // Recent tasks count for a quarter
+            speedFactor = (3 * speedFactor + ratio) / 4;
+        }
+    }
+
+    /**
+     * Returns how long the client takes to run tasks compared to the grid as a
+     * whole.
+     *
+     * @return The factor; 1 if the client is typical, above 1 if it is slower
+     */
+    public synchronized double getSpeedFactor() {
+        return speedFactor;
+    }
+
     /**
      * Returns the ClientInfo object associated with this object
      * @return Information about this client
@@ -660,6 +1172,16 @@ public class ServerSideResource implements ConnectionToRemoteHostEventListener {
     protected void setState(ResourceState newState) {
         if (currentState != newState) {
             currentState = newState;
+
+            if (newState == ResourceState.READY) {
+                readyTime = System.nanoTime();
+            }
+
+            if (newState == ResourceState.READY && connectionLatency < 0 && connectedTime != 0) {
+                connectionLatency = (System.nanoTime() - connectedTime) / 1000000;
+                Logger.getLogger(ServerSideResource.class.getName()).log(Level.INFO, "Resource #" + resourceID + " ready " + connectionLatency + " ms after connecting.");
+            }
+
             fireStateChanged();
             /*
             //if we're changing to the READY state, start the keepalive thread.
@@ -709,232 +1231,139 @@ public class ServerSideResource implements ConnectionToRemoteHostEventListener {
     /**
      * Reacts to received messages properly.
      *
+     * Every command arrives together with its payload, so the command alone
+     * determines how the message is handled.
+     *
      * @param e The event raised.
      */
+    @SuppressWarnings("unchecked")
     public void messageReceivedFromRemoteHost(ConnectionToRemoteHostEvent e) {
         // Get message
-        Object message = e.getObject();
+        Object payload = e.getObject();
         timeLastMessageReceived = System.currentTimeMillis();
 
-        //System.out.println("Received message \"" + message + "\" from client.");
+        //System.out.println("Received message \"" + e.getCommand() + "\" from client.");
 
         // Determine if the message is on the primary connection or the client command connection
         if (e.getSource() == connectionToResource) {
             try {
-                //Check if the message should be interpreted as a command or as a text message
-                if (awaitingCommand) {
-                    try {
-                        CommandToServerFromClient command = (CommandToServerFromClient) message;
+                if (!(e.getCommand() instanceof CommandToServerFromClient)) {
+                    connectionToResource.send(CommandToClientFromServer.INVALID_COMMAND);
+                    return;
+                }
 
-                        switch (command) {
-                            case PING:
-                                connectionToResource.send(CommandToClientFromServer.PING_ACKNOWLEDGED);
-                                break;
-                            case PING_ACKNOWLEDGED:
-                                if (shouldPerformKeepAlive == true) {
-                                    internalThread.interrupt();
-                                }
-                                break;
-                            case STATE_CHANGED:
-                                //wait for the new state message, coming next
-                                awaitingCommand = false;
-                                currentCommand = CommandToServerFromClient.STATE_CHANGED;
-                                break;
-                            case INVALID_COMMAND:
-                                awaitingCommand = true;
-                                currentCommand = null;
-                                Logger.getLogger(ServerSideResource.class.getName()).log(Level.INFO, "Invalid command error.");
-                                break;
-                            default:
-                                //Different states expect different responses, so react accordingly
-                                switch (currentState) {
-                                    case AUTHORIZING:
-                                        //there are the two possible commands we wait for when authorizing
-                                        switch (command) {
-                                            case CLIENT_KEY:
-                                            case USERNAME:
-                                            case PASSWORD:
-                                                currentCommand = command;
-                                                awaitingCommand = false;
-                                                break;
-                                            default:
-                                                connectionToResource.send(CommandToClientFromServer.INVALID_COMMAND);
-                                        }
+                CommandToServerFromClient command = (CommandToServerFromClient) e.getCommand();
 
-                                        break;
-                                    case READY:
-                                        //nothing here yet
-                                        break;
-                                    case TASK_ASSIGNED:
-                                        switch (command) {
-                                            case TRANSFER_FILE_NOT_MODIFIED:
-                                                flags |= FILE_TRANSFER_NOT_MODIFIED;
-
-                                                // Interrupt internal thread to stop waiting
-                                                internalThread.interrupt();
-                                                break;
-                                            case TRANSFER_FILE_ACK:
-                                                flags |= FILE_TRANSFER_ACK;
-
-                                                // Interrupt internal thread to stop waiting
-                                                internalThread.interrupt();
-                                                client.setLastTime(System.currentTimeMillis());
-                                                break;
-                                            default:
-                                                connectionToResource.send(CommandToClientFromServer.INVALID_COMMAND);
-                                                break;
-                                        }
-                                        break;
-                                    case FINISHING_TASK:
-                                        if (command == CommandToServerFromClient.SENDING_TASK_RESULTS) {
-                                            //wait for the task's state
-                                            awaitingCommand = false;
-                                            currentCommand = command;
-                                            client.setLastTime(System.currentTimeMillis()-client.getLastTime());
-                                        } else {
-                                            connectionToResource.send(CommandToClientFromServer.INVALID_COMMAND);
-                                        }
-                                        break;
-                                    case SENDING_IDLE_STATS:
-                                        if (command == CommandToServerFromClient.SENDING_IDLE_TIME || command == CommandToServerFromClient.SENDING_NONIDLE_TIME) {
-                                            // Wait for the time to be sent
-                                            awaitingCommand = false;
-                                            currentCommand = command;
-                                        } else {
-                                            connectionToResource.send(CommandToClientFromServer.INVALID_COMMAND);
-                                        }
-                                        break;
-                                }
+                switch (command) {
+                    case PING:
+                        connectionToResource.send(CommandToClientFromServer.PING_ACKNOWLEDGED);
+                        break;
+                    case PING_ACKNOWLEDGED:
+                        if (shouldPerformKeepAlive == true) {
+                            internalThread.interrupt();
                         }
-                    } catch (ClassCastException ex) {
-                        connectionToResource.send(CommandToClientFromServer.INVALID_COMMAND);
-                    }
-                } else {
-                    //again, first process state-independent commands
-                    if (currentCommand == CommandToServerFromClient.STATE_CHANGED) {
-                        try {
-                            ResourceState newState = (ResourceState) message;
-
-                            // Handle the two interesting task-related states
-                            switch (newState) {
-                                case TASK_TERMINATED:
-                                    currentTask.setState(TaskState.TERMINATED);
-
-                                    // Try to avoid being assigned this task again.
-                                    // Note: It doesn't matter if it was cancelled because another
-                                    // resource completed it.  That means it will not be assigned
-                                    // anyway.
-                                    setTaskToAvoid(currentTask.getTaskID());
-                                    break;
-                                case TASK_ENDED_ABNORMALLY:
-                                    currentTask.setState(TaskState.TROUBLED);
-
-                                    // Try to avoid being assigned this task again.
-                                    // Note: It doesn't matter if it was cancelled because another
-                                    // resource completed it.  That means it will not be assigned
-                                    // anyway.
-                                    setTaskToAvoid(currentTask.getTaskID());
-                                    break;
-                            }
-
-                            // Interrupt TaskSend thread
-                            if ((newState == ResourceState.TASK_TERMINATED || newState == ResourceState.TASK_ENDED_ABNORMALLY)
-                                    && internalThread != null && internalThread.isAlive()) {
-                                try {
-                                    internalThread.interrupt();
-                                    internalThread.join();
-                                } catch (InterruptedException ie) {
-                                    Logger.getLogger(ServerSideResource.class.getName()).log(Level.FINER, "Interrupted while waiting for internal thread to exit.", ie);
-                                }
-                            }
-
-                            //synchronize the states
-                            setState(newState);
-
-                        } catch (ClassCastException ex) {
-                            connectionToResource.send(CommandToClientFromServer.INVALID_COMMAND);
+                        break;
+                    case STATE_CHANGED:
+                        resourceStateReceived((ResourceState) payload);
+                        break;
+                    case QUEUED_TASK_CANCELLED:
+                        queuedTaskCancelled((Integer) payload);
+                        break;
+                    case SLOT_TASK_ENDED:
+                        slotTaskEnded((TaskOutcome) payload);
+                        break;
+                    case TASK_SPLIT:
+                        for (ResourceEventListener listener : registeredListeners) {
+                            listener.resourceTaskSplit(new ResourceEvent(this, (TaskSplit) payload));
                         }
-
-                        awaitingCommand = true;
-                        currentCommand = CommandToServerFromClient.NONE;
-                    } else {
+                        break;
+                    case INVALID_COMMAND:
+                        Logger.getLogger(ServerSideResource.class.getName()).log(Level.INFO, "Invalid command error.");
+                        break;
+                    default:
+                        //Different states expect different responses, so react accordingly
                         switch (currentState) {
+                            case WAITING_FOR_CONNECTION:
+                            case CONNECTING:
                             case AUTHORIZING:
-                                switch (currentCommand) {
+                                //these are the credentials we wait for when authorizing.  the client
+                                //sends them as soon as it connects, so they may arrive before the
+                                //connect thread has started
+                                switch (command) {
                                     case CLIENT_KEY:
-                                        // Check if we have the key already
-                                        if (clientKey == 0) {
-                                            clientKey = (Integer) message;
-                                        } // If so, get password
-                                        else {
-                                            clientPswd = (Integer) message;
-
-                                            // Indicate that we are waiting for another command
-                                            awaitingCommand = true;
-                                            currentCommand = CommandToServerFromClient.NONE;
-                                        }
+                                        clientKey = (Integer) payload;
+                                        break;
+                                    case CLIENT_PASSWORD:
+                                        clientPswd = (Integer) payload;
                                         break;
                                     case USERNAME:
-                                        providedUsername = (String) message;
+                                        providedUsername = (String) payload;
                                         hasProvidedUsername = true;
-                                        awaitingCommand = true;
-                                        currentCommand = CommandToServerFromClient.NONE;
                                         break;
                                     case PASSWORD:
-                                        providedPassword = (String) message;
+                                        providedPassword = (String) payload;
                                         hasProvidedPassword = true;
-                                        awaitingCommand = true;
-                                        currentCommand = CommandToServerFromClient.NONE;
                                         break;
+                                    case SENDING_SPECS:
+                                        capabilities = CapabilityClass.of((Map<String, Object>) payload);
+                                        break;
+                                    default:
+                                        connectionToResource.send(CommandToClientFromServer.INVALID_COMMAND);
                                 }
 
                                 //check if both the usename and password are set.
-                                //if so, interrupt the running thread so it can react accordingly
-                                if (providedUsername != null && providedPassword != null) {
-                                    internalThread.interrupt();
+                                //if so, wake the connect thread so it can react accordingly
+                                if (hasProvidedUsername && hasProvidedPassword) {
+                                    synchronized (credentialsLock) {
+                                        credentialsLock.notifyAll();
+                                    }
                                 }
 
                                 break;
-                            case FINISHING_TASK:
-                                switch (currentCommand) {
-                                    case SENDING_TASK_RESULTS:
-                                        try {
-                                            currentTask.setResults((Serializable) message);
-                                            currentTask.setState(TaskState.COMPLETED);
-
-                                            setState(ResourceState.TASK_COMPLETED);
-                                        } catch (ClassCastException ex) {
-                                            connectionToResource.send(CommandToClientFromServer.INVALID_COMMAND);
+                            case READY:
+                                //nothing here yet
+                                break;
+                            case TASK_ASSIGNED:
+                                switch (command) {
+                                    case TRANSFER_FILES_NEEDED:
+                                        // Wake the TaskSendThread to send the files
+                                        synchronized (fileTransferLock) {
+                                            filesNeeded = (byte[]) payload;
+                                            fileTransferLock.notifyAll();
                                         }
+                                        client.setLastTime(System.currentTimeMillis());
                                         break;
                                     default:
                                         connectionToResource.send(CommandToClientFromServer.INVALID_COMMAND);
+                                        break;
                                 }
-                                awaitingCommand = true;
-                                currentCommand = CommandToServerFromClient.NONE;
                                 break;
-                            case SENDING_IDLE_STATS:
-                                // Get time
-                                try {
-                                    if (currentCommand == CommandToServerFromClient.SENDING_IDLE_TIME || currentCommand == CommandToServerFromClient.SENDING_NONIDLE_TIME) {
-                                        client.setIdleStatus((Calendar) message, currentCommand == CommandToServerFromClient.SENDING_IDLE_TIME);
-                                    } else {
-                                        connectionToResource.send(CommandToClientFromServer.INVALID_COMMAND);
+                            case FINISHING_TASK:
+                                if (command == CommandToServerFromClient.SENDING_TASK_RESULTS) {
+                                    client.setLastTime(System.currentTimeMillis()-client.getLastTime());
+
+                                    synchronized (queuedTasks) {
+                                        recalledTaskIds.remove(currentTask.getTaskID());
                                     }
-                                } catch (ClassCastException ex) {
+
+                                    lastTaskRunTime = System.nanoTime() - taskStartTime;
+
+                                    currentTask.setResults((Serializable) payload);
+                                    currentTask.setState(TaskState.COMPLETED);
+
+                                    setState(ResourceState.TASK_COMPLETED);
+                                } else {
                                     connectionToResource.send(CommandToClientFromServer.INVALID_COMMAND);
                                 }
-
-                                // Wait for next command
-                                awaitingCommand = true;
-                                currentCommand = CommandToServerFromClient.NONE;
                                 break;
-                            default:
-                                awaitingCommand = true;
-                                currentCommand = CommandToServerFromClient.NONE;
+                            case SENDING_IDLE_STATS:
+                                if (command == CommandToServerFromClient.SENDING_IDLE_TIME || command == CommandToServerFromClient.SENDING_NONIDLE_TIME) {
+                                    client.setIdleStatus((Calendar) payload, command == CommandToServerFromClient.SENDING_IDLE_TIME);
+                                } else {
+                                    connectionToResource.send(CommandToClientFromServer.INVALID_COMMAND);
+                                }
                                 break;
                         }
-                    }
                 }
 
             } catch (ConnectionToRemoteHostException connectionToRemoteHostException) {
@@ -943,25 +1372,167 @@ public class ServerSideResource implements ConnectionToRemoteHostEventListener {
             }
         } // Command was received on client command connection
         else {
-            try {
-                // Cast message to a command
-                CommandToServerFromClient command = (CommandToServerFromClient) message;
+            // Determine command
+            if (e.getCommand() == CommandToServerFromClient.IDLE_STATS_AVAILABLE) {
+                // Client has idle stats to report to server
+                clientHasIdleStats = true;
+
+                // If the resource is ready, get stats now
+                if (currentState == ResourceState.READY) {
+                    getIdleStats();
+                }
+            }
+        }
+    }
 
-                // Determine command
-                switch (command) {
-                    // Client has idle stats to report to server
-                    case IDLE_STATS_AVAILABLE:
-                        clientHasIdleStats = true;
+    /**
+     * Synchronizes this resource's state with the state reported by the client.
+     *
+     * @param newState The client's new state
+     */
+    private void resourceStateReceived(ResourceState newState) {
+        // Handle the interesting task-related states
+        switch (newState) {
+            case TASK_ASSIGNED:
+                // The client has started its next queued task by itself
+                synchronized (queuedTasks) {
+                    readyDeferred = false;
 
-                        // If the resource is ready, get stats now
-                        if (currentState == ResourceState.READY) {
-                            getIdleStats();
-                        }
+                    if (currentTask == null && !queuedTasks.isEmpty()) {
+                        currentTask = queuedTasks.removeFirst();
+                        preemptingTask = false;
 
-                        break;
+                        taskTimeout = HashedWheelTimer.getServerTimer().schedule(new TaskTimeout(currentTask, false), currentTask.getTimeout());
+                    }
+                }
+                break;
+            case RUNNING_TASK:
+                taskStartTime = System.nanoTime();
+                break;
+            case READY:
+                // The client starts any tasks still on their way to it as soon as
+                // they arrive
+                synchronized (queuedTasks) {
+                    if (!queuedTasks.isEmpty()) {
+                        readyDeferred = true;
+                        return;
+                    }
+                }
+                break;
+            case TASK_TERMINATED:
+                currentTask.setState(TaskState.TERMINATED);
+
+                // Try to avoid being assigned this task again, unless it was only
+                // preempted or recalled.
+                // Note: It doesn't matter if it was cancelled because another
+                // resource completed it.  That means it will not be assigned
+                // anyway.
+                boolean recalled;
+                synchronized (queuedTasks) {
+                    recalled = recalledTaskIds.remove(currentTask.getTaskID());
+                }
+                if (!preemptingTask && !recalled) {
+                    setTaskToAvoid(currentTask.getTaskID());
+                }
+                preemptingTask = false;
+                break;
+            case TASK_ENDED_ABNORMALLY:
+                currentTask.setState(TaskState.TROUBLED);
+
+                // Try to avoid being assigned this task again.
+                // Note: It doesn't matter if it was cancelled because another
+                // resource completed it.  That means it will not be assigned
+                // anyway.
+                setTaskToAvoid(currentTask.getTaskID());
+                break;
+        }
+
+        // Interrupt TaskSend thread
+        if ((newState == ResourceState.TASK_TERMINATED || newState == ResourceState.TASK_ENDED_ABNORMALLY)
+                && internalThread != null && internalThread.isAlive()) {
+            try {
+                internalThread.interrupt();
+                internalThread.join();
+            } catch (InterruptedException ie) {
+                Logger.getLogger(ServerSideResource.class.getName()).log(Level.FINER, "Interrupted while waiting for internal thread to exit.", ie);
+            }
+        }
+
+        //synchronize the states
+        setState(newState);
+    }
+
+    /**
+     * Hands back a queued task that the client has dropped.
+     *
+     * @param taskID The ID of the task
+     */
+    private void queuedTaskCancelled(int taskID) {
+        Task recalledTask = null;
+        boolean ready;
+
+        synchronized (queuedTasks) {
+            for (Iterator<Task> i = queuedTasks.iterator(); i.hasNext();) {
+                Task task = i.next();
+                if (task.getTaskID() == taskID) {
+                    i.remove();
+                    recalledTask = task;
+                    break;
                 }
-            } catch (ClassCastException ex) {
             }
+            recalledTaskIds.remove(taskID);
+
+            ready = readyDeferred && queuedTasks.isEmpty();
+            if (ready) {
+                readyDeferred = false;
+            }
+        }
+
+        if (recalledTask != null) {
+            for (ResourceEventListener listener : registeredListeners) {
+                listener.resourceTaskRecalled(new ResourceEvent(this, recalledTask));
+            }
+        }
+
+        // The client became ready while this task was on its way
+        if (ready) {
+            setState(ResourceState.READY);
+        }
+    }
+
+    /**
+     * Hands back a task that ran in an extra slot, now that it has ended.
+     *
+     * @param outcome How the task ended
+     */
+    private void slotTaskEnded(TaskOutcome outcome) {
+        Task task;
+        long startTime;
+
+        synchronized (slotTasks) {
+            task = slotTasks.remove(outcome.getTaskID());
+            if (task == null) {
+                return;
+            }
+
+            startTime = slotStartTimes.remove(outcome.getTaskID());
+            slotTimeouts.remove(outcome.getTaskID()).cancel();
+        }
+
+        if (outcome.getState() == TaskState.COMPLETED) {
+            if (client != null) {
+                client.setLastTime(System.currentTimeMillis() - client.getLastTime());
+            }
+            lastTaskRunTime = System.nanoTime() - startTime;
+
+            task.setResults(outcome.getResults());
+        } else if (outcome.getState() == TaskState.TROUBLED) {
+            setTaskToAvoid(task.getTaskID());
+        }
+        task.setState(outcome.getState());
+
+        for (ResourceEventListener listener : registeredListeners) {
+            listener.resourceSlotTaskEnded(new ResourceEvent(this, task));
         }
     }
 
@@ -1008,31 +1579,30 @@ public class ServerSideResource implements ConnectionToRemoteHostEventListener {
                 try {
                     setState(ResourceState.AUTHORIZING);
 
-                    int numAttempts = 0;
-
-                    //ask the client to send credentials
-                    connectionToResource.send(CommandToClientFromServer.AUTHORIZATION_REQUEST);
-                    awaitingCommand = true;
-
-                    /* Continue sleeping/being interrupted until either numAttempts gets too high
-                     * or the password and username are both set, and we're not disconnecting.
-                     * a do while loop is used here because there's no point in checking before anything is done */
-                    do {
-                        //now put this thread to sleep; we will trigger its interrupt if anything noteworthy occurs
-                        try {
-                            sleep(DEFAULT_WAIT_TIME);
-                        } catch (InterruptedException ex) {
+                    /* The client sends its credentials as soon as it connects, so there is
+                     * no need to ask for them.  Wait until the password and username are
+                     * both set, we run out of time or we start disconnecting. */
+                    long deadline = System.currentTimeMillis() + DEFAULT_WAIT_TIME * DEFAULT_NUMBER_OF_ATTEMPTS;
+                    synchronized (credentialsLock) {
+                        long remaining;
+                        while ((!hasProvidedUsername || !hasProvidedPassword) && currentState != ResourceState.DISCONNECTING
+                                && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                            try {
+                                credentialsLock.wait(remaining);
+                            } catch (InterruptedException ex) {
+                                break;
+                            }
                         }
-                        //TODO: not sure if it's kosher to use interrupts like this
-
-                        ++numAttempts;
-                    } while ((!hasProvidedUsername || !hasProvidedPassword) && numAttempts < DEFAULT_NUMBER_OF_ATTEMPTS && currentState != ResourceState.DISCONNECTING);
+                    }
 
                     //don't even bother to do the authentication check if we're disconnecting
                     if (currentState != ResourceState.DISCONNECTING && checkAuthentication(providedUsername, providedPassword)) {
+                        //associate the client information first, so that the client command
+                        //connection can be matched up as soon as the client is told
+                        setState(ResourceState.AUTHORIZATION_SUCCESS);
+
                         //send the client its ID number
-                        connectionToResource.send(CommandToClientFromServer.SENDING_RESOURCE_ID);
-                        connectionToResource.send(resourceID);
+                        connectionToResource.sendAsync(CommandToClientFromServer.SENDING_RESOURCE_ID, resourceID);
 
                         // Tell the client that it authorized successfully
                         connectionToResource.send(CommandToClientFromServer.AUTHORIZATION_SUCCEEDED);
@@ -1056,6 +1626,7 @@ public class ServerSideResource implements ConnectionToRemoteHostEventListener {
                          */
 
                     } else {
+                        setState(ResourceState.AUTHORIZATION_FAILURE);
                         connectionToResource.send(CommandToClientFromServer.AUTHORIZATION_FAILED);
                     }
 
@@ -1135,126 +1706,191 @@ public class ServerSideResource implements ConnectionToRemoteHostEventListener {
 
         @Override
         public void run() {
+            // Files being sent; they have to stay open until their contents are written
+            LinkedList<FileInputStream> openFiles = new LinkedList<FileInputStream>();
+
             try {
-                synchronized (connectionToResource) {
-                    if (currentTask instanceof FileTransferTask) {
-                        FileTransferTask fileTransferTask = (FileTransferTask) currentTask;
-                        // Start file transfer
-                        FileTransfer fileInfo;
-                        while (fileTransferTask.getNumFilesLeft() > 0 && (fileInfo = fileTransferTask.getNextFile()) != null) {
-                            // Clear flags that start of cancel transfer
-                            flags &= ~(FILE_TRANSFER_NOT_MODIFIED | FILE_TRANSFER_ACK);
-
-                            // Start file transfer commands
-                            connectionToResource.send(CommandToClientFromServer.TRANSFER);
-                            //connectionToResource.send(fileInfo.getRemoteFilename());
+                // The frames are queued in order, so nothing else needs to be kept
+                // from sending while the files are; holding the connection would
+                // block every other sender until the client answered the manifest
+                if (currentTask instanceof FileTransferTask) {
+                    if (!sendFiles((FileTransferTask) currentTask, openFiles)) {
+                        return;
+                    }
+                }
 
-                            try {
-                                // Send file size
-                                File localFile = new File(fileInfo.getLocalFilename());
-                                long localFileSize = localFile.length();
-
-                                // Send file information
-                                FileTransferInfoToClient transferInfo = new FileTransferInfoToClient(
-                                        fileInfo.getRemoteFilename(), // Remote filename
-                                        localFileSize, // Filesize
-                                        fileInfo.getRemoteDirectory(), // Remote directory in which to place file
-                                        localFile.lastModified(), // Last modified timestamp of file
-                                        fileInfo.isExecutable() // Is the file an executable
-                                        );
-                                connectionToResource.send(transferInfo);
-
-                                // Wait
-                                while (currentState == ResourceState.TASK_ASSIGNED && (flags & FILE_TRANSFER_NOT_MODIFIED) == 0 && (flags & FILE_TRANSFER_ACK) == 0) {
-                                    try {
-                                        sleep(DEFAULT_WAIT_TIME);
-                                    } catch (InterruptedException ie) {
-                                        // End thread if the task is no longer assigned
-                                        if (currentTask.getState() != TaskState.READY) {
-                                            //System.out.println("Thread exiting prematurely.");
-                                            return;
-                                        }
-                                    }
-                                }
+                // Waiting for the task to be written also waits for the file contents before it
+                connectionToResource.send(CommandToClientFromServer.SENDING_NEW_TASK, currentTask);
+            } catch (ConnectionToRemoteHostException ex) {
+                Logger.getLogger(ServerSideResource.class.getName()).log(Level.WARNING, "Error sending message to resource #" + resourceID, ex);
+                setState(ResourceState.TROUBLED);
+            } finally {
+                for (FileInputStream openFile : openFiles) {
+                    try {
+                        openFile.close();
+                    } catch (IOException e) {
+                        Logger.getLogger(ServerSideResource.class.getName()).log(Level.FINER, "Error closing file sent to resource #" + resourceID, e);
+                    }
+                }
+            }
+        }
 
-                                // Send file contents
-                                if ((flags & FILE_TRANSFER_ACK) != 0) {
-                                    // Get checksum
-                                    MessageDigest md5 = null;
-                                    try {
-                                        md5 = MessageDigest.getInstance("md5");
-
-                                        // Read bytes
-                                        byte[] fileContents = new byte[4096];
-                                        int bytesRead, fileOffset = 0;
-                                        FileInputStream localFileInputStream = new FileInputStream(localFile);
-                                        while (fileOffset < localFileSize && (bytesRead = localFileInputStream.read(fileContents)) != -1) {
-                                            // Update message digest
-                                            md5.update(fileContents, 0, bytesRead);
-
-                                            // Send contents
-                                            connectionToResource.send(fileContents);
-                                            fileContents = new byte[4096];
-
-                                            // Add to offset
-                                            fileOffset += bytesRead;
-                                        }
-                                        localFileInputStream.close();
+        /**
+         * Sends the files of a task.  The client is sent a manifest describing
+         * every file, and replies with a bitmap of the ones it does not already
+         * have.  Those are then queued back to back, without waiting for them
+         * to be written.
+         *
+         * @param fileTransferTask The task whose files to send
+         * @param openFiles        Receives the files opened, to be closed once
+         *                         their contents have been written
+         * @return true if the task should be sent next, false if sending it
+         *         should be abandoned
+         * @throws edu.tcnj.TGrid.Exceptions.ConnectionToRemoteHostException if
+         *         a message could not be sent
+         */
+        private boolean sendFiles(FileTransferTask fileTransferTask, LinkedList<FileInputStream> openFiles) throws ConnectionToRemoteHostException {
+            try {
+                // Describe every file
+                ArrayList<File> localFiles = new ArrayList<File>();
+                ArrayList<FileTransferInfoToClient> manifest = new ArrayList<FileTransferInfoToClient>();
+
+                FileTransfer fileInfo;
+                fileTransferTask.resetFileIndex();
+                while ((fileInfo = fileTransferTask.getNextFile()) != null) {
+                    File localFile = new File(fileInfo.getLocalFilename());
+
+                    // The client only asks for the contents if the checksum is not in its cache
+                    FileTransferInfoToClient transferInfo = new FileTransferInfoToClient(
+                            fileInfo.getRemoteFilename(), // Remote filename
+                            localFile.length(), // Filesize
+                            fileInfo.getRemoteDirectory(), // Remote directory in which to place file
+                            localFile.lastModified(), // Last modified timestamp of file
+                            fileInfo.isExecutable(), // Is the file an executable
+                            FileDigestCache.getDigest(localFile) // Checksum of the file's contents (cached)
+                            );
+
+                    localFiles.add(localFile);
+                    manifest.add(transferInfo);
+                }
 
-                                        // Send digest
-                                        connectionToResource.send(md5.digest());
-                                    } catch (NoSuchAlgorithmException checksumE) {
-                                        cancelTask();
-                                    }
-                                }
-                            } catch (IOException e) {
-                                Logger.getLogger(ServerSideResource.class.getName()).log(Level.WARNING, "Error sending file to resource #" + resourceID, e);
-                                setState(ResourceState.TROUBLED);
+                if (manifest.isEmpty()) {
+                    return true;
+                }
+
+                synchronized (fileTransferLock) {
+                    filesNeeded = null;
+                }
+
+                connectionToResource.send(CommandToClientFromServer.TRANSFER_MANIFEST, manifest.toArray(new FileTransferInfoToClient[manifest.size()]));
+
+                // Wait for the client to say which files it needs, for as long as a
+                // message is given to answer before the client is considered troubled
+                long deadline = System.currentTimeMillis() + DEFAULT_WAIT_TIME * DEFAULT_NUMBER_OF_ATTEMPTS;
+                byte[] needed;
+                synchronized (fileTransferLock) {
+                    long remaining;
+                    while (currentState == ResourceState.TASK_ASSIGNED && filesNeeded == null
+                            && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        try {
+                            fileTransferLock.wait(remaining);
+                        } catch (InterruptedException ie) {
+                            // End thread if the task is no longer assigned
+                            if (currentTask.getState() != TaskState.READY) {
+                                return false;
                             }
                         }
                     }
 
-                    connectionToResource.send(CommandToClientFromServer.SENDING_NEW_TASK);
-                    connectionToResource.send(currentTask);
+                    needed = filesNeeded;
                 }
-            } catch (ConnectionToRemoteHostException ex) {
-                Logger.getLogger(ServerSideResource.class.getName()).log(Level.WARNING, "Error sending message to resource #" + resourceID, ex);
+
+                if (needed == null) {
+                    if (currentState == ResourceState.TASK_ASSIGNED) {
+                        Logger.getLogger(ServerSideResource.class.getName()).log(Level.WARNING, "Resource #" + resourceID + " did not answer the file manifest in time.");
+                        setState(ResourceState.TROUBLED);
+                    }
+
+                    return false;
+                }
+
+                // Queue the contents of every file needed, straight from the files
+                for (int i = 0; i < manifest.size(); i++) {
+                    if (i / 8 >= needed.length || (needed[i / 8] & (1 << (i % 8))) == 0) {
+                        continue;
+                    }
+
+                    FileInputStream localFileInputStream = new FileInputStream(localFiles.get(i));
+                    openFiles.add(localFileInputStream);
+
+                    FileChannel localFileChannel = localFileInputStream.getChannel();
+                    long localFileSize = manifest.get(i).getFilesize();
+                    for (long fileOffset = 0; fileOffset < localFileSize; fileOffset += FILE_TRANSFER_BLOCK_SIZE) {
+                        connectionToResource.sendFileRegion(CommandToClientFromServer.TRANSFER_DATA, localFileChannel,
+                                fileOffset, Math.min(FILE_TRANSFER_BLOCK_SIZE, localFileSize - fileOffset));
+                    }
+
+                    connectionToResource.sendAsync(CommandToClientFromServer.TRANSFER_CHECKSUM, manifest.get(i).getDigest());
+                }
+
+                return true;
+            } catch (NoSuchAlgorithmException checksumE) {
+                cancelTask();
+                return false;
+            } catch (IOException e) {
+                Logger.getLogger(ServerSideResource.class.getName()).log(Level.WARNING, "Error sending file to resource #" + resourceID, e);
                 setState(ResourceState.TROUBLED);
+                return false;
             }
         }
     }
 
     /**
-     * This thread is responsible for checking that the task completes the task in
-     * the specified timeout
+     * Tells listeners that a task has not completed in its timeout, when run by
+     * the server's timer.  Every task's timeout runs on the same thread, so
+     * listeners must not block.
      */
-    protected class TaskTimeoutThread extends Thread {
+    protected class TaskTimeout implements Runnable {
 
-        @Override
-        public void run() {
-            try {
-                // Check that there is a current task
-                if (currentTask != null) {
-                    // Get task timeout
-                    int timeout = currentTask.getTimeout();
-                    sleep(timeout);
+        /**
+         * The task that is timed
+         */
+        private final Task task;
 
-                    // This thread should be interrupted and never read here if the task
-                    // completed
-                    //System.out.println("Task exceeded timeout of " + timeout/1000.0 + " seconds.");
+        /**
+         * Whether the task is running in an extra slot, rather than being the
+         * current task
+         */
+        private final boolean inSlot;
 
-                    // Inform listeners
-                    for (ResourceEventListener listener : registeredListeners) {
-                        listener.resourceTaskTimedOut(new ResourceEvent(ServerSideResource.this));
+        /**
+         * Creates a timeout for a task.
+         *
+         * @param task   The task
+         * @param inSlot Whether the task is running in an extra slot
+         */
+        public TaskTimeout(Task task, boolean inSlot) {
+            this.task = task;
+            this.inSlot = inSlot;
+        }
+
+        public void run() {
+            // The timeout is cancelled when the task ends, but it may have been
+            // due just as it did
+            if (inSlot) {
+                synchronized (slotTasks) {
+                    if (slotTasks.get(task.getTaskID()) != task) {
+                        return;
                     }
                 }
-            } catch (InterruptedException ie) {
+            } else if (currentTask != task) {
+                return;
+            }
+
+            // Inform listeners; the task is given for slot tasks only
+            for (ResourceEventListener listener : registeredListeners) {
+                listener.resourceTaskTimedOut(inSlot ? new ResourceEvent(ServerSideResource.this, task) : new ResourceEvent(ServerSideResource.this));
             }
-            /*catch (ConnectionToRemoteHostException ex)
-            {
-            Logger.getLogger(ServerSideResource.class.getName()).log(Level.WARNING, "Error sending message to resource #" + resourceID, ex);
-            setState(ResourceState.TROUBLED);
-            }*/
         }
     }
 }
@@ -5,51 +5,23 @@
 
 package edu.tcnj.TGrid;
 
-import edu.tcnj.TGrid.Events.JobEvent;
-import edu.tcnj.TGrid.Events.JobEventListener;
-import edu.tcnj.TGrid.States.JobState;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.LinkedList;
 
 /**
  * The JacobsthalJob Class represents an Job based on calculating Jacobsthal numbers.
  * 
+ * The search is broken into chunks that are only created as they are handed
+ * out, so a long search does not hold a task for every chunk.
+ * 
  * @author Dan
  */
-public class JacobsthalJob implements Job {
-    /**
-     * Stores a list of all internal Tasks that still need to be sent to clients.
-     */
-    private LinkedBlockingQueue<JacobsthalTask> newTasks = new LinkedBlockingQueue<JacobsthalTask>();
-    
-    /**
-     * Stores a list of all internal Tasks that have failed.
-     */
-    private LinkedBlockingQueue<JacobsthalTask> problematicTasks = new LinkedBlockingQueue<JacobsthalTask>();
-    
-    /**
-     * Stores a list of all internal Tasks have have completed successfully.
-     */
-    private LinkedBlockingQueue<JacobsthalTask> finishedTasks = new LinkedBlockingQueue<JacobsthalTask>();
-   
+public class JacobsthalJob extends StreamingJob {
     /**
-     * Represents the original number of tasks in the file.
-     * 
-     * Used in determining whether or not all tasks have completed or not.
+     * The results of the tasks that have finished, one line per task.
+     * Guarded by itself.
      */
-    private int initialNumberOfTasks = 0;
-    
-    /**
-     * Represents the current state of this Job.
-     */
-    private JobState currentState = JobState.NEW;
-    
-    /**
-     * Stores a list of every event listener that is registered to receive event
-     * notifications from this class.
-     */
-    private HashSet<JobEventListener> registeredListeners = new HashSet<JobEventListener>();
+    private StringBuilder finishedResults = new StringBuilder();
     
     private ArrayList<Integer> primes;
     
@@ -61,108 +33,76 @@ public class JacobsthalJob implements Job {
     private int winitial = 744;
     private int lengthOfSearch;
     
+    /**
+     * Where the search starts
+     */
+    private int starts = -800;
+    
+    /**
+     * The length of the search each task covers
+     */
+    private int ols;
+    
+    /**
+     * The number of primes each position in the search is sieved by
+     */
+    private int numPrimes;
+    
     public JacobsthalJob() {
         //TODO: first figure out what the numbers actually do, then have them set via constructor parameters
     }
     
     /**
      * Does what is necessary to make the Job ready to run, after which 
-     * the Job is marked READY.
+     * the Job is marked READY.  The tasks are created as they are handed out.
      */
     public void makeReady() {
         primes = getPrimeNumbers(1000);
-        int starts = -800;
         lengthOfSearch = determineLengthOfSearch(w);
-        int numPrimes = numberOfModularPrimes(w);
-        int ols = Math.min(3000000, lengthOfSearch/30);
+        numPrimes = numberOfModularPrimes(w);
+        ols = Math.max(1, Math.min(3000000, lengthOfSearch/30));
         
         if (w == winitial) {
             starts = -800;
         }
-	
-        while(starts <= lengthOfSearch) {
-            int[] commandLineArguments = {n, w, starts, ols, numPrimes};
-            newTasks.add(new JacobsthalTask(commandLineArguments));
-            initialNumberOfTasks++;
-            starts = starts + ols;
-        }
-		
-        setState(JobState.READY);
-    }
-    
-    /**
-     * Returns the next Task to be performed as part of this Job.  Note that
-     * this method generally won't work if the Job isn't ready.
-     * 
-     * @return A Task object representing the next task needed to be run.
-     */
-    public Task getNextReadyTask() {
-        setState(JobState.RUNNING);
-        return newTasks.poll();
-    }
-    
-    /**
-     * Returns whether or not there are any tasks remaining as part of this Job.
-     * 
-     * @return true if there is at least one more Task ready,
-     *         false otherwise
-     */
-    public boolean hasNextTask() {
-        return !newTasks.isEmpty();
+        
+        super.makeReady();
     }
     
     /**
-     * Stores the specified Task.
+     * Creates the task for the chunk of the search at a position.
      * 
-     * Intended to store either a) Tasks that have completed sucessfully,
-     * b) those that have encountered errors and cannot run, or 
-     * c) Tasks that failed to run, and must be delegated again
+     * @param index The position of the chunk
+     * @return The task, or null once the search has been covered
      */
-    public void storeTask(Task taskToStore) {
-        switch(taskToStore.getState()) {
-            case COMPLETED: //if the task is completed, add it to the completed tasks list
-                finishedTasks.add((JacobsthalTask)taskToStore);
-                break;
-            case TROUBLED:  //if the task had a problem, put it in a queue where it will not have to run again
-            case PROBLEMATIC:
-                problematicTasks.add((JacobsthalTask)taskToStore);
-                break;
-            case READY:
-            case TERMINATED: //if the task was forcefully terminated, add it back into the queue of tasks waiting to run
-                newTasks.add((JacobsthalTask)taskToStore);
+    protected Task createTask(long index) {
+        long chunkStart = starts + index * ols;
+        if (chunkStart > lengthOfSearch) {
+            return null;
         }
         
-        if(finishedTasks.size() + problematicTasks.size() == initialNumberOfTasks) {
-            setState(JobState.COMPLETED);
-        }
+        int[] commandLineArguments = {n, w, (int)chunkStart, ols, numPrimes};
+        return new JacobsthalTask(commandLineArguments);
     }
     
     /**
-     * Returns the initial number of Tasks featured as part of the Job.
+     * Returns the number of chunks the search is broken into.
      * 
-     * @return the total number of Tasks that this Job started with.
+     * @return The number of tasks
      */
-    public int getInitialNumberOfTasks() {
-        return initialNumberOfTasks;
+    protected long getEstimatedNumberOfTasks() {
+        return Math.max(0, ((long)lengthOfSearch - starts) / Math.max(1, ols) + 1);
     }
     
     /**
-     * Returns the number of Tasks remaining in this Job.  (That is, those that
-     * have not yet been retrieved with the getNextTask() method.)
+     * Keeps the output of a finished task for the Job's results.
      * 
-     * @return the number of Tasks remaining in this Job.
+     * @param task The completed task
      */
-    public int getRemainingNumberOfTasks() {
-        return newTasks.size();
-    }
-    
-    /**
-     * Returns the number of Tasks in this Job that have completed sucessfully.
-     * 
-     * @return the number of Tasks remaining in this Job.
-     */
-    public int getNumberOfTasksCompleted() {
-        return finishedTasks.size();
+    protected void taskCompleted(Task task) {
+        synchronized(finishedResults) {
+            finishedResults.append(task.toString()).append(": ").append(task.getResults()).append("\n");
+        }
     }
     
     /**
@@ -172,23 +112,25 @@ public class JacobsthalJob implements Job {
     public String getResults() {
         String retVal = "";
         
-        if(!finishedTasks.isEmpty()) {
-            retVal += "Tasks that finished were:\n";
-            for(JacobsthalTask task : finishedTasks) {
-                retVal += task.toString() + ": " + task.getResults() + "\n";
+        synchronized(finishedResults) {
+            if(finishedResults.length() > 0) {
+                retVal += "Tasks that finished were:\n";
+                retVal += finishedResults;
             }
         }
         
-        if(!newTasks.isEmpty()) {
+        LinkedList<Task> waitingTasks = getWaitingTasks();
+        if(!waitingTasks.isEmpty()) {
             retVal += "\nTasks that did not run were:\n";
-            for(JacobsthalTask task : newTasks) {
+            for(Task task : waitingTasks) {
                 retVal += task.toString() + "\n";
             }
         }
         
-        if(!problematicTasks.isEmpty()) {
+        LinkedList<Task> failedTasks = getFailedTasks();
+        if(!failedTasks.isEmpty()) {
             retVal += "\nTasks that encountered problems were:\n";
-            for(JacobsthalTask task : problematicTasks) {
+            for(Task task : failedTasks) {
                 retVal += task.toString() + "\n";
             }
         }
@@ -196,62 +138,6 @@ public class JacobsthalJob implements Job {
         return retVal;
     }
     
-    /**
-     * Returns the current state of this Job
-     * 
-     * @return The current state of the Job instance
-     */
-    public JobState getState() {
-        return currentState;
-    }
-    
-    /**
-     * Change this Job's state, sending event notifications if necessary.
-     *
-     * @param The new state to set the job to.
-     */
-    protected void setState(JobState newState) {
-        if(currentState != newState) {
-            currentState = newState;
-            fireStateChanged();
-        }
-    }
-    
-    /**
-     * Notify all registered listeners of state changes.
-     */
-    protected void fireStateChanged() {
-        synchronized(registeredListeners) {
-            for (JobEventListener listener : registeredListeners) {
-                listener.JobStateChanged(new JobEvent(this));
-            }
-        }
-    }
-    
-    /**
-     * Add the specified event listener to the list of registered listeners, thus
-     * allowing it to be notified of JobEvents.
-     *
-     * @param listenerToAdd The listener to remove from the list of registered listeners.
-     */
-    public void addJobEventListener(JobEventListener listenerToAdd) {
-        synchronized(registeredListeners) {
-            registeredListeners.add(listenerToAdd);
-        }
-    }
-    
-    /**
-     * Remove the specified event listener from the list of registered listeners, thus
-     * no longer allowing it to be notifiedJobEvents.
-     * 
-     * @param listenerToRemove The listener to remove from the list of registered listeners.
-     */
-    public void removeJobEventListener(JobEventListener listenerToRemove) {
-        synchronized(registeredListeners) {
-            registeredListeners.remove(listenerToRemove);
-        }
-    }
-    
     /**
      * Finds prime numbers between 0 and upperRange using a sieve algorithm.
      * 
@@ -24,11 +24,6 @@ import java.io.Serializable;
  */
 public class JacobsthalTask extends Task {
     
-    /**
-     * A unique ID number for this Task
-     */
-    protected int id;
-    
     /**
      * Represents the current state of this Task
      */
@@ -56,6 +51,11 @@ public class JacobsthalTask extends Task {
      */
     private String[] commandToRun;
     
+    /**
+     * The estimated cost of the search
+     */
+    private double costEstimate = 0;
+    
     
     /**
      * Creates a new TestTask instance.
@@ -69,6 +69,23 @@ public class JacobsthalTask extends Task {
         for(int i=0; i<commandLineArguments.length; i++) {
             commandToRun[i+1] = Integer.toString(commandLineArguments[i]);
         }
+        
+        // The arguments are n, w, the start and length of the search, and the
+        // number of primes each position in it is sieved by
+        if(commandLineArguments.length >= 5) {
+            costEstimate = (double)commandLineArguments[3] * commandLineArguments[4];
+        }
+    }
+    
+    /**
+     * Returns an estimate of how much work the task is: the number of positions
+     * searched times the number of primes each is checked against.
+     * 
+     * @return The estimated cost, or 0 if it is not known
+     */
+    @Override
+    public double getCostEstimate() {
+        return costEstimate;
     }
     
     /**
@@ -164,8 +181,4 @@ public class JacobsthalTask extends Task {
             }
         }
     }
-
-    public int getTaskID() {
-        return id;
-    }
 }
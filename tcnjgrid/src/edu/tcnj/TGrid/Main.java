@@ -643,7 +643,7 @@ public class Main {
 
 
         // Factorial job
-        int factorialNum = 0, factorialTasks = 0;
+        int factorialNum = 0, factorialTasks = 0, factorialCores = 0;
         while (factorialNum <= 0) {
             System.out.print("Enter n to compute n!: ");
             try {
@@ -669,7 +669,20 @@ public class Main {
             }
         }
 
-        monitor.addJob(new FactorialJob(factorialNum, factorialTasks));
+        while (factorialCores <= 0) {
+            System.out.print("Enter number of cores each task runs on: ");
+            try {
+                factorialCores = scan.nextInt();
+                if (factorialCores <= 0) {
+                    System.out.println("Number of cores must be a positive integer.");
+                }
+            } catch (InputMismatchException e) {
+                scan.nextLine();
+                System.out.println("Invalid input.  Please enter an integer.");
+            }
+        }
+
+        monitor.addJob(new FactorialJob(factorialNum, factorialTasks, factorialCores));
 
 
         //monitor.addJob(new TestJob());
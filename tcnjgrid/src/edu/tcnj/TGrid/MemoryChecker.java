@@ -40,8 +40,12 @@ public class MemoryChecker implements RequirementsChecker
 		{
 			try
 			{
-				int ram = (Integer)specs.get("RAM");
-				rtn = (ram >= minRam);
+				// Clients report a number of megabytes, but a string is accepted too
+				Object ram = specs.get("RAM");
+				if (ram instanceof Number)
+					rtn = (((Number)ram).intValue() >= minRam);
+				else
+					rtn = (Integer.parseInt(ram.toString().trim()) >= minRam);
 			}
 			catch (Exception e)
 			{
@@ -51,4 +55,16 @@ public class MemoryChecker implements RequirementsChecker
 		
 		return rtn;
 	}
+	
+	@Override
+	public boolean equals(Object other)
+	{
+		return other instanceof MemoryChecker && ((MemoryChecker)other).minRam == minRam;
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		return minRam;
+	}
 }
@@ -0,0 +1,145 @@
+/*
+ * ObjectStreamResetPolicy.java
+ *
+ * Decides when a connection's object streams are discarded, so that their
+ * handle tables do not grow for as long as the connection stays up.
+ */
+
+package edu.tcnj.TGrid;
+
+/**
+ * Describes when a ConnectionToRemoteHost should reset its object streams.
+ *
+ * Object streams keep a reference to every object they have written or read, so
+ * that repeated objects can be sent as back references.  On a long-lived
+ * connection that means every Task and result ever sent stays reachable.  A
+ * reset discards the streams on both ends (the remote host is told with a
+ * RESET frame), releasing all of those references.
+ *
+ * A reset happens as soon as any of the enabled conditions is met.  A value of
+ * zero disables the corresponding condition.
+ *
+ * @see edu.tcnj.TGrid.ConnectionToRemoteHost#setResetPolicy(ObjectStreamResetPolicy)
+ */
+public class ObjectStreamResetPolicy {
+
+    /**
+     * Never resets the object streams.  (The old behavior, with unbounded memory use.)
+     */
+    public static final ObjectStreamResetPolicy NEVER = new ObjectStreamResetPolicy(0, 0, false);
+
+    /**
+     * The policy used by new connections: resets after every task or set of
+     * results, or at the latest after 256 objects or 16 MB.
+     */
+    public static final ObjectStreamResetPolicy DEFAULT = new ObjectStreamResetPolicy(256, 16 * 1024 * 1024, true);
+
+    /**
+     * The number of objects that may be sent between resets, or 0 for no limit.
+     */
+    private final int messageInterval;
+
+    /**
+     * The number of bytes of objects that may be sent between resets, or 0 for no limit.
+     */
+    private final long byteInterval;
+
+    /**
+     * Whether to reset after sending a command that ends a task (the task itself,
+     * or its results).
+     */
+    private final boolean resetAtTaskBoundaries;
+
+    /**
+     * Creates a new policy.
+     *
+     * @param messageInterval       Reset after this many objects (0 to disable)
+     * @param byteInterval          Reset after this many bytes of objects (0 to disable)
+     * @param resetAtTaskBoundaries Reset after each task or set of results
+     */
+    public ObjectStreamResetPolicy(int messageInterval, long byteInterval, boolean resetAtTaskBoundaries) {
+        if(messageInterval < 0 || byteInterval < 0) {
+            throw new IllegalArgumentException("Reset intervals cannot be negative");
+        }
+
+        this.messageInterval = messageInterval;
+        this.byteInterval = byteInterval;
+        this.resetAtTaskBoundaries = resetAtTaskBoundaries;
+    }
+
+    /**
+     * Returns a policy that resets after every N objects.
+     *
+     * @param messageInterval The number of objects between resets
+     * @return The new policy
+     */
+    public static ObjectStreamResetPolicy everyMessages(int messageInterval) {
+        return new ObjectStreamResetPolicy(messageInterval, 0, false);
+    }
+
+    /**
+     * Returns a policy that resets after every N bytes of objects.
+     *
+     * @param byteInterval The number of bytes between resets
+     * @return The new policy
+     */
+    public static ObjectStreamResetPolicy everyBytes(long byteInterval) {
+        return new ObjectStreamResetPolicy(0, byteInterval, false);
+    }
+
+    /**
+     * Returns a policy that resets after each task or set of results.
+     *
+     * @return The new policy
+     */
+    public static ObjectStreamResetPolicy atTaskBoundaries() {
+        return new ObjectStreamResetPolicy(0, 0, true);
+    }
+
+    /**
+     * Determines whether the object streams should be reset after an object was sent.
+     *
+     * @param messagesSinceReset The number of objects sent since the last reset,
+     *                           including the one just sent
+     * @param bytesSinceReset    The number of bytes of objects sent since the last reset
+     * @param taskBoundary       Whether the object just sent ends a task
+     * @return true if the streams should be reset now
+     */
+    public boolean shouldReset(int messagesSinceReset, long bytesSinceReset, boolean taskBoundary) {
+        return (resetAtTaskBoundaries && taskBoundary)
+                || (messageInterval > 0 && messagesSinceReset >= messageInterval)
+                || (byteInterval > 0 && bytesSinceReset >= byteInterval);
+    }
+
+    /**
+     * Returns the number of objects that may be sent between resets.
+     *
+     * @return The message interval, or 0 if there is no limit
+     */
+    public int getMessageInterval() {
+        return messageInterval;
+    }
+
+    /**
+     * Returns the number of bytes of objects that may be sent between resets.
+     *
+     * @return The byte interval, or 0 if there is no limit
+     */
+    public long getByteInterval() {
+        return byteInterval;
+    }
+
+    /**
+     * Returns whether the streams are reset after each task or set of results.
+     *
+     * @return true if resets happen at task boundaries
+     */
+    public boolean resetsAtTaskBoundaries() {
+        return resetAtTaskBoundaries;
+    }
+
+    @Override
+    public String toString() {
+        return "ObjectStreamResetPolicy[messages=" + messageInterval + ", bytes=" + byteInterval + ", taskBoundaries=" + resetAtTaskBoundaries + "]";
+    }
+}
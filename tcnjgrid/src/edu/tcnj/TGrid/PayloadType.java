@@ -0,0 +1,322 @@
+/*
+ * PayloadType.java
+ *
+ * Enumerates the kinds of data that can travel with a WireCommand.
+ */
+
+package edu.tcnj.TGrid;
+
+import edu.tcnj.TGrid.States.ResourceState;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.Calendar;
+
+/**
+ * Enumerates the possible payloads of a command, and how each is encoded.
+ *
+ * Everything except OBJECT is written inline with fixed, compact encodings.
+ * OBJECT payloads (tasks and their results) are written with the connection's
+ * object streams, which the connection hands in as ObjectStreams, since they
+ * outlive any one frame.
+ */
+public enum PayloadType {
+
+    /**
+     * The command carries no payload.
+     */
+    NONE {
+        public boolean accepts(Object payload) {
+            return payload == null;
+        }
+
+        public void write(Object payload, DataOutputStream out, ObjectStreams objects) {
+        }
+
+        public Object read(DataInputStream in, ObjectStreams objects) {
+            return null;
+        }
+    },
+
+    /**
+     * A four byte <code>Integer</code>.
+     */
+    INT {
+        public boolean accepts(Object payload) {
+            return payload instanceof Integer;
+        }
+
+        public void write(Object payload, DataOutputStream out, ObjectStreams objects) throws IOException {
+            out.writeInt((Integer)payload);
+        }
+
+        public Object read(DataInputStream in, ObjectStreams objects) throws IOException {
+            return in.readInt();
+        }
+    },
+
+    /**
+     * A <code>String</code>, in modified UTF-8 with a two byte length.
+     */
+    STRING {
+        public boolean accepts(Object payload) {
+            return payload instanceof String;
+        }
+
+        public void write(Object payload, DataOutputStream out, ObjectStreams objects) throws IOException {
+            out.writeUTF((String)payload);
+        }
+
+        public Object read(DataInputStream in, ObjectStreams objects) throws IOException {
+            return in.readUTF();
+        }
+    },
+
+    /**
+     * A <code>ResourceState</code>, as a single byte.
+     */
+    RESOURCE_STATE {
+        public boolean accepts(Object payload) {
+            return payload instanceof ResourceState;
+        }
+
+        public void write(Object payload, DataOutputStream out, ObjectStreams objects) throws IOException {
+            out.writeByte(((ResourceState)payload).ordinal());
+        }
+
+        public Object read(DataInputStream in, ObjectStreams objects) throws IOException {
+            int ordinal = in.readUnsignedByte();
+
+            if(ordinal >= RESOURCE_STATES.length) {
+                throw new IOException("Unknown resource state " + ordinal);
+            }
+
+            return RESOURCE_STATES[ordinal];
+        }
+    },
+
+    /**
+     * A <code>Calendar</code>, as eight bytes of milliseconds since the epoch.
+     */
+    TIME {
+        public boolean accepts(Object payload) {
+            return payload instanceof Calendar;
+        }
+
+        public void write(Object payload, DataOutputStream out, ObjectStreams objects) throws IOException {
+            out.writeLong(((Calendar)payload).getTimeInMillis());
+        }
+
+        public Object read(DataInputStream in, ObjectStreams objects) throws IOException {
+            Calendar time = Calendar.getInstance();
+            time.setTimeInMillis(in.readLong());
+
+            return time;
+        }
+    },
+
+    /**
+     * A <code>byte[]</code>, preceded by its four byte length.
+     */
+    BYTES {
+        public boolean accepts(Object payload) {
+            return payload instanceof byte[];
+        }
+
+        public void write(Object payload, DataOutputStream out, ObjectStreams objects) throws IOException {
+            byte[] bytes = (byte[])payload;
+
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        public Object read(DataInputStream in, ObjectStreams objects) throws IOException {
+            int length = in.readInt();
+
+            if(length < 0 || length > in.available()) {
+                throw new IOException("Invalid byte array length " + length);
+            }
+
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+
+            return bytes;
+        }
+    },
+
+    /**
+     * A <code>byte[]</code> that takes up the rest of the frame, with no length
+     * of its own.  This lets the bytes of a frame be written straight from a
+     * file (see <code>ConnectionToRemoteHost.sendFileRegion</code>).
+     */
+    RAW {
+        public boolean accepts(Object payload) {
+            return payload instanceof byte[];
+        }
+
+        public void write(Object payload, DataOutputStream out, ObjectStreams objects) throws IOException {
+            out.write((byte[])payload);
+        }
+
+        public Object read(DataInputStream in, ObjectStreams objects) throws IOException {
+            byte[] bytes = new byte[in.available()];
+            in.readFully(bytes);
+
+            return bytes;
+        }
+    },
+
+    /**
+     * A <code>FileTransferInfoToClient[]</code>, as a two byte count followed by
+     * each description, field by field.
+     */
+    FILE_MANIFEST {
+        public boolean accepts(Object payload) {
+            return payload instanceof FileTransferInfoToClient[] && ((FileTransferInfoToClient[])payload).length <= 0xFFFF;
+        }
+
+        public void write(Object payload, DataOutputStream out, ObjectStreams objects) throws IOException {
+            FileTransferInfoToClient[] manifest = (FileTransferInfoToClient[])payload;
+
+            out.writeShort(manifest.length);
+            for(FileTransferInfoToClient transferInfo : manifest) {
+                writeFileInfo(transferInfo, out);
+            }
+        }
+
+        public Object read(DataInputStream in, ObjectStreams objects) throws IOException {
+            FileTransferInfoToClient[] manifest = new FileTransferInfoToClient[in.readUnsignedShort()];
+
+            for(int i = 0; i < manifest.length; i++) {
+                manifest[i] = readFileInfo(in);
+            }
+
+            return manifest;
+        }
+    },
+
+    /**
+     * Any <code>Serializable</code> object, written with the connection's
+     * object stream.
+     */
+    OBJECT {
+        public boolean accepts(Object payload) {
+            return payload == null || payload instanceof Serializable;
+        }
+
+        public void write(Object payload, DataOutputStream out, ObjectStreams objects) throws IOException {
+            ObjectOutput objectOut = objects.getObjectOutput();
+
+            objectOut.writeObject(payload);
+            objectOut.flush();
+        }
+
+        public Object read(DataInputStream in, ObjectStreams objects) throws IOException, ClassNotFoundException {
+            return objects.getObjectInput().readObject();
+        }
+    };
+
+    /**
+     * Cached copy of <code>ResourceState.values()</code>.
+     */
+    private static final ResourceState[] RESOURCE_STATES = ResourceState.values();
+
+    /**
+     * Cached copy of <code>TransferFileRemoteDirectory.values()</code>.
+     */
+    private static final TransferFileRemoteDirectory[] REMOTE_DIRECTORIES = TransferFileRemoteDirectory.values();
+
+    /**
+     * Writes a <code>FileTransferInfoToClient</code>, field by field.
+     */
+    private static void writeFileInfo(FileTransferInfoToClient transferInfo, DataOutputStream out) throws IOException {
+        out.writeUTF(transferInfo.getRemoteFilename());
+        out.writeLong(transferInfo.getFilesize());
+        out.writeByte(transferInfo.getRemoteDirectory().ordinal());
+        out.writeLong(transferInfo.getLastModified());
+        out.writeBoolean(transferInfo.isExecutable());
+
+        byte[] digest = transferInfo.getDigest();
+        out.writeByte(digest.length);
+        out.write(digest);
+    }
+
+    /**
+     * Reads a <code>FileTransferInfoToClient</code> written by writeFileInfo.
+     */
+    private static FileTransferInfoToClient readFileInfo(DataInputStream in) throws IOException {
+        String remoteFilename = in.readUTF();
+        long filesize = in.readLong();
+
+        int directory = in.readUnsignedByte();
+        if(directory >= REMOTE_DIRECTORIES.length) {
+            throw new IOException("Unknown remote directory " + directory);
+        }
+
+        long lastModified = in.readLong();
+        boolean isExecutable = in.readBoolean();
+
+        byte[] digest = new byte[in.readUnsignedByte()];
+        in.readFully(digest);
+
+        return new FileTransferInfoToClient(remoteFilename, filesize, REMOTE_DIRECTORIES[directory], lastModified, isExecutable, digest);
+    }
+
+    /**
+     * Returns whether the specified object can be sent as this type of payload.
+     *
+     * @param payload The object to check
+     * @return true if the payload can be encoded as this type
+     */
+    public abstract boolean accepts(Object payload);
+
+    /**
+     * Encodes a payload of this type.
+     *
+     * @param payload The payload to encode
+     * @param out     The stream to write the payload to
+     * @param objects The connection's object streams
+     * @throws java.io.IOException if the payload could not be written
+     */
+    public abstract void write(Object payload, DataOutputStream out, ObjectStreams objects) throws IOException;
+
+    /**
+     * Decodes a payload of this type.
+     *
+     * @param in      The stream to read the payload from
+     * @param objects The connection's object streams
+     * @return The decoded payload
+     * @throws java.io.IOException if the payload is malformed
+     * @throws java.lang.ClassNotFoundException if the payload is an object of
+     *         an unknown class
+     */
+    public abstract Object read(DataInputStream in, ObjectStreams objects) throws IOException, ClassNotFoundException;
+
+    /**
+     * The object streams of a connection, which carry OBJECT payloads.  Both
+     * write to and read from the same frames as the DataOutputStream and
+     * DataInputStream handed to write() and read(), and are created the first
+     * time they are asked for.
+     */
+    public interface ObjectStreams {
+        /**
+         * Returns the stream objects are sent with.
+         *
+         * @return The stream
+         * @throws java.io.IOException if the stream could not be created
+         */
+        ObjectOutput getObjectOutput() throws IOException;
+
+        /**
+         * Returns the stream objects are received with.
+         *
+         * @return The stream
+         * @throws java.io.IOException if the stream could not be created
+         */
+        ObjectInput getObjectInput() throws IOException;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * ReductionStage.java
+ *
+ * Combines the results of tasks of a DagJob in a balanced tree.
+ */
+
+package edu.tcnj.TGrid;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+
+/**
+ * A ReductionStage combines the results of some of the tasks of a DagJob into
+ * one, with tasks from a Combiner that each combine two results.  Results are
+ * combined as they arrive, rather than once they all have, and only with
+ * results of a similar size, so that the tree of combining tasks stays
+ * balanced: no task combines a large result with a small one while the small
+ * one could wait for one like it.  Once the stage is closed and every result
+ * has arrived, what is left is combined smallest first.
+ *
+ * A stage is created with DagJob.addReduction().  The tasks whose results it
+ * combines are added to the Job through the stage, after which the stage is
+ * closed.
+ *
+ * @see edu.tcnj.TGrid.Combiner
+ */
+public class ReductionStage {
+    /**
+     * How many times the size of a result another may be to be combined with
+     * it before every result has arrived
+     */
+    public static final double SIMILAR_SIZE_RATIO = 2;
+
+    /**
+     * Orders operands smallest first
+     */
+    private static final Comparator<Operand> SMALLEST_FIRST = new Comparator<Operand>() {
+        public int compare(Operand a, Operand b) {
+            return Double.compare(a.size, b.size);
+        }
+    };
+
+    /**
+     * The Job the stage combines results of
+     */
+    private final DagJob job;
+
+    /**
+     * Creates the tasks that combine results
+     */
+    private final Combiner combiner;
+
+    /**
+     * Results that have arrived and have not been combined yet.  Guarded by
+     * the stage.
+     */
+    private ArrayList<Operand> operands = new ArrayList<Operand>();
+
+    /**
+     * The number of tasks, including combining tasks, whose results have not
+     * arrived yet.  Guarded by the stage.
+     */
+    private int pending = 0;
+
+    /**
+     * Whether all the tasks whose results are combined have been added.
+     * Guarded by the stage.
+     */
+    private boolean closed = false;
+
+    /**
+     * The number of combining tasks created.  Guarded by the stage.
+     */
+    private int combineTasks = 0;
+
+    /**
+     * Creates a stage combining results of tasks of a Job.
+     *
+     * @param job      The Job
+     * @param combiner Creates the tasks that combine results
+     */
+    ReductionStage(DagJob job, Combiner combiner) {
+        this.job = job;
+        this.combiner = combiner;
+    }
+
+    /**
+     * Adds a task to the Job whose result the stage combines, to be handed out
+     * once the given tasks have completed, as with DagJob.addTask().
+     *
+     * @param task   The task
+     * @param inputs The tasks it depends on
+     * @throws IllegalStateException if the stage has been closed
+     */
+    public void addTask(Task task, Task... inputs) {
+        synchronized(this) {
+            if (closed) {
+                throw new IllegalStateException("No tasks can be added to a closed reduction");
+            }
+            pending++;
+        }
+
+        job.addReducedTask(this, task, inputs);
+    }
+
+    /**
+     * Notes that no more tasks will be added, so that the results left over
+     * can be combined once they have all arrived.
+     */
+    public void close() {
+        synchronized(this) {
+            closed = true;
+        }
+
+        combineOperands();
+    }
+
+    /**
+     * Returns whether every result has been combined into one.
+     *
+     * @return true if the stage is closed and has its result
+     */
+    public synchronized boolean isComplete() {
+        return closed && pending == 0 && operands.size() <= 1;
+    }
+
+    /**
+     * Returns the result of combining every result.
+     *
+     * @return The result, or null if the stage is not complete or combined
+     *         nothing
+     */
+    public Serializable getResult() {
+        Task last;
+        synchronized(this) {
+            if (!isComplete() || operands.isEmpty()) {
+                return null;
+            }
+            last = operands.get(0).task;
+        }
+
+        return job.getResult(last);
+    }
+
+    /**
+     * Returns the number of combining tasks the stage has created.
+     *
+     * @return The number of tasks
+     */
+    public synchronized int getNumberOfCombineTasks() {
+        return combineTasks;
+    }
+
+    /**
+     * Notes that a task was added to the Job alongside one whose result the
+     * stage combines, and whose result the stage combines too.
+     */
+    synchronized void taskAdded() {
+        pending++;
+    }
+
+    /**
+     * Takes in the result of one of the tasks whose results the stage
+     * combines, and combines it with others of a similar size.  Called by the
+     * Job, one task at a time.
+     *
+     * @param task   The completed task
+     * @param result Its result
+     */
+    void taskCompleted(Task task, Serializable result) {
+        synchronized(this) {
+            pending--;
+            operands.add(new Operand(task, combiner.sizeOf(result)));
+        }
+
+        combineOperands();
+    }
+
+    /**
+     * Creates tasks to combine the results that have arrived: each with the
+     * next larger one if they are of a similar size, or, once every result has
+     * arrived, smallest first regardless.  The tasks are added to the Job
+     * without holding the stage, since the Job calls into it holding its own
+     * locks.
+     */
+    private void combineOperands() {
+        LinkedList<Operand[]> pairs = new LinkedList<Operand[]>();
+
+        synchronized(this) {
+            boolean last = closed && pending == 0;
+            Collections.sort(operands, SMALLEST_FIRST);
+
+            ArrayList<Operand> left = new ArrayList<Operand>();
+            int i = 0;
+            while (i < operands.size()) {
+                Operand smaller = operands.get(i);
+                if (i + 1 < operands.size() && (last || operands.get(i + 1).size <= smaller.size * SIMILAR_SIZE_RATIO)) {
+                    pairs.add(new Operand[] {smaller, operands.get(i + 1)});
+                    i += 2;
+                } else {
+                    left.add(smaller);
+                    i++;
+                }
+            }
+
+            operands = left;
+            pending += pairs.size();
+            combineTasks += pairs.size();
+        }
+
+        for (Operand[] pair : pairs) {
+            job.addReducedTask(this, combiner.createCombineTask(), pair[0].task, pair[1].task);
+        }
+    }
+
+    /**
+     * A result waiting to be combined
+     */
+    private static class Operand {
+        /**
+         * The task whose result it is
+         */
+        final Task task;
+
+        /**
+         * The size of the result
+         */
+        final double size;
+
+        /**
+         * Creates an operand.
+         */
+        Operand(Task task, double size) {
+            this.task = task;
+            this.size = size;
+        }
+    }
+}
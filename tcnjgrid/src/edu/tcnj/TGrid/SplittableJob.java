@@ -0,0 +1,26 @@
+/*
+ * SplittableJob.java
+ *
+ * A Job that accepts tasks split off from the ones it handed out.
+ */
+
+package edu.tcnj.TGrid;
+
+/**
+ * The SplittableJob interface is implemented by Jobs whose tasks the server
+ * may split.  A Job can then start with a few large tasks, and have them
+ * refined into smaller ones only as idle resources appear.
+ *
+ * @see edu.tcnj.TGrid.SplittableTask
+ */
+public interface SplittableJob extends Job {
+    /**
+     * Adds a task split off from one of the Job's tasks that has been handed
+     * out.  The task it was split from now leaves its work out, so the Job is not
+     * finished until the split-off task has been run and stored too.
+     *
+     * @param task     The task it was split from
+     * @param splitOff The split-off task, ready to run
+     */
+    void addSplitTask(Task task, Task splitOff);
+}
@@ -0,0 +1,44 @@
+/*
+ * SplittableTask.java
+ *
+ * A Task whose remaining work can be split off into a new Task.
+ */
+
+package edu.tcnj.TGrid;
+
+/**
+ * The SplittableTask interface is implemented by Tasks that can hand part of
+ * their work to a new Task, even while they run.  When resources would
+ * otherwise sit idle at the end of a Job, the server splits its largest tasks
+ * so that the idle resources can share their work.
+ *
+ * A split takes two steps, since only the client running a task knows how far
+ * it has got.  The server creates the split-off task from its own copy of the
+ * task with createSplit(), and sends it to the client, which gives up the work
+ * it covers with yieldTo().  If the client agrees, the server's copy yields to
+ * the task the client sends back, and the task's Job, which must be a
+ * SplittableJob, is given the split-off task to run.
+ *
+ * @see edu.tcnj.TGrid.SplittableJob
+ */
+public interface SplittableTask {
+    /**
+     * Returns a new Task for the second half of this task's work, without
+     * changing this task.
+     *
+     * @return The split-off task, or null if there is too little work to split
+     */
+    Task createSplit();
+
+    /**
+     * Gives up the work of a task that createSplit() returned for a copy of this
+     * task.  A task that is running moves the start of the split-off task up to
+     * half of the work it has left, so the split-off task may end up with less
+     * work than it was created with, but never more.
+     *
+     * @param splitOff The split-off task
+     * @return true if this task no longer does the split-off task's work; false
+     *         if it has too little work left to give any up
+     */
+    boolean yieldTo(Task splitOff);
+}
@@ -0,0 +1,469 @@
+/*
+ * StreamingJob.java
+ *
+ * A Job whose tasks are created as they are needed.
+ */
+
+package edu.tcnj.TGrid;
+
+import edu.tcnj.TGrid.Events.JobEvent;
+import edu.tcnj.TGrid.Events.JobEventListener;
+import edu.tcnj.TGrid.States.JobState;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+
+/**
+ * The StreamingJob class is the basis of Jobs with too many tasks to create
+ * them all up front, such as parameter sweeps.  Tasks are created from a
+ * cursor, one at a time, only when the server asks for the next one, and each
+ * is forgotten once it has completed and its results have been taken in.  The
+ * Job only holds the tasks handed out and not yet stored back, the tasks
+ * waiting to run again, and the tasks that failed, so its size follows the
+ * number of tasks in flight rather than the number of tasks in the Job.
+ *
+ * Subclasses create the task at each position of the cursor, give an estimate
+ * of how many positions there are, and take in the results of each completed
+ * task.  Tasks the Job makes along the way, such as tasks that combine
+ * results, are added with addTask().  Tasks are handed out the most costly
+ * first, so subclasses should create them in order of decreasing cost where
+ * they can.
+ *
+ * @see edu.tcnj.TGrid.Job
+ */
+public abstract class StreamingJob implements Job {
+    /**
+     * Guards the tasks and counts.  Not the Job itself, since the Job's state
+     * is changed, and its listeners told, without holding it.
+     */
+    private final Object taskLock = new Object();
+
+    /**
+     * Held while a task is stored, so that tasks are stored one at a time
+     */
+    private final Object storeLock = new Object();
+
+    /**
+     * Tasks added by the Job or handed back to run again, the most costly
+     * first.  Guarded by taskLock.
+     */
+    private PriorityQueue<ReadyTask> readyTasks = new PriorityQueue<ReadyTask>();
+
+    /**
+     * The task created at the cursor and not handed out yet, or null.  Guarded
+     * by taskLock.
+     */
+    private ReadyTask nextCreatedTask = null;
+
+    /**
+     * The position of the next task to create.  Guarded by taskLock.
+     */
+    private long cursor = 0;
+
+    /**
+     * Whether createTask() has run out of tasks.  Guarded by taskLock.
+     */
+    private boolean exhausted = false;
+
+    /**
+     * The IDs of the tasks handed out and not stored back yet.  Guarded by
+     * taskLock.
+     */
+    private HashSet<Integer> tasksInFlight = new HashSet<Integer>();
+
+    /**
+     * The number of tasks added with addTask().  Guarded by taskLock.
+     */
+    private int tasksAdded = 0;
+
+    /**
+     * The number of tasks that have completed.  Guarded by taskLock.
+     */
+    private int tasksCompleted = 0;
+
+    /**
+     * Tasks that failed and are not run again.  Guarded by taskLock.
+     */
+    private LinkedList<Task> failedTasks = new LinkedList<Task>();
+
+    /**
+     * Represents the current state of this Job.
+     */
+    private volatile JobState currentState = JobState.NEW;
+
+    /**
+     * Stores a list of every event listener that is registered to receive event
+     * notifications from this class.
+     */
+    private HashSet<JobEventListener> registeredListeners = new HashSet<JobEventListener>();
+
+    /**
+     * Creates the task at a position of the cursor.  Called once per position,
+     * in order, starting from 0.
+     *
+     * @param index The position
+     * @return The task, or null if there are no more
+     */
+    protected abstract Task createTask(long index);
+
+    /**
+     * Returns an estimate of how many tasks createTask() will create in all.
+     * It need not be exact; it is only reported.
+     *
+     * @return The estimated number of tasks
+     */
+    protected abstract long getEstimatedNumberOfTasks();
+
+    /**
+     * Takes in the results of a completed task.  The task is forgotten
+     * afterwards, unless the subclass keeps it.
+     *
+     * @param task The completed task
+     */
+    protected abstract void taskCompleted(Task task);
+
+    /**
+     * Deals with a task that ran into trouble or was found problematic.  By
+     * default it is kept with the other failed tasks and not run again.
+     * Override this function to run such tasks again with retryTask().
+     *
+     * @param task The failed task
+     */
+    protected void taskFailed(Task task) {
+        synchronized(taskLock) {
+            failedTasks.add(task);
+        }
+    }
+
+    /**
+     * Adds a task made by the Job, such as one that combines the results of
+     * others, to be handed out before any new task that is less costly.
+     *
+     * @param task The task
+     */
+    protected void addTask(Task task) {
+        synchronized(taskLock) {
+            tasksAdded++;
+            readyTasks.add(new ReadyTask(task));
+        }
+    }
+
+    /**
+     * Puts a task that has been handed out back, to be handed out again.
+     *
+     * @param task The task
+     */
+    protected void retryTask(Task task) {
+        synchronized(taskLock) {
+            readyTasks.add(new ReadyTask(task));
+        }
+    }
+
+    /**
+     * Returns whether every task has been created, handed out and stored back,
+     * besides the one being stored.  Tasks are stored one at a time, so
+     * subclasses use it in taskCompleted() to tell whether the results they
+     * have are the last.
+     *
+     * @return true if no task is left to hand out or in flight
+     */
+    protected boolean isDrained() {
+        synchronized(taskLock) {
+            return tasksInFlight.isEmpty() && readyTasks.isEmpty() && !hasCreatedTask();
+        }
+    }
+
+    /**
+     * Does what is necessary to make the Job ready to run, after which
+     * the Job is marked READY.  No tasks are created yet.
+     */
+    public void makeReady() {
+        setState(JobState.READY);
+    }
+
+    /**
+     * Returns the next Task to be performed as part of this Job: whichever is
+     * the more costly of the next task waiting to run again and the task at
+     * the cursor.
+     *
+     * @return A Task object representing the next task needed to be run, or
+     *         null if there is none.
+     */
+    public Task getNextReadyTask() {
+        Task task;
+
+        synchronized(taskLock) {
+            boolean created = hasCreatedTask();
+            if (!readyTasks.isEmpty() && (!created || readyTasks.peek().compareTo(nextCreatedTask) <= 0)) {
+                task = readyTasks.poll().task;
+            } else if (created) {
+                task = nextCreatedTask.task;
+                nextCreatedTask = null;
+            } else {
+                return null;
+            }
+
+            tasksInFlight.add(task.getTaskID());
+        }
+
+        setState(JobState.RUNNING);
+        return task;
+    }
+
+    /**
+     * Returns whether or not there are any tasks remaining as part of this Job.
+     *
+     * @return true if there is at least one more Task ready,
+     *         false otherwise
+     */
+    public boolean hasNextTask() {
+        synchronized(taskLock) {
+            return !readyTasks.isEmpty() || hasCreatedTask();
+        }
+    }
+
+    /**
+     * Stores the specified Task.
+     *
+     * Completed tasks are handed to taskCompleted(), failed ones to
+     * taskFailed(), and ones that were cancelled or handed back are run again.
+     * The Job completes once every task has been created and stored back as
+     * completed or failed.  Tasks that are not out, such as a copy of a task
+     * that was already stored, are ignored.
+     */
+    public void storeTask(Task taskToStore) {
+        boolean drained;
+
+        synchronized(storeLock) {
+            synchronized(taskLock) {
+                if (!tasksInFlight.remove(taskToStore.getTaskID())) {
+                    return;
+                }
+            }
+
+            switch(taskToStore.getState()) {
+                case COMPLETED:
+                    synchronized(taskLock) {
+                        tasksCompleted++;
+                    }
+                    taskCompleted(taskToStore);
+                    break;
+                case TROUBLED:
+                case PROBLEMATIC:
+                    taskFailed(taskToStore);
+                    break;
+                case READY: //the Monitor hands back tasks that were cancelled as READY
+                case TERMINATED:
+                    retryTask(taskToStore);
+                    break;
+            }
+
+            drained = isDrained();
+        }
+
+        if (drained) {
+            setState(JobState.COMPLETED);
+        }
+    }
+
+    /**
+     * Returns the number of Tasks featured as part of the Job: the estimate of
+     * how many will be created, plus those the Job has added.
+     *
+     * @return the total number of Tasks that this Job is expected to have.
+     */
+    public int getInitialNumberOfTasks() {
+        synchronized(taskLock) {
+            return (int)Math.min(Integer.MAX_VALUE, Math.max(getEstimatedNumberOfTasks(), cursor) + tasksAdded);
+        }
+    }
+
+    /**
+     * Returns the number of Tasks remaining in this Job.  (That is, those that
+     * have not yet been retrieved with the getNextTask() method.)  Tasks not
+     * created yet are counted from the estimate.
+     *
+     * @return the number of Tasks remaining in this Job.
+     */
+    public int getRemainingNumberOfTasks() {
+        synchronized(taskLock) {
+            long remaining = readyTasks.size() + ((nextCreatedTask != null) ? 1 : 0);
+            if (!exhausted) {
+                remaining += Math.max(0, getEstimatedNumberOfTasks() - cursor);
+            }
+
+            return (int)Math.min(Integer.MAX_VALUE, remaining);
+        }
+    }
+
+    /**
+     * Returns the number of Tasks in this Job that have completed sucessfully.
+     *
+     * @return the number of Tasks completed.
+     */
+    public int getNumberOfTasksCompleted() {
+        synchronized(taskLock) {
+            return tasksCompleted;
+        }
+    }
+
+    /**
+     * Returns the tasks that failed and were not run again.
+     *
+     * @return A copy of the list of failed tasks
+     */
+    protected LinkedList<Task> getFailedTasks() {
+        synchronized(taskLock) {
+            return new LinkedList<Task>(failedTasks);
+        }
+    }
+
+    /**
+     * Returns the tasks waiting to be handed out again.  Tasks not created
+     * yet are not included.
+     *
+     * @return A copy of the list of waiting tasks
+     */
+    protected LinkedList<Task> getWaitingTasks() {
+        synchronized(taskLock) {
+            LinkedList<Task> tasks = new LinkedList<Task>();
+            for (ReadyTask readyTask : readyTasks) {
+                tasks.add(readyTask.task);
+            }
+            if (nextCreatedTask != null) {
+                tasks.add(nextCreatedTask.task);
+            }
+
+            return tasks;
+        }
+    }
+
+    /**
+     * Returns whether a task has been created at the cursor and not handed
+     * out, creating it if need be.  Must be called holding taskLock.
+     */
+    private boolean hasCreatedTask() {
+        if (nextCreatedTask == null && !exhausted) {
+            Task task = createTask(cursor);
+            if (task != null) {
+                nextCreatedTask = new ReadyTask(task);
+                cursor++;
+            } else {
+                exhausted = true;
+            }
+        }
+
+        return nextCreatedTask != null;
+    }
+
+    /**
+     * Returns the current state of this Job
+     *
+     * @return The current state of the Job instance
+     */
+    public JobState getState() {
+        return currentState;
+    }
+
+    /**
+     * Change this Job's state, sending event notifications if necessary.
+     *
+     * @param The new state to set the job to.
+     */
+    protected void setState(JobState newState) {
+        synchronized(registeredListeners) {
+            if(currentState == newState) {
+                return;
+            }
+            currentState = newState;
+        }
+        fireStateChanged();
+    }
+
+    /**
+     * Notify all registered listeners of state changes.
+     */
+    protected void fireStateChanged() {
+        synchronized(registeredListeners) {
+            for (JobEventListener listener : registeredListeners) {
+                listener.JobStateChanged(new JobEvent(this));
+            }
+        }
+    }
+
+    /**
+     * Notify all registered listeners that the given tasks should be cancelled.
+     *
+     * @param taskIDs An array of all task IDs that should be cancelled.
+     */
+    protected void cancelSpecifiedTasks(int[] taskIDs) {
+        synchronized(registeredListeners) {
+            for (JobEventListener listener : registeredListeners) {
+                listener.TasksCancelled(new JobEvent(this), taskIDs);
+            }
+        }
+    }
+
+    /**
+     * Notify all registered listeners that all tasks should be cancelled.
+     */
+    protected void cancelAllTasks() {
+        synchronized(registeredListeners) {
+            for (JobEventListener listener : registeredListeners) {
+                listener.AllTasksCancelled(new JobEvent(this));
+            }
+        }
+    }
+
+    /**
+     * Add the specified event listener to the list of registered listeners, thus
+     * allowing it to be notified of JobEvents.
+     *
+     * @param listenerToAdd The listener to remove from the list of registered listeners.
+     */
+    public void addJobEventListener(JobEventListener listenerToAdd) {
+        synchronized(registeredListeners) {
+            registeredListeners.add(listenerToAdd);
+        }
+    }
+
+    /**
+     * Remove the specified event listener from the list of registered listeners, thus
+     * no longer allowing it to be notified of JobEvents.
+     *
+     * @param listenerToRemove The listener to remove from the list of registered listeners.
+     */
+    public void removeJobEventListener(JobEventListener listenerToRemove) {
+        synchronized(registeredListeners) {
+            registeredListeners.remove(listenerToRemove);
+        }
+    }
+
+    /**
+     * A task waiting to be handed out, with its cost estimate as it was when
+     * it started waiting, so that the estimate is not worked out again every
+     * time the tasks are compared.  Ordered the most costly first, and
+     * otherwise oldest first.
+     */
+    private static class ReadyTask implements Comparable<ReadyTask> {
+        /**
+         * The task
+         */
+        final Task task;
+
+        /**
+         * Its cost estimate
+         */
+        final double cost;
+
+        ReadyTask(Task task) {
+            this.task = task;
+            this.cost = task.getCostEstimate();
+        }
+
+        public int compareTo(ReadyTask other) {
+            int byCost = Double.compare(other.cost, cost);
+            return (byCost != 0) ? byCost : ((task.getTaskID() < other.task.getTaskID()) ? -1 : ((task.getTaskID() > other.task.getTaskID()) ? 1 : 0));
+        }
+    }
+}
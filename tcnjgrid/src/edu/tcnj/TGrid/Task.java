@@ -35,6 +35,11 @@ public abstract class Task implements Serializable
      */
     protected int timeout = 5000;
     
+    /**
+     * Priority of the task.  Tasks with higher priorities are assigned first.
+     */
+    protected int priority = 0;
+    
     /**
      * Represents the current state of this Task
      */
@@ -56,6 +61,16 @@ public abstract class Task implements Serializable
      */
     protected TaskRequirements taskRequirements = new TaskRequirements();
     
+    /**
+     * Returns the client requirements of this task.
+     * 
+     * @return The task's requirements
+     */
+    public TaskRequirements getRequirements()
+    {
+    	return taskRequirements;
+    }
+    
     /**
 		 * Determines if the client meets the task requirements.
 		 * 
@@ -133,6 +148,17 @@ public abstract class Task implements Serializable
     	return timeout;
     }
     
+    /**
+     * Sets the task timeout.  The server sets it from how long similar tasks
+     * have taken, once it has seen enough of them.
+     * 
+     * @param timeout Timeout for task in milliseconds
+     */
+    public void setTimeout(int timeout)
+    {
+    	this.timeout = timeout;
+    }
+    
     /**
      * Increases the task timeout.  Override this function to change method for
      * increasing timeout.
@@ -146,6 +172,40 @@ public abstract class Task implements Serializable
     	return timeout;
     }
     
+    /**
+     * Returns an estimate of how much work the task is, so that the largest
+     * tasks can be started first and given to the fastest resources.  The units
+     * are up to the Job, since estimates are only compared between tasks of the
+     * same Job.  Override this function to give an estimate.
+     * 
+     * @return The estimated cost, or 0 if it is not known
+     */
+    public double getCostEstimate()
+    {
+    	return 0;
+    }
+    
+    /**
+     * Returns the priority of the task.  Tasks with higher priorities are
+     * assigned before, and may preempt, tasks with lower ones.
+     * 
+     * @return Priority of the task
+     */
+    public int getPriority()
+    {
+    	return priority;
+    }
+    
+    /**
+     * Sets the priority of the task
+     * 
+     * @param priority New priority for the task
+     */
+    public void setPriority(int priority)
+    {
+    	this.priority = priority;
+    }
+    
     /**
      * Manually sets the Task's state, triggering event notifications if appropriate.
      */
@@ -0,0 +1,238 @@
+package edu.tcnj.TGrid;
+
+import edu.tcnj.TGrid.Events.TaskEvent;
+import edu.tcnj.TGrid.Events.TaskEventListener;
+import edu.tcnj.TGrid.States.TaskState;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.io.Serializable;
+
+/**
+ * The TaskBundle class carries several small tasks of one Job to a client as a
+ * single task, so that sending it, reporting on it and timing it out is done
+ * once for all of them.  The client runs the tasks one after another and sends
+ * back all of their results together.  Once the results are set on the
+ * server, each task holds its own results and state, ready to be handed back
+ * to its Job.
+ *
+ * @see edu.tcnj.TGrid.GridServer.Monitor
+ */
+public class TaskBundle extends Task
+{
+	/**
+	 * The bundled tasks, in the order they are run
+	 */
+	private ArrayList<Task> tasks;
+
+	/**
+	 * The state and results of every bundled task, once the bundle has run
+	 */
+	private Results results;
+
+	/**
+	 * Represents the internal thread used to run the bundled tasks.
+	 */
+	private transient RunThread runThread;
+
+	/**
+	 * Creates a new TaskBundle.  The bundle takes on the requirements and
+	 * priority of the first task, so the tasks should all have the same ones.
+	 *
+	 * @param tasks   The tasks to bundle, in the order they are to be run
+	 * @param timeout Timeout in milliseconds for the whole bundle
+	 */
+	public TaskBundle(List<Task> tasks, int timeout)
+	{
+		this.tasks = new ArrayList<Task>(tasks);
+		this.timeout = timeout;
+
+		taskRequirements = this.tasks.get(0).getRequirements();
+		priority = this.tasks.get(0).getPriority();
+	}
+
+	/**
+	 * Returns the bundled tasks.
+	 *
+	 * @return The tasks, in the order they are run
+	 */
+	public List<Task> getTasks()
+	{
+		return Collections.unmodifiableList(tasks);
+	}
+
+	/**
+	 * Returns the number of bundled tasks.
+	 *
+	 * @return The number of tasks
+	 */
+	public int size()
+	{
+		return tasks.size();
+	}
+
+	/**
+	 * Returns the combined cost estimate of the bundled tasks.
+	 *
+	 * @return The estimated cost, or 0 if it is not known
+	 */
+	@Override
+	public double getCostEstimate()
+	{
+		double cost = 0;
+		for (Task task : tasks)
+			cost += task.getCostEstimate();
+
+		return cost;
+	}
+
+	/**
+	 * Runs the bundled tasks one after another, in their own thread
+	 */
+	public void runTask()
+	{
+		setState(TaskState.RUNNING);
+
+		runThread = new RunThread();
+		runThread.start();
+	}
+
+	/**
+	 * If the bundle is currently running, forces the task being run to quit and
+	 * skips the rest.
+	 */
+	public void forceQuit()
+	{
+		if(currentState == TaskState.RUNNING)
+		{
+			try
+			{
+				runThread.interrupt();
+				runThread.join();
+
+				setState(TaskState.TERMINATED);
+			} catch (InterruptedException ex) {}
+		}
+	}
+
+	/**
+	 * Sets the results of the bundle, passing each task its own results and
+	 * final state.
+	 *
+	 * @param results the results from running the bundle
+	 */
+	public void setResults(Serializable results)
+	{
+		this.results = (Results)results;
+
+		for (int i = 0; i < tasks.size(); i++)
+		{
+			Task task = tasks.get(i);
+
+			if (this.results.states[i] == TaskState.COMPLETED)
+				task.setResults(this.results.results[i]);
+			task.setState(this.results.states[i]);
+		}
+	}
+
+	/**
+	 * Returns the state and results of every bundled task.  Only useful if the
+	 * bundle has completed.
+	 *
+	 * @return the results from running the bundle
+	 */
+	public Serializable getResults()
+	{
+		return results;
+	}
+
+	/**
+	 * Returns a string representation of this TaskBundle
+	 *
+	 * @return a string representation of this TaskBundle
+	 */
+	@Override
+	public String toString()
+	{
+		return "TaskBundle #" + id + " of " + tasks.size() + " tasks";
+	}
+
+	/**
+	 * The final state of each bundled task, and the results of the ones that
+	 * completed.
+	 */
+	public static class Results implements Serializable
+	{
+		private TaskState[] states;
+
+		private Serializable[] results;
+
+		public Results(TaskState[] states, Serializable[] results)
+		{
+			this.states = states;
+			this.results = results;
+		}
+	}
+
+	protected class RunThread extends Thread implements TaskEventListener
+	{
+		public void run()
+		{
+			TaskState[] states = new TaskState[tasks.size()];
+			Serializable[] taskResults = new Serializable[tasks.size()];
+
+			for (int i = 0; i < tasks.size(); i++)
+			{
+				Task task = tasks.get(i);
+
+				task.setParentResource(parentResource);
+				task.addTaskEventListener(this);
+				try
+				{
+					task.runTask();
+
+					// Wait for the task to end; tasks run in threads of their own
+					synchronized(this)
+					{
+						while (!hasEnded(task))
+							wait();
+					}
+				}
+				catch (InterruptedException ex)
+				{
+					// Cancelled; the results are not wanted
+					task.forceQuit();
+					return;
+				}
+				finally
+				{
+					task.removeTaskEventListener(this);
+				}
+
+				states[i] = task.getState();
+				if (states[i] == TaskState.COMPLETED)
+					taskResults[i] = task.getResults();
+			}
+
+			results = new Results(states, taskResults);
+			setState(TaskState.COMPLETED);
+		}
+
+		/**
+		 * Wakes the thread when the task it is waiting on changes state.
+		 */
+		public synchronized void TaskStateChanged(TaskEvent e)
+		{
+			notifyAll();
+		}
+
+		/**
+		 * Returns whether a task has finished running, one way or another.
+		 */
+		private boolean hasEnded(Task task)
+		{
+			TaskState state = task.getState();
+			return state != TaskState.READY && state != TaskState.RUNNING;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * TaskOutcome.java
+ *
+ * How a task that ran in one of a client's extra execution slots ended.
+ */
+
+package edu.tcnj.TGrid;
+
+import edu.tcnj.TGrid.States.TaskState;
+
+import java.io.Serializable;
+
+/**
+ * Reports how a task that ran in one of a client's extra execution slots
+ * ended.  Several of these tasks can run at once, so unlike the results of
+ * the client's current task, the outcome names the task it belongs to.
+ *
+ * @see CommandToServerFromClient#SLOT_TASK_ENDED
+ */
+public class TaskOutcome implements Serializable {
+
+    /**
+     * The ID of the task
+     */
+    private final int taskID;
+
+    /**
+     * The state the task ended in
+     */
+    private final TaskState state;
+
+    /**
+     * The task's results, if it completed
+     */
+    private final Serializable results;
+
+    /**
+     * Creates the outcome of a task that has ended.
+     *
+     * @param task The task
+     */
+    public TaskOutcome(Task task) {
+        this.taskID = task.getTaskID();
+        this.state = task.getState();
+        this.results = (state == TaskState.COMPLETED) ? task.getResults() : null;
+    }
+
+    /**
+     * Returns the ID of the task.
+     *
+     * @return The task's ID
+     */
+    public int getTaskID() {
+        return taskID;
+    }
+
+    /**
+     * Returns the state the task ended in.
+     *
+     * @return COMPLETED, TERMINATED or TROUBLED
+     */
+    public TaskState getState() {
+        return state;
+    }
+
+    /**
+     * Returns the task's results.
+     *
+     * @return The results, or null if the task did not complete
+     */
+    public Serializable getResults() {
+        return results;
+    }
+}
@@ -16,6 +16,16 @@ public class TaskRequirements implements Serializable
 	 */
 	private LinkedList<RequirementsChecker> requirements = new LinkedList<RequirementsChecker>();
 	
+	/**
+	 * The number of a client's execution slots the task occupies while it runs
+	 */
+	private int cores = 1;
+	
+	/**
+	 * The memory, in MB, the task uses while it runs
+	 */
+	private int memory = 0;
+	
 	/**
 	 * Default Constructor
 	 */
@@ -34,6 +44,49 @@ public class TaskRequirements implements Serializable
 		requirements.add(checker);
 	}
 	
+	/**
+	 * Sets the number of execution slots the task occupies while it runs.  A
+	 * client with several slots runs several tasks at once, as long as their
+	 * slots and memory add up to no more than it has.
+	 * 
+	 * @param cores Number of slots, usually the number of threads the task runs
+	 */
+	public void setCores(int cores)
+	{
+		this.cores = Math.max(1, cores);
+	}
+	
+	/**
+	 * Returns the number of execution slots the task occupies while it runs.
+	 * 
+	 * @return Number of slots
+	 */
+	public int getCores()
+	{
+		return cores;
+	}
+	
+	/**
+	 * Sets the memory the task uses while it runs, which is set aside for it on
+	 * the client running it.
+	 * 
+	 * @param memory Memory in MB
+	 */
+	public void setMemory(int memory)
+	{
+		this.memory = Math.max(0, memory);
+	}
+	
+	/**
+	 * Returns the memory the task uses while it runs.
+	 * 
+	 * @return Memory in MB
+	 */
+	public int getMemory()
+	{
+		return memory;
+	}
+	
 	/**
 	 * Determines if the client meets the requirements based on it's specs.
 	 * 
@@ -43,7 +96,25 @@ public class TaskRequirements implements Serializable
 	 */
 	public boolean meetsRequirements(ClientInfo client)
 	{
-		TreeMap<String, Object> specs = client.getSpecs();
+		return meetsRequirements(client.getSpecs());
+	}
+	
+	/**
+	 * Determines if a client with the given specs meets the requirements.
+	 * 
+	 * @param specs Map containing client specs.
+	 *	 	 
+	 * @return Whether or not the specs meet the requirements.
+	 */
+	public boolean meetsRequirements(TreeMap<String, Object> specs)
+	{
+		// The client must have enough slots and memory for the task on its own
+		Object slots = specs.get("SLOTS");
+		if (cores > ((slots instanceof Number) ? ((Number)slots).intValue() : 1))
+			return false;
+		Object ram = specs.get("RAM");
+		if (ram instanceof Number && memory > ((Number)ram).intValue())
+			return false;
 		
 		// Check specs againt each requirement
 		for (RequirementsChecker checker : requirements)
@@ -53,4 +124,24 @@ public class TaskRequirements implements Serializable
 		// Client meets if execution reaches here
 		return true;
 	}
+	
+	/**
+	 * Requirements are equal if they are made up of equal checkers, which lets
+	 * the server remember which resources meet them across tasks.
+	 */
+	@Override
+	public boolean equals(Object other)
+	{
+		if (!(other instanceof TaskRequirements))
+			return false;
+		
+		TaskRequirements otherRequirements = (TaskRequirements)other;
+		return cores == otherRequirements.cores && memory == otherRequirements.memory && requirements.equals(otherRequirements.requirements);
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		return (requirements.hashCode() * 31 + cores) * 31 + memory;
+	}
 }
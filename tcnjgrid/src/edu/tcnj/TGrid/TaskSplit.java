@@ -0,0 +1,61 @@
+/*
+ * TaskSplit.java
+ *
+ * A request to split a task a client has, and the client's answer.
+ */
+
+package edu.tcnj.TGrid;
+
+import java.io.Serializable;
+
+/**
+ * Asks a client to give up part of a task it is running or has queued, and
+ * carries its answer back.  The server sends the task split off from its copy
+ * of the task; the client sends it back as it yielded to it, which may be less
+ * work than asked for, or without it if the client kept all the work.
+ *
+ * @see CommandToClientFromServer#SPLIT_TASK
+ * @see CommandToServerFromClient#TASK_SPLIT
+ * @see SplittableTask
+ */
+public class TaskSplit implements Serializable {
+
+    /**
+     * The ID of the task to split
+     */
+    private final int taskID;
+
+    /**
+     * The split-off task, or null if the client kept all the work
+     */
+    private final Task splitOff;
+
+    /**
+     * Creates a split request or answer.
+     *
+     * @param taskID   The ID of the task to split
+     * @param splitOff The split-off task, or null to refuse the split
+     */
+    public TaskSplit(int taskID, Task splitOff) {
+        this.taskID = taskID;
+        this.splitOff = splitOff;
+    }
+
+    /**
+     * Returns the ID of the task to split.
+     *
+     * @return The task's ID
+     */
+    public int getTaskID() {
+        return taskID;
+    }
+
+    /**
+     * Returns the split-off task.
+     *
+     * @return The task, or null if the client refused the split
+     */
+    public Task getSplitOff() {
+        return splitOff;
+    }
+}
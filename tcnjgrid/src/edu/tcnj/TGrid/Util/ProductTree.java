@@ -0,0 +1,469 @@
+package edu.tcnj.TGrid.Util;
+
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Multiplies many numbers together as a balanced tree of products, so that
+ * each multiplication is between numbers of about the same size.  BigInteger
+ * multiplies large numbers of a similar size much faster, in total, than it
+ * multiplies a growing product by one small number at a time.  Lists of large
+ * numbers can be multiplied, or added, by several threads at once, and the
+ * last multiplication, which no other can run alongside, is itself split
+ * between the threads.
+ */
+public class ProductTree
+{
+	/**
+	 * The fewest numbers in a range that is split in two, rather than
+	 * multiplied out in a long
+	 */
+	private static final int LEAF_RANGE = 32;
+
+	/**
+	 * The fewest bits, in all, numbers must have to be combined by more than
+	 * one thread
+	 */
+	private static final long PARALLEL_BITS = 1 << 16;
+
+	/**
+	 * Orders numbers smallest first
+	 */
+	private static final Comparator<BigInteger> SMALLEST_FIRST = new Comparator<BigInteger>()
+	{
+		public int compare(BigInteger a, BigInteger b)
+		{
+			int aBits = a.bitLength();
+			int bBits = b.bitLength();
+			return (aBits < bBits) ? -1 : ((aBits > bBits) ? 1 : 0);
+		}
+	};
+
+	/**
+	 * Returns the product of every integer from low to high, by splitting the
+	 * range in halves and multiplying the products of the halves.
+	 *
+	 * @param low  The first integer
+	 * @param high The last integer
+	 * @return The product, or 1 if the range is empty
+	 */
+	public static BigInteger product(long low, long high)
+	{
+		if (low > high)
+			return BigInteger.ONE;
+		if (low <= 0 && high >= 0)
+			return BigInteger.ZERO;
+
+		if (high - low < LEAF_RANGE)
+		{
+			// Multiply as many as fit into a long before making a BigInteger
+			BigInteger result = BigInteger.ONE;
+			long partial = 1;
+			for (long n = low; n <= high; n++)
+			{
+				if (Math.abs(partial) > Long.MAX_VALUE / Math.abs(n))
+				{
+					result = result.multiply(BigInteger.valueOf(partial));
+					partial = n;
+				}
+				else
+					partial *= n;
+			}
+
+			return result.multiply(BigInteger.valueOf(partial));
+		}
+
+		long middle = low + (high - low) / 2;
+		return product(low, middle).multiply(product(middle + 1, high));
+	}
+
+	/**
+	 * Returns the product of some numbers, multiplying the two smallest
+	 * together until one is left.
+	 *
+	 * @param numbers The numbers
+	 * @return The product, or 1 if there are none
+	 */
+	public static BigInteger multiply(Collection<BigInteger> numbers)
+	{
+		return multiply(numbers, 1);
+	}
+
+	/**
+	 * Returns the product of some numbers, multiplying the two smallest
+	 * together until one is left, with up to the given number of threads
+	 * multiplying at once.
+	 *
+	 * @param numbers The numbers
+	 * @param threads The most threads to use, including the calling one
+	 * @return The product, or 1 if there are none
+	 */
+	public static BigInteger multiply(Collection<BigInteger> numbers, int threads)
+	{
+		if (numbers.isEmpty())
+			return BigInteger.ONE;
+
+		return combine(numbers, true, threads);
+	}
+
+	/**
+	 * Returns the product of two numbers, with up to the given number of
+	 * threads multiplying at once.  Large numbers are split in halves, and the
+	 * three products of halves that Karatsuba's method needs are worked out on
+	 * different threads; if the smaller number is no larger than half of the
+	 * larger, it multiplies each half of the larger instead.
+	 *
+	 * @param a       One number
+	 * @param b       The other number
+	 * @param threads The most threads to use, including the calling one
+	 * @return The product
+	 */
+	public static BigInteger multiply(BigInteger a, BigInteger b, int threads)
+	{
+		// Small numbers are multiplied sooner than another thread starts
+		if (threads < 2 || Math.min(a.bitLength(), b.bitLength()) < PARALLEL_BITS)
+			return a.multiply(b);
+
+		// Work on the magnitudes, the larger first, and put the sign back after
+		boolean negative = (a.signum() != b.signum());
+		BigInteger large = a.abs();
+		BigInteger small = b.abs();
+		if (large.bitLength() < small.bitLength())
+		{
+			BigInteger swap = large;
+			large = small;
+			small = swap;
+		}
+
+		int half = large.bitLength() / 2;
+		BigInteger largeHigh = large.shiftRight(half);
+		BigInteger largeLow = large.subtract(largeHigh.shiftLeft(half));
+
+		BigInteger result;
+		if (small.bitLength() <= half)
+		{
+			BigInteger[] products = multiplyPairs(new BigInteger[] {largeHigh, largeLow}, new BigInteger[] {small, small}, threads);
+			result = products[0].shiftLeft(half).add(products[1]);
+		}
+		else
+		{
+			BigInteger smallHigh = small.shiftRight(half);
+			BigInteger smallLow = small.subtract(smallHigh.shiftLeft(half));
+
+			// The middle half is what the product of the sums has beyond the others
+			BigInteger[] products = multiplyPairs(new BigInteger[] {largeHigh, largeLow, largeHigh.add(largeLow)},
+				new BigInteger[] {smallHigh, smallLow, smallHigh.add(smallLow)}, threads);
+			BigInteger middle = products[2].subtract(products[0]).subtract(products[1]);
+			result = products[0].shiftLeft(2 * half).add(middle.shiftLeft(half)).add(products[1]);
+		}
+
+		return negative ? result.negate() : result;
+	}
+
+	/**
+	 * Multiplies pairs of numbers, sharing the pairs between the calling thread
+	 * and others.
+	 *
+	 * @param a       The first number of each pair
+	 * @param b       The second number of each pair
+	 * @param threads The most threads to use, including the calling one
+	 * @return The products, in the order of the pairs
+	 */
+	private static BigInteger[] multiplyPairs(BigInteger[] a, BigInteger[] b, int threads)
+	{
+		BigInteger[] products = new BigInteger[a.length];
+		int shares = Math.min(threads, a.length);
+
+		MultiplyThread[] multiplyThreads = new MultiplyThread[shares - 1];
+		for (int i = 0; i < multiplyThreads.length; i++)
+		{
+			multiplyThreads[i] = new MultiplyThread(a, b, products, i + 1, shares);
+			multiplyThreads[i].start();
+		}
+
+		for (int i = 0; i < a.length; i += shares)
+			products[i] = a[i].multiply(b[i]);
+
+		boolean interrupted = false;
+		for (MultiplyThread multiplyThread : multiplyThreads)
+		{
+			while (multiplyThread.isAlive())
+			{
+				try
+				{
+					multiplyThread.join();
+				}
+				catch (InterruptedException ex)
+				{
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		return products;
+	}
+
+	/**
+	 * Returns the sum of some numbers, adding the two smallest together until
+	 * one is left, with up to the given number of threads adding at once.
+	 *
+	 * @param numbers The numbers
+	 * @param threads The most threads to use, including the calling one
+	 * @return The sum, or 0 if there are none
+	 */
+	public static BigInteger sum(Collection<BigInteger> numbers, int threads)
+	{
+		if (numbers.isEmpty())
+			return BigInteger.ZERO;
+
+		return combine(numbers, false, threads);
+	}
+
+	/**
+	 * Combines some numbers, two smallest first, in the calling thread and as
+	 * many others as are worth starting for their size.
+	 *
+	 * @param numbers  The numbers, at least one
+	 * @param multiply Whether to multiply them, rather than add them
+	 * @param threads  The most threads to use, including the calling one
+	 * @return The result
+	 */
+	private static BigInteger combine(Collection<BigInteger> numbers, boolean multiply, int threads)
+	{
+		Combination combination = new Combination(numbers, multiply, threads);
+
+		// Small numbers are combined sooner than another thread starts
+		long bits = 0;
+		for (BigInteger number : numbers)
+			bits += number.bitLength();
+		int helpers = (bits < PARALLEL_BITS) ? 0 : Math.min(threads, numbers.size() / 2) - 1;
+
+		CombineThread[] combineThreads = new CombineThread[Math.max(0, helpers)];
+		for (int i = 0; i < combineThreads.length; i++)
+		{
+			combineThreads[i] = new CombineThread(combination);
+			combineThreads[i].start();
+		}
+
+		combination.work();
+
+		// The others stop once the last two have been combined
+		boolean interrupted = false;
+		for (CombineThread combineThread : combineThreads)
+		{
+			while (combineThread.isAlive())
+			{
+				try
+				{
+					combineThread.join();
+				}
+				catch (InterruptedException ex)
+				{
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		return combination.getResult();
+	}
+
+	/**
+	 * Numbers being combined by one or more threads, each of which takes the two
+	 * smallest numbers left, combines them, and puts the result back.
+	 */
+	private static class Combination
+	{
+		/**
+		 * The numbers left, smallest first.  Guarded by the combination.
+		 */
+		private PriorityQueue<BigInteger> smallest;
+
+		/**
+		 * The number of pairs being combined.  Guarded by the combination.
+		 */
+		private int combining = 0;
+
+		/**
+		 * Whether the numbers are multiplied, rather than added
+		 */
+		private final boolean multiply;
+
+		/**
+		 * The most threads the numbers are combined with
+		 */
+		private final int threads;
+
+		/**
+		 * Creates a combination of some numbers.
+		 *
+		 * @param numbers  The numbers, at least one
+		 * @param multiply Whether to multiply them, rather than add them
+		 * @param threads  The most threads to combine them with
+		 */
+		public Combination(Collection<BigInteger> numbers, boolean multiply, int threads)
+		{
+			smallest = new PriorityQueue<BigInteger>(numbers.size(), SMALLEST_FIRST);
+			smallest.addAll(numbers);
+			this.multiply = multiply;
+			this.threads = threads;
+		}
+
+		/**
+		 * Combines pairs of numbers until one is left.
+		 */
+		public void work()
+		{
+			boolean interrupted = false;
+
+			while (true)
+			{
+				BigInteger a, b;
+				boolean last;
+				synchronized(this)
+				{
+					// Others may be combining the numbers this one would combine with
+					while (smallest.size() < 2 && combining > 0)
+					{
+						try
+						{
+							wait();
+						}
+						catch (InterruptedException ex)
+						{
+							interrupted = true;
+						}
+					}
+
+					if (smallest.size() < 2)
+						break;
+
+					a = smallest.poll();
+					b = smallest.poll();
+					last = smallest.isEmpty() && combining == 0;
+					combining++;
+				}
+
+				// Nothing else is left to combine alongside the last pair, so
+				// the threads all work on it
+				BigInteger result;
+				if (!multiply)
+					result = a.add(b);
+				else if (last)
+					result = ProductTree.multiply(a, b, threads);
+				else
+					result = a.multiply(b);
+
+				synchronized(this)
+				{
+					smallest.add(result);
+					combining--;
+					notifyAll();
+				}
+			}
+
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		/**
+		 * Returns the number left once they have all been combined.
+		 *
+		 * @return The result
+		 */
+		public synchronized BigInteger getResult()
+		{
+			return smallest.peek();
+		}
+	}
+
+	/**
+	 * Helps combine numbers alongside the thread that started it.
+	 */
+	private static class CombineThread extends Thread
+	{
+		/**
+		 * The numbers being combined
+		 */
+		private Combination combination;
+
+		/**
+		 * Creates a thread to help combine some numbers.
+		 *
+		 * @param combination The numbers being combined
+		 */
+		public CombineThread(Combination combination)
+		{
+			this.combination = combination;
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			combination.work();
+		}
+	}
+
+	/**
+	 * Multiplies some of a list of pairs of numbers alongside the thread that
+	 * started it.
+	 */
+	private static class MultiplyThread extends Thread
+	{
+		/**
+		 * The first number of each pair
+		 */
+		private BigInteger[] a;
+
+		/**
+		 * The second number of each pair
+		 */
+		private BigInteger[] b;
+
+		/**
+		 * Where the products go
+		 */
+		private BigInteger[] products;
+
+		/**
+		 * The first pair this thread multiplies
+		 */
+		private int first;
+
+		/**
+		 * How many pairs apart the pairs this thread multiplies are
+		 */
+		private int step;
+
+		/**
+		 * Creates a thread to multiply every step-th pair, starting with the
+		 * first.
+		 *
+		 * @param a        The first number of each pair
+		 * @param b        The second number of each pair
+		 * @param products Where the products go
+		 * @param first    The first pair to multiply
+		 * @param step     How many pairs apart the pairs to multiply are
+		 */
+		public MultiplyThread(BigInteger[] a, BigInteger[] b, BigInteger[] products, int first, int step)
+		{
+			this.a = a;
+			this.b = b;
+			this.products = products;
+			this.first = first;
+			this.step = step;
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			for (int i = first; i < a.length; i += step)
+				products[i] = a[i].multiply(b[i]);
+		}
+	}
+}
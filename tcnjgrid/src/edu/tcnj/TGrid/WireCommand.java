@@ -0,0 +1,39 @@
+/*
+ * WireCommand.java
+ *
+ * A command that can be sent across a ConnectionToRemoteHost.
+ */
+
+package edu.tcnj.TGrid;
+
+/**
+ * Implemented by the command enumerations so that ConnectionToRemoteHost can
+ * encode them as a single opcode byte, followed by their payload.
+ *
+ * @see edu.tcnj.TGrid.WireProtocol
+ */
+public interface WireCommand {
+
+    /**
+     * Returns the byte that identifies this command on the wire.  Opcodes must
+     * be unique across every command enumeration.
+     *
+     * @return The opcode of this command
+     */
+    public int getOpcode();
+
+    /**
+     * Returns the type of the payload that travels with this command.
+     *
+     * @return The payload type of this command
+     */
+    public PayloadType getPayloadType();
+
+    /**
+     * Returns whether sending this command ends a task, which is a natural point
+     * to reset the connection's object streams.
+     *
+     * @return true if this command carries a task or its results
+     */
+    public boolean isTaskBoundary();
+}
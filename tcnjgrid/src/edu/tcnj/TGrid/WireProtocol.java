@@ -0,0 +1,99 @@
+/*
+ * WireProtocol.java
+ *
+ * Constants and opcode lookup for the framed protocol spoken by
+ * ConnectionToRemoteHost.
+ */
+
+package edu.tcnj.TGrid;
+
+/**
+ * Describes the framed binary protocol used between the server and clients.
+ *
+ * Every message is a single frame:
+ * <pre>
+ *   int   length of the rest of the frame
+ *   byte  opcode
+ *   ...   payload, encoded as described by the command's PayloadType
+ * </pre>
+ *
+ * The first frame each side sends is HELLO, carrying MAGIC and
+ * PROTOCOL_VERSION.  A connection that receives anything else first, or a
+ * different version, is treated as a communication error.  RESET frames are
+ * sent whenever the sender discards its object stream (see
+ * ObjectStreamResetPolicy).
+ *
+ * Opcodes are looked up in a table covering both command enumerations, so
+ * receiving a command costs an array access rather than a chain of casts.
+ */
+public final class WireProtocol {
+
+    /**
+     * The version of the protocol spoken by this build.  Must be changed
+     * whenever an opcode or payload encoding changes.
+     */
+    public static final int PROTOCOL_VERSION = 9;
+
+    /**
+     * Sent at the start of the HELLO frame, to recognize connections from
+     * something other than TGrid.
+     */
+    public static final int MAGIC = 0x5447; // "TG"
+
+    /**
+     * Opcode of the HELLO frame.
+     */
+    public static final int OPCODE_HELLO = 0x00;
+
+    /**
+     * Opcode of the RESET frame, which tells the receiver to discard its object
+     * stream.  The next object payload starts a new stream.
+     */
+    public static final int OPCODE_RESET = 0x7E;
+
+    /**
+     * Opcode of a serialized object sent without a command.
+     */
+    public static final int OPCODE_OBJECT = 0x7F;
+
+    /**
+     * Maps every opcode to the command it represents.
+     */
+    private static final WireCommand[] COMMANDS = new WireCommand[256];
+
+    static {
+        register(CommandToClientFromServer.values());
+        register(CommandToServerFromClient.values());
+    }
+
+    /**
+     * No instances; this class only holds constants.
+     */
+    private WireProtocol() {
+    }
+
+    /**
+     * Adds commands to the lookup table.
+     */
+    private static void register(WireCommand[] commands) {
+        for(WireCommand command : commands) {
+            int opcode = command.getOpcode();
+
+            if(opcode <= OPCODE_HELLO || opcode == OPCODE_RESET || opcode == OPCODE_OBJECT || opcode > 0xFF || COMMANDS[opcode] != null) {
+                throw new IllegalStateException("Opcode " + opcode + " of " + command + " is reserved or already in use");
+            }
+
+            COMMANDS[opcode] = command;
+        }
+    }
+
+    /**
+     * Returns the command that is represented by the specified opcode.
+     *
+     * @param opcode The opcode received
+     * @return The command, or null if the opcode is not assigned to one
+     */
+    public static WireCommand getCommand(int opcode) {
+        return COMMANDS[opcode & 0xFF];
+    }
+}